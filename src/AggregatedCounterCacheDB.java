@@ -0,0 +1,360 @@
+import com.qlc.common.util.log.LogUtil;
+import com.qlc.common.util.log.MyLoggerFactory;
+import org.slf4j.Logger;
+import redis.clients.jedis.PipelineBase;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.UnaryOperator;
+
+/**
+ * 本地聚合计数模式的ICacheDB。
+ * incrBy/decrBy先累加到本地分段计数器（LongAdder），后台每隔maxStalenessMillis以pipeline对每个key执行一次INCRBY，
+ * 因此redis中的值最多落后maxStalenessMillis（加一次pipeline往返）。返回值为最近一次同步得到的服务端值加上本地未同步的增量，
+ * 其他进程的并发累加要到下次同步后才会反映在返回值中。
+ * <p>
+ * 需要精确返回值的key通过addExactKey/addExactKeyPrefix登记，这些key保持原有的逐次同步INCRBY行为。
+ * getAndUpdateObject/getAndUpdateString先同步本地增量并丢弃该key的本地计数；其余操作直接转发给底层JedisPoolDB。关闭时（shutdown或JVM退出）同步剩余的本地增量。
+ */
+public class AggregatedCounterCacheDB extends DelegatingCacheDB {
+    private static Logger logger = MyLoggerFactory.getLogger(AggregatedCounterCacheDB.class);
+    private static final int IDLE_FLUSHES = 3;//连续多少次同步期间没有累加时淘汰本地计数
+    private static final int GRACE_FLUSHES = 3;//淘汰后继续同步的次数
+
+    private final JedisPoolDB<?> jedisPoolDB;
+    private final long maxStalenessMillis;
+    private final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+    //已淘汰、仍在保留期内的计数 -> key
+    private final ConcurrentHashMap<Counter, String> retired = new ConcurrentHashMap<Counter, String>();
+    private final Set<String> exactKeys = ConcurrentHashMap.newKeySet();
+    private final List<String> exactKeyPrefixes = new CopyOnWriteArrayList<String>();
+    private final ScheduledExecutorService scheduler;
+    private final Thread shutdownHook;
+    private volatile boolean running = true;
+
+    /**
+     * @param jedisPoolDB
+     * @param maxStalenessMillis 本地增量同步到redis的间隔，即redis中计数值的最大滞后时间
+     */
+    public AggregatedCounterCacheDB(JedisPoolDB<?> jedisPoolDB, long maxStalenessMillis) {
+        super(jedisPoolDB);
+        if (maxStalenessMillis <= 0) {
+            throw new IllegalArgumentException("maxStalenessMillis must be positive");
+        }
+        this.jedisPoolDB = jedisPoolDB;
+        this.maxStalenessMillis = maxStalenessMillis;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "redis-counter-flush");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flush();
+                } catch (Exception e) {
+                    LogUtil.error(e);
+                }
+            }
+        }, maxStalenessMillis, maxStalenessMillis, TimeUnit.MILLISECONDS);
+        this.shutdownHook = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                shutdown();
+            }
+        }, "redis-counter-shutdown");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    /**
+     * 登记需要精确计数的key，其incrBy/decrBy每次都同步执行
+     */
+    public void addExactKey(String key) {
+        exactKeys.add(key);
+    }
+
+    /**
+     * 登记需要精确计数的key前缀
+     */
+    public void addExactKeyPrefix(String keyPrefix) {
+        exactKeyPrefixes.add(keyPrefix);
+    }
+
+    public long getMaxStalenessMillis() {
+        return maxStalenessMillis;
+    }
+
+    /**
+     * @return 最近一次同步得到的服务端值加本地未同步增量；该key首次同步前服务端值按0计
+     */
+    @Override
+    public long incrBy(String key, int step) {
+        if (isExact(key)) {
+            return cacheDB.incrBy(key, step);
+        }
+        Counter counter = getCounter(key);
+        counter.total.add(step);
+        return counter.get();
+    }
+
+    @Override
+    public long decrBy(String key, int step) {
+        if (isExact(key)) {
+            return cacheDB.decrBy(key, step);
+        }
+        Counter counter = getCounter(key);
+        counter.total.add(-step);
+        return counter.get();
+    }
+
+    /**
+     * 返回redis中的值加上本地尚未同步的增量
+     */
+    @Override
+    public long incrDecrGet(String key) {
+        Counter counter = counters.get(key);
+        //先取本地快照：此后完成的同步已包含在读到的redis值中，只会少算、不会重复计算
+        Synced synced = counter == null ? null : counter.synced.get();
+        long ret = cacheDB.incrDecrGet(key);
+        return synced == null ? ret : ret + counter.total.sum() - synced.applied;
+    }
+
+    /**
+     * 重新初始化计数时丢弃本地尚未同步的增量
+     */
+    @Override
+    public boolean incrDecrInit(String key, int expirePeriodInSecond, long value) {
+        Counter counter = counters.get(key);
+        if (counter != null) {
+            //视为已全部同步；正在进行的同步不再覆盖此值
+            counter.synced.set(new Synced(value, counter.total.sum()));
+        }
+        return cacheDB.incrDecrInit(key, expirePeriodInSecond, value);
+    }
+
+    @Override
+    public boolean delete(String key) {
+        forget(key);
+        return cacheDB.delete(key);
+    }
+
+    @Override
+    public int multiDelete(String... keys) {
+        for (String key : keys) {
+            forget(key);
+        }
+        return cacheDB.multiDelete(keys);
+    }
+
+    /**
+     * 先同步本地增量并丢弃该key的本地计数，再按redis中的当前值更新；调用期间该key的并发累加可能丢失，同incrDecrInit
+     */
+    @Override
+    public <T extends Serializable> T getAndUpdateObject(String key, int expirePeriodInSecond, Class<T> type, UnaryOperator<T> updater) {
+        syncAndForget(key);
+        return cacheDB.getAndUpdateObject(key, expirePeriodInSecond, type, updater);
+    }
+
+    @Override
+    public String getAndUpdateString(String key, int expirePeriodInSecond, UnaryOperator<String> updater) {
+        syncAndForget(key);
+        return cacheDB.getAndUpdateString(key, expirePeriodInSecond, updater);
+    }
+
+    private void syncAndForget(String key) {
+        if (key != null && counters.containsKey(key)) {
+            flush();
+            forget(key);
+        }
+    }
+
+    /**
+     * 丢弃key的本地计数，包括已淘汰、仍在保留期内的计数
+     */
+    private void forget(String key) {
+        counters.remove(key);
+        if (!retired.isEmpty()) {
+            Iterator<Map.Entry<Counter, String>> it = retired.entrySet().iterator();
+            while (it.hasNext()) {
+                if (it.next().getValue().equals(key)) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * 立即将所有本地增量以pipeline同步到redis，每个key一条INCRBY。
+     * 增量在收到INCRBY的回复后才与新的服务端值一起计为已同步，同步期间的返回值不会回退或重复。
+     * 连续IDLE_FLUSHES次同步期间没有累加的计数从本地淘汰，之后的累加重新创建计数；
+     * 淘汰的计数在GRACE_FLUSHES次同步内仍参与同步，淘汰前已取得该计数的累加不会丢失
+     */
+    public synchronized void flush() {
+        final List<String> keys = new ArrayList<String>();
+        final List<Long> deltas = new ArrayList<Long>();
+        List<Counter> flushing = new ArrayList<Counter>();
+        List<Synced> snapshots = new ArrayList<Synced>();
+        //先同步保留期内的计数，本次新淘汰的计数在下面与其他计数一起同步
+        Iterator<Map.Entry<Counter, String>> it = retired.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Counter, String> entry = it.next();
+            Counter counter = entry.getKey();
+            Synced synced = counter.synced.get();
+            long delta = counter.total.sum() - synced.applied;
+            if (delta != 0) {
+                keys.add(entry.getValue());
+                deltas.add(delta);
+                flushing.add(counter);
+                snapshots.add(synced);
+                counter.graceFlushes = GRACE_FLUSHES;
+            } else if (--counter.graceFlushes <= 0) {
+                it.remove();
+            }
+        }
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            Counter counter = entry.getValue();
+            long total = counter.total.sum();
+            if (total == counter.seenTotal) {
+                if (++counter.idleFlushes >= IDLE_FLUSHES && counters.remove(entry.getKey(), counter)) {
+                    counter.graceFlushes = GRACE_FLUSHES;
+                    retired.put(counter, entry.getKey());
+                }
+            } else {
+                counter.seenTotal = total;
+                counter.idleFlushes = 0;
+            }
+            Synced synced = counter.synced.get();
+            long delta = total - synced.applied;
+            if (delta != 0) {
+                keys.add(entry.getKey());
+                deltas.add(delta);
+                flushing.add(counter);
+                snapshots.add(synced);
+            }
+        }
+        if (keys.isEmpty()) {
+            return;
+        }
+        //失败时增量仍在本地，下次同步
+        List<Object> results = jedisPoolDB.runPipelined(new JedisPoolDB.PipelineCallback() {
+            @Override
+            public void execute(PipelineBase pipeline) {
+                for (int i = 0; i < keys.size(); i++) {
+                    pipeline.incrBy(jedisPoolDB.encodeKey(keys.get(i)), deltas.get(i));
+                }
+            }
+        });
+        for (int i = 0; i < keys.size(); i++) {
+            Object result = i < results.size() ? results.get(i) : null;
+            if (result instanceof Long) {
+                Synced synced = snapshots.get(i);
+                //期间被incrDecrInit重置的不覆盖
+                flushing.get(i).synced.compareAndSet(synced, new Synced((Long) result, synced.applied + deltas.get(i)));
+            } else {
+                //该key执行失败（如值不是整数），增量留在本地等待下次同步
+                logger.warn("counter flush failed, key: " + keys.get(i) + ", " + result);
+            }
+        }
+    }
+
+    /**
+     * 停止后台同步并同步剩余的本地增量
+     */
+    public void shutdown() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(maxStalenessMillis * 10, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            flush();
+        } catch (Exception e) {
+            LogUtil.error(e);
+        }
+        if (Thread.currentThread() != shutdownHook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                //JVM正在退出
+            }
+        }
+    }
+
+    private boolean isExact(String key) {
+        if (exactKeys.contains(key)) {
+            return true;
+        }
+        for (String prefix : exactKeyPrefixes) {
+            if (key.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Counter getCounter(String key) {
+        if (key == null) {
+            throw new IllegalArgumentException("not support the Object-type of Null");
+        }
+        Counter counter = counters.get(key);
+        if (counter == null) {
+            counter = new Counter();
+            Counter old = counters.putIfAbsent(key, counter);
+            if (old != null) {
+                counter = old;
+            }
+        }
+        return counter;
+    }
+
+    private static final class Counter {
+        private final LongAdder total = new LongAdder();//本地累计的增量，含已同步的部分
+        private final AtomicReference<Synced> synced = new AtomicReference<Synced>(new Synced(0, 0));
+        //以下只在flush中访问
+        private long seenTotal;//上次同步时的total
+        private int idleFlushes;
+        private int graceFlushes;
+
+        /**
+         * @return 最近一次同步得到的服务端值加本地未同步的增量
+         */
+        long get() {
+            Synced current = synced.get();
+            return current.value + total.sum() - current.applied;
+        }
+    }
+
+    /**
+     * 一次同步的结果，服务端值与其已包含的本地增量一起更新
+     */
+    private static final class Synced {
+        private final long value;//同步得到的服务端值
+        private final long applied;//value中已包含的本地累计增量
+
+        Synced(long value, long applied) {
+            this.value = value;
+            this.applied = applied;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+import redis.clients.util.SafeEncoder;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 单次操作内存分配量的回归基准。
+ * 对常用操作各执行iterations次，以ThreadMXBean统计当前线程的分配字节数，减去同一操作载荷本身（key、value的编码与返回值）的分配量，
+ * 得到命令分发路径每次操作的额外分配。任一操作超过maxOverheadBytesPerOp时以退出码2结束，可用于构建后的回归检查。
+ * 额外分配中包含Jedis与连接池自身的少量对象（状态回复的String、大于127的整数回复、连接归还时的队列节点），与本库无关。
+ * <p>
+ * 需要可访问的redis，会写入并删除alloc:bench:前缀的key。
+ * e.g: java AllocationBenchmark 127.0.0.1:6379 - 100000 256
+ */
+public class AllocationBenchmark {
+    private static final String STRING_KEY = "alloc:bench:string";
+    private static final String COUNTER_KEY = "alloc:bench:counter";
+    private static final String HASH_KEY = "alloc:bench:hash";
+    private static final String FIELD = "field";
+    private static final String VALUE = "0123456789abcdef0123456789abcdef";
+
+    /**
+     * 被测操作
+     */
+    interface Op {
+        void run();
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.err.println("usage: AllocationBenchmark ip:port passwd|- [iterations] [maxOverheadBytesPerOp]");
+            System.exit(1);
+        }
+        String passwd = args.length > 1 && !"-".equals(args[1]) ? args[1] : null;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 100000;
+        long maxOverhead = args.length > 3 ? Long.parseLong(args[3]) : 256;
+        final JedisPoolDB<?> db = RedisDBFactory.getRedisDB(args[0], passwd);
+        final byte[] valueBytes = SafeEncoder.encode(VALUE);
+        db.setString(STRING_KEY, 0, VALUE);
+        db.hSetString(HASH_KEY, FIELD, VALUE);
+
+        Map<String, Op[]> ops = new LinkedHashMap<String, Op[]>();
+        //每项为{操作, 该操作的载荷}
+        ops.put("getString", new Op[]{new Op() {
+            @Override
+            public void run() {
+                db.getString(STRING_KEY);
+            }
+        }, new Op() {
+            @Override
+            public void run() {
+                KeyEncoder.NONE.encode(STRING_KEY);
+                SafeEncoder.encode(Arrays.copyOf(valueBytes, valueBytes.length));
+            }
+        }});
+        ops.put("setString", new Op[]{new Op() {
+            @Override
+            public void run() {
+                db.setString(STRING_KEY, 0, VALUE);
+            }
+        }, new Op() {
+            @Override
+            public void run() {
+                KeyEncoder.NONE.encode(STRING_KEY);
+                SafeEncoder.encode(VALUE);
+            }
+        }});
+        ops.put("incrBy", new Op[]{new Op() {
+            @Override
+            public void run() {
+                db.incrBy(COUNTER_KEY, 1);
+            }
+        }, new Op() {
+            @Override
+            public void run() {
+                KeyEncoder.NONE.encode(COUNTER_KEY);
+            }
+        }});
+        ops.put("hGetString", new Op[]{new Op() {
+            @Override
+            public void run() {
+                db.hGetString(HASH_KEY, FIELD);
+            }
+        }, new Op() {
+            @Override
+            public void run() {
+                KeyEncoder.NONE.encode(HASH_KEY);
+                KeyEncoder.NONE.encodeField(FIELD);
+                SafeEncoder.encode(Arrays.copyOf(valueBytes, valueBytes.length));
+            }
+        }});
+        ops.put("hSetString", new Op[]{new Op() {
+            @Override
+            public void run() {
+                db.hSetString(HASH_KEY, FIELD, VALUE);
+            }
+        }, new Op() {
+            @Override
+            public void run() {
+                KeyEncoder.NONE.encode(HASH_KEY);
+                KeyEncoder.NONE.encodeField(FIELD);
+                SafeEncoder.encode(VALUE);
+            }
+        }});
+        ops.put("hExists", new Op[]{new Op() {
+            @Override
+            public void run() {
+                db.hExists(HASH_KEY, FIELD);
+            }
+        }, new Op() {
+            @Override
+            public void run() {
+                KeyEncoder.NONE.encode(HASH_KEY);
+                KeyEncoder.NONE.encodeField(FIELD);
+            }
+        }});
+        ops.put("ttl", new Op[]{new Op() {
+            @Override
+            public void run() {
+                db.ttl(STRING_KEY);
+            }
+        }, new Op() {
+            @Override
+            public void run() {
+                KeyEncoder.NONE.encode(STRING_KEY);
+            }
+        }});
+
+        boolean failed = false;
+        System.out.println(String.format("%-12s %12s %12s %12s", "op", "bytes/op", "payload/op", "overhead/op"));
+        for (Map.Entry<String, Op[]> entry : ops.entrySet()) {
+            long total = allocatedPerOp(entry.getValue()[0], iterations);
+            long payload = allocatedPerOp(entry.getValue()[1], iterations);
+            long overhead = total - payload;
+            boolean over = overhead > maxOverhead;
+            failed |= over;
+            System.out.println(String.format("%-12s %12d %12d %12d%s", entry.getKey(), total, payload, overhead, over ? "  > " + maxOverhead : ""));
+        }
+        db.delete(STRING_KEY);
+        db.delete(COUNTER_KEY);
+        db.delete(HASH_KEY);
+        System.exit(failed ? 2 : 0);
+    }
+
+    /**
+     * 预热后测量op平均每次执行在当前线程上分配的字节数
+     */
+    private static long allocatedPerOp(Op op, int iterations) {
+        for (int i = 0; i < iterations; i++) {
+            op.run();
+        }
+        long before = allocatedBytes();
+        for (int i = 0; i < iterations; i++) {
+            op.run();
+        }
+        return (allocatedBytes() - before) / iterations;
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            throw new UnsupportedOperationException("thread allocation counting not supported by this JVM");
+        }
+        return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
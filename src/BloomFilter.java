@@ -0,0 +1,117 @@
+import redis.clients.util.SafeEncoder;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 进程内布隆过滤器，线程安全。
+ * 位序与redis bitmap一致（第i位对应SETBIT的offset i），可与redis中的bitmap互相同步。
+ */
+public class BloomFilter {
+    private final long numBits;
+    private final int numHashes;
+    private final AtomicLongArray bits;
+
+    /**
+     * @param expectedInsertions 预计元素数
+     * @param falsePositiveRate  期望误判率
+     */
+    public BloomFilter(long expectedInsertions, double falsePositiveRate) {
+        if (expectedInsertions <= 0 || falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("expectedInsertions must be positive and falsePositiveRate must be in (0,1)");
+        }
+        long m = (long) Math.ceil(-expectedInsertions * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        this.numBits = Math.max(64, (m + 63) / 64 * 64);
+        this.numHashes = Math.max(1, (int) Math.round((double) numBits / expectedInsertions * Math.log(2)));
+        this.bits = new AtomicLongArray((int) (numBits / 64));
+    }
+
+    public long getNumBits() {
+        return numBits;
+    }
+
+    public int getNumHashes() {
+        return numHashes;
+    }
+
+    public void add(String key) {
+        for (long offset : offsets(key)) {
+            setBit(offset);
+        }
+    }
+
+    /**
+     * @return false 表示一定不存在
+     */
+    public boolean mightContain(String key) {
+        for (long offset : offsets(key)) {
+            if ((bits.get((int) (offset >>> 6)) & mask(offset)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return key对应的各位偏移，用于同步设置redis bitmap
+     */
+    public long[] offsets(String key) {
+        byte[] bytes = SafeEncoder.encode(key);
+        long h1 = hash(bytes, 0x9E3779B97F4A7C15L);
+        long h2 = hash(bytes, 0xC2B2AE3D27D4EB4FL) | 1;
+        long[] offsets = new long[numHashes];
+        for (int i = 0; i < numHashes; i++) {
+            offsets[i] = ((h1 + i * h2) & Long.MAX_VALUE) % numBits;
+        }
+        return offsets;
+    }
+
+    /**
+     * 将redis bitmap（GET得到的字节）合并到本过滤器
+     */
+    public void merge(byte[] bitmap) {
+        if (bitmap == null) {
+            return;
+        }
+        int limit = (int) Math.min(bitmap.length, numBits / 8);
+        for (int i = 0; i < limit; i++) {
+            int b = bitmap[i] & 0xff;
+            if (b == 0) {
+                continue;
+            }
+            for (int j = 0; j < 8; j++) {
+                if ((b & (0x80 >>> j)) != 0) {
+                    setBit(i * 8L + j);
+                }
+            }
+        }
+    }
+
+    private void setBit(long offset) {
+        int idx = (int) (offset >>> 6);
+        long mask = mask(offset);
+        long old;
+        do {
+            old = bits.get(idx);
+            if ((old & mask) != 0) {
+                return;
+            }
+        } while (!bits.compareAndSet(idx, old, old | mask));
+    }
+
+    //redis bitmap中offset 0是第一个字节的最高位，这里让每个long内的位序与之一致
+    private static long mask(long offset) {
+        return 1L << (63 - (offset & 63));
+    }
+
+    private static long hash(byte[] bytes, long seed) {
+        long h = seed;
+        for (byte b : bytes) {
+            h ^= b & 0xff;
+            h *= 0x100000001B3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return h;
+    }
+}
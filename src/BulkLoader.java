@@ -0,0 +1,408 @@
+import com.qlc.common.util.log.LogUtil;
+import com.qlc.common.util.log.MyLoggerFactory;
+import org.slf4j.Logger;
+import redis.clients.jedis.PipelineBase;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.util.SafeEncoder;
+import transcoder.ISerialize;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * 批量装载工具：用于新集群预热或整体重载数据。
+ * 数据按批次并行序列化，每批通过一个pipeline写入（分片连接时按key路由到各分片的pipeline），
+ * 单批命令数（pipeline深度）与已编码未写完的字节数均有上限，超过时读取方阻塞，形成反压：
+ * 每项编码后先取得其字节数的额度再编码下一项，额度不足时先写入已编码的部分，因此已编码的数据最多超出上限每线程一项。
+ * 各命令的回复逐条检查，被redis拒绝的写入（如WRONGTYPE、OOM）计入failed。
+ * <p>
+ * 命令行用法：java BulkLoader ip:port[,ip:port] passwd|- file [expirePeriodInSecond] [batchSize]
+ * 文件每行一条数据，key与value以第一个TAB分隔，value按String写入（UTF-8编码，可用getString读取）。
+ * <p>
+ * e.g: new BulkLoader(RedisDBFactory.getRedisDB(ipPorts, passwd)).setExpirePeriodInSecond(3600).load(entries);
+ */
+public class BulkLoader {
+    private static Logger logger = MyLoggerFactory.getLogger(BulkLoader.class);
+
+    private final JedisPoolDB<?> cacheDB;
+    private int batchSize = 500;//单个pipeline的最大命令数
+    private int threads = Runtime.getRuntime().availableProcessors();//并行编码与写入的线程数
+    private int maxInFlightBytes = 64 * 1024 * 1024;//已编码但尚未写完的最大字节数
+    private int expirePeriodInSecond = 0;//0和负数表示不过期
+    private long progressIntervalMillis = 5000;//进度日志的输出间隔
+
+    public BulkLoader(JedisPoolDB<?> cacheDB) {
+        if (cacheDB == null) {
+            throw new IllegalArgumentException("cacheDB can't be NULL");
+        }
+        this.cacheDB = cacheDB;
+    }
+
+    public BulkLoader setBatchSize(int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive");
+        }
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    public BulkLoader setThreads(int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("threads must be positive");
+        }
+        this.threads = threads;
+        return this;
+    }
+
+    public BulkLoader setMaxInFlightBytes(int maxInFlightBytes) {
+        if (maxInFlightBytes <= 0) {
+            throw new IllegalArgumentException("maxInFlightBytes must be positive");
+        }
+        this.maxInFlightBytes = maxInFlightBytes;
+        return this;
+    }
+
+    public BulkLoader setExpirePeriodInSecond(int expirePeriodInSecond) {
+        this.expirePeriodInSecond = expirePeriodInSecond;
+        return this;
+    }
+
+    public BulkLoader setProgressIntervalMillis(long progressIntervalMillis) {
+        this.progressIntervalMillis = progressIntervalMillis;
+        return this;
+    }
+
+    /**
+     * 批量写入key-value，效果等同于对每一项调用setObject(key, expirePeriodInSecond, value)
+     *
+     * @param entries
+     * @return 装载统计
+     */
+    public <T extends Serializable> Stats load(Iterator<? extends Map.Entry<String, T>> entries) {
+        return doLoad(entries, false, cacheDB.getSerialize());
+    }
+
+    public <T extends Serializable> Stats load(Stream<? extends Map.Entry<String, T>> entries) {
+        return doLoad(entries.iterator(), false, cacheDB.getSerialize());
+    }
+
+    /**
+     * 批量写入hashmap，效果等同于对每一项调用hMultiSetObject(key, fieldValues)，设置了expirePeriodInSecond时同时设置整个hashmap的过期时间
+     *
+     * @param entries key -> fieldValues
+     * @return 装载统计
+     */
+    public <T extends Serializable> Stats loadHashes(Iterator<? extends Map.Entry<String, ? extends Map<String, T>>> entries) {
+        return doLoad(entries, true, cacheDB.getSerialize());
+    }
+
+    /**
+     * 从文件装载，每行一条数据，key与value以第一个TAB分隔，value按String写入（同setString，不经过连接池的序列化）；空行及没有TAB的行被忽略
+     *
+     * @param file
+     * @return 装载统计
+     * @throws IOException
+     */
+    public Stats loadFile(File file) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            return doLoad(new LineIterator(reader), false, null);
+        }
+    }
+
+    private Stats doLoad(Iterator<? extends Map.Entry<String, ?>> entries, final boolean hash, final ISerialize serialize) {
+        final Stats stats = new Stats();
+        final Semaphore inFlightBatches = new Semaphore(threads * 2);
+        final Semaphore inFlightBytes = new Semaphore(maxInFlightBytes);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        long lastReport = System.currentTimeMillis();
+        try {
+            List<Map.Entry<String, ?>> batch = new ArrayList<Map.Entry<String, ?>>(batchSize);
+            while (entries.hasNext()) {
+                Map.Entry<String, ?> entry = entries.next();
+                if (entry == null || entry.getKey() == null || entry.getValue() == null) {
+                    stats.skipped.incrementAndGet();
+                    continue;
+                }
+                batch.add(entry);
+                if (batch.size() >= batchSize) {
+                    submit(executor, batch, hash, serialize, inFlightBatches, inFlightBytes, stats);
+                    batch = new ArrayList<Map.Entry<String, ?>>(batchSize);
+                }
+                if (System.currentTimeMillis() - lastReport >= progressIntervalMillis) {
+                    lastReport = System.currentTimeMillis();
+                    logger.info("bulk load progress: " + stats);
+                }
+            }
+            if (!batch.isEmpty()) {
+                submit(executor, batch, hash, serialize, inFlightBatches, inFlightBytes, stats);
+            }
+            executor.shutdown();
+            while (!executor.awaitTermination(progressIntervalMillis, TimeUnit.MILLISECONDS)) {
+                logger.info("bulk load progress: " + stats);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("bulk load interrupted", e);
+        } finally {
+            executor.shutdownNow();
+        }
+        stats.finish();
+        logger.info("bulk load finished: " + stats);
+        return stats;
+    }
+
+    private void submit(ExecutorService executor, final List<Map.Entry<String, ?>> batch, final boolean hash,
+                        final ISerialize serialize, final Semaphore inFlightBatches, final Semaphore inFlightBytes,
+                        final Stats stats) throws InterruptedException {
+        inFlightBatches.acquire();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<byte[]> keys = new ArrayList<byte[]>(batch.size());
+                List<Object> values = new ArrayList<Object>(batch.size());
+                int bytesPermits = 0;
+                long bytes = 0;
+                int done = 0;
+                try {
+                    for (Map.Entry<String, ?> entry : batch) {
+                        byte[] key = cacheDB.encodeKey(entry.getKey());
+                        long size = key.length;
+                        Object value;
+                        if (hash) {
+                            Map<?, ?> fieldValues = (Map<?, ?>) entry.getValue();
+                            Map<byte[], byte[]> fieldValuesB = new HashMap<byte[], byte[]>(fieldValues.size());
+                            for (Map.Entry<?, ?> fieldValue : fieldValues.entrySet()) {
+                                byte[] field = SafeEncoder.encode((String) fieldValue.getKey());
+                                byte[] fieldValueB = encodeValue(serialize, fieldValue.getValue());
+                                fieldValuesB.put(field, fieldValueB);
+                                size += field.length + fieldValueB.length;
+                            }
+                            value = fieldValuesB;
+                        } else {
+                            byte[] valueB = encodeValue(serialize, entry.getValue());
+                            size += valueB.length;
+                            value = valueB;
+                        }
+                        //额度不足时先写入已编码的部分并归还其额度，不在持有额度时阻塞
+                        int permits = (int) Math.min(size, maxInFlightBytes);
+                        if (!inFlightBytes.tryAcquire(permits)) {
+                            if (!keys.isEmpty()) {
+                                done += writeAll(keys, values, stats);
+                                stats.bytes.addAndGet(bytes);
+                                inFlightBytes.release(bytesPermits);
+                                bytesPermits = 0;
+                                bytes = 0;
+                                keys = new ArrayList<byte[]>(batch.size() - done);
+                                values = new ArrayList<Object>(batch.size() - done);
+                            }
+                            inFlightBytes.acquire(permits);
+                        }
+                        bytesPermits += permits;
+                        bytes += size;
+                        keys.add(key);
+                        values.add(value);
+                    }
+                    if (!keys.isEmpty()) {
+                        done += writeAll(keys, values, stats);
+                        stats.bytes.addAndGet(bytes);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    stats.failed.addAndGet(batch.size() - done);
+                } catch (Exception e) {
+                    LogUtil.error(e);
+                    stats.failed.addAndGet(batch.size() - done);
+                } finally {
+                    inFlightBytes.release(bytesPermits);
+                    inFlightBatches.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * 以一个pipeline写入，逐项检查回复：一项的任一命令被redis拒绝即计入failed，其余计入loaded
+     *
+     * @return 写入的项数；连接失败时抛出异常，由调用方计入failed
+     */
+    private int writeAll(final List<byte[]> keys, final List<Object> values, Stats stats) {
+        //每项提交的命令数，用于把回复对应到各项
+        final int[] commands = new int[keys.size()];
+        List<Object> replies = cacheDB.runPipelined(new JedisPoolDB.PipelineCallback() {
+            @Override
+            public void execute(PipelineBase pipeline) {
+                for (int i = 0; i < keys.size(); i++) {
+                    commands[i] = write(pipeline, keys.get(i), values.get(i));
+                }
+            }
+        });
+        int reply = 0;
+        for (int i = 0; i < keys.size(); i++) {
+            JedisDataException error = null;
+            for (int j = 0; j < commands[i]; j++, reply++) {
+                Object result = reply < replies.size() ? replies.get(reply) : null;
+                if (result instanceof JedisDataException) {
+                    error = (JedisDataException) result;
+                }
+            }
+            if (error == null) {
+                stats.loaded.incrementAndGet();
+            } else {
+                stats.failed.incrementAndGet();
+                logger.warn("bulk load failed, key: " + SafeEncoder.encode(keys.get(i)) + ", " + error.getMessage());
+            }
+        }
+        return keys.size();
+    }
+
+    /**
+     * @param serialize 为null时value为String，按UTF-8编码（同setString，不经过连接池的序列化）
+     */
+    private static byte[] encodeValue(ISerialize serialize, Object value) {
+        return serialize == null ? SafeEncoder.encode((String) value) : serialize.encode(value);
+    }
+
+    /**
+     * @return 提交的命令数
+     */
+    @SuppressWarnings("unchecked")
+    private int write(PipelineBase pipeline, byte[] key, Object value) {
+        //每个key按连接池的抖动策略各自抖动
+        int expire = cacheDB.expireOf(expirePeriodInSecond);
+        if (value instanceof Map) {
+            pipeline.hmset(key, (Map<byte[], byte[]>) value);
+            if (expire > 0) {
+                pipeline.expire(key, expire);
+                return 2;
+            }
+            return 1;
+        } else if (expire > 0) {
+            pipeline.setex(key, expire, (byte[]) value);
+        } else {
+            pipeline.set(key, (byte[]) value);
+        }
+        return 1;
+    }
+
+    /**
+     * 装载统计，装载过程中可并发读取
+     */
+    public static class Stats {
+        private final long startTime = System.currentTimeMillis();
+        private volatile long endTime;
+        private final AtomicLong loaded = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong skipped = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+
+        private void finish() {
+            endTime = System.currentTimeMillis();
+        }
+
+        public long getLoaded() {
+            return loaded.get();
+        }
+
+        public long getFailed() {
+            return failed.get();
+        }
+
+        public long getSkipped() {
+            return skipped.get();
+        }
+
+        public long getBytes() {
+            return bytes.get();
+        }
+
+        public long getElapsedMillis() {
+            return (endTime > 0 ? endTime : System.currentTimeMillis()) - startTime;
+        }
+
+        /**
+         * @return 每秒写入的条数
+         */
+        public double getThroughput() {
+            long elapsed = getElapsedMillis();
+            return elapsed <= 0 ? 0 : loaded.get() * 1000.0 / elapsed;
+        }
+
+        @Override
+        public String toString() {
+            return "loaded=" + loaded.get() + ", failed=" + failed.get() + ", skipped=" + skipped.get()
+                    + ", bytes=" + bytes.get() + ", elapsed=" + getElapsedMillis() + "ms"
+                    + ", throughput=" + String.format("%.1f", getThroughput()) + "/s";
+        }
+    }
+
+    private static class LineIterator implements Iterator<Map.Entry<String, String>> {
+        private final BufferedReader reader;
+        private Map.Entry<String, String> next;
+
+        LineIterator(BufferedReader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                String line;
+                while (next == null && (line = reader.readLine()) != null) {
+                    int idx = line.indexOf('\t');
+                    if (idx > 0) {
+                        next = new AbstractMap.SimpleImmutableEntry<String, String>(line.substring(0, idx), line.substring(idx + 1));
+                    }
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<String, String> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<String, String> ret = next;
+            next = null;
+            return ret;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("usage: BulkLoader ip:port[,ip:port] passwd|- file [expirePeriodInSecond] [batchSize]");
+            System.exit(1);
+        }
+        String passwd = "-".equals(args[1]) ? null : args[1];
+        BulkLoader loader = new BulkLoader(RedisDBFactory.getRedisDB(args[0], passwd));
+        if (args.length > 3) {
+            loader.setExpirePeriodInSecond(Integer.parseInt(args[3]));
+        }
+        if (args.length > 4) {
+            loader.setBatchSize(Integer.parseInt(args[4]));
+        }
+        Stats stats = loader.loadFile(new File(args[2]));
+        System.out.println(stats);
+        System.exit(stats.getFailed() > 0 ? 2 : 0);
+    }
+}
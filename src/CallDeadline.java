@@ -0,0 +1,129 @@
+import java.io.Closeable;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 调用的时间预算（线程内作用域）。作用域内本线程经JedisPoolDB发出的每次调用：
+ * 从连接池借连接的等待时间、socket读写超时都不超过剩余预算；剩余预算不足时不再发出对冲请求，预算用完后直接失败。
+ * 超出预算时抛出DeadlineExceededException，不计入节点熔断统计。嵌套作用域取内外层中较早的截止时间。
+ * 新建连接时的TCP连接超时仍为连接池的设置。
+ * <p>
+ * e.g: try (CallDeadline ignored = CallDeadline.start(50)) { redisDB.getObject(key, User.class); }
+ */
+public final class CallDeadline implements Closeable {
+    private static final ThreadLocal<CallDeadline> CURRENT = new ThreadLocal<CallDeadline>();
+
+    private final long deadlineNanos;
+    private final CallDeadline outer;
+
+    private CallDeadline(long deadlineNanos, CallDeadline outer) {
+        this.deadlineNanos = deadlineNanos;
+        this.outer = outer;
+    }
+
+    /**
+     * 在当前线程开始一个时间预算作用域，须在finally中（或以try-with-resources）调用close()结束
+     *
+     * @param timeoutMillis 预算毫秒数
+     * @return 作用域
+     */
+    public static CallDeadline start(long timeoutMillis) {
+        if (timeoutMillis < 0) {
+            throw new IllegalArgumentException("timeoutMillis can't be negative");
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        CallDeadline outer = CURRENT.get();
+        if (outer != null && outer.deadlineNanos - deadline < 0) {
+            deadline = outer.deadlineNanos;
+        }
+        CallDeadline scope = new CallDeadline(deadline, outer);
+        CURRENT.set(scope);
+        return scope;
+    }
+
+    /**
+     * @return 当前线程的作用域，没有时为null
+     */
+    public static CallDeadline current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * @return 当前线程的作用域是否已超出预算，没有作用域时为false
+     */
+    public static boolean isExpired() {
+        CallDeadline deadline = CURRENT.get();
+        return deadline != null && deadline.remainingNanos() <= 0;
+    }
+
+    /**
+     * @param expectedMillis 一次操作的预期耗时
+     * @return 剩余预算是否足够完成该操作，没有作用域时为true；用于决定是否发出对冲、重试等附加请求
+     */
+    public static boolean hasTimeFor(long expectedMillis) {
+        CallDeadline deadline = CURRENT.get();
+        return deadline == null || deadline.remainingNanos() > TimeUnit.MILLISECONDS.toNanos(expectedMillis);
+    }
+
+    /**
+     * 使callable在其他线程执行时沿用当前线程的作用域
+     */
+    public static <T> Callable<T> propagate(final Callable<T> callable) {
+        final CallDeadline deadline = CURRENT.get();
+        if (deadline == null) {
+            return callable;
+        }
+        return new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                CallDeadline previous = CURRENT.get();
+                CURRENT.set(deadline);
+                try {
+                    return callable.call();
+                } finally {
+                    if (previous == null) {
+                        CURRENT.remove();
+                    } else {
+                        CURRENT.set(previous);
+                    }
+                }
+            }
+        };
+    }
+
+    public long remainingNanos() {
+        return deadlineNanos - System.nanoTime();
+    }
+
+    /**
+     * @return 剩余毫秒数（不足1毫秒按1毫秒计，可直接用作超时参数）
+     * @throws DeadlineExceededException 已超出预算
+     */
+    public long remainingMillis(String operation) {
+        long nanos = remainingNanos();
+        if (nanos <= 0) {
+            throw new DeadlineExceededException("call deadline exceeded before " + operation);
+        }
+        return (nanos + 999999) / 1000000;
+    }
+
+    /**
+     * 结束作用域，恢复外层作用域
+     */
+    @Override
+    public void close() {
+        if (CURRENT.get() != this) {
+            return;
+        }
+        if (outer == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(outer);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CallDeadline[remaining=" + TimeUnit.NANOSECONDS.toMillis(remainingNanos()) + "ms]";
+    }
+}
@@ -0,0 +1,225 @@
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 单个redis节点的熔断器。
+ * 以最近windowSize次调用为滑动窗口统计失败率与慢调用率，任一超过阈值即进入OPEN状态，
+ * OPEN期间调用直接失败，不再借用连接、不再等待超时；openDurationMillis之后进入HALF_OPEN，
+ * 放行halfOpenProbes次探测调用，全部成功则恢复CLOSED，任一失败则重新OPEN。
+ * <p>
+ * 线程安全，同一节点的所有调用共享一个实例。
+ */
+public class CircuitBreaker {
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String name;
+    private int windowSize = 50;//滑动窗口的调用次数
+    private int minimumCalls = 20;//窗口内调用数达到此值才计算失败率
+    private float failureRateThreshold = 0.5f;//失败率阈值
+    private float slowCallRateThreshold = 0.8f;//慢调用率阈值
+    private long slowCallThresholdMillis = 500;//超过此耗时的调用计为慢调用
+    private long openDurationMillis = 5000;//OPEN状态持续时间
+    private int halfOpenProbes = 3;//HALF_OPEN状态放行的探测调用数
+
+    private volatile State state = State.CLOSED;
+    private volatile long openUntil;
+    private final AtomicInteger probePermits = new AtomicInteger();
+    private final AtomicInteger probeSuccesses = new AtomicInteger();
+
+    //滑动窗口：每次调用的结果，0成功，1失败，2慢调用
+    private byte[] window = new byte[windowSize];
+    private int windowPos;
+    private int windowCount;
+    private int failures;
+    private int slowCalls;
+
+    public CircuitBreaker(String name) {
+        this.name = name;
+    }
+
+    /**
+     * 调用前检查是否放行
+     *
+     * @return false 表示熔断中，调用方应快速失败
+     */
+    public boolean tryAcquire() {
+        State current = state;
+        if (current == State.CLOSED) {
+            return true;
+        }
+        if (current == State.OPEN) {
+            if (System.currentTimeMillis() < openUntil) {
+                return false;
+            }
+            synchronized (this) {
+                if (state == State.OPEN && System.currentTimeMillis() >= openUntil) {
+                    probePermits.set(halfOpenProbes);
+                    probeSuccesses.set(0);
+                    state = State.HALF_OPEN;
+                }
+            }
+            if (state == State.CLOSED) {
+                return true;
+            }
+        }
+        return probePermits.getAndDecrement() > 0;
+    }
+
+    /**
+     * 调用成功
+     *
+     * @param elapsedMillis 调用耗时（含借用连接的等待）
+     */
+    public void onSuccess(long elapsedMillis) {
+        boolean slow = elapsedMillis >= slowCallThresholdMillis;
+        if (state == State.HALF_OPEN) {
+            if (slow) {
+                tripOpen();
+            } else if (probeSuccesses.incrementAndGet() >= halfOpenProbes) {
+                close();
+            }
+            return;
+        }
+        record(slow ? (byte) 2 : (byte) 0);
+    }
+
+    /**
+     * 调用因节点原因失败（连接失败、超时、连接池耗尽）
+     *
+     * @param elapsedMillis
+     */
+    public void onError(long elapsedMillis) {
+        if (state == State.HALF_OPEN) {
+            tripOpen();
+            return;
+        }
+        record((byte) 1);
+    }
+
+    /**
+     * 调用因与节点无关的原因结束（参数错误、命令错误），不计入统计，仅归还探测名额
+     */
+    public void onIgnored() {
+        if (state == State.HALF_OPEN) {
+            probePermits.incrementAndGet();
+        }
+    }
+
+    private synchronized void record(byte outcome) {
+        if (state != State.CLOSED) {
+            return;
+        }
+        if (windowCount == window.length) {
+            byte old = window[windowPos];
+            if (old == 1) {
+                failures--;
+            } else if (old == 2) {
+                slowCalls--;
+            }
+        } else {
+            windowCount++;
+        }
+        window[windowPos] = outcome;
+        windowPos = (windowPos + 1) % window.length;
+        if (outcome == 1) {
+            failures++;
+        } else if (outcome == 2) {
+            slowCalls++;
+        }
+        if (windowCount >= minimumCalls
+                && (failures >= failureRateThreshold * windowCount || slowCalls >= slowCallRateThreshold * windowCount)) {
+            tripOpen();
+        }
+    }
+
+    private synchronized void tripOpen() {
+        openUntil = System.currentTimeMillis() + openDurationMillis;
+        probePermits.set(0);
+        state = State.OPEN;
+        resetWindow();
+    }
+
+    /**
+     * 清空统计并恢复CLOSED，用于节点已被替换（如sentinel主从切换）的场景
+     */
+    public void reset() {
+        close();
+    }
+
+    private synchronized void close() {
+        resetWindow();
+        state = State.CLOSED;
+    }
+
+    private void resetWindow() {
+        windowPos = 0;
+        windowCount = 0;
+        failures = 0;
+        slowCalls = 0;
+    }
+
+    /**
+     * 以当前的阈值设置创建一个独立计数的熔断器，用于分片连接池中单个分片节点
+     *
+     * @param node 节点 ip:port
+     * @return 名为 name@node 的新熔断器，初始为CLOSED
+     */
+    public CircuitBreaker forNode(String node) {
+        CircuitBreaker ret = new CircuitBreaker(name + "@" + node);
+        ret.setWindowSize(windowSize);
+        ret.minimumCalls = minimumCalls;
+        ret.failureRateThreshold = failureRateThreshold;
+        ret.slowCallRateThreshold = slowCallRateThreshold;
+        ret.slowCallThresholdMillis = slowCallThresholdMillis;
+        ret.openDurationMillis = openDurationMillis;
+        ret.halfOpenProbes = halfOpenProbes;
+        return ret;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public synchronized void setWindowSize(int windowSize) {
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("windowSize must be positive");
+        }
+        this.windowSize = windowSize;
+        this.window = new byte[windowSize];
+        resetWindow();
+    }
+
+    public void setMinimumCalls(int minimumCalls) {
+        this.minimumCalls = minimumCalls;
+    }
+
+    public void setFailureRateThreshold(float failureRateThreshold) {
+        this.failureRateThreshold = failureRateThreshold;
+    }
+
+    public void setSlowCallRateThreshold(float slowCallRateThreshold) {
+        this.slowCallRateThreshold = slowCallRateThreshold;
+    }
+
+    public void setSlowCallThresholdMillis(long slowCallThresholdMillis) {
+        this.slowCallThresholdMillis = slowCallThresholdMillis;
+    }
+
+    public void setOpenDurationMillis(long openDurationMillis) {
+        this.openDurationMillis = openDurationMillis;
+    }
+
+    public void setHalfOpenProbes(int halfOpenProbes) {
+        this.halfOpenProbes = halfOpenProbes;
+    }
+
+    @Override
+    public String toString() {
+        return "CircuitBreaker[" + name + "," + state + "]";
+    }
+}
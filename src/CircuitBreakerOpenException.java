@@ -0,0 +1,10 @@
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * 节点熔断中，调用被快速拒绝
+ */
+public class CircuitBreakerOpenException extends JedisException {
+    public CircuitBreakerOpenException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,327 @@
+import com.qlc.common.util.log.LogUtil;
+import com.qlc.common.util.log.MyLoggerFactory;
+import org.slf4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 记录经JedisPoolDB执行的每个命令（操作、key的hash、value字节数、开始时间、耗时、结果）到滚动的二进制文件，
+ * 供TraceReplayer按原始时序回放，用于评估连接池与分片的容量。
+ * 默认不开启；开启后命令线程只把记录放入有界队列，由后台线程写文件，队列满时丢弃并计数。
+ * 无状态命令（GET、SET、HGET等）记录命令名、key与value大小；其他操作记录所在的JedisPoolDB方法名，key的hash与value大小为0。
+ * <p>
+ * 文件格式：int MAGIC、long 文件开始时的epoch毫秒；之后为记录，每条以1字节类型开头：
+ * OP_DEF：short 操作id、UTF 操作名（每个文件内首次出现时写入）；
+ * COMMAND：short 操作id、int key hash、int value字节数、long 相对文件开始的微秒数、int 耗时微秒、byte 结果。
+ * <p>
+ * e.g: CommandTraceRecorder.start(new CommandTraceRecorder(new File("/data/trace"), "redis", 64 << 20, 8));
+ */
+public class CommandTraceRecorder implements Closeable {
+    private static Logger logger = MyLoggerFactory.getLogger(CommandTraceRecorder.class);
+
+    static final int MAGIC = 0x43545231;
+    static final byte OP_DEF = 1;
+    static final byte COMMAND = 2;
+
+    private static volatile CommandTraceRecorder active;
+    private static final Map<Class<?>, String> OP_NAMES = new ConcurrentHashMap<Class<?>, String>();
+
+    private final File dir;
+    private final String baseName;
+    private final long maxFileBytes;
+    private final int maxFiles;
+    private final BlockingQueue<Record> queue = new ArrayBlockingQueue<Record>(65536);
+    private volatile double sampleRate = 1;
+    private volatile boolean running;
+    private Thread writer;
+
+    private final AtomicLong recorded = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    //以下只在写线程中使用
+    private DataOutputStream out;
+    private long fileBytes;
+    private int fileIndex = -1;
+    private long fileStartNanos;
+    private final Map<String, Short> opIds = new HashMap<String, Short>();
+
+    /**
+     * @param dir          文件所在目录
+     * @param baseName     文件名为 baseName.序号.trace
+     * @param maxFileBytes 单个文件的最大字节数
+     * @param maxFiles     最多保留的文件数，之后循环覆盖
+     */
+    public CommandTraceRecorder(File dir, String baseName, long maxFileBytes, int maxFiles) {
+        if (dir == null || baseName == null || maxFileBytes <= 0 || maxFiles <= 0) {
+            throw new IllegalArgumentException("dir and baseName can't be NULL, maxFileBytes and maxFiles must be positive");
+        }
+        this.dir = dir;
+        this.baseName = baseName;
+        this.maxFileBytes = maxFileBytes;
+        this.maxFiles = maxFiles;
+    }
+
+    /**
+     * @param sampleRate 记录的命令比例(0, 1]
+     */
+    public CommandTraceRecorder setSampleRate(double sampleRate) {
+        if (sampleRate <= 0 || sampleRate > 1) {
+            throw new IllegalArgumentException("sampleRate must be in (0, 1]");
+        }
+        this.sampleRate = sampleRate;
+        return this;
+    }
+
+    /**
+     * 开始记录，替换之前开启的记录器
+     */
+    public static synchronized void start(CommandTraceRecorder recorder) {
+        if (recorder == null) {
+            throw new IllegalArgumentException("recorder can't be NULL");
+        }
+        stop();
+        recorder.startWriter();
+        active = recorder;
+    }
+
+    /**
+     * 停止记录，写完队列中的记录后关闭文件
+     */
+    public static synchronized void stop() {
+        CommandTraceRecorder recorder = active;
+        active = null;
+        if (recorder != null) {
+            recorder.close();
+        }
+    }
+
+    /**
+     * @return 开启记录时返回当前System.nanoTime()（不为0），否则返回0
+     */
+    static long begin() {
+        CommandTraceRecorder recorder = active;
+        if (recorder == null) {
+            return 0;
+        }
+        if (recorder.sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= recorder.sampleRate) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        return now == 0 ? 1 : now;
+    }
+
+    /**
+     * 记录一个已完成的命令
+     *
+     * @param command    无状态命令或MyJedisCommand，用于确定操作名
+     * @param key        已编码的key，未知时为null
+     * @param valueSize  写入或读到的value字节数
+     * @param beginNanos begin()的返回值
+     * @param outcome    MyJedisCommand.IGNORED/COMPLETED/NODE_FAILURE
+     */
+    static void end(Object command, byte[] key, int valueSize, long beginNanos, int outcome) {
+        CommandTraceRecorder recorder = active;
+        if (recorder == null) {
+            return;
+        }
+        Record record = new Record(opName(command), key == null ? 0 : hash(key), valueSize, beginNanos,
+                (int) Math.min(Integer.MAX_VALUE, (System.nanoTime() - beginNanos) / 1000), (byte) outcome);
+        if (recorder.queue.offer(record)) {
+            recorder.recorded.incrementAndGet();
+        } else {
+            recorder.dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * 匿名MyJedisCommand取所在方法名；无状态命令取JedisPoolDB中引用它的静态字段名
+     */
+    private static String opName(Object command) {
+        Class<?> type = command.getClass();
+        String name = OP_NAMES.get(type);
+        if (name != null) {
+            return name;
+        }
+        Method method = type.getEnclosingMethod();
+        if (method != null) {
+            name = method.getName();
+        } else if (type.getEnclosingClass() != null) {
+            for (Field field : type.getEnclosingClass().getDeclaredFields()) {
+                if (!Modifier.isStatic(field.getModifiers()) || field.getType().isPrimitive()) {
+                    continue;
+                }
+                try {
+                    field.setAccessible(true);
+                    if (field.get(null) == command) {
+                        name = field.getName();
+                        break;
+                    }
+                } catch (Exception e) {
+                    //忽略，按类名记录
+                }
+            }
+        }
+        if (name == null) {
+            name = type.getName();
+        }
+        OP_NAMES.put(type, name);
+        return name;
+    }
+
+    static int hash(byte[] key) {
+        int h = 0x811c9dc5;
+        for (byte b : key) {
+            h ^= b & 0xff;
+            h *= 0x01000193;
+        }
+        return h == 0 ? 1 : h;
+    }
+
+    private void startWriter() {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IllegalArgumentException("can't create trace dir " + dir);
+        }
+        running = true;
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "redis-trace-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private void writeLoop() {
+        try {
+            while (running || !queue.isEmpty()) {
+                Record record = queue.poll(1, TimeUnit.SECONDS);
+                if (record == null) {
+                    if (out != null) {
+                        out.flush();
+                    }
+                    continue;
+                }
+                write(record);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            LogUtil.error(e);
+        } finally {
+            closeFile();
+        }
+    }
+
+    private void write(Record record) throws IOException {
+        if (out == null || fileBytes >= maxFileBytes) {
+            rotate();
+        }
+        Short opId = opIds.get(record.op);
+        if (opId == null) {
+            opId = (short) opIds.size();
+            opIds.put(record.op, opId);
+            out.writeByte(OP_DEF);
+            out.writeShort(opId);
+            out.writeUTF(record.op);
+            fileBytes += 5 + record.op.length();
+        }
+        out.writeByte(COMMAND);
+        out.writeShort(opId);
+        out.writeInt(record.keyHash);
+        out.writeInt(record.valueSize);
+        out.writeLong((record.beginNanos - fileStartNanos) / 1000);
+        out.writeInt(record.latencyMicros);
+        out.writeByte(record.outcome);
+        fileBytes += 24;
+    }
+
+    private void rotate() throws IOException {
+        closeFile();
+        fileIndex = (fileIndex + 1) % maxFiles;
+        File file = new File(dir, baseName + "." + fileIndex + ".trace");
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+        fileStartNanos = System.nanoTime();
+        out.writeInt(MAGIC);
+        out.writeLong(System.currentTimeMillis());
+        fileBytes = 12;
+        opIds.clear();
+        logger.info("redis command trace writing to " + file);
+    }
+
+    private void closeFile() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                LogUtil.error(e);
+            }
+            out = null;
+        }
+    }
+
+    public long getRecorded() {
+        return recorded.get();
+    }
+
+    /**
+     * @return 因写入跟不上而丢弃的记录数
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * 停止写线程并关闭文件；已开启的记录器应通过stop()停止
+     */
+    @Override
+    public void close() {
+        running = false;
+        if (writer != null) {
+            try {
+                writer.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CommandTraceRecorder[recorded=" + recorded.get() + ", dropped=" + dropped.get() + "]";
+    }
+
+    private static class Record {
+        final String op;
+        final int keyHash;
+        final int valueSize;
+        final long beginNanos;
+        final int latencyMicros;
+        final byte outcome;
+
+        Record(String op, int keyHash, int valueSize, long beginNanos, int latencyMicros, byte outcome) {
+            this.op = op;
+            this.keyHash = keyHash;
+            this.valueSize = valueSize;
+            this.beginNanos = beginNanos;
+            this.latencyMicros = latencyMicros;
+            this.outcome = outcome;
+        }
+    }
+}
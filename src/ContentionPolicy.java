@@ -0,0 +1,112 @@
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * getAndUpdate（WATCH/MULTI/EXEC乐观更新）在冲突时的重试策略及冲突统计。
+ * 每次冲突后随机等待 [0, backoffMillis * 2^(n-1)]（不超过maxBackoffMillis），使同时冲突的客户端错开重试；
+ * 执行maxAttempts次仍冲突时抛出UpdateConflictException。冲突率持续偏高说明该key过热，应改为拆分key或服务端脚本。
+ * <p>
+ * 线程安全，一个JedisPoolDB共用一个实例。
+ */
+public class ContentionPolicy {
+    private int maxAttempts = 10;//含首次执行的最多执行次数
+    private long backoffMillis = 2;//首次重试前的最长等待时间，之后每次翻倍
+    private long maxBackoffMillis = 100;
+
+    private final AtomicLong updates = new AtomicLong();
+    private final AtomicLong conflicts = new AtomicLong();
+    private final AtomicLong exhausted = new AtomicLong();
+    private final AtomicLong maxObservedAttempts = new AtomicLong();
+
+    /**
+     * 一次EXEC因冲突被放弃后决定是否重试，需要重试时先完成等待再返回
+     *
+     * @param attempt 已执行的次数（从1开始）
+     * @return true 表示应再执行一次
+     */
+    boolean awaitRetry(int attempt) {
+        conflicts.incrementAndGet();
+        if (attempt >= maxAttempts) {
+            exhausted.incrementAndGet();
+            return false;
+        }
+        long bound = Math.min(maxBackoffMillis, backoffMillis << Math.min(attempt - 1, 20));
+        if (bound > 0) {
+            long wait = ThreadLocalRandom.current().nextLong(bound + 1);
+            if (!CallDeadline.hasTimeFor(wait)) {
+                exhausted.incrementAndGet();
+                return false;
+            }
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                exhausted.incrementAndGet();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 一次更新成功完成
+     *
+     * @param attempts 执行的次数
+     */
+    void completed(int attempts) {
+        updates.incrementAndGet();
+        long current;
+        while (attempts > (current = maxObservedAttempts.get()) && !maxObservedAttempts.compareAndSet(current, attempts)) {
+            //重试
+        }
+    }
+
+    public void setMaxAttempts(int maxAttempts) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be positive");
+        }
+        this.maxAttempts = maxAttempts;
+    }
+
+    public void setBackoffMillis(long backoffMillis) {
+        this.backoffMillis = backoffMillis;
+    }
+
+    public void setMaxBackoffMillis(long maxBackoffMillis) {
+        this.maxBackoffMillis = maxBackoffMillis;
+    }
+
+    /**
+     * @return 成功完成的更新数
+     */
+    public long getUpdates() {
+        return updates.get();
+    }
+
+    /**
+     * @return 因其他客户端修改了key而被放弃的EXEC次数
+     */
+    public long getConflicts() {
+        return conflicts.get();
+    }
+
+    /**
+     * @return 次数或时间预算用尽仍冲突、抛出UpdateConflictException的次数
+     */
+    public long getExhausted() {
+        return exhausted.get();
+    }
+
+    /**
+     * @return 成功的更新中最多用到的执行次数
+     */
+    public long getMaxObservedAttempts() {
+        return maxObservedAttempts.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ContentionPolicy[updates=" + updates.get() + ", conflicts=" + conflicts.get() + ", exhausted=" + exhausted.get()
+                + ", maxObservedAttempts=" + maxObservedAttempts.get() + "]";
+    }
+}
@@ -0,0 +1,14 @@
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * 调用超出了CallDeadline设定的时间预算。不计入节点熔断统计
+ */
+public class DeadlineExceededException extends JedisException {
+    public DeadlineExceededException(String message) {
+        super(message);
+    }
+
+    public DeadlineExceededException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
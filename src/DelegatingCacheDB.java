@@ -0,0 +1,313 @@
+import java.io.Serializable;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.UnaryOperator;
+
+/**
+ * 将所有操作转发给被包装ICacheDB的基类，需要改变部分操作行为的包装类继承此类并覆盖相应方法
+ */
+public abstract class DelegatingCacheDB implements ICacheDB {
+    protected final ICacheDB cacheDB;
+
+    protected DelegatingCacheDB(ICacheDB cacheDB) {
+        if (cacheDB == null) {
+            throw new IllegalArgumentException("cacheDB can't be NULL");
+        }
+        this.cacheDB = cacheDB;
+    }
+
+    public ICacheDB getDelegate() {
+        return cacheDB;
+    }
+
+    @Override
+    public <T extends Serializable> T getObject(final String key, Class<T> type) {
+        return cacheDB.getObject(key, type);
+    }
+
+    @Override
+    public String getString(final String key) {
+        return cacheDB.getString(key);
+    }
+
+    @Override
+    public <T extends Serializable> boolean setObject(final String key, final int expirePeriodInSecond, final T value) {
+        return cacheDB.setObject(key, expirePeriodInSecond, value);
+    }
+
+    @Override
+    public boolean setString(final String key, final int expirePeriodInSecond, final String value) {
+        return cacheDB.setString(key, expirePeriodInSecond, value);
+    }
+
+    @Override
+    public boolean setStringIfNotExist(final String key, final int expirePeriodInSecond, final String value) {
+        return cacheDB.setStringIfNotExist(key, expirePeriodInSecond, value);
+    }
+
+    @Override
+    public <T extends Serializable> boolean setObjectIfNotExist(final String key, final int expirePeriodInSecond, final T value) {
+        return cacheDB.setObjectIfNotExist(key, expirePeriodInSecond, value);
+    }
+
+    @Override
+    public boolean compareAndSetString(final String key, final String expect, final String update, final int expirePeriodInSecond) {
+        return cacheDB.compareAndSetString(key, expect, update, expirePeriodInSecond);
+    }
+
+    @Override
+    public <T extends Serializable> boolean compareAndSetObject(final String key, final T expect, final T update, final int expirePeriodInSecond) {
+        return cacheDB.compareAndSetObject(key, expect, update, expirePeriodInSecond);
+    }
+
+    @Override
+    public <T extends Serializable> T getObjectAndExpire(final String key, final int expirePeriodInSecond, Class<T> type) {
+        return cacheDB.getObjectAndExpire(key, expirePeriodInSecond, type);
+    }
+
+    @Override
+    public String getStringAndExpire(final String key, final int expirePeriodInSecond) {
+        return cacheDB.getStringAndExpire(key, expirePeriodInSecond);
+    }
+
+    @Override
+    public boolean incrDecrInit(final String key, final int expirePeriodInSecond, final long value) {
+        return cacheDB.incrDecrInit(key, expirePeriodInSecond, value);
+    }
+
+    @Override
+    public long incrDecrGet(final String key) {
+        return cacheDB.incrDecrGet(key);
+    }
+
+    @Override
+    public long incrBy(final String key, final int step) {
+        return cacheDB.incrBy(key, step);
+    }
+
+    @Override
+    public long decrBy(final String key, final int step) {
+        return cacheDB.decrBy(key, step);
+    }
+
+    @Override
+    public boolean delete(final String key) {
+        return cacheDB.delete(key);
+    }
+
+    @Override
+    public int ttl(final String key) {
+        return cacheDB.ttl(key);
+    }
+
+    @Override
+    public boolean expire(final String key, final int expirePeriodInSecond) {
+        return cacheDB.expire(key, expirePeriodInSecond);
+    }
+
+    @Override
+    public <T extends Serializable> int lpushObject(String key, T... items) {
+        return cacheDB.lpushObject(key, items);
+    }
+
+    @Override
+    public int lpushString(String key, String... items) {
+        return cacheDB.lpushString(key, items);
+    }
+
+    @Override
+    public <T extends Serializable> int rpushObject(String key, T... items) {
+        return cacheDB.rpushObject(key, items);
+    }
+
+    @Override
+    public int rpushString(String key, String... items) {
+        return cacheDB.rpushString(key, items);
+    }
+
+    @Override
+    public <T extends Serializable> T lpopObject(String key, Class<T> type) {
+        return cacheDB.lpopObject(key, type);
+    }
+
+    @Override
+    public String lpopString(String key) {
+        return cacheDB.lpopString(key);
+    }
+
+    @Override
+    public <T extends Serializable> T rpopObject(String key, Class<T> type) {
+        return cacheDB.rpopObject(key, type);
+    }
+
+    @Override
+    public String rpopString(String key) {
+        return cacheDB.rpopString(key);
+    }
+
+    @Override
+    public <T extends Serializable> List<T> lrangeObject(String key, int start, int end, Class<T> type) {
+        return cacheDB.lrangeObject(key, start, end, type);
+    }
+
+    @Override
+    public List<String> lrangeString(String key, int start, int end) {
+        return cacheDB.lrangeString(key, start, end);
+    }
+
+    @Override
+    public boolean ltrim(String key, int start, int end) {
+        return cacheDB.ltrim(key, start, end);
+    }
+
+    @Override
+    public int llen(String key) {
+        return cacheDB.llen(key);
+    }
+
+    @Override
+    public <T extends Serializable> boolean hSetObject(String key, String field, T value) {
+        return cacheDB.hSetObject(key, field, value);
+    }
+
+    @Override
+    public boolean hSetString(String key, String field, String value) {
+        return cacheDB.hSetString(key, field, value);
+    }
+
+    @Override
+    public <T extends Serializable> boolean hMultiSetObject(String key, Map<String, T> fieldValues) {
+        return cacheDB.hMultiSetObject(key, fieldValues);
+    }
+
+    @Override
+    public boolean hMultiSetString(String key, Map<String, String> fieldValues) {
+        return cacheDB.hMultiSetString(key, fieldValues);
+    }
+
+    @Override
+    public <T extends Serializable> boolean hMultiSetObject(String key, Map<String, T> fieldValues, int expirePeriodInSecond) {
+        return cacheDB.hMultiSetObject(key, fieldValues, expirePeriodInSecond);
+    }
+
+    @Override
+    public boolean hMultiSetString(String key, Map<String, String> fieldValues, int expirePeriodInSecond) {
+        return cacheDB.hMultiSetString(key, fieldValues, expirePeriodInSecond);
+    }
+
+    @Override
+    public <T extends Serializable> T hGetObject(String key, String field, Class<T> type) {
+        return cacheDB.hGetObject(key, field, type);
+    }
+
+    @Override
+    public String hGetString(String key, String field) {
+        return cacheDB.hGetString(key, field);
+    }
+
+    @Override
+    public <T extends Serializable> Map<String, T> hGetAllObject(String key, Class<T> type) {
+        return cacheDB.hGetAllObject(key, type);
+    }
+
+    @Override
+    public Map<String, String> hGetAllString(String key) {
+        return cacheDB.hGetAllString(key);
+    }
+
+    @Override
+    public <T extends Serializable> Map<String, T> hMultiGetObject(String key, Class<T> type, String... fields) {
+        return cacheDB.hMultiGetObject(key, type, fields);
+    }
+
+    @Override
+    public Map<String, String> hMultiGetString(String key, String... fields) {
+        return cacheDB.hMultiGetString(key, fields);
+    }
+
+    @Override
+    public int hDelete(String key, String... field) {
+        return cacheDB.hDelete(key, field);
+    }
+
+    @Override
+    public int hLen(String key) {
+        return cacheDB.hLen(key);
+    }
+
+    @Override
+    public Set<String> hKeys(String key) {
+        return cacheDB.hKeys(key);
+    }
+
+    @Override
+    public boolean hExists(String key, String field) {
+        return cacheDB.hExists(key, field);
+    }
+
+    @Override
+    public <T extends Serializable> Map<String, T> multiGetObject(Class<T> type, String... keys) {
+        return cacheDB.multiGetObject(type, keys);
+    }
+
+    @Override
+    public Map<String, String> multiGetString(String... keys) {
+        return cacheDB.multiGetString(keys);
+    }
+
+    @Override
+    public <T extends Serializable> boolean multiSetObject(Map<String, T> keyValues, int expirePeriodInSecond) {
+        return cacheDB.multiSetObject(keyValues, expirePeriodInSecond);
+    }
+
+    @Override
+    public boolean multiSetString(Map<String, String> keyValues, int expirePeriodInSecond) {
+        return cacheDB.multiSetString(keyValues, expirePeriodInSecond);
+    }
+
+    @Override
+    public int multiDelete(String... keys) {
+        return cacheDB.multiDelete(keys);
+    }
+
+    @Override
+    public Set<String> multiExists(String... keys) {
+        return cacheDB.multiExists(keys);
+    }
+
+    @Override
+    public int multiExpire(int expirePeriodInSecond, String... keys) {
+        return cacheDB.multiExpire(expirePeriodInSecond, keys);
+    }
+
+    @Override
+    public boolean tryAcquire(String key, int permits, int capacity, double permitsPerSecond) {
+        return cacheDB.tryAcquire(key, permits, capacity, permitsPerSecond);
+    }
+
+    @Override
+    public int acquireUpTo(String key, int maxPermits, int capacity, double permitsPerSecond) {
+        return cacheDB.acquireUpTo(key, maxPermits, capacity, permitsPerSecond);
+    }
+
+    @Override
+    public <T extends Serializable> T getAndUpdateObject(String key, int expirePeriodInSecond, Class<T> type, UnaryOperator<T> updater) {
+        return cacheDB.getAndUpdateObject(key, expirePeriodInSecond, type, updater);
+    }
+
+    @Override
+    public String getAndUpdateString(String key, int expirePeriodInSecond, UnaryOperator<String> updater) {
+        return cacheDB.getAndUpdateString(key, expirePeriodInSecond, updater);
+    }
+
+    @Override
+    public <T extends Serializable> T hGetAndUpdateObject(String key, String field, Class<T> type, UnaryOperator<T> updater) {
+        return cacheDB.hGetAndUpdateObject(key, field, type, updater);
+    }
+
+    @Override
+    public String hGetAndUpdateString(String key, String field, UnaryOperator<String> updater) {
+        return cacheDB.hGetAndUpdateString(key, field, updater);
+    }
+}
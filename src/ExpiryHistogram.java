@@ -0,0 +1,121 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 写入时设置的过期时刻的分布：按过期时刻所在的时间片（bucketSeconds秒）计数，覆盖未来 bucketSeconds * buckets 秒，
+ * 超出范围的只计总数。用于观察批量写入是否会在同一时刻集中过期：峰值与平均值之比越大越集中。
+ * 只统计经本连接池写入的key，不反映key之后被删除或覆盖。
+ * <p>
+ * 线程安全；时间片复用时的清零不加锁，并发写入可能少计个别key。
+ */
+public class ExpiryHistogram {
+    private final int bucketSeconds;
+    private final int buckets;
+    private final AtomicLongArray counts;
+    private final AtomicLongArray slots;//各位置当前计数的时间片序号
+
+    private final AtomicLong recorded = new AtomicLong();
+    private final AtomicLong beyondHorizon = new AtomicLong();
+
+    public ExpiryHistogram() {
+        this(10, 8640);
+    }
+
+    /**
+     * @param bucketSeconds 时间片秒数
+     * @param buckets       时间片个数
+     */
+    public ExpiryHistogram(int bucketSeconds, int buckets) {
+        if (bucketSeconds <= 0 || buckets <= 0) {
+            throw new IllegalArgumentException("bucketSeconds and buckets must be positive");
+        }
+        this.bucketSeconds = bucketSeconds;
+        this.buckets = buckets;
+        this.counts = new AtomicLongArray(buckets);
+        this.slots = new AtomicLongArray(buckets);
+        for (int i = 0; i < buckets; i++) {
+            slots.set(i, -1);
+        }
+    }
+
+    /**
+     * @param ttlSeconds 写入时设置的过期秒数
+     */
+    void record(int ttlSeconds) {
+        if (ttlSeconds <= 0) {
+            return;
+        }
+        recorded.incrementAndGet();
+        long now = currentSlot();
+        long slot = (System.currentTimeMillis() / 1000 + ttlSeconds) / bucketSeconds;
+        if (slot - now >= buckets) {
+            beyondHorizon.incrementAndGet();
+            return;
+        }
+        int index = (int) (slot % buckets);
+        long owner = slots.get(index);
+        if (owner != slot && slots.compareAndSet(index, owner, slot)) {
+            counts.set(index, 0);
+        }
+        counts.incrementAndGet(index);
+    }
+
+    private long currentSlot() {
+        return System.currentTimeMillis() / 1000 / bucketSeconds;
+    }
+
+    /**
+     * @return 从当前时间片起，未来各时间片内将过期的key数
+     */
+    public long[] snapshot() {
+        long now = currentSlot();
+        long[] ret = new long[buckets];
+        for (int i = 0; i < buckets; i++) {
+            long slot = now + i;
+            int index = (int) (slot % buckets);
+            ret[i] = slots.get(index) == slot ? counts.get(index) : 0;
+        }
+        return ret;
+    }
+
+    public int getBucketSeconds() {
+        return bucketSeconds;
+    }
+
+    public long getRecorded() {
+        return recorded.get();
+    }
+
+    /**
+     * @return 过期时刻超出统计范围的key数
+     */
+    public long getBeyondHorizon() {
+        return beyondHorizon.get();
+    }
+
+    /**
+     * @return 峰值时间片、峰值及平均值（只计有key过期的时间片）的摘要
+     */
+    @Override
+    public String toString() {
+        long[] snapshot = snapshot();
+        long peak = 0;
+        int peakIndex = 0;
+        long total = 0;
+        int nonEmpty = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            total += snapshot[i];
+            if (snapshot[i] > 0) {
+                nonEmpty++;
+            }
+            if (snapshot[i] > peak) {
+                peak = snapshot[i];
+                peakIndex = i;
+            }
+        }
+        double mean = nonEmpty == 0 ? 0 : (double) total / nonEmpty;
+        return "ExpiryHistogram[pending=" + total + ", peak=" + peak + " in +" + (long) peakIndex * bucketSeconds + "s"
+                + ", mean=" + String.format("%.1f", mean) + ", peakToMean=" + String.format("%.1f", mean == 0 ? 0 : peak / mean)
+                + " per " + bucketSeconds + "s, beyondHorizon=" + beyondHorizon.get() + "]";
+    }
+}
@@ -0,0 +1,870 @@
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.PipelineBase;
+import redis.clients.jedis.Transaction;
+import redis.clients.util.SafeEncoder;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
+
+/**
+ * 以hash桶存放大量小字符串/对象的ICacheDB，节省redis每个key的固定开销。
+ * 逻辑key映射为 桶 = bucketPrefix + hash(field) mod bucketCount，field = key去掉strippedKeyPrefix后的部分；
+ * 桶内元素数与value长度不超过hash-max-listpack-entries/hash-max-listpack-value（redis 7之前为ziplist）时，
+ * 桶以紧凑编码存储，每个key只占field与value本身的字节加少量编码开销。
+ * <p>
+ * getString/setString/getObject/setObject/set*IfNotExist/compareAndSetString/compareAndSetObject/get*AndExpire/delete/expire/ttl及multi*批量操作使用桶；
+ * getAndUpdateObject/getAndUpdateString以WATCH整个桶实现，同桶其他key的写入会造成重试；其余操作直接转发（按普通key）。
+ * 过期时间作用于整个桶：每次写入将桶的过期时间设为本次的expirePeriodInSecond（<=0时不改变），同桶的key随最后一次写入一起过期。
+ * 超过maxValueBytes的value（或field）不放入桶，plainKeyFallback为true时以普通key存放，读取时桶中未命中再读普通key；
+ * 为false时拒绝写入。set*IfNotExist在桶与普通key位于同一节点时以脚本原子地检查两处，分片连接池下不在同一分片时先检查另一处再写入，两步之间不是原子的。
+ * <p>
+ * e.g: ICacheDB db = new HashBucketCacheDB(redisDB, "hb:user:", HashBucketCacheDB.bucketCountFor(50000000, 128)).setStrippedKeyPrefix("user:");
+ */
+public class HashBucketCacheDB extends DelegatingCacheDB {
+    //redis hash-max-listpack-entries、hash-max-listpack-value的默认值
+    public static final int DEFAULT_MAX_ENTRIES = 128;
+    public static final int DEFAULT_MAX_VALUE_BYTES = 64;
+
+    static final LuaScript OBJECT_ENCODING = new LuaScript("objectEncoding",
+            "return redis.call('OBJECT', 'ENCODING', KEYS[1])");
+    //KEYS: 桶[, 普通key]; ARGV: field, value, 过期秒数。两处都不存在时写入桶，成功时才设置桶的过期时间
+    static final LuaScript BUCKET_SET_NX = new LuaScript("bucketSetNx",
+            "if redis.call('HEXISTS', KEYS[1], ARGV[1]) == 1 then return 0 end\n" +
+            "if KEYS[2] and redis.call('EXISTS', KEYS[2]) == 1 then return 0 end\n" +
+            "redis.call('HSET', KEYS[1], ARGV[1], ARGV[2])\n" +
+            "if tonumber(ARGV[3]) > 0 then redis.call('EXPIRE', KEYS[1], ARGV[3]) end\n" +
+            "return 1");
+    //KEYS: 普通key[, 桶]; ARGV: field, value, 过期秒数。两处都不存在时写入普通key
+    static final LuaScript PLAIN_SET_NX = new LuaScript("plainSetNx",
+            "if KEYS[2] and redis.call('HEXISTS', KEYS[2], ARGV[1]) == 1 then return 0 end\n" +
+            "local ok\n" +
+            "if tonumber(ARGV[3]) > 0 then ok = redis.call('SET', KEYS[1], ARGV[2], 'NX', 'EX', ARGV[3])\n" +
+            "else ok = redis.call('SET', KEYS[1], ARGV[2], 'NX') end\n" +
+            "if ok then return 1 end\n" +
+            "return 0");
+    //KEYS: 桶[, 普通key]; ARGV: 是否有期望值(1/0), field, 期望值, 新值, 过期秒数
+    static final LuaScript BUCKET_COMPARE_AND_SET = new LuaScript("bucketCompareAndSet",
+            "local cur = redis.call('HGET', KEYS[1], ARGV[2])\n" +
+            "if ARGV[1] == '1' then\n" +
+            "  if cur ~= ARGV[3] then return 0 end\n" +
+            "elseif cur or (KEYS[2] and redis.call('EXISTS', KEYS[2]) == 1) then return 0 end\n" +
+            "redis.call('HSET', KEYS[1], ARGV[2], ARGV[4])\n" +
+            "if tonumber(ARGV[5]) > 0 then redis.call('EXPIRE', KEYS[1], ARGV[5]) end\n" +
+            "return 1");
+    //KEYS: 桶; ARGV: field, 过期秒数
+    static final LuaScript BUCKET_GET_AND_EXPIRE = new LuaScript("bucketGetAndExpire",
+            "local v = redis.call('HGET', KEYS[1], ARGV[1])\n" +
+            "if v and tonumber(ARGV[2]) > 0 then redis.call('EXPIRE', KEYS[1], ARGV[2]) end\n" +
+            "return v");
+    private static final byte[] ZERO = SafeEncoder.encode("0");
+    private static final byte[] ONE = SafeEncoder.encode("1");
+
+    private final JedisPoolDB<?> jedisPoolDB;
+    private final String bucketPrefix;
+    private final int bucketCount;
+    private String strippedKeyPrefix = "";
+    private int maxValueBytes = DEFAULT_MAX_VALUE_BYTES;
+    private boolean plainKeyFallback = true;
+
+    private final AtomicLong oversized = new AtomicLong();
+
+    /**
+     * @param jedisPoolDB
+     * @param bucketPrefix 桶key的前缀，不能与普通key冲突
+     * @param bucketCount  桶数，上线后不能修改，可用bucketCountFor估算
+     */
+    public HashBucketCacheDB(JedisPoolDB<?> jedisPoolDB, String bucketPrefix, int bucketCount) {
+        super(jedisPoolDB);
+        if (bucketPrefix == null || bucketCount <= 0) {
+            throw new IllegalArgumentException("bucketPrefix can't be NULL and bucketCount must be positive");
+        }
+        this.jedisPoolDB = jedisPoolDB;
+        this.bucketPrefix = bucketPrefix;
+        this.bucketCount = bucketCount;
+        jedisPoolDB.getScriptRegistry().register(OBJECT_ENCODING);
+        jedisPoolDB.getScriptRegistry().register(BUCKET_SET_NX);
+        jedisPoolDB.getScriptRegistry().register(PLAIN_SET_NX);
+        jedisPoolDB.getScriptRegistry().register(BUCKET_COMPARE_AND_SET);
+        jedisPoolDB.getScriptRegistry().register(BUCKET_GET_AND_EXPIRE);
+    }
+
+    /**
+     * 估算桶数：平均每桶maxEntriesPerBucket/2个key，为散列不均留出余量，使绝大多数桶不超过listpack的元素数上限
+     *
+     * @param expectedKeys        预计key总数
+     * @param maxEntriesPerBucket 服务端的hash-max-listpack-entries
+     * @return 桶数
+     */
+    public static int bucketCountFor(long expectedKeys, int maxEntriesPerBucket) {
+        if (expectedKeys <= 0 || maxEntriesPerBucket <= 1) {
+            throw new IllegalArgumentException("expectedKeys must be positive and maxEntriesPerBucket must be greater than 1");
+        }
+        return (int) Math.min(Integer.MAX_VALUE, (expectedKeys * 2 + maxEntriesPerBucket - 1) / maxEntriesPerBucket);
+    }
+
+    /**
+     * @param strippedKeyPrefix 所有key共有的前缀，不存入field
+     */
+    public HashBucketCacheDB setStrippedKeyPrefix(String strippedKeyPrefix) {
+        this.strippedKeyPrefix = strippedKeyPrefix == null ? "" : strippedKeyPrefix;
+        return this;
+    }
+
+    /**
+     * @param maxValueBytes 服务端的hash-max-listpack-value
+     */
+    public HashBucketCacheDB setMaxValueBytes(int maxValueBytes) {
+        this.maxValueBytes = maxValueBytes;
+        return this;
+    }
+
+    public HashBucketCacheDB setPlainKeyFallback(boolean plainKeyFallback) {
+        this.plainKeyFallback = plainKeyFallback;
+        return this;
+    }
+
+    /**
+     * @return 因超过maxValueBytes未放入桶的写入次数
+     */
+    public long getOversized() {
+        return oversized.get();
+    }
+
+    /**
+     * @return key所在的桶
+     */
+    public String bucketOf(String key) {
+        return bucketPrefix + bucketIndex(fieldOf(key));
+    }
+
+    private String fieldOf(String key) {
+        return key.startsWith(strippedKeyPrefix) ? key.substring(strippedKeyPrefix.length()) : key;
+    }
+
+    private int bucketIndex(String field) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < field.length(); i++) {
+            h ^= field.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        return (int) ((h & Long.MAX_VALUE) % bucketCount);
+    }
+
+    @Override
+    public String getString(String key) {
+        notNullAssert(key);
+        String ret = jedisPoolDB.hGetString(bucketOf(key), fieldOf(key));
+        if (ret == null && plainKeyFallback) {
+            ret = cacheDB.getString(key);
+        }
+        return ret;
+    }
+
+    @Override
+    public <T extends Serializable> T getObject(String key, Class<T> type) {
+        notNullAssert(key);
+        T ret = jedisPoolDB.hGetObject(bucketOf(key), fieldOf(key), type);
+        if (ret == null && plainKeyFallback) {
+            ret = cacheDB.getObject(key, type);
+        }
+        return ret;
+    }
+
+    @Override
+    public boolean setString(String key, int expirePeriodInSecond, String value) {
+        notNullAssert(key);
+        notNullAssert(value);
+        return set(key, expirePeriodInSecond, SafeEncoder.encode(value), false);
+    }
+
+    @Override
+    public <T extends Serializable> boolean setObject(String key, int expirePeriodInSecond, T value) {
+        notNullAssert(key);
+        notNullAssert(value);
+        return set(key, expirePeriodInSecond, jedisPoolDB.getSerialize().encode(value), false);
+    }
+
+    @Override
+    public boolean setStringIfNotExist(String key, int expirePeriodInSecond, String value) {
+        notNullAssert(key);
+        notNullAssert(value);
+        return set(key, expirePeriodInSecond, SafeEncoder.encode(value), true);
+    }
+
+    @Override
+    public <T extends Serializable> boolean setObjectIfNotExist(String key, int expirePeriodInSecond, T value) {
+        notNullAssert(key);
+        notNullAssert(value);
+        return set(key, expirePeriodInSecond, jedisPoolDB.getSerialize().encode(value), true);
+    }
+
+    private boolean set(String key, int expirePeriodInSecond, final byte[] value, boolean ifNotExist) {
+        final byte[] field = SafeEncoder.encode(fieldOf(key));
+        boolean oversize = isOversized(field, value);
+        if (oversize) {
+            oversized.incrementAndGet();
+        }
+        if (ifNotExist) {
+            return setIfNotExist(key, field, value, expirePeriodInSecond, oversize);
+        }
+        final int expire = jedisPoolDB.expireOf(expirePeriodInSecond);
+        final byte[] bucket = jedisPoolDB.encodeKey(bucketOf(key));
+        final byte[] plainKey = jedisPoolDB.encodeKey(key);
+        if (oversize) {
+            jedisPoolDB.runPipelined(new JedisPoolDB.PipelineCallback() {
+                @Override
+                public void execute(PipelineBase pipeline) {
+                    pipeline.hdel(bucket, field);
+                    if (expire > 0) {
+                        pipeline.setex(plainKey, expire, value);
+                    } else {
+                        pipeline.set(plainKey, value);
+                    }
+                }
+            });
+            return true;
+        }
+        jedisPoolDB.runPipelined(new JedisPoolDB.PipelineCallback() {
+            @Override
+            public void execute(PipelineBase pipeline) {
+                pipeline.hset(bucket, field, value);
+                if (expire > 0) {
+                    pipeline.expire(bucket, expire);
+                }
+                if (plainKeyFallback) {
+                    //之前超过maxValueBytes时以普通key存放，删除旧值
+                    pipeline.del(plainKey);
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * 桶与普通key中都不存在时写入：大value写入普通key，否则写入桶，只在写入成功时设置过期时间
+     */
+    private boolean setIfNotExist(String key, byte[] field, byte[] value, int expirePeriodInSecond, boolean oversize) {
+        String bucket = bucketOf(key);
+        String target = oversize ? key : bucket;
+        String other = oversize ? bucket : key;
+        List<String> keys;
+        if (!plainKeyFallback) {
+            keys = Collections.singletonList(target);
+        } else if (jedisPoolDB.sameNode(target, other)) {
+            keys = Arrays.asList(target, other);
+        } else {
+            //不在同一分片，先检查另一处；检查与写入之间不是原子的
+            boolean exists = oversize ? jedisPoolDB.hExists(bucket, fieldOf(key)) : jedisPoolDB.getBytes(key) != null;
+            if (exists) {
+                return false;
+            }
+            keys = Collections.singletonList(target);
+        }
+        Object ret = jedisPoolDB.evalScript(oversize ? PLAIN_SET_NX : BUCKET_SET_NX, keys, field, value,
+                SafeEncoder.encode(String.valueOf(expirePeriodInSecond)));
+        return Long.valueOf(1).equals(ret);
+    }
+
+    /**
+     * 在桶中比较并设置，expect为null时要求桶与普通key中都不存在；expect与update都须能放入桶
+     *
+     * @throws UnsupportedOperationException expect或update超过maxValueBytes
+     */
+    @Override
+    public boolean compareAndSetString(String key, String expect, String update, int expirePeriodInSecond) {
+        notNullAssert(key);
+        notNullAssert(update);
+        return compareAndSet(key, expect == null ? null : SafeEncoder.encode(expect), SafeEncoder.encode(update), expirePeriodInSecond);
+    }
+
+    @Override
+    public <T extends Serializable> boolean compareAndSetObject(String key, T expect, T update, int expirePeriodInSecond) {
+        notNullAssert(key);
+        notNullAssert(update);
+        return compareAndSet(key, expect == null ? null : jedisPoolDB.getSerialize().encode(expect), jedisPoolDB.getSerialize().encode(update),
+                expirePeriodInSecond);
+    }
+
+    private boolean compareAndSet(String key, byte[] expect, byte[] update, int expirePeriodInSecond) {
+        byte[] field = SafeEncoder.encode(fieldOf(key));
+        if (field.length > maxValueBytes || update.length > maxValueBytes || (expect != null && expect.length > maxValueBytes)) {
+            throw new UnsupportedOperationException("compareAndSet of field or value exceeding " + maxValueBytes + " bytes");
+        }
+        String bucket = bucketOf(key);
+        List<String> keys = plainKeyFallback && expect == null && jedisPoolDB.sameNode(bucket, key)
+                ? Arrays.asList(bucket, key) : Collections.singletonList(bucket);
+        Object ret = jedisPoolDB.evalScript(BUCKET_COMPARE_AND_SET, keys, expect == null ? ZERO : ONE, field,
+                expect == null ? new byte[0] : expect, update, SafeEncoder.encode(String.valueOf(expirePeriodInSecond)));
+        return Long.valueOf(1).equals(ret);
+    }
+
+    /**
+     * 取值并刷新其所在桶（作用于同桶的所有key）或普通key的过期时间
+     */
+    @Override
+    public <T extends Serializable> T getObjectAndExpire(String key, int expirePeriodInSecond, Class<T> type) {
+        byte[] value = getAndExpire(key, expirePeriodInSecond);
+        if (value == null) {
+            return plainKeyFallback ? cacheDB.getObjectAndExpire(key, expirePeriodInSecond, type) : null;
+        }
+        return jedisPoolDB.getSerialize().decode(value, type);
+    }
+
+    @Override
+    public String getStringAndExpire(String key, int expirePeriodInSecond) {
+        byte[] value = getAndExpire(key, expirePeriodInSecond);
+        if (value == null) {
+            return plainKeyFallback ? cacheDB.getStringAndExpire(key, expirePeriodInSecond) : null;
+        }
+        return SafeEncoder.encode(value);
+    }
+
+    private byte[] getAndExpire(String key, int expirePeriodInSecond) {
+        notNullAssert(key);
+        return (byte[]) jedisPoolDB.evalScript(BUCKET_GET_AND_EXPIRE, bucketOf(key), SafeEncoder.encode(fieldOf(key)),
+                SafeEncoder.encode(String.valueOf(expirePeriodInSecond)));
+    }
+
+    @Override
+    public <T extends Serializable> T getAndUpdateObject(String key, int expirePeriodInSecond, Class<T> type, UnaryOperator<T> updater) {
+        return jedisPoolDB.decodeObject(getAndUpdate(key, expirePeriodInSecond, jedisPoolDB.objectUpdater(type, updater)), type);
+    }
+
+    @Override
+    public String getAndUpdateString(String key, int expirePeriodInSecond, UnaryOperator<String> updater) {
+        return JedisPoolDB.decodeString(getAndUpdate(key, expirePeriodInSecond, jedisPoolDB.stringUpdater(updater)));
+    }
+
+    /**
+     * WATCH key所在的桶后读取并更新，桶中不存在时读取普通key；新值超过maxValueBytes时写入普通key，否则写入桶并删除普通key。
+     * WATCH作用于整个桶，同桶其他key的写入也会使EXEC被放弃，按jedisPoolDB的contentionPolicy重新读取并更新。
+     * 桶与普通key不在同一分片时，普通key的读取与写入在事务之外，不是原子的
+     *
+     * @return 更新前的值
+     */
+    private byte[] getAndUpdate(String key, int expirePeriodInSecond, final JedisPoolDB.BytesUpdater updater) {
+        notNullAssert(key);
+        String bucket = bucketOf(key);
+        final byte[] bbucket = jedisPoolDB.encodeKey(bucket);
+        final byte[] field = SafeEncoder.encode(fieldOf(key));
+        final byte[] plainKey = jedisPoolDB.encodeKey(key);
+        final int expire = jedisPoolDB.expireOf(expirePeriodInSecond);
+        final boolean plainInTx = plainKeyFallback && jedisPoolDB.sameNode(bucket, key);
+        final boolean plainOutside = plainKeyFallback && !plainInTx;
+        final byte[][] previous = new byte[1][];
+        //[0]: 新值是否写入普通key，[1]: 是否需要在事务外写入或删除普通key
+        final boolean[] plainWrite = new boolean[2];
+        final byte[][] update = new byte[1][];
+        ContentionPolicy contention = jedisPoolDB.getContentionPolicy();
+        for (int attempt = 1; ; attempt++) {
+            final byte[] outside = plainOutside ? jedisPoolDB.getBytes(key) : null;
+            //WATCH状态在连接归还连接池时由Jedis重置，updater抛出异常时无需另行UNWATCH
+            boolean committed = jedisPoolDB.runOnNode(bucket, true, new JedisPoolDB.NodeCallback<Boolean>() {
+                @Override
+                public Boolean execute(Jedis jedis) {
+                    if (plainInTx) {
+                        jedis.watch(bbucket, plainKey);
+                    } else {
+                        jedis.watch(bbucket);
+                    }
+                    byte[] current = jedis.hget(bbucket, field);
+                    if (current == null && plainKeyFallback) {
+                        current = plainInTx ? jedis.get(plainKey) : outside;
+                    }
+                    previous[0] = current;
+                    byte[] value = updater.apply(current);
+                    update[0] = value;
+                    plainWrite[0] = false;
+                    plainWrite[1] = false;
+                    if (current == null ? value == null : value != null && Arrays.equals(current, value)) {
+                        jedis.unwatch();
+                        return true;
+                    }
+                    boolean oversize = value != null && isOversized(field, value);
+                    Transaction tx = jedis.multi();
+                    if (value == null || oversize) {
+                        tx.hdel(bbucket, field);
+                    } else {
+                        tx.hset(bbucket, field, value);
+                        if (expire > 0) {
+                            tx.expire(bbucket, expire);
+                        }
+                    }
+                    if (plainInTx) {
+                        if (!oversize) {
+                            tx.del(plainKey);
+                        } else if (expire > 0) {
+                            tx.setex(plainKey, expire, value);
+                        } else {
+                            tx.set(plainKey, value);
+                        }
+                    }
+                    plainWrite[0] = oversize;
+                    plainWrite[1] = plainOutside && (oversize || outside != null);
+                    return tx.exec() != null;
+                }
+            });
+            if (committed) {
+                contention.completed(attempt);
+                if (plainWrite[0]) {
+                    oversized.incrementAndGet();
+                }
+                if (plainWrite[1]) {
+                    writePlainKey(plainKey, expire, plainWrite[0] ? update[0] : null);
+                }
+                return previous[0];
+            }
+            if (!contention.awaitRetry(attempt)) {
+                throw new UpdateConflictException("update of " + key + " still conflicted after " + attempt + " attempts");
+            }
+        }
+    }
+
+    /**
+     * 写入普通key，value为null时删除
+     */
+    private void writePlainKey(final byte[] plainKey, final int expire, final byte[] value) {
+        jedisPoolDB.runPipelined(new JedisPoolDB.PipelineCallback() {
+            @Override
+            public void execute(PipelineBase pipeline) {
+                if (value == null) {
+                    pipeline.del(plainKey);
+                } else if (expire > 0) {
+                    pipeline.setex(plainKey, expire, value);
+                } else {
+                    pipeline.set(plainKey, value);
+                }
+            }
+        });
+    }
+
+    private boolean isOversized(byte[] field, byte[] value) {
+        if (value.length <= maxValueBytes && field.length <= maxValueBytes) {
+            return false;
+        }
+        if (!plainKeyFallback) {
+            throw new IllegalArgumentException("field or value exceeds " + maxValueBytes + " bytes");
+        }
+        return true;
+    }
+
+    @Override
+    public boolean delete(String key) {
+        notNullAssert(key);
+        final byte[] bucket = jedisPoolDB.encodeKey(bucketOf(key));
+        final byte[] field = SafeEncoder.encode(fieldOf(key));
+        final byte[] plainKey = jedisPoolDB.encodeKey(key);
+        List<Object> ret = jedisPoolDB.runPipelined(new JedisPoolDB.PipelineCallback() {
+            @Override
+            public void execute(PipelineBase pipeline) {
+                pipeline.hdel(bucket, field);
+                if (plainKeyFallback) {
+                    pipeline.del(plainKey);
+                }
+            }
+        });
+        for (Object count : ret) {
+            if (count instanceof Long && (Long) count > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 设置key所在桶的过期时间，作用于同桶的所有key
+     */
+    @Override
+    public boolean expire(String key, int expirePeriodInSecond) {
+        notNullAssert(key);
+        return cacheDB.expire(bucketOf(key), expirePeriodInSecond);
+    }
+
+    /**
+     * @return key所在桶的剩余过期时间
+     */
+    @Override
+    public int ttl(String key) {
+        notNullAssert(key);
+        return cacheDB.ttl(bucketOf(key));
+    }
+
+    /**
+     * 批量读取，同一桶的key合并为一次HMGET，所有桶在一次pipeline中读取
+     *
+     * @return key -> value，不含不存在的key
+     */
+    public Map<String, String> multiGetString(Collection<String> keys) {
+        Map<String, byte[]> values = multiGet(keys);
+        Map<String, String> ret = new HashMap<String, String>(values.size() * 4 / 3 + 1);
+        for (Map.Entry<String, byte[]> entry : values.entrySet()) {
+            ret.put(entry.getKey(), SafeEncoder.encode(entry.getValue()));
+        }
+        return ret;
+    }
+
+    public <T extends Serializable> Map<String, T> multiGetObject(Collection<String> keys, Class<T> type) {
+        Map<String, byte[]> values = multiGet(keys);
+        Map<String, T> ret = new HashMap<String, T>(values.size() * 4 / 3 + 1);
+        for (Map.Entry<String, byte[]> entry : values.entrySet()) {
+            ret.put(entry.getKey(), jedisPoolDB.getSerialize().decode(entry.getValue(), type));
+        }
+        return ret;
+    }
+
+    @Override
+    public Map<String, String> multiGetString(String... keys) {
+        notNullAssert(keys);
+        return multiGetString(Arrays.asList(keys));
+    }
+
+    @Override
+    public <T extends Serializable> Map<String, T> multiGetObject(Class<T> type, String... keys) {
+        notNullAssert(keys);
+        return multiGetObject(Arrays.asList(keys), type);
+    }
+
+    /**
+     * 读取桶中的值判断是否存在
+     */
+    @Override
+    public Set<String> multiExists(String... keys) {
+        notNullAssert(keys);
+        return new HashSet<String>(multiGet(Arrays.asList(keys)).keySet());
+    }
+
+    private Map<String, byte[]> multiGet(Collection<String> keys) {
+        notNullAssert(keys);
+        final Map<String, List<String>> bucketKeys = groupByBucket(keys);
+        List<Object> replies = jedisPoolDB.runPipelined(new JedisPoolDB.PipelineCallback() {
+            @Override
+            public void execute(PipelineBase pipeline) {
+                for (Map.Entry<String, List<String>> entry : bucketKeys.entrySet()) {
+                    List<String> group = entry.getValue();
+                    byte[][] fields = new byte[group.size()][];
+                    for (int i = 0; i < fields.length; i++) {
+                        fields[i] = SafeEncoder.encode(fieldOf(group.get(i)));
+                    }
+                    pipeline.hmget(jedisPoolDB.encodeKey(entry.getKey()), fields);
+                }
+            }
+        });
+        Map<String, byte[]> ret = new HashMap<String, byte[]>(keys.size() * 4 / 3 + 1);
+        final List<String> misses = new ArrayList<String>();
+        int i = 0;
+        for (List<String> group : bucketKeys.values()) {
+            List<byte[]> values = (List<byte[]>) replies.get(i++);
+            for (int j = 0; j < group.size(); j++) {
+                byte[] value = j < values.size() ? values.get(j) : null;
+                if (value != null) {
+                    ret.put(group.get(j), value);
+                } else {
+                    misses.add(group.get(j));
+                }
+            }
+        }
+        if (plainKeyFallback && !misses.isEmpty()) {
+            List<Object> plainValues = jedisPoolDB.runPipelined(new JedisPoolDB.PipelineCallback() {
+                @Override
+                public void execute(PipelineBase pipeline) {
+                    for (String key : misses) {
+                        pipeline.get(jedisPoolDB.encodeKey(key));
+                    }
+                }
+            });
+            for (int j = 0; j < misses.size(); j++) {
+                if (plainValues.get(j) != null) {
+                    ret.put(misses.get(j), (byte[]) plainValues.get(j));
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * 批量写入，同一桶的key合并为一次HMSET，所有桶在一次pipeline中写入
+     *
+     * @param keyValues
+     * @param expirePeriodInSecond 作用于涉及的各个桶，<=0时不改变
+     */
+    @Override
+    public boolean multiSetString(Map<String, String> keyValues, int expirePeriodInSecond) {
+        notNullAssert(keyValues);
+        Map<String, byte[]> encoded = new LinkedHashMap<String, byte[]>(keyValues.size() * 4 / 3 + 1);
+        for (Map.Entry<String, String> entry : keyValues.entrySet()) {
+            notNullAssert(entry.getValue());
+            encoded.put(entry.getKey(), SafeEncoder.encode(entry.getValue()));
+        }
+        multiSet(encoded, expirePeriodInSecond);
+        return true;
+    }
+
+    @Override
+    public <T extends Serializable> boolean multiSetObject(Map<String, T> keyValues, int expirePeriodInSecond) {
+        notNullAssert(keyValues);
+        Map<String, byte[]> encoded = new LinkedHashMap<String, byte[]>(keyValues.size() * 4 / 3 + 1);
+        for (Map.Entry<String, T> entry : keyValues.entrySet()) {
+            notNullAssert(entry.getValue());
+            encoded.put(entry.getKey(), jedisPoolDB.getSerialize().encode(entry.getValue()));
+        }
+        multiSet(encoded, expirePeriodInSecond);
+        return true;
+    }
+
+    private void multiSet(Map<String, byte[]> keyValues, int expirePeriodInSecond) {
+        final Map<String, Map<byte[], byte[]>> buckets = new LinkedHashMap<String, Map<byte[], byte[]>>();
+        final Map<String, byte[]> plain = new LinkedHashMap<String, byte[]>();
+        //每个桶、每个独立存储的key各自抖动，在执行前确定，重试时不变
+        final Map<String, Integer> expires = new HashMap<String, Integer>();
+        for (Map.Entry<String, byte[]> entry : keyValues.entrySet()) {
+            byte[] field = SafeEncoder.encode(fieldOf(entry.getKey()));
+            if (isOversized(field, entry.getValue())) {
+                oversized.incrementAndGet();
+                plain.put(entry.getKey(), entry.getValue());
+                expires.put(entry.getKey(), jedisPoolDB.expireOf(expirePeriodInSecond));
+                continue;
+            }
+            String bucket = bucketOf(entry.getKey());
+            Map<byte[], byte[]> fieldValues = buckets.get(bucket);
+            if (fieldValues == null) {
+                fieldValues = new HashMap<byte[], byte[]>();
+                buckets.put(bucket, fieldValues);
+                expires.put(bucket, jedisPoolDB.expireOf(expirePeriodInSecond));
+            }
+            fieldValues.put(field, entry.getValue());
+        }
+        jedisPoolDB.runPipelined(new JedisPoolDB.PipelineCallback() {
+            @Override
+            public void execute(PipelineBase pipeline) {
+                for (Map.Entry<String, Map<byte[], byte[]>> entry : buckets.entrySet()) {
+                    byte[] bucket = jedisPoolDB.encodeKey(entry.getKey());
+                    pipeline.hmset(bucket, entry.getValue());
+                    int expire = expires.get(entry.getKey());
+                    if (expire > 0) {
+                        pipeline.expire(bucket, expire);
+                    }
+                }
+                for (Map.Entry<String, byte[]> entry : plain.entrySet()) {
+                    pipeline.hdel(jedisPoolDB.encodeKey(bucketOf(entry.getKey())), SafeEncoder.encode(fieldOf(entry.getKey())));
+                    byte[] plainKey = jedisPoolDB.encodeKey(entry.getKey());
+                    int expire = expires.get(entry.getKey());
+                    if (expire > 0) {
+                        pipeline.setex(plainKey, expire, entry.getValue());
+                    } else {
+                        pipeline.set(plainKey, entry.getValue());
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * 批量删除
+     *
+     * @return 删除的key数
+     */
+    public int multiDelete(Collection<String> keys) {
+        notNullAssert(keys);
+        final Map<String, List<String>> bucketKeys = groupByBucket(keys);
+        final Collection<String> plainKeys = keys;
+        List<Object> replies = jedisPoolDB.runPipelined(new JedisPoolDB.PipelineCallback() {
+            @Override
+            public void execute(PipelineBase pipeline) {
+                for (Map.Entry<String, List<String>> entry : bucketKeys.entrySet()) {
+                    List<String> group = entry.getValue();
+                    byte[][] fields = new byte[group.size()][];
+                    for (int i = 0; i < fields.length; i++) {
+                        fields[i] = SafeEncoder.encode(fieldOf(group.get(i)));
+                    }
+                    pipeline.hdel(jedisPoolDB.encodeKey(entry.getKey()), fields);
+                }
+                if (plainKeyFallback) {
+                    for (String key : plainKeys) {
+                        pipeline.del(jedisPoolDB.encodeKey(key));
+                    }
+                }
+            }
+        });
+        int deleted = 0;
+        for (Object count : replies) {
+            if (count instanceof Long) {
+                deleted += ((Long) count).intValue();
+            }
+        }
+        return deleted;
+    }
+
+    @Override
+    public int multiDelete(String... keys) {
+        notNullAssert(keys);
+        return multiDelete(Arrays.asList(keys));
+    }
+
+    /**
+     * 设置keys所在各桶的过期时间，作用于这些桶中的所有key
+     *
+     * @return 设置成功的桶数
+     */
+    @Override
+    public int multiExpire(int expirePeriodInSecond, String... keys) {
+        notNullAssert(keys);
+        Set<String> buckets = new LinkedHashSet<String>();
+        for (String key : keys) {
+            notNullAssert(key);
+            buckets.add(bucketOf(key));
+        }
+        return cacheDB.multiExpire(expirePeriodInSecond, buckets.toArray(new String[buckets.size()]));
+    }
+
+    private Map<String, List<String>> groupByBucket(Collection<String> keys) {
+        Map<String, List<String>> bucketKeys = new LinkedHashMap<String, List<String>>();
+        for (String key : keys) {
+            notNullAssert(key);
+            String bucket = bucketOf(key);
+            List<String> group = bucketKeys.get(bucket);
+            if (group == null) {
+                group = new ArrayList<String>(2);
+                bucketKeys.put(bucket, group);
+            }
+            group.add(key);
+        }
+        return bucketKeys;
+    }
+
+    /**
+     * 抽样统计桶的内存占用，并与同样数据以普通key存放时的占用比较。
+     * 普通key的占用通过临时写入（60秒过期）并立即删除少量抽样数据测得。需要redis 4.0以上（MEMORY USAGE）
+     *
+     * @param sampleBuckets 抽样的桶数
+     * @return 统计结果
+     */
+    public MemoryReport memoryReport(int sampleBuckets) {
+        MemoryReport report = new MemoryReport();
+        Random random = new Random();
+        int samples = Math.min(sampleBuckets, bucketCount);
+        for (int n = 0; n < samples; n++) {
+            String bucket = bucketPrefix + (samples == bucketCount ? n : random.nextInt(bucketCount));
+            report.sampledBuckets++;
+            long bytes = jedisPoolDB.memoryUsage(bucket);
+            if (bytes < 0) {
+                continue;
+            }
+            Map<String, String> fieldValues = jedisPoolDB.hGetAllString(bucket);
+            report.existingBuckets++;
+            report.bucketKeys += fieldValues.size();
+            report.bucketBytes += bytes;
+            Object encoding = jedisPoolDB.evalScript(OBJECT_ENCODING, bucket);
+            String encodingName = encoding instanceof byte[] ? SafeEncoder.encode((byte[]) encoding) : String.valueOf(encoding);
+            if (!"listpack".equals(encodingName) && !"ziplist".equals(encodingName)) {
+                report.nonCompactBuckets++;
+            }
+            int measured = 0;
+            for (Map.Entry<String, String> entry : fieldValues.entrySet()) {
+                if (measured++ >= 3) {
+                    break;
+                }
+                String tempKey = "memreport~" + strippedKeyPrefix + entry.getKey();
+                cacheDB.setString(tempKey, 60, entry.getValue());
+                try {
+                    //减去临时前缀的长度
+                    report.plainBytes += jedisPoolDB.memoryUsage(tempKey) - "memreport~".length();
+                    report.plainKeys++;
+                } finally {
+                    cacheDB.delete(tempKey);
+                }
+            }
+        }
+        report.bucketCount = bucketCount;
+        return report;
+    }
+
+    /**
+     * 桶内存抽样统计
+     */
+    public static class MemoryReport {
+        private int bucketCount;
+        private int sampledBuckets;
+        private int existingBuckets;
+        private int nonCompactBuckets;
+        private long bucketKeys;
+        private long bucketBytes;
+        private long plainKeys;
+        private long plainBytes;
+
+        /**
+         * @return 按抽样推算的key总数
+         */
+        public long getEstimatedKeys() {
+            return sampledBuckets == 0 ? 0 : bucketKeys * bucketCount / sampledBuckets;
+        }
+
+        public double getBytesPerKey() {
+            return bucketKeys == 0 ? 0 : (double) bucketBytes / bucketKeys;
+        }
+
+        public double getPlainBytesPerKey() {
+            return plainKeys == 0 ? 0 : (double) plainBytes / plainKeys;
+        }
+
+        /**
+         * @return 推算的与普通key存放相比节省的字节数
+         */
+        public long getEstimatedSavedBytes() {
+            return (long) ((getPlainBytesPerKey() - getBytesPerKey()) * getEstimatedKeys());
+        }
+
+        /**
+         * @return 抽样中超出listpack限制、已转为hashtable编码的桶数，大于0时应增加桶数
+         */
+        public int getNonCompactBuckets() {
+            return nonCompactBuckets;
+        }
+
+        @Override
+        public String toString() {
+            return "MemoryReport[sampledBuckets=" + sampledBuckets + ", existingBuckets=" + existingBuckets
+                    + ", nonCompactBuckets=" + nonCompactBuckets + ", estimatedKeys=" + getEstimatedKeys()
+                    + ", bytesPerKey=" + String.format("%.1f", getBytesPerKey())
+                    + ", plainBytesPerKey=" + String.format("%.1f", getPlainBytesPerKey())
+                    + ", estimatedSavedBytes=" + getEstimatedSavedBytes() + "]";
+        }
+    }
+
+    private static void notNullAssert(Object value) {
+        if (value == null) {
+            throw new IllegalArgumentException("not support the Object-type of Null");
+        }
+    }
+
+    /**
+     * 命令行报告桶的内存节省情况
+     */
+    public static void main(String[] args) {
+        if (args.length < 4) {
+            System.err.println("usage: HashBucketCacheDB ip:port[,ip:port] passwd|- bucketPrefix bucketCount [strippedKeyPrefix] [sampleBuckets]");
+            System.exit(1);
+        }
+        String passwd = "-".equals(args[1]) ? null : args[1];
+        HashBucketCacheDB db = new HashBucketCacheDB(RedisDBFactory.getRedisDB(args[0], passwd), args[2], Integer.parseInt(args[3]));
+        if (args.length > 4) {
+            db.setStrippedKeyPrefix(args[4]);
+        }
+        MemoryReport report = db.memoryReport(args.length > 5 ? Integer.parseInt(args[5]) : 200);
+        System.out.println(report);
+        System.exit(report.getNonCompactBuckets() > 0 ? 2 : 0);
+    }
+}
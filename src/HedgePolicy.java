@@ -0,0 +1,393 @@
+import redis.clients.jedis.exceptions.JedisException;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 只读操作的对冲策略：主节点在动态阈值（近期主节点耗时的分位数，默认p95）内未返回时，
+ * 向副本节点发出同样的读请求，先返回者胜出。
+ * 对冲请求数受预算限制：每次读取积累hedgePercent%个令牌，每次对冲消耗一个，令牌上限为maxBurst。
+ * 主节点读取在调用线程执行，只有对冲请求使用线程池；线程用尽时放弃对冲并计入rejected。
+ * 对冲请求先返回时断开主节点读取使用的连接，该连接由连接池丢弃。
+ * <p>
+ * 线程安全，一个JedisPoolDB共用一个实例。
+ */
+public class HedgePolicy {
+    private static final int SAMPLE_SIZE = 1024;
+    private static final int RECOMPUTE_INTERVAL = 128;
+
+    //所有实例共用的计时线程，只负责在阈值到达时发出对冲请求
+    private static final ScheduledThreadPoolExecutor TIMER = newTimer();
+
+    private final ExecutorService executor;
+    private float hedgePercent = 5;//对冲请求占读取总数的最大百分比
+    private int maxBurst = 10;//预算令牌上限
+    private float percentile = 0.95f;//对冲阈值取主节点耗时的分位数
+    private long minDelayMicros = 1000;//对冲阈值下限
+    private long maxDelayMicros = 200000;//对冲阈值上限
+
+    private final long[] samples = new long[SAMPLE_SIZE];
+    private final AtomicInteger sampleCount = new AtomicInteger();
+    private volatile long thresholdMicros = 20000;//样本不足前使用的初始阈值
+
+    private final Object budgetLock = new Object();
+    private float budget;
+    private final AtomicLong reads = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+    private final AtomicLong deadlineSkips = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public HedgePolicy() {
+        this(Math.max(16, Runtime.getRuntime().availableProcessors() * 4));
+    }
+
+    /**
+     * @param maxThreads 线程数上限，空闲60秒的线程回收
+     */
+    public HedgePolicy(int maxThreads) {
+        this(newExecutor(maxThreads));
+    }
+
+    public HedgePolicy(ExecutorService executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("executor can't be NULL");
+        }
+        this.executor = executor;
+    }
+
+    private static ExecutorService newExecutor(int maxThreads) {
+        if (maxThreads <= 0) {
+            throw new IllegalArgumentException("maxThreads must be positive");
+        }
+        return new ThreadPoolExecutor(0, maxThreads, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger seq = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "redis-hedge-" + seq.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private static ScheduledThreadPoolExecutor newTimer() {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "redis-hedge-timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        //大部分读取在阈值前返回，取消的计时任务立即移除
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
+    }
+
+    /**
+     * 执行一次可对冲的读取。主节点读取在调用线程执行，超过阈值仍未返回时由计时线程向线程池发出对冲请求；
+     * 对冲请求先成功返回时断开primaryConnection，调用线程随即返回对冲结果
+     *
+     * @param primary           在主节点上的读取，在调用线程执行
+     * @param hedge             在副本节点上的同一读取
+     * @param primaryConnection 主节点读取借用的连接，为null时只能在主节点读取失败后使用对冲结果
+     * @return 先成功返回的结果；两者都失败时抛出主节点的异常
+     */
+    public <T> T execute(Callable<T> primary, Callable<T> hedge, final PrimaryConnection primaryConnection) {
+        //对冲请求在线程池中执行，须沿用调用线程的时间预算
+        final CallDeadline deadline = CallDeadline.current();
+        final Callable<T> hedgeCall = CallDeadline.propagate(hedge);
+        reads.incrementAndGet();
+        synchronized (budgetLock) {
+            budget = Math.min(maxBurst, budget + hedgePercent / 100);
+        }
+        final Race<T> race = new Race<T>();
+        final long delayMicros = thresholdMicros;
+        ScheduledFuture<?> timer = TIMER.schedule(new Runnable() {
+            @Override
+            public void run() {
+                issueHedge(race, hedgeCall, deadline, delayMicros, primaryConnection);
+            }
+        }, deadline == null ? delayMicros : Math.min(delayMicros, TimeUnit.NANOSECONDS.toMicros(deadline.remainingNanos())),
+                TimeUnit.MICROSECONDS);
+        T ret;
+        try {
+            long start = System.nanoTime();
+            ret = primary.call();
+            addSample((System.nanoTime() - start) / 1000);
+        } catch (Exception e) {
+            timer.cancel(false);
+            if (!race.primaryDone()) {
+                throw asRuntime(e);
+            }
+            try {
+                if (!race.awaitHedge(deadline)) {
+                    throw asRuntime(e);
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new JedisException("interrupted while waiting for read", ie);
+            }
+            hedgeWins.incrementAndGet();
+            return race.hedgeResult;
+        }
+        timer.cancel(false);
+        if (race.primaryDone()) {
+            //对冲请求已发出但尚未开始时不再执行
+            race.hedgeFuture.cancel(false);
+        }
+        return ret;
+    }
+
+    /**
+     * 计时线程中执行：主节点仍未返回时，在预算允许的情况下向线程池发出对冲请求
+     */
+    private <T> void issueHedge(final Race<T> race, final Callable<T> hedge, CallDeadline deadline, long delayMicros,
+                                final PrimaryConnection primaryConnection) {
+        if (race.isPrimaryDone() || !allowHedge()) {
+            return;
+        }
+        //对冲请求的耗时按主节点的阈值估计，剩余预算不足以等到它返回时不再发出
+        if (deadline != null && TimeUnit.NANOSECONDS.toMicros(deadline.remainingNanos()) <= delayMicros) {
+            deadlineSkips.incrementAndGet();
+            return;
+        }
+        if (!tryAcquireBudget()) {
+            return;
+        }
+        synchronized (race) {
+            if (race.primaryDone) {
+                return;
+            }
+            try {
+                race.hedgeFuture = executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        T ret;
+                        try {
+                            ret = hedge.call();
+                        } catch (Exception e) {
+                            race.hedgeDone(null, false);
+                            return;
+                        }
+                        if (race.hedgeDone(ret, true) && primaryConnection != null) {
+                            primaryConnection.abort();
+                        }
+                    }
+                });
+                hedges.incrementAndGet();
+            } catch (RejectedExecutionException e) {
+                //线程用尽时放弃对冲，继续等待主节点
+                rejected.incrementAndGet();
+            }
+        }
+    }
+
+    private static RuntimeException asRuntime(Exception e) {
+        return e instanceof RuntimeException ? (RuntimeException) e : new JedisException(e);
+    }
+
+    /**
+     * 一次读取中主节点与对冲请求的状态
+     */
+    private static final class Race<T> {
+        private boolean primaryDone;
+        private Future<?> hedgeFuture;
+        private boolean hedgeDone;
+        private boolean hedgeSucceeded;
+        private T hedgeResult;
+
+        synchronized boolean isPrimaryDone() {
+            return primaryDone;
+        }
+
+        /**
+         * 主节点返回或失败后调用，此后不再发出对冲请求
+         *
+         * @return 是否已发出对冲请求
+         */
+        synchronized boolean primaryDone() {
+            primaryDone = true;
+            return hedgeFuture != null;
+        }
+
+        /**
+         * @return 对冲请求成功且先于主节点返回
+         */
+        synchronized boolean hedgeDone(T ret, boolean succeeded) {
+            hedgeDone = true;
+            hedgeSucceeded = succeeded;
+            hedgeResult = ret;
+            notifyAll();
+            return succeeded && !primaryDone;
+        }
+
+        /**
+         * 等待已发出的对冲请求返回
+         *
+         * @return 对冲请求是否成功
+         */
+        synchronized boolean awaitHedge(CallDeadline deadline) throws InterruptedException {
+            while (!hedgeDone) {
+                if (deadline == null) {
+                    wait();
+                } else {
+                    long remaining = deadline.remainingNanos();
+                    if (remaining <= 0) {
+                        throw new DeadlineExceededException("call deadline exceeded while waiting for read");
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+            }
+            return hedgeSucceeded;
+        }
+    }
+
+    /**
+     * 主节点读取借用的连接。对冲请求先返回时由对冲线程断开该连接的socket，使阻塞在读取上的调用线程立即返回；
+     * 连接归还前解除关联，断开不会作用于已归还的连接，被断开的连接由连接池丢弃
+     */
+    public static final class PrimaryConnection {
+        private Closeable connection;
+        private boolean aborted;
+        private boolean disconnected;
+
+        /**
+         * @return false 表示已被放弃，不应再执行读取
+         */
+        synchronized boolean attach(Closeable connection) {
+            if (aborted) {
+                return false;
+            }
+            this.connection = connection;
+            return true;
+        }
+
+        /**
+         * @return 连接是否已被断开
+         */
+        synchronized boolean detach() {
+            connection = null;
+            return disconnected;
+        }
+
+        synchronized boolean isAborted() {
+            return aborted;
+        }
+
+        synchronized void abort() {
+            aborted = true;
+            if (connection != null) {
+                disconnected = true;
+                MyJedisCommand.disconnect(connection);
+            }
+        }
+    }
+
+    /**
+     * 是否允许发出对冲请求，子类可覆盖以加入额外条件
+     */
+    protected boolean allowHedge() {
+        return true;
+    }
+
+    private boolean tryAcquireBudget() {
+        synchronized (budgetLock) {
+            if (budget >= 1) {
+                budget -= 1;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private void addSample(long micros) {
+        int n = sampleCount.getAndIncrement();
+        samples[n & (SAMPLE_SIZE - 1)] = micros;
+        if ((n + 1) % RECOMPUTE_INTERVAL == 0) {
+            int size = Math.min(n + 1, SAMPLE_SIZE);
+            long[] sorted = Arrays.copyOf(samples, size);
+            Arrays.sort(sorted);
+            long value = sorted[Math.min(size - 1, (int) (size * percentile))];
+            thresholdMicros = Math.max(minDelayMicros, Math.min(maxDelayMicros, value));
+        }
+    }
+
+    public long getThresholdMicros() {
+        return thresholdMicros;
+    }
+
+    public long getReads() {
+        return reads.get();
+    }
+
+    public long getHedges() {
+        return hedges.get();
+    }
+
+    /**
+     * @return 对冲请求先于主节点返回的次数
+     */
+    public long getHedgeWins() {
+        return hedgeWins.get();
+    }
+
+    /**
+     * @return 因剩余时间预算不足而未发出对冲请求的次数
+     */
+    public long getDeadlineSkips() {
+        return deadlineSkips.get();
+    }
+
+    /**
+     * @return 因线程用尽而放弃对冲的次数
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public void setHedgePercent(float hedgePercent) {
+        this.hedgePercent = hedgePercent;
+    }
+
+    public void setMaxBurst(int maxBurst) {
+        this.maxBurst = maxBurst;
+    }
+
+    public void setPercentile(float percentile) {
+        this.percentile = percentile;
+    }
+
+    public void setMinDelayMicros(long minDelayMicros) {
+        this.minDelayMicros = minDelayMicros;
+    }
+
+    public void setMaxDelayMicros(long maxDelayMicros) {
+        this.maxDelayMicros = maxDelayMicros;
+    }
+
+    public void setInitialDelayMicros(long initialDelayMicros) {
+        this.thresholdMicros = initialDelayMicros;
+    }
+
+    @Override
+    public String toString() {
+        return "HedgePolicy[threshold=" + thresholdMicros + "us, reads=" + reads.get() + ", hedges=" + hedges.get()
+                + ", hedgeWins=" + hedgeWins.get() + ", deadlineSkips=" + deadlineSkips.get()
+                + ", rejected=" + rejected.get() + "]";
+    }
+}
@@ -2,6 +2,7 @@ import java.io.Serializable;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.UnaryOperator;
 
 /**
  * 缓存操作接口
@@ -22,8 +23,52 @@ public interface ICacheDB {
 
     public boolean setString(final String key, final int expirePeriodInSecond, final String value);
 
+    /**
+     * key不存在时设置，设置与过期时间一次原子完成
+     *
+     * @param key
+     * @param expirePeriodInSecond 0和负数表示不过期
+     * @param value
+     * @return 是否设置成功
+     */
     public boolean setStringIfNotExist(final String key, final int expirePeriodInSecond, final String value);
 
+    public <T extends Serializable> boolean setObjectIfNotExist(final String key, final int expirePeriodInSecond, final T value);
+
+    /**
+     * 比较并设置：当前值等于expect时设置为update，一次原子完成
+     *
+     * @param key
+     * @param expect               期望的当前值，null表示期望key不存在
+     * @param update
+     * @param expirePeriodInSecond 0和负数表示不过期
+     * @return 是否设置成功
+     */
+    public boolean compareAndSetString(final String key, final String expect, final String update, final int expirePeriodInSecond);
+
+    /**
+     * 比较并设置：当前值与expect序列化后的字节相同时设置为update，一次原子完成。要求序列化结果对相等的对象是确定的
+     *
+     * @param key
+     * @param expect               期望的当前值，null表示期望key不存在
+     * @param update
+     * @param expirePeriodInSecond 0和负数表示不过期
+     * @return 是否设置成功
+     */
+    public <T extends Serializable> boolean compareAndSetObject(final String key, final T expect, final T update, final int expirePeriodInSecond);
+
+    /**
+     * 取值，key存在时同时刷新其过期时间，一次往返完成
+     *
+     * @param key
+     * @param expirePeriodInSecond 0和负数表示不刷新
+     * @param type
+     * @return
+     */
+    public <T extends Serializable> T getObjectAndExpire(final String key, final int expirePeriodInSecond, Class<T> type);
+
+    public String getStringAndExpire(final String key, final int expirePeriodInSecond);
+
     /**
      *
      * @param key
@@ -197,6 +242,18 @@ public interface ICacheDB {
      */
     public boolean hMultiSetString(String key, Map<String, String> fieldValues);
 
+    /**
+     * 同时更新某hashmap下的若干个数据项（Object），并设置整个hashmap的过期时间，一次原子完成
+     *
+     * @param key
+     * @param fieldValues
+     * @param expirePeriodInSecond 0和负数表示不设置过期
+     * @return
+     */
+    public <T extends Serializable> boolean hMultiSetObject(String key, Map<String, T> fieldValues, int expirePeriodInSecond);
+
+    public boolean hMultiSetString(String key, Map<String, String> fieldValues, int expirePeriodInSecond);
+
     /**
      * 以Object方式取出某hashmap下的某数据项
      *
@@ -283,4 +340,98 @@ public interface ICacheDB {
      */
     public boolean hExists(String key, String field);
 
+    /**
+     * 批量读取多个key，分片部署时各分片并行读取
+     *
+     * @param type
+     * @param keys
+     * @return key -> value，不含不存在的key
+     */
+    public <T extends Serializable> Map<String, T> multiGetObject(Class<T> type, String... keys);
+
+    public Map<String, String> multiGetString(String... keys);
+
+    /**
+     * 批量写入多个key，分片部署时各分片并行写入；不同key之间不保证原子性
+     *
+     * @param keyValues
+     * @param expirePeriodInSecond 0和负数表示不过期
+     * @return
+     */
+    public <T extends Serializable> boolean multiSetObject(Map<String, T> keyValues, int expirePeriodInSecond);
+
+    public boolean multiSetString(Map<String, String> keyValues, int expirePeriodInSecond);
+
+    /**
+     * 批量删除多个key
+     *
+     * @param keys
+     * @return 删除的key数
+     */
+    public int multiDelete(String... keys);
+
+    /**
+     * @param keys
+     * @return keys中存在的key
+     */
+    public Set<String> multiExists(String... keys);
+
+    /**
+     * 批量设置过期时间
+     *
+     * @param expirePeriodInSecond
+     * @param keys
+     * @return 设置成功（key存在）的key数
+     */
+    public int multiExpire(int expirePeriodInSecond, String... keys);
+
+    /**
+     * 令牌桶限流，补充与扣减令牌在服务端一次原子执行；桶初始为满，长时间不用的桶自动过期
+     *
+     * @param key              桶的key
+     * @param permits          需要的令牌数，不大于capacity
+     * @param capacity         桶容量，即允许的突发量
+     * @param permitsPerSecond 每秒补充的令牌数
+     * @return 令牌足够时扣减并返回true，否则不扣减返回false
+     */
+    public boolean tryAcquire(String key, int permits, int capacity, double permitsPerSecond);
+
+    /**
+     * 令牌桶限流，令牌不足maxPermits时取走剩余的整数个令牌，用于一次取得一批令牌在本地分配（见TokenBucketLimiter）
+     *
+     * @param key
+     * @param maxPermits       最多取得的令牌数，不大于capacity
+     * @param capacity
+     * @param permitsPerSecond
+     * @return 实际取得的令牌数
+     */
+    public int acquireUpTo(String key, int maxPermits, int capacity, double permitsPerSecond);
+
+    /**
+     * 以WATCH/MULTI/EXEC乐观地原子更新key的值：读取当前值，由updater计算新值后写入；
+     * 其间key被其他客户端修改时重新读取并调用updater，冲突重试次数由ContentionPolicy限制，用尽时抛出UpdateConflictException
+     *
+     * @param key
+     * @param expirePeriodInSecond 大于0时设置过期时间，否则保留原有的剩余过期时间（新建的key不过期）
+     * @param type
+     * @param updater              参数为当前值（不存在时为null），返回新值，返回null表示删除，与当前值相同时不写入；可能被调用多次，不应有副作用
+     * @return 更新前的值，不存在时返回null
+     */
+    public <T extends Serializable> T getAndUpdateObject(String key, int expirePeriodInSecond, Class<T> type, UnaryOperator<T> updater);
+
+    public String getAndUpdateString(String key, int expirePeriodInSecond, UnaryOperator<String> updater);
+
+    /**
+     * 以WATCH/MULTI/EXEC乐观地原子更新hashmap中field的值，不改变hashmap的过期时间；冲突处理同getAndUpdateObject
+     *
+     * @param key
+     * @param field
+     * @param type
+     * @param updater
+     * @return 更新前的值，不存在时返回null
+     */
+    public <T extends Serializable> T hGetAndUpdateObject(String key, String field, Class<T> type, UnaryOperator<T> updater);
+
+    public String hGetAndUpdateString(String key, String field, UnaryOperator<String> updater);
+
 }
@@ -1,114 +1,1387 @@
+import com.qlc.common.util.log.LogUtil;
 import com.qlc.common.util.transcoder.DefaultSerialize;
 import com.qlc.common.util.transcoder.ISerialize;
 import redis.clients.jedis.BinaryJedisCommands;
+import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisCommands;
+import redis.clients.jedis.JedisShardInfo;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.PipelineBase;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.ShardedJedis;
+import redis.clients.jedis.ShardedJedisPipeline;
+import redis.clients.jedis.ShardedJedisPool;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisException;
 import redis.clients.util.Pool;
 import redis.clients.util.SafeEncoder;
+import redis.clients.util.Sharded;
 import transcoder.DefaultSerialize;
 import transcoder.ISerialize;
 
 import java.io.Closeable;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.UnaryOperator;
 
 /**
  * 基于Jedis线程池实现的ICacheDB
  * Created by yangxuehua on 2014/7/30.
  */
 public class JedisPoolDB<C extends JedisCommands & BinaryJedisCommands & Closeable> implements ICacheDB {
+    private static final byte[] NX = SafeEncoder.encode("NX");
+    private static final byte[] EX = SafeEncoder.encode("EX");
+    private static final byte[] ZERO = SafeEncoder.encode("0");
+    private static final byte[] ONE = SafeEncoder.encode("1");
+    private static final byte[] EMPTY = new byte[0];
+
+    //ARGV: 是否期望key存在(1/0), 期望值, 新值, 过期秒数
+    static final LuaScript COMPARE_AND_SET = new LuaScript("compareAndSet",
+            "local cur = redis.call('GET', KEYS[1])\n" +
+            "if ARGV[1] == '1' then\n" +
+            "  if cur ~= ARGV[2] then return 0 end\n" +
+            "elseif cur then return 0 end\n" +
+            "if tonumber(ARGV[4]) > 0 then redis.call('SET', KEYS[1], ARGV[3], 'EX', ARGV[4])\n" +
+            "else redis.call('SET', KEYS[1], ARGV[3]) end\n" +
+            "return 1");
+    //ARGV: 过期秒数
+    static final LuaScript GET_AND_EXPIRE = new LuaScript("getAndExpire",
+            "local v = redis.call('GET', KEYS[1])\n" +
+            "if v and tonumber(ARGV[1]) > 0 then redis.call('EXPIRE', KEYS[1], ARGV[1]) end\n" +
+            "return v");
+    //ARGV: 过期秒数, field1, value1, field2, value2...
+    static final LuaScript HMSET_AND_EXPIRE = new LuaScript("hmsetAndExpire",
+            "for i = 2, #ARGV, 2 do redis.call('HSET', KEYS[1], ARGV[i], ARGV[i + 1]) end\n" +
+            "if tonumber(ARGV[1]) > 0 then redis.call('EXPIRE', KEYS[1], ARGV[1]) end\n" +
+            "return 1");
+
+    //key占用的内存字节数（含redis对象及字典项开销），key不存在时返回nil
+    static final LuaScript MEMORY_USAGE = new LuaScript("memoryUsage",
+            "return redis.call('MEMORY', 'USAGE', KEYS[1], 'SAMPLES', '0')");
+
+    //令牌桶，hash中t为剩余令牌数、ts为上次补充的毫秒时间；以redis服务器时间计算补充量，需要redis 3.2以上
+    //ARGV: 容量, 每秒补充的令牌数, 请求的令牌数, 不足时是否取走剩余的整数个令牌(1/0)
+    static final LuaScript TOKEN_BUCKET = new LuaScript("tokenBucket",
+            "redis.replicate_commands()\n" +
+            "local capacity = tonumber(ARGV[1])\n" +
+            "local rate = tonumber(ARGV[2]) / 1000\n" +
+            "local requested = tonumber(ARGV[3])\n" +
+            "local time = redis.call('TIME')\n" +
+            "local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)\n" +
+            "local state = redis.call('HMGET', KEYS[1], 't', 'ts')\n" +
+            "local tokens = tonumber(state[1])\n" +
+            "local ts = tonumber(state[2])\n" +
+            "if tokens == nil or ts == nil then tokens = capacity; ts = now end\n" +
+            "if now > ts then tokens = math.min(capacity, tokens + (now - ts) * rate); ts = now end\n" +
+            "local granted = 0\n" +
+            "if tokens >= requested then granted = requested\n" +
+            "elseif ARGV[4] == '1' then granted = math.floor(tokens) end\n" +
+            "tokens = tokens - granted\n" +
+            "redis.call('HMSET', KEYS[1], 't', tostring(tokens), 'ts', tostring(ts))\n" +
+            "redis.call('PEXPIRE', KEYS[1], math.ceil((capacity - tokens) / rate) + 1000)\n" +
+            "return granted");
+
+    //runLong/runBytes的执行方式
+    private static final int READ = 1;//只读
+    private static final int IDEMPOTENT = 2;//幂等写
+
+    //无状态命令，所有实例共用；整数结果以long返回（null为-1），不装箱
+    private static final BytesCommand GET = new BytesCommand() {
+        @Override
+        public byte[] execute(BinaryJedisCommands connection, byte[] key, byte[] field) {
+            return connection.get(key);
+        }
+    };
+    private static final BytesCommand HGET = new BytesCommand() {
+        @Override
+        public byte[] execute(BinaryJedisCommands connection, byte[] key, byte[] field) {
+            return connection.hget(key, field);
+        }
+    };
+    private static final BytesCommand LPOP = new BytesCommand() {
+        @Override
+        public byte[] execute(BinaryJedisCommands connection, byte[] key, byte[] field) {
+            return connection.lpop(key);
+        }
+    };
+    private static final BytesCommand RPOP = new BytesCommand() {
+        @Override
+        public byte[] execute(BinaryJedisCommands connection, byte[] key, byte[] field) {
+            return connection.rpop(key);
+        }
+    };
+    //arg: 过期秒数，<=0表示不过期；成功返回1
+    private static final LongCommand SET = new LongCommand() {
+        @Override
+        public long execute(BinaryJedisCommands connection, byte[] key, byte[] field, byte[] value, long arg) {
+            String ret = arg <= 0 ? connection.set(key, value) : connection.setex(key, (int) arg, value);
+            return "OK".equals(ret) ? 1 : 0;
+        }
+    };
+    //arg: 过期秒数，<=0表示不过期；设置成功返回1
+    private static final LongCommand SET_NX = new LongCommand() {
+        @Override
+        public long execute(BinaryJedisCommands connection, byte[] key, byte[] field, byte[] value, long arg) {
+            String ret = arg <= 0 ? connection.set(key, value, NX) : connection.set(key, value, NX, EX, arg);
+            return "OK".equals(ret) ? 1 : 0;
+        }
+    };
+    private static final LongCommand INCR_BY = new LongCommand() {
+        @Override
+        public long execute(BinaryJedisCommands connection, byte[] key, byte[] field, byte[] value, long arg) {
+            return unbox(connection.incrBy(key, arg));
+        }
+    };
+    private static final LongCommand DECR_BY = new LongCommand() {
+        @Override
+        public long execute(BinaryJedisCommands connection, byte[] key, byte[] field, byte[] value, long arg) {
+            return unbox(connection.decrBy(key, arg));
+        }
+    };
+    private static final LongCommand DEL = new LongCommand() {
+        @Override
+        public long execute(BinaryJedisCommands connection, byte[] key, byte[] field, byte[] value, long arg) {
+            return unbox(connection.del(key));
+        }
+    };
+    private static final LongCommand TTL = new LongCommand() {
+        @Override
+        public long execute(BinaryJedisCommands connection, byte[] key, byte[] field, byte[] value, long arg) {
+            return unbox(connection.ttl(key));
+        }
+    };
+    private static final LongCommand EXPIRE = new LongCommand() {
+        @Override
+        public long execute(BinaryJedisCommands connection, byte[] key, byte[] field, byte[] value, long arg) {
+            return unbox(connection.expire(key, (int) arg));
+        }
+    };
+    private static final LongCommand LLEN = new LongCommand() {
+        @Override
+        public long execute(BinaryJedisCommands connection, byte[] key, byte[] field, byte[] value, long arg) {
+            return unbox(connection.llen(key));
+        }
+    };
+    private static final LongCommand HSET = new LongCommand() {
+        @Override
+        public long execute(BinaryJedisCommands connection, byte[] key, byte[] field, byte[] value, long arg) {
+            return unbox(connection.hset(key, field, value));
+        }
+    };
+    private static final LongCommand HLEN = new LongCommand() {
+        @Override
+        public long execute(BinaryJedisCommands connection, byte[] key, byte[] field, byte[] value, long arg) {
+            return unbox(connection.hlen(key));
+        }
+    };
+    private static final LongCommand HEXISTS = new LongCommand() {
+        @Override
+        public long execute(BinaryJedisCommands connection, byte[] key, byte[] field, byte[] value, long arg) {
+            return Boolean.TRUE.equals(connection.hexists(key, field)) ? 1 : 0;
+        }
+    };
+    //多key操作中对每个key提交的命令
+    private static final KeyCallback MULTI_GET = new KeyCallback() {
+        @Override
+        public void execute(PipelineBase pipeline, byte[] key, int index) {
+            pipeline.get(key);
+        }
+    };
+    private static final KeyCallback MULTI_DEL = new KeyCallback() {
+        @Override
+        public void execute(PipelineBase pipeline, byte[] key, int index) {
+            pipeline.del(key);
+        }
+    };
+    private static final KeyCallback MULTI_EXISTS = new KeyCallback() {
+        @Override
+        public void execute(PipelineBase pipeline, byte[] key, int index) {
+            pipeline.exists(key);
+        }
+    };
+
     private Pool<C> jedisPool;
     private ISerialize serialize;
+    private volatile CircuitBreaker circuitBreaker;//为null时不熔断；分片连接池中为各分片熔断器的设置模板
+    private volatile ConcurrentHashMap<JedisShardInfo, CircuitBreaker> shardBreakers = new ConcurrentHashMap<JedisShardInfo, CircuitBreaker>();//分片 -> 分片的熔断器
+    private volatile Sharded<Jedis, JedisShardInfo> shardLocator;//按key定位分片，首次使用时创建
+    private volatile boolean fallbackOnCircuitOpen;//熔断中时单项读取是否以未命中(null)降级，false则抛出CircuitBreakerOpenException
+    private volatile Pool<C> replicaPool;//只读操作对冲使用的副本节点
+    private volatile HedgePolicy hedgePolicy;//为null时不对冲
+    private volatile RetryPolicy retryPolicy;//为null时不重试
+    private volatile ShardFanOut fanOut = ShardFanOut.shared();//为null时多key操作逐个分片执行
+    private volatile ContentionPolicy contentionPolicy = new ContentionPolicy();
+    private volatile TtlJitter ttlJitter;//为null时不抖动
+    private volatile ExpiryHistogram expiryHistogram;//为null时不统计
+    private final ScriptRegistry scriptRegistry;
+    private final KeyEncoder keyEncoder;//key前缀（命名空间）及key、field的编码
+
+    public JedisPoolDB(Pool<C> jedisPool, ISerialize serialize) {
+        if (jedisPool == null) {
+            throw new IllegalArgumentException("jedisPool can't be NULL");
+        }
+        this.jedisPool = jedisPool;
+        if (serialize == null) {
+            this.serialize = new DefaultSerialize();
+        } else {
+            this.serialize = serialize;
+        }
+        this.keyEncoder = KeyEncoder.NONE;
+        this.scriptRegistry = new ScriptRegistry();
+        scriptRegistry.register(COMPARE_AND_SET);
+        scriptRegistry.register(GET_AND_EXPIRE);
+        scriptRegistry.register(HMSET_AND_EXPIRE);
+        scriptRegistry.register(MEMORY_USAGE);
+        scriptRegistry.register(TOKEN_BUCKET);
+    }
+
+    /**
+     * 命名空间或序列化视图，与parent共用连接池、熔断器、对冲设置及脚本注册表
+     */
+    private JedisPoolDB(JedisPoolDB<C> parent, KeyEncoder keyEncoder, ISerialize serialize) {
+        this.jedisPool = parent.jedisPool;
+        this.serialize = serialize;
+        this.circuitBreaker = parent.circuitBreaker;
+        this.shardBreakers = parent.shardBreakers;
+        this.shardLocator = parent.shardLocator;
+        this.fallbackOnCircuitOpen = parent.fallbackOnCircuitOpen;
+        this.replicaPool = parent.replicaPool;
+        this.hedgePolicy = parent.hedgePolicy;
+        this.retryPolicy = parent.retryPolicy;
+        this.fanOut = parent.fanOut;
+        this.contentionPolicy = parent.contentionPolicy;
+        this.ttlJitter = parent.ttlJitter;
+        this.expiryHistogram = parent.expiryHistogram;
+        this.scriptRegistry = parent.scriptRegistry;
+        this.keyEncoder = keyEncoder;
+    }
+
+    /**
+     * 返回一个命名空间视图：所有key自动加上prefix（hashmap的field不加），前缀只编码一次。
+     * 视图创建时复制本实例的熔断、对冲与重试设置，之后两者各自独立设置。
+     * <p>
+     * e.g: ICacheDB profileDB = redisDB.withNamespace("app:user:profile:"); profileDB.getObject("1001", Profile.class);
+     *
+     * @param prefix
+     * @return
+     */
+    public JedisPoolDB<C> withNamespace(String prefix) {
+        return new JedisPoolDB<C>(this, keyEncoder.append(prefix), serialize);
+    }
+
+    /**
+     * 返回一个以serialize编解码Object的视图，命名空间及其他设置同withNamespace
+     *
+     * @param serialize
+     * @return
+     */
+    public JedisPoolDB<C> withSerialize(ISerialize serialize) {
+        if (serialize == null) {
+            throw new IllegalArgumentException("serialize can't be NULL");
+        }
+        return new JedisPoolDB<C>(this, keyEncoder, serialize);
+    }
+
+    public String getNamespace() {
+        return keyEncoder.getPrefix();
+    }
+
+    /**
+     * @return 加上命名空间前缀后的key编码，供pipeline等直接使用二进制key的场景
+     */
+    byte[] encodeKey(String key) {
+        return keyEncoder.encode(key);
+    }
+
+    Pool<C> getJedisPool() {
+        return jedisPool;
+    }
+
+    ISerialize getSerialize() {
+        return serialize;
+    }
+
+    CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * 设置节点熔断器。单节点与sentinel连接池只对应一个redis节点，直接使用此熔断器；
+     * 分片连接池中每个分片以此熔断器的设置各自创建熔断器（CircuitBreaker.forNode），一个分片故障不影响其他分片的key。
+     * 跨分片的pipeline（runPipelined）无法区分分片，不经过熔断器；多key操作按分片各自熔断
+     *
+     * @param circuitBreaker null表示关闭熔断
+     */
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.shardBreakers = new ConcurrentHashMap<JedisShardInfo, CircuitBreaker>();
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * @param key 已编码的key
+     * @return key所在节点的熔断器，为null时不熔断
+     */
+    private CircuitBreaker breakerFor(byte[] key) {
+        CircuitBreaker breaker = circuitBreaker;
+        if (breaker == null || key == null || !(jedisPool instanceof ShardedJedisPool)) {
+            return breaker;
+        }
+        return shardBreaker(shardLocator().getShardInfo(key));
+    }
+
+    private CircuitBreaker breakerFor(String key) {
+        if (circuitBreaker == null || key == null || !(jedisPool instanceof ShardedJedisPool)) {
+            return circuitBreaker;
+        }
+        return breakerFor(keyEncoder.encode(key));
+    }
+
+    /**
+     * @return 跨节点操作使用的熔断器：单节点即节点熔断器，分片连接池为null
+     */
+    private CircuitBreaker multiNodeBreaker() {
+        return jedisPool instanceof ShardedJedisPool ? null : circuitBreaker;
+    }
+
+    /**
+     * @param shard 连接池的分片信息，各连接共用同一组对象，按对象查找，不拼接节点名
+     */
+    private CircuitBreaker shardBreaker(JedisShardInfo shard) {
+        CircuitBreaker breaker = circuitBreaker;
+        if (breaker == null) {
+            return null;
+        }
+        ConcurrentHashMap<JedisShardInfo, CircuitBreaker> breakers = shardBreakers;
+        CircuitBreaker ret = breakers.get(shard);
+        if (ret == null) {
+            CircuitBreaker created = breaker.forNode(nodeName(shard));
+            ret = breakers.putIfAbsent(shard, created);
+            if (ret == null) {
+                ret = created;
+            }
+        }
+        return ret;
+    }
+
+    private static String nodeName(JedisShardInfo shard) {
+        return shard.getHost() + ":" + shard.getPort();
+    }
+
+    /**
+     * 以连接池的分片信息创建分片定位器，与ShardedJedisPool的默认分片算法（MurmurHash、无key tag）一致；
+     * 只计算分片，不建立连接
+     */
+    private Sharded<Jedis, JedisShardInfo> shardLocator() {
+        Sharded<Jedis, JedisShardInfo> locator = shardLocator;
+        if (locator == null) {
+            ShardedJedis connection = (ShardedJedis) MyJedisCommand.borrow(jedisPool);
+            try {
+                locator = new Sharded<Jedis, JedisShardInfo>(new ArrayList<JedisShardInfo>(connection.getAllShardInfo()));
+            } finally {
+                closeQuietly(connection);
+            }
+            shardLocator = locator;
+        }
+        return locator;
+    }
+
+    /**
+     * @return 各分片熔断器的状态，非分片连接池或未开启熔断时为空
+     */
+    public Map<String, CircuitBreaker.State> getShardBreakerStates() {
+        Map<String, CircuitBreaker.State> ret = new TreeMap<String, CircuitBreaker.State>();
+        for (Map.Entry<JedisShardInfo, CircuitBreaker> entry : shardBreakers.entrySet()) {
+            ret.put(nodeName(entry.getKey()), entry.getValue().getState());
+        }
+        return ret;
+    }
+
+    /**
+     * @param fallbackOnCircuitOpen true 熔断中getObject/getString/hGetObject/hGetString直接返回null（按未命中处理）
+     */
+    public void setFallbackOnCircuitOpen(boolean fallbackOnCircuitOpen) {
+        this.fallbackOnCircuitOpen = fallbackOnCircuitOpen;
+    }
+
+    /**
+     * 开启只读操作的对冲：主节点在policy的动态阈值内未返回时，同样的读取发往副本节点，先返回者胜出
+     *
+     * @param replicaPool 副本节点连接池，须与主连接池的类型及分片方式一致
+     * @param policy      null表示关闭对冲
+     */
+    public void setHedging(Pool<C> replicaPool, HedgePolicy policy) {
+        if (policy != null && replicaPool == null) {
+            throw new IllegalArgumentException("replicaPool can't be NULL when hedging");
+        }
+        this.replicaPool = replicaPool;
+        this.hedgePolicy = policy;
+    }
+
+    HedgePolicy getHedgePolicy() {
+        return hedgePolicy;
+    }
+
+    /**
+     * 开启只读操作及幂等写的失败重试，sentinel连接池可配合SentinelFailoverWatcher在主节点切换后立即重试
+     *
+     * @param retryPolicy null表示关闭重试
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * 设置getAndUpdate系列操作冲突时的重试策略
+     *
+     * @param contentionPolicy
+     */
+    public void setContentionPolicy(ContentionPolicy contentionPolicy) {
+        if (contentionPolicy == null) {
+            throw new IllegalArgumentException("contentionPolicy can't be NULL");
+        }
+        this.contentionPolicy = contentionPolicy;
+    }
+
+    public ContentionPolicy getContentionPolicy() {
+        return contentionPolicy;
+    }
+
+    /**
+     * 设置写入时过期时间的抖动策略，只对写入值的操作（setObject/setString、multiSet、带过期时间的hMultiSet、getAndUpdate）生效；
+     * setIfNotExist、compareAndSet、getAndExpire、expire、multiExpire等锁、租约类操作按调用方给出的过期时间精确设置。
+     * 线程内的TtlJitter.use作用域优先于此设置
+     *
+     * @param ttlJitter null表示不抖动
+     */
+    public void setTtlJitter(TtlJitter ttlJitter) {
+        this.ttlJitter = ttlJitter;
+    }
+
+    public TtlJitter getTtlJitter() {
+        return ttlJitter;
+    }
+
+    /**
+     * 开启写入时过期时刻分布的统计
+     *
+     * @param expiryHistogram null表示不统计
+     */
+    public void setExpiryHistogram(ExpiryHistogram expiryHistogram) {
+        this.expiryHistogram = expiryHistogram;
+    }
+
+    public ExpiryHistogram getExpiryHistogram() {
+        return expiryHistogram;
+    }
+
+    /**
+     * @return 按抖动策略调整后的过期秒数，0和负数原样返回；包装类自行以pipeline写入值时也应经过此处
+     */
+    int expireOf(int expirePeriodInSecond) {
+        if (expirePeriodInSecond <= 0) {
+            return expirePeriodInSecond;
+        }
+        TtlJitter jitter = TtlJitter.current();
+        if (jitter == null) {
+            jitter = ttlJitter;
+        }
+        int ret = jitter == null ? expirePeriodInSecond : jitter.apply(expirePeriodInSecond);
+        ExpiryHistogram histogram = expiryHistogram;
+        if (histogram != null) {
+            histogram.record(ret);
+        }
+        return ret;
+    }
+
+    /**
+     * 设置分片连接池下多key操作（multiGet、multiSet、multiDelete、multiExists、multiExpire）的并行执行器，默认为ShardFanOut.shared()
+     *
+     * @param fanOut null表示逐个分片执行
+     */
+    public void setFanOut(ShardFanOut fanOut) {
+        this.fanOut = fanOut;
+    }
+
+    public ShardFanOut getFanOut() {
+        return fanOut;
+    }
+
+    /**
+     * 执行只读命令，开启了对冲时按对冲策略在主节点与副本节点间执行，设置了重试策略时失败后重试
+     */
+    private <T> T runRead(final MyJedisCommand<T, C> command) {
+        RetryPolicy retry = retryPolicy;
+        long firstFailure = 0;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return runReadOnce(command);
+            } catch (JedisException e) {
+                firstFailure = awaitRetryOrThrow(retry, attempt, firstFailure, e);
+            }
+        }
+    }
+
+    /**
+     * 所有重试循环共用的失败处理：首次失败时记录时间，按retry等待后返回以便重试，不再重试时抛出e。
+     * 循环本身留在各调用处，无状态命令的执行不为重试创建对象
+     *
+     * @param retry        为null时不重试
+     * @param attempt      刚失败的是第几次执行，从1开始
+     * @param firstFailure 首次失败的System.nanoTime()，尚未失败时为0
+     * @param e
+     * @return 首次失败的时间，下次失败时传回
+     */
+    private static long awaitRetryOrThrow(RetryPolicy retry, int attempt, long firstFailure, JedisException e) {
+        if (firstFailure == 0) {
+            firstFailure = System.nanoTime();
+        }
+        if (retry == null || !retry.awaitRetry(attempt, firstFailure, e)) {
+            throw e;
+        }
+        return firstFailure;
+    }
+
+    private <T> T runReadOnce(final MyJedisCommand<T, C> command) {
+        HedgePolicy policy = hedgePolicy;
+        Pool<C> replica = replicaPool;
+        if (policy == null || replica == null) {
+            return command.run();
+        }
+        final MyJedisCommand<T, C> replicaCommand = new MyJedisCommand<T, C>(replica, serialize) {
+            @Override
+            public T execute(C connection) {
+                T ret = command.execute(connection);
+                traceAs(command);
+                return ret;
+            }
+        };
+        HedgePolicy.PrimaryConnection primaryConnection = new HedgePolicy.PrimaryConnection();
+        command.setPrimaryConnection(primaryConnection);
+        try {
+            return policy.execute(new Callable<T>() {
+                @Override
+                public T call() {
+                    return command.run();
+                }
+            }, new Callable<T>() {
+                @Override
+                public T call() {
+                    return replicaCommand.run();
+                }
+            }, primaryConnection);
+        } finally {
+            command.setPrimaryConnection(null);
+        }
+    }
+
+    /**
+     * 执行幂等写命令，设置了重试策略时失败后重试
+     */
+    private <T> T runIdempotent(MyJedisCommand<T, C> command) {
+        RetryPolicy retry = retryPolicy;
+        long firstFailure = 0;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return command.run();
+            } catch (JedisException e) {
+                firstFailure = awaitRetryOrThrow(retry, attempt, firstFailure, e);
+            }
+        }
+    }
+
+    /**
+     * 以无状态命令执行返回整数的操作，执行过程不创建命令对象、不装箱结果
+     *
+     * @param command
+     * @param key     已编码的key
+     * @param field   已编码的field，不需要时为null
+     * @param value   已编码的value，不需要时为null
+     * @param arg     整数参数，含义由command决定
+     * @param flags   READ：只读操作，开启对冲时按对冲策略执行；IDEMPOTENT：幂等写。两者在设置了重试策略时失败后重试
+     * @return command的结果
+     */
+    private long runLong(final LongCommand command, final byte[] key, final byte[] field, final byte[] value, final long arg, int flags) {
+        if ((flags & READ) != 0 && hedgePolicy != null) {
+            return runRead(new MyJedisCommand<Long, C>(jedisPool, serialize, breakerFor(key)) {
+                @Override
+                public Long execute(C connection) {
+                    traced(key);
+                    tracedSize(value == null ? 0 : value.length);
+                    return command.execute(connection, key, field, value, arg);
+                }
+            });
+        }
+        RetryPolicy retry = flags != 0 ? retryPolicy : null;
+        long firstFailure = 0;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return runLongOnce(command, key, field, value, arg);
+            } catch (JedisException e) {
+                firstFailure = awaitRetryOrThrow(retry, attempt, firstFailure, e);
+            }
+        }
+    }
+
+    private long runLongOnce(LongCommand command, byte[] key, byte[] field, byte[] value, long arg) {
+        CircuitBreaker breaker = breakerFor(key);
+        if (!MyJedisCommand.admit(breaker)) {
+            throw MyJedisCommand.circuitOpen(breaker);
+        }
+        long start = System.currentTimeMillis();
+        long traceStart = CommandTraceRecorder.begin();
+        int outcome = MyJedisCommand.IGNORED;
+        C connection = null;
+        try {
+            connection = MyJedisCommand.borrow(jedisPool);
+            long ret = command.execute(connection, key, field, value, arg);
+            outcome = MyJedisCommand.COMPLETED;
+            return ret;
+        } catch (JedisConnectionException e) {
+            if (CallDeadline.isExpired()) {
+                throw new DeadlineExceededException("call deadline exceeded", e);
+            }
+            outcome = MyJedisCommand.NODE_FAILURE;
+            throw e;
+        } finally {
+            MyJedisCommand.complete(connection, breaker, start, outcome);
+            if (traceStart != 0) {
+                CommandTraceRecorder.end(command, key, value == null ? 0 : value.length, traceStart, outcome);
+            }
+        }
+    }
+
+    /**
+     * 以无状态命令执行返回单个值的操作，除返回值本身外不产生额外对象
+     *
+     * @param command
+     * @param key     已编码的key
+     * @param field   已编码的field，不需要时为null
+     * @param flags   READ：单项读取，开启对冲时按对冲策略执行，熔断中按fallbackOnCircuitOpen降级，设置了重试策略时失败后重试
+     * @return command的结果
+     */
+    private byte[] runBytes(final BytesCommand command, final byte[] key, final byte[] field, int flags) {
+        boolean read = (flags & READ) != 0;
+        if (read && hedgePolicy != null) {
+            return runRead(new ReadCommand<byte[]>(breakerFor(key)) {
+                @Override
+                public byte[] execute(C connection) {
+                    traced(key);
+                    byte[] ret = command.execute(connection, key, field);
+                    tracedSize(ret == null ? 0 : ret.length);
+                    return ret;
+                }
+            });
+        }
+        RetryPolicy retry = flags != 0 ? retryPolicy : null;
+        long firstFailure = 0;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return runBytesOnce(command, key, field, read);
+            } catch (JedisException e) {
+                firstFailure = awaitRetryOrThrow(retry, attempt, firstFailure, e);
+            }
+        }
+    }
+
+    private byte[] runBytesOnce(BytesCommand command, byte[] key, byte[] field, boolean read) {
+        CircuitBreaker breaker = breakerFor(key);
+        if (!MyJedisCommand.admit(breaker)) {
+            if (read && fallbackOnCircuitOpen) {
+                return null;
+            }
+            throw MyJedisCommand.circuitOpen(breaker);
+        }
+        long start = System.currentTimeMillis();
+        long traceStart = CommandTraceRecorder.begin();
+        int outcome = MyJedisCommand.IGNORED;
+        int size = 0;
+        C connection = null;
+        try {
+            connection = MyJedisCommand.borrow(jedisPool);
+            byte[] ret = command.execute(connection, key, field);
+            outcome = MyJedisCommand.COMPLETED;
+            size = ret == null ? 0 : ret.length;
+            return ret;
+        } catch (JedisConnectionException e) {
+            if (CallDeadline.isExpired()) {
+                throw new DeadlineExceededException("call deadline exceeded", e);
+            }
+            outcome = MyJedisCommand.NODE_FAILURE;
+            throw e;
+        } finally {
+            MyJedisCommand.complete(connection, breaker, start, outcome);
+            if (traceStart != 0) {
+                CommandTraceRecorder.end(command, key, size, traceStart, outcome);
+            }
+        }
+    }
+
+    /**
+     * 返回整数的无状态命令
+     */
+    interface LongCommand {
+        long execute(BinaryJedisCommands connection, byte[] key, byte[] field, byte[] value, long arg);
+    }
+
+    /**
+     * 返回单个值的无状态命令
+     */
+    interface BytesCommand {
+        byte[] execute(BinaryJedisCommands connection, byte[] key, byte[] field);
+    }
+
+    private static long unbox(Long value) {
+        return value == null ? -1 : value;
+    }
+
+    public ScriptRegistry getScriptRegistry() {
+        return scriptRegistry;
+    }
+
+    /**
+     * 在所有节点上加载已注册的Lua脚本，未预先加载的脚本在各节点首次使用时加载
+     */
+    public void loadScripts() {
+        new MyJedisCommand<Void, C>(jedisPool, serialize, multiNodeBreaker()) {
+            @Override
+            public Void execute(C connection) {
+                if (connection instanceof ShardedJedis) {
+                    for (Jedis shard : ((ShardedJedis) connection).getAllShards()) {
+                        scriptRegistry.loadAll(shard);
+                    }
+                } else {
+                    scriptRegistry.loadAll(nodeConnection(connection, null));
+                }
+                return null;
+            }
+        }.run();
+    }
+
+    /**
+     * 预热：并行借出connections个连接（每个连接完成TCP连接、AUTH、SELECT并PING各节点），全部成功后归还连接池，再在所有节点上加载脚本。
+     * 连接池最多保留maxIdle个空闲连接，超过的连接归还时即被关闭，因此预热的连接数不超过maxIdle。
+     *
+     * @param connections   预热的连接数
+     * @param timeoutMillis 预热的总时间预算，超时或任一节点不可达时抛出JedisConnectionException
+     * @return 实际预热的连接数
+     */
+    public int warmUp(int connections, long timeoutMillis) {
+        if (connections <= 0) {
+            throw new IllegalArgumentException("connections must be positive");
+        }
+        int maxIdle = MyJedisCommand.maxIdle(jedisPool);
+        if (maxIdle > 0 && connections > maxIdle) {
+            connections = maxIdle;
+        }
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        final List<C> borrowed = new ArrayList<C>(connections);
+        final boolean[] closed = new boolean[1];
+        ExecutorService executor = Executors.newFixedThreadPool(connections, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "redis-warm-up");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>(connections);
+            for (int i = 0; i < connections; i++) {
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        C connection = jedisPool.getResource();
+                        synchronized (borrowed) {
+                            if (closed[0]) {
+                                closeQuietly(connection);
+                                return;
+                            }
+                            borrowed.add(connection);
+                        }
+                        if (connection instanceof ShardedJedis) {
+                            for (Jedis shard : ((ShardedJedis) connection).getAllShards()) {
+                                shard.ping();
+                            }
+                        } else {
+                            nodeConnection(connection, null).ping();
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            }
+        } catch (TimeoutException e) {
+            throw new JedisConnectionException("warm-up timed out after " + timeoutMillis + "ms");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof JedisException ? (JedisException) cause : new JedisConnectionException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JedisConnectionException("warm-up interrupted", e);
+        } finally {
+            executor.shutdownNow();
+            synchronized (borrowed) {
+                closed[0] = true;
+                for (C connection : borrowed) {
+                    closeQuietly(connection);
+                }
+            }
+        }
+        loadScripts();
+        return connections;
+    }
+
+    private static void closeQuietly(Closeable connection) {
+        try {
+            connection.close();
+        } catch (IOException e) {
+            LogUtil.error(e);
+        }
+    }
+
+    /**
+     * 以EVALSHA执行只操作单个key的脚本，分片连接时在key所在的分片上执行
+     *
+     * @param script
+     * @param key
+     * @param args
+     * @return 脚本返回值，bulk reply为byte[]，integer reply为Long
+     */
+    Object evalScript(final LuaScript script, final String key, final byte[]... args) {
+        return new MyJedisCommand<Object, C>(jedisPool, serialize, breakerFor(key)) {
+            @Override
+            public Object execute(C connection) {
+                notNullAssert(key);
+                byte[] bkey = traced(keyEncoder.encode(key));
+                tracedSize(sizeOf(args));
+                return scriptRegistry.evalsha(nodeConnection(connection, bkey), script, Collections.singletonList(bkey), Arrays.asList(args));
+            }
+        }.run();
+    }
+
+    /**
+     * 以EVALSHA执行操作多个key的脚本，在第一个key所在的节点上执行；分片连接时所有key须位于同一分片，可先用sameNode判断
+     *
+     * @param script
+     * @param keys
+     * @param args
+     * @return 脚本返回值
+     */
+    Object evalScript(final LuaScript script, final List<String> keys, final byte[]... args) {
+        return new MyJedisCommand<Object, C>(jedisPool, serialize, breakerFor(keys.isEmpty() ? null : keys.get(0))) {
+            @Override
+            public Object execute(C connection) {
+                List<byte[]> bkeys = new ArrayList<byte[]>(keys.size());
+                for (String key : keys) {
+                    notNullAssert(key);
+                    bkeys.add(keyEncoder.encode(key));
+                }
+                Jedis node = nodeConnection(connection, traced(bkeys.get(0)));
+                tracedSize(sizeOf(args));
+                if (connection instanceof ShardedJedis) {
+                    for (byte[] bkey : bkeys) {
+                        if (((ShardedJedis) connection).getShard(bkey) != node) {
+                            throw new IllegalArgumentException("keys of a script must be on the same node");
+                        }
+                    }
+                }
+                return scriptRegistry.evalsha(node, script, bkeys, Arrays.asList(args));
+            }
+        }.run();
+    }
+
+    /**
+     * @return 两个key是否位于同一节点，非分片连接池总是true
+     */
+    boolean sameNode(String key1, String key2) {
+        if (!(jedisPool instanceof ShardedJedisPool)) {
+            return true;
+        }
+        notNullAssert(key1);
+        notNullAssert(key2);
+        Sharded<Jedis, JedisShardInfo> locator = shardLocator();
+        return locator.getShardInfo(keyEncoder.encode(key1)) == locator.getShardInfo(keyEncoder.encode(key2));
+    }
+
+    /**
+     * @return key占用的内存字节数（MEMORY USAGE，需要redis 4.0以上），key不存在时返回-1
+     */
+    long memoryUsage(String key) {
+        Object ret = evalScript(MEMORY_USAGE, key);
+        return ret == null ? -1 : (Long) ret;
+    }
+
+    /**
+     * @return key的原始值，不存在时返回null
+     */
+    byte[] getBytes(String key) {
+        notNullAssert(key);
+        return runBytes(GET, keyEncoder.encode(key), null, READ);
+    }
+
+    /**
+     * 借用一个连接，在key所在节点的连接上执行callback，用于事务、阻塞命令等需要直接操作单个节点的场景
+     *
+     * @param key
+     * @param guarded  是否经过熔断器；长时间占用连接的阻塞操作应传false，以免被计为慢调用
+     * @param callback
+     * @return callback的返回值
+     */
+    <R> R runOnNode(final String key, boolean guarded, final NodeCallback<R> callback) {
+        return new MyJedisCommand<R, C>(jedisPool, serialize, guarded ? breakerFor(key) : null) {
+            @Override
+            public R execute(C connection) {
+                notNullAssert(key);
+                return callback.execute(nodeConnection(connection, traced(keyEncoder.encode(key))));
+            }
+        }.run();
+    }
+
+    /**
+     * @return 节点数：单节点与sentinel为1，分片为分片数
+     */
+    int nodeCount() {
+        return new MyJedisCommand<Integer, C>(jedisPool, serialize) {
+            @Override
+            public Integer execute(C connection) {
+                return connection instanceof ShardedJedis ? ((ShardedJedis) connection).getAllShards().size() : 1;
+            }
+        }.run();
+    }
+
+    /**
+     * 借用一个连接，在第nodeIndex个节点（分片按配置顺序）上执行callback，不经过熔断器；用于SCAN等逐个节点的后台任务
+     */
+    <R> R runOnNodeIndex(final int nodeIndex, final NodeCallback<R> callback) {
+        return new MyJedisCommand<R, C>(jedisPool, serialize) {
+            @Override
+            public R execute(C connection) {
+                if (connection instanceof ShardedJedis) {
+                    return callback.execute(new ArrayList<Jedis>(((ShardedJedis) connection).getAllShards()).get(nodeIndex));
+                }
+                return callback.execute(nodeConnection(connection, null));
+            }
+        }.run();
+    }
+
+    /**
+     * 以SCAN逐个节点找出并删除命名空间下的所有key，不阻塞redis；扫描期间新写入的key可能不被删除
+     *
+     * @return 删除的key数
+     */
+    long deleteNamespace() {
+        String prefix = keyEncoder.getPrefix();
+        if (prefix.isEmpty()) {
+            throw new IllegalStateException("refuse to delete keys without namespace");
+        }
+        StringBuilder pattern = new StringBuilder(prefix.length() + 8);
+        for (int i = 0; i < prefix.length(); i++) {
+            char c = prefix.charAt(i);
+            if (c == '*' || c == '?' || c == '[' || c == ']' || c == '\\') {
+                pattern.append('\\');
+            }
+            pattern.append(c);
+        }
+        final ScanParams params = new ScanParams().match(pattern.append('*').toString()).count(1000);
+        final long[] deleted = new long[1];
+        int nodes = nodeCount();
+        for (int node = 0; node < nodes; node++) {
+            byte[] cursor = ScanParams.SCAN_POINTER_START_BINARY;
+            do {
+                final byte[] current = cursor;
+                ScanResult<byte[]> result = runOnNodeIndex(node, new NodeCallback<ScanResult<byte[]>>() {
+                    @Override
+                    public ScanResult<byte[]> execute(Jedis jedis) {
+                        ScanResult<byte[]> result = jedis.scan(current, params);
+                        if (!result.getResult().isEmpty()) {
+                            deleted[0] += jedis.del(result.getResult().toArray(new byte[result.getResult().size()][]));
+                        }
+                        return result;
+                    }
+                });
+                cursor = result.getCursorAsBytes();
+            } while (cursor.length != 1 || cursor[0] != '0');
+        }
+        return deleted[0];
+    }
+
+    /**
+     * 在单个节点连接上执行的回调
+     */
+    interface NodeCallback<R> {
+        R execute(Jedis jedis);
+    }
+
+    /**
+     * @return 连接本身（单节点），或key所在分片的连接（分片）
+     */
+    Jedis nodeConnection(C connection, byte[] key) {
+        if (connection instanceof Jedis) {
+            return (Jedis) connection;
+        } else if (connection instanceof ShardedJedis && key != null) {
+            return ((ShardedJedis) connection).getShard(key);
+        }
+        throw new UnsupportedOperationException("not supported for " + connection.getClass().getName());
+    }
+
+    /**
+     * 借用一个连接，以pipeline方式执行callback中提交的所有命令，一次往返后按提交顺序返回各命令结果。
+     * 分片连接使用ShardedJedisPipeline，命令按key路由到各自分片的pipeline。
+     *
+     * @param callback
+     * @return 各命令的执行结果
+     */
+    List<Object> runPipelined(final PipelineCallback callback) {
+        return new MyJedisCommand<List<Object>, C>(jedisPool, serialize, multiNodeBreaker()) {
+            @Override
+            public List<Object> execute(C connection) {
+                if (connection instanceof Jedis) {
+                    Pipeline pipeline = ((Jedis) connection).pipelined();
+                    callback.execute(pipeline);
+                    return pipeline.syncAndReturnAll();
+                } else if (connection instanceof ShardedJedis) {
+                    ShardedJedisPipeline pipeline = ((ShardedJedis) connection).pipelined();
+                    callback.execute(pipeline);
+                    return pipeline.syncAndReturnAll();
+                }
+                throw new UnsupportedOperationException("pipeline not supported for " + connection.getClass().getName());
+            }
+        }.run();
+    }
+
+    /**
+     * 向pipeline提交命令的回调
+     */
+    interface PipelineCallback {
+        void execute(PipelineBase pipeline);
+    }
+
+    /**
+     * 对每个key提交一个命令，按key所在分片分组为各自的pipeline；分片连接池下各分片由fanOut并行执行。
+     * 所有多key操作都是只读或幂等写，设置了重试策略时失败后整体重试
+     *
+     * @param keys     已编码的key
+     * @param callback 对每个key向pipeline提交且只提交一个命令
+     * @return 与keys顺序一致的命令结果，命令错误以JedisDataException表示
+     */
+    private List<Object> runPerKey(final List<byte[]> keys, final KeyCallback callback) {
+        if (keys.isEmpty()) {
+            return Collections.emptyList();
+        }
+        MyJedisCommand<List<Object>, C> command = new MyJedisCommand<List<Object>, C>(jedisPool, serialize, multiNodeBreaker()) {
+            @Override
+            public List<Object> execute(C connection) {
+                final Object[] ret = new Object[keys.size()];
+                if (connection instanceof Jedis) {
+                    runOnShard((Jedis) connection, keys, allIndexes(keys.size()), callback, ret);
+                } else if (connection instanceof ShardedJedis) {
+                    Map<Jedis, List<Integer>> shardIndexes = new IdentityHashMap<Jedis, List<Integer>>();
+                    for (int i = 0; i < keys.size(); i++) {
+                        Jedis shard = ((ShardedJedis) connection).getShard(keys.get(i));
+                        List<Integer> indexes = shardIndexes.get(shard);
+                        if (indexes == null) {
+                            indexes = new ArrayList<Integer>();
+                            shardIndexes.put(shard, indexes);
+                        }
+                        indexes.add(i);
+                    }
+                    ShardFanOut executor = fanOut;
+                    if (executor == null || shardIndexes.size() == 1) {
+                        for (Map.Entry<Jedis, List<Integer>> entry : shardIndexes.entrySet()) {
+                            runOnGuardedShard(entry.getKey(), keys, entry.getValue(), callback, ret);
+                        }
+                    } else {
+                        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(shardIndexes.size());
+                        for (final Map.Entry<Jedis, List<Integer>> entry : shardIndexes.entrySet()) {
+                            tasks.add(new Callable<Void>() {
+                                @Override
+                                public Void call() {
+                                    //各任务只写入自己分片的下标
+                                    runOnGuardedShard(entry.getKey(), keys, entry.getValue(), callback, ret);
+                                    return null;
+                                }
+                            });
+                        }
+                        executor.runAll(tasks);
+                    }
+                } else {
+                    throw new UnsupportedOperationException("pipeline not supported for " + connection.getClass().getName());
+                }
+                return Arrays.asList(ret);
+            }
+        };
+        return runIdempotent(command);
+    }
+
+    /**
+     * 经过分片自己的熔断器执行runOnShard，分片熔断中时整个多key操作快速失败
+     */
+    private void runOnGuardedShard(Jedis shard, List<byte[]> keys, List<Integer> indexes, KeyCallback callback, Object[] ret) {
+        CircuitBreaker breaker = shardBreaker(shardLocator().getShardInfo(keys.get(indexes.get(0))));
+        if (!MyJedisCommand.admit(breaker)) {
+            throw MyJedisCommand.circuitOpen(breaker);
+        }
+        long start = System.currentTimeMillis();
+        int outcome = MyJedisCommand.IGNORED;
+        try {
+            runOnShard(shard, keys, indexes, callback, ret);
+            outcome = MyJedisCommand.COMPLETED;
+        } catch (JedisConnectionException e) {
+            outcome = MyJedisCommand.NODE_FAILURE;
+            throw e;
+        } finally {
+            MyJedisCommand.complete(null, breaker, start, outcome);
+        }
+    }
+
+    private static void runOnShard(Jedis shard, List<byte[]> keys, List<Integer> indexes, KeyCallback callback, Object[] ret) {
+        Pipeline pipeline = shard.pipelined();
+        for (int index : indexes) {
+            callback.execute(pipeline, keys.get(index), index);
+        }
+        List<Object> replies = pipeline.syncAndReturnAll();
+        for (int i = 0; i < indexes.size(); i++) {
+            ret[indexes.get(i)] = replies.get(i);
+        }
+    }
+
+    private static List<Integer> allIndexes(int size) {
+        List<Integer> indexes = new ArrayList<Integer>(size);
+        for (int i = 0; i < size; i++) {
+            indexes.add(i);
+        }
+        return indexes;
+    }
+
+    /**
+     * 为一个key向pipeline提交命令的回调
+     */
+    interface KeyCallback {
+        void execute(PipelineBase pipeline, byte[] key, int index);
+    }
+
+    private List<byte[]> encodeKeys(String... keys) {
+        notNullAssert(keys);
+        List<byte[]> ret = new ArrayList<byte[]>(keys.length);
+        for (String key : keys) {
+            notNullAssert(key);
+            ret.add(keyEncoder.encode(key));
+        }
+        return ret;
+    }
+
+    /**
+     * @return pipeline中单个命令的结果，命令错误时抛出
+     */
+    private static Object reply(Object reply) {
+        if (reply instanceof JedisException) {
+            throw (JedisException) reply;
+        }
+        return reply;
+    }
+
+    @Override
+    public <T extends Serializable> T getObject(final String key, final Class<T> type) {
+        notNullAssert(key);
+        byte[] value = runBytes(GET, keyEncoder.encode(key), null, READ);
+        return value == null ? null : serialize.decode(value, type);
+    }
+
+    @Override
+    public String getString(final String key) {
+        notNullAssert(key);
+        return decodeString(runBytes(GET, keyEncoder.encode(key), null, READ));
+    }
+
+    @Override
+    public <T extends Serializable> boolean setObject(final String key, final int expirePeriodInSecond, final T value) {
+        notNullAssert(key);
+        notNullAssert(value);
+        return runLong(SET, keyEncoder.encode(key), null, serialize.encode(value), expireOf(expirePeriodInSecond), IDEMPOTENT) == 1;
+    }
+
+    @Override
+    public boolean setString(final String key, final int expirePeriodInSecond, final String value) {
+        notNullAssert(key);
+        notNullAssert(value);
+        return runLong(SET, keyEncoder.encode(key), null, SafeEncoder.encode(value), expireOf(expirePeriodInSecond), IDEMPOTENT) == 1;
+    }
+
+    @Override
+    public boolean setStringIfNotExist(final String key, final int expirePeriodInSecond, final String value) {
+        notNullAssert(key);
+        notNullAssert(value);
+        return runLong(SET_NX, keyEncoder.encode(key), null, SafeEncoder.encode(value), expirePeriodInSecond, 0) == 1;
+    }
 
+    @Override
+    public <T extends Serializable> boolean setObjectIfNotExist(final String key, final int expirePeriodInSecond, final T value) {
+        notNullAssert(key);
+        notNullAssert(value);
+        return runLong(SET_NX, keyEncoder.encode(key), null, serialize.encode(value), expirePeriodInSecond, 0) == 1;
+    }
 
-    public JedisPoolDB(Pool<C> jedisPool, ISerialize serialize) {
-        if (jedisPool == null) {
-            throw new IllegalArgumentException("jedisPool can't be NULL");
-        }
-        this.jedisPool = jedisPool;
-        if (serialize == null) {
-            this.serialize = new DefaultSerialize();
-        } else {
-            this.serialize = serialize;
-        }
+    @Override
+    public boolean compareAndSetString(final String key, final String expect, final String update, final int expirePeriodInSecond) {
+        notNullAssert(update);
+        return compareAndSet(key, expect == null ? null : SafeEncoder.encode(expect), SafeEncoder.encode(update), expirePeriodInSecond);
     }
 
     @Override
-    public <T extends Serializable> T getObject(final String key, final Class<T> type) {
-        return new MyJedisCommand<T, C>(jedisPool, serialize) {
-            @Override
-            public T execute(C connection) {
-                notNullAssert(key);
-                byte[] value = connection.get(SafeEncoder.encode(key));
-                if (value != null) {
-                    return serialize.decode(value, type);
-                }
-                return null;
-            }
-        }.run();
+    public <T extends Serializable> boolean compareAndSetObject(final String key, final T expect, final T update, final int expirePeriodInSecond) {
+        notNullAssert(update);
+        return compareAndSet(key, expect == null ? null : serialize.encode(expect), serialize.encode(update), expirePeriodInSecond);
+    }
+
+    private boolean compareAndSet(String key, byte[] expect, byte[] update, int expirePeriodInSecond) {
+        Object ret = evalScript(COMPARE_AND_SET, key, expect == null ? ZERO : ONE, expect == null ? EMPTY : expect, update,
+                SafeEncoder.encode(String.valueOf(expirePeriodInSecond)));
+        return Long.valueOf(1).equals(ret);
     }
 
     @Override
-    public String getString(final String key) {
-        return new MyJedisCommand<String, C>(jedisPool, serialize) {
-            @Override
-            public String execute(C connection) {
-                notNullAssert(key);
-                return connection.get(key);
-            }
-        }.run();
+    public <T extends Serializable> T getObjectAndExpire(final String key, final int expirePeriodInSecond, final Class<T> type) {
+        byte[] value = (byte[]) evalScript(GET_AND_EXPIRE, key, SafeEncoder.encode(String.valueOf(expirePeriodInSecond)));
+        return value == null ? null : serialize.decode(value, type);
     }
 
     @Override
-    public <T extends Serializable> boolean setObject(final String key, final int expirePeriodInSecond, final T value) {
-        return new MyJedisCommand<Boolean, C>(jedisPool, serialize) {
-            @Override
-            public Boolean execute(C connection) {
-                notNullAssert(key);
-                notNullAssert(value);
-                String ret;
-                if (expirePeriodInSecond <= 0) {
-                    ret = connection.set(SafeEncoder.encode(key), serialize.encode(value));
-                } else {
-                    ret = connection.setex(SafeEncoder.encode(key), expirePeriodInSecond, serialize.encode(value));
-                }
-                return "OK".equals(ret);
-            }
-        }.run();
+    public String getStringAndExpire(final String key, final int expirePeriodInSecond) {
+        byte[] value = (byte[]) evalScript(GET_AND_EXPIRE, key, SafeEncoder.encode(String.valueOf(expirePeriodInSecond)));
+        return decodeString(value);
     }
 
     @Override
-    public boolean setString(final String key, final int expirePeriodInSecond, final String value) {
-        return new MyJedisCommand<Boolean, C>(jedisPool, serialize) {
+    public <T extends Serializable> T getAndUpdateObject(String key, int expirePeriodInSecond, Class<T> type, UnaryOperator<T> updater) {
+        return decodeObject(getAndUpdate(key, null, expirePeriodInSecond, objectUpdater(type, updater)), type);
+    }
+
+    @Override
+    public String getAndUpdateString(String key, int expirePeriodInSecond, UnaryOperator<String> updater) {
+        return decodeString(getAndUpdate(key, null, expirePeriodInSecond, stringUpdater(updater)));
+    }
+
+    @Override
+    public <T extends Serializable> T hGetAndUpdateObject(String key, String field, Class<T> type, UnaryOperator<T> updater) {
+        notNullAssert(field);
+        return decodeObject(getAndUpdate(key, field, 0, objectUpdater(type, updater)), type);
+    }
+
+    @Override
+    public String hGetAndUpdateString(String key, String field, UnaryOperator<String> updater) {
+        notNullAssert(field);
+        return decodeString(getAndUpdate(key, field, 0, stringUpdater(updater)));
+    }
+
+    <T extends Serializable> T decodeObject(byte[] value, Class<T> type) {
+        return value == null ? null : serialize.decode(value, type);
+    }
+
+    <T extends Serializable> BytesUpdater objectUpdater(final Class<T> type, final UnaryOperator<T> updater) {
+        notNullAssert(updater);
+        return new BytesUpdater() {
             @Override
-            public Boolean execute(C connection) {
-                notNullAssert(key);
-                notNullAssert(value);
-                String ret;
-                if (expirePeriodInSecond <= 0) {
-                    ret = connection.set(key, value);
-                } else {
-                    ret = connection.setex(key, expirePeriodInSecond, value);
-                }
-                return "OK".equals(ret);
+            public byte[] apply(byte[] current) {
+                T value = updater.apply(decodeObject(current, type));
+                return value == null ? null : serialize.encode(value);
             }
-        }.run();
+        };
     }
 
-    @Override
-    public boolean setStringIfNotExist(String key, int expirePeriodInSecond, String value) {
-        return new MyJedisCommand<Boolean, C>(jedisPool, serialize) {
+    BytesUpdater stringUpdater(final UnaryOperator<String> updater) {
+        notNullAssert(updater);
+        return new BytesUpdater() {
             @Override
-            public Boolean execute(C connection) {
-                notNullAssert(key);
-                notNullAssert(value);
-                Long ret;
-                ret = connection.setnx(key, value);
-                if (expirePeriodInSecond > 0) {
-                    connection.expire(key, expirePeriodInSecond);
+            public byte[] apply(byte[] current) {
+                String value = updater.apply(decodeString(current));
+                return value == null ? null : SafeEncoder.encode(value);
+            }
+        };
+    }
+
+    /**
+     * WATCH key后读取当前值，在同一连接上以MULTI/EXEC写入新值；其间key被其他客户端修改时EXEC被放弃，按contentionPolicy重新读取并更新。
+     * 新值与当前值的编码相同时不写入（updater就地修改后返回同一对象也能正确写入）。
+     *
+     * @param key
+     * @param field                null表示更新key本身，否则更新hashmap的field
+     * @param expirePeriodInSecond 只对key本身有效：大于0时设置过期时间，否则保留原有的剩余过期时间
+     * @param updater
+     * @return 更新前的值
+     */
+    private byte[] getAndUpdate(final String key, final String field, int expirePeriodInSecond, final BytesUpdater updater) {
+        notNullAssert(key);
+        final int expire = field == null ? expireOf(expirePeriodInSecond) : 0;
+        final byte[] bkey = keyEncoder.encode(key);
+        final byte[] bfield = field == null ? null : keyEncoder.encodeField(field);
+        final byte[][] previous = new byte[1][];
+        ContentionPolicy contention = contentionPolicy;
+        for (int attempt = 1; ; attempt++) {
+            //WATCH状态在连接归还连接池时由Jedis重置，updater抛出异常时无需另行UNWATCH
+            boolean committed = runOnNode(key, true, new NodeCallback<Boolean>() {
+                @Override
+                public Boolean execute(Jedis jedis) {
+                    jedis.watch(bkey);
+                    byte[] current = bfield == null ? jedis.get(bkey) : jedis.hget(bkey, bfield);
+                    previous[0] = current;
+                    long pttl = bfield == null && current != null && expire <= 0 ? jedis.pttl(bkey) : -1;
+                    byte[] update = updater.apply(current);
+                    if (current == null ? update == null : update != null && Arrays.equals(current, update)) {
+                        jedis.unwatch();
+                        return true;
+                    }
+                    Transaction tx = jedis.multi();
+                    if (bfield != null) {
+                        if (update == null) {
+                            tx.hdel(bkey, bfield);
+                        } else {
+                            tx.hset(bkey, bfield, update);
+                        }
+                    } else if (update == null) {
+                        tx.del(bkey);
+                    } else if (expire > 0) {
+                        tx.setex(bkey, expire, update);
+                    } else if (pttl > 0) {
+                        tx.psetex(bkey, pttl, update);
+                    } else {
+                        tx.set(bkey, update);
+                    }
+                    return tx.exec() != null;
                 }
-                return new Long(1).equals(ret);
+            });
+            if (committed) {
+                contention.completed(attempt);
+                return previous[0];
             }
-        }.run();
+            if (!contention.awaitRetry(attempt)) {
+                throw new UpdateConflictException("update of " + key + (field == null ? "" : "." + field)
+                        + " still conflicted after " + attempt + " attempts");
+            }
+        }
+    }
+
+    /**
+     * 以编码后的值计算新值，返回null表示删除
+     */
+    interface BytesUpdater {
+        byte[] apply(byte[] current);
     }
 
     @Override
@@ -130,75 +1403,43 @@ public class JedisPoolDB<C extends JedisCommands & BinaryJedisCommands & Closeab
 
     @Override
     public long incrBy(String key, int step) {
-        return new MyJedisCommand<Long, C>(jedisPool, serialize) {
-            @Override
-            public Long execute(C connection) {
-                notNullAssert(key);
-                Long ret;
-                ret = connection.incrBy(key, step);
-                return ret;
-            }
-        }.run();
+        notNullAssert(key);
+        return runLong(INCR_BY, keyEncoder.encode(key), null, null, step, 0);
     }
 
     @Override
     public long decrBy(String key, int step) {
-        return new MyJedisCommand<Long, C>(jedisPool, serialize) {
-            @Override
-            public Long execute(C connection) {
-                notNullAssert(key);
-                Long ret;
-                ret = connection.decrBy(key, step);
-                return ret;
-            }
-        }.run();
+        notNullAssert(key);
+        return runLong(DECR_BY, keyEncoder.encode(key), null, null, step, 0);
     }
 
     @Override
     public boolean delete(final String key) {
-        return new MyJedisCommand<Boolean, C>(jedisPool, serialize) {
-            @Override
-            public Boolean execute(C connection) {
-                notNullAssert(key);
-                Long ret = connection.del(key);
-                return ret != null && ret > 0;
-            }
-        }.run();
+        notNullAssert(key);
+        return runLong(DEL, keyEncoder.encode(key), null, null, 0, IDEMPOTENT) > 0;
     }
 
     @Override
     public int ttl(final String key) {
-        return new MyJedisCommand<Integer, C>(jedisPool, serialize) {
-
-            @Override
-            public Integer execute(C connection) {
-                notNullAssert(key);
-                Long ret = connection.ttl(key);
-                return ret.intValue();
-            }
-        }.run();
+        notNullAssert(key);
+        return (int) runLong(TTL, keyEncoder.encode(key), null, null, 0, READ);
     }
 
     @Override
     public boolean expire(final String key, final int expirePeriodInSecond) {
-        return new MyJedisCommand<Boolean, C>(jedisPool, serialize) {
-
-            @Override
-            public Boolean execute(C connection) {
-                notNullAssert(key);
-                Long ret = connection.expire(key, expirePeriodInSecond);
-                return ret != null && ret > 0;
-            }
-        }.run();
+        notNullAssert(key);
+        return runLong(EXPIRE, keyEncoder.encode(key), null, null, expirePeriodInSecond, IDEMPOTENT) > 0;
     }
 
     @Override
     public <T extends Serializable> int lpushObject(final String key, final T... items) {
-        return new MyJedisCommand<Integer, C>(jedisPool, serialize) {
+        return new MyJedisCommand<Integer, C>(jedisPool, serialize, breakerFor(key)) {
             @Override
             public Integer execute(C connection) {
                 notNullAssert(key);
-                Long ret = connection.lpush(SafeEncoder.encode(key), getBArrArrFromObjectArr(items));
+                byte[][] values = getBArrArrFromObjectArr(items);
+                tracedSize(sizeOf(values));
+                Long ret = connection.lpush(traced(keyEncoder.encode(key)), values);
                 return ret.intValue();
             }
         }.run();
@@ -206,11 +1447,13 @@ public class JedisPoolDB<C extends JedisCommands & BinaryJedisCommands & Closeab
 
     @Override
     public int lpushString(final String key, final String... items) {
-        return new MyJedisCommand<Integer, C>(jedisPool, serialize) {
+        return new MyJedisCommand<Integer, C>(jedisPool, serialize, breakerFor(key)) {
             @Override
             public Integer execute(C connection) {
                 notNullAssert(key);
-                Long ret = connection.lpush(key, items);
+                byte[][] values = getBArrArrFromStrArr(items);
+                tracedSize(sizeOf(values));
+                Long ret = connection.lpush(traced(keyEncoder.encode(key)), values);
                 return ret.intValue();
             }
         }.run();
@@ -218,11 +1461,13 @@ public class JedisPoolDB<C extends JedisCommands & BinaryJedisCommands & Closeab
 
     @Override
     public <T extends Serializable> int rpushObject(final String key, final T... items) {
-        return new MyJedisCommand<Integer, C>(jedisPool, serialize) {
+        return new MyJedisCommand<Integer, C>(jedisPool, serialize, breakerFor(key)) {
             @Override
             public Integer execute(C connection) {
                 notNullAssert(key);
-                Long ret = connection.rpush(SafeEncoder.encode(key), getBArrArrFromObjectArr(items));
+                byte[][] values = getBArrArrFromObjectArr(items);
+                tracedSize(sizeOf(values));
+                Long ret = connection.rpush(traced(keyEncoder.encode(key)), values);
                 return ret.intValue();
             }
         }.run();
@@ -230,11 +1475,13 @@ public class JedisPoolDB<C extends JedisCommands & BinaryJedisCommands & Closeab
 
     @Override
     public int rpushString(final String key, final String... items) {
-        return new MyJedisCommand<Integer, C>(jedisPool, serialize) {
+        return new MyJedisCommand<Integer, C>(jedisPool, serialize, breakerFor(key)) {
             @Override
             public Integer execute(C connection) {
                 notNullAssert(key);
-                Long ret = connection.lpush(key, items);
+                byte[][] values = getBArrArrFromStrArr(items);
+                tracedSize(sizeOf(values));
+                Long ret = connection.lpush(traced(keyEncoder.encode(key)), values);
                 return ret.intValue();
             }
         }.run();
@@ -242,92 +1489,72 @@ public class JedisPoolDB<C extends JedisCommands & BinaryJedisCommands & Closeab
 
     @Override
     public <T extends Serializable> T lpopObject(final String key, final Class<T> type) {
-        return new MyJedisCommand<T, C>(jedisPool, serialize) {
-            @Override
-            public T execute(C connection) {
-                notNullAssert(key);
-                byte[] b = connection.lpop(SafeEncoder.encode(key));
-                if (b != null) {
-                    return serialize.decode(b, type);
-                } else {
-                    return null;
-                }
-            }
-        }.run();
+        notNullAssert(key);
+        byte[] value = runBytes(LPOP, keyEncoder.encode(key), null, 0);
+        return value == null ? null : serialize.decode(value, type);
     }
 
     @Override
     public String lpopString(final String key) {
-        return new MyJedisCommand<String, C>(jedisPool, serialize) {
-            @Override
-            public String execute(C connection) {
-                notNullAssert(key);
-                return connection.lpop(key);
-            }
-        }.run();
+        notNullAssert(key);
+        return decodeString(runBytes(LPOP, keyEncoder.encode(key), null, 0));
     }
 
     @Override
     public <T extends Serializable> T rpopObject(final String key, final Class<T> type) {
-        return new MyJedisCommand<T, C>(jedisPool, serialize) {
-            @Override
-            public T execute(C connection) {
-                notNullAssert(key);
-                byte[] b = connection.rpop(SafeEncoder.encode(key));
-                if (b != null) {
-                    return serialize.decode(b, type);
-                } else {
-                    return null;
-                }
-            }
-        }.run();
+        notNullAssert(key);
+        byte[] value = runBytes(RPOP, keyEncoder.encode(key), null, 0);
+        return value == null ? null : serialize.decode(value, type);
     }
 
     @Override
     public String rpopString(final String key) {
-        return new MyJedisCommand<String, C>(jedisPool, serialize) {
-            @Override
-            public String execute(C connection) {
-                notNullAssert(key);
-                return connection.rpop(key);
-            }
-        }.run();
+        notNullAssert(key);
+        return decodeString(runBytes(RPOP, keyEncoder.encode(key), null, 0));
     }
 
     @Override
     public <T extends Serializable> List<T> lrangeObject(final String key, final int start, final int end, final Class<T> type) {
-        return new MyJedisCommand<List<T>, C>(jedisPool, serialize) {
+        return runRead(new MyJedisCommand<List<T>, C>(jedisPool, serialize, breakerFor(key)) {
             @Override
             public List<T> execute(C connection) {
                 notNullAssert(key);
-                List<byte[]> temp = connection.lrange(SafeEncoder.encode(key), start, end);
+                List<byte[]> temp = connection.lrange(traced(keyEncoder.encode(key)), start, end);
+                tracedSize(sizeOf(temp));
                 List<T> ret = new ArrayList<T>(temp.size());
                 for (byte[] b : temp) {
                     ret.add(serialize.<T>decode(b, type));
                 }
                 return ret;
             }
-        }.run();
+        });
     }
 
     @Override
     public List<String> lrangeString(final String key, final int start, final int end) {
-        return new MyJedisCommand<List<String>, C>(jedisPool, serialize) {
+        return runRead(new MyJedisCommand<List<String>, C>(jedisPool, serialize, breakerFor(key)) {
             @Override
             public List<String> execute(C connection) {
                 notNullAssert(key);
-                return connection.lrange(key, start, end);
+                List<byte[]> temp = connection.lrange(traced(keyEncoder.encode(key)), start, end);
+                tracedSize(sizeOf(temp));
+                List<String> ret = new ArrayList<String>(temp.size());
+                for (byte[] b : temp) {
+                    ret.add(decodeString(b));
+                }
+                return ret;
             }
-        }.run();
+        });
     }
 
     @Override
     public boolean ltrim(final String key, final int start, final int end) {
-        return new MyJedisCommand<Boolean, C>(jedisPool, serialize) {
+        //LTRIM按下标裁剪，两次执行之间有LPUSH/RPOP时结果不同，不重试
+        return new MyJedisCommand<Boolean, C>(jedisPool, serialize, breakerFor(key)) {
             @Override
             public Boolean execute(C connection) {
                 notNullAssert(key);
-                String ret = connection.ltrim(key, start, end);
+                String ret = connection.ltrim(traced(keyEncoder.encode(key)), start, end);
                 return "OK".equals(ret);
             }
         }.run();
@@ -335,110 +1562,113 @@ public class JedisPoolDB<C extends JedisCommands & BinaryJedisCommands & Closeab
 
     @Override
     public int llen(final String key) {
-        return new MyJedisCommand<Integer, C>(jedisPool, serialize) {
-            @Override
-            public Integer execute(C connection) {
-                notNullAssert(key);
-                Long ret = connection.llen(key);
-                return ret.intValue();
-            }
-        }.run();
+        notNullAssert(key);
+        return (int) runLong(LLEN, keyEncoder.encode(key), null, null, 0, READ);
     }
 
     @Override
     public <T extends Serializable> boolean hSetObject(final String key, final String field, final T value) {
-        return new MyJedisCommand<Boolean, C>(jedisPool, serialize) {
-            @Override
-            public Boolean execute(C connection) {
-                notNullAssert(key);
-                notNullAssert(field);
-                notNullAssert(value);
-                Long ret = connection.hset(SafeEncoder.encode(key), SafeEncoder.encode(field), serialize.encode(value));
-                return ret != null && ret >= 0;
-            }
-        }.run();
+        notNullAssert(key);
+        notNullAssert(field);
+        notNullAssert(value);
+        return runLong(HSET, keyEncoder.encode(key), keyEncoder.encodeField(field), serialize.encode(value), 0, IDEMPOTENT) >= 0;
     }
 
     @Override
     public boolean hSetString(final String key, final String field, final String value) {
-        return new MyJedisCommand<Boolean, C>(jedisPool, serialize) {
-            @Override
-            public Boolean execute(C connection) {
-                notNullAssert(key);
-                notNullAssert(field);
-                notNullAssert(value);
-                Long ret = connection.hset(key, field, value);
-                return ret != null && ret >= 0;
-            }
-        }.run();
+        notNullAssert(key);
+        notNullAssert(field);
+        notNullAssert(value);
+        return runLong(HSET, keyEncoder.encode(key), keyEncoder.encodeField(field), SafeEncoder.encode(value), 0, IDEMPOTENT) >= 0;
     }
 
     @Override
     public <T extends Serializable> boolean hMultiSetObject(final String key, final Map<String, T> fieldValues) {
-        return new MyJedisCommand<Boolean, C>(jedisPool, serialize) {
+        return runIdempotent(new MyJedisCommand<Boolean, C>(jedisPool, serialize, breakerFor(key)) {
             @Override
             public Boolean execute(C connection) {
                 notNullAssert(key);
                 notNullAssert(fieldValues);
                 Map<byte[], byte[]> fieldValuesB = new HashMap<byte[], byte[]>(fieldValues.size());
                 for (String filed : fieldValues.keySet()) {
-                    fieldValuesB.put(SafeEncoder.encode(filed), serialize.encode(fieldValues.get(filed)));
+                    fieldValuesB.put(keyEncoder.encodeField(filed), serialize.encode(fieldValues.get(filed)));
                 }
-                String ret = connection.hmset(SafeEncoder.encode(key), fieldValuesB);
+                tracedSize(sizeOf(fieldValuesB.values()));
+                String ret = connection.hmset(traced(keyEncoder.encode(key)), fieldValuesB);
                 return "OK".equals(ret);
             }
-        }.run();
+        });
     }
 
     @Override
     public boolean hMultiSetString(final String key, final Map<String, String> fieldValues) {
-        return new MyJedisCommand<Boolean, C>(jedisPool, serialize) {
+        return runIdempotent(new MyJedisCommand<Boolean, C>(jedisPool, serialize, breakerFor(key)) {
             @Override
             public Boolean execute(C connection) {
                 notNullAssert(key);
                 notNullAssert(fieldValues);
-                String ret = connection.hmset(key, fieldValues);
+                Map<byte[], byte[]> fieldValuesB = new HashMap<byte[], byte[]>(fieldValues.size());
+                for (Map.Entry<String, String> entry : fieldValues.entrySet()) {
+                    fieldValuesB.put(keyEncoder.encodeField(entry.getKey()), SafeEncoder.encode(entry.getValue()));
+                }
+                tracedSize(sizeOf(fieldValuesB.values()));
+                String ret = connection.hmset(traced(keyEncoder.encode(key)), fieldValuesB);
                 return "OK".equals(ret);
             }
-        }.run();
+        });
+    }
+
+    @Override
+    public <T extends Serializable> boolean hMultiSetObject(final String key, final Map<String, T> fieldValues, final int expirePeriodInSecond) {
+        notNullAssert(fieldValues);
+        byte[][] args = new byte[fieldValues.size() * 2 + 1][];
+        args[0] = SafeEncoder.encode(String.valueOf(expireOf(expirePeriodInSecond)));
+        int i = 1;
+        for (Map.Entry<String, T> entry : fieldValues.entrySet()) {
+            notNullAssert(entry.getValue());
+            args[i++] = keyEncoder.encodeField(entry.getKey());
+            args[i++] = serialize.encode(entry.getValue());
+        }
+        return Long.valueOf(1).equals(evalScript(HMSET_AND_EXPIRE, key, args));
+    }
+
+    @Override
+    public boolean hMultiSetString(final String key, final Map<String, String> fieldValues, final int expirePeriodInSecond) {
+        notNullAssert(fieldValues);
+        byte[][] args = new byte[fieldValues.size() * 2 + 1][];
+        args[0] = SafeEncoder.encode(String.valueOf(expireOf(expirePeriodInSecond)));
+        int i = 1;
+        for (Map.Entry<String, String> entry : fieldValues.entrySet()) {
+            notNullAssert(entry.getValue());
+            args[i++] = keyEncoder.encodeField(entry.getKey());
+            args[i++] = SafeEncoder.encode(entry.getValue());
+        }
+        return Long.valueOf(1).equals(evalScript(HMSET_AND_EXPIRE, key, args));
     }
 
     @Override
     public <T extends Serializable> T hGetObject(final String key, final String field, final Class<T> type) {
-        return new MyJedisCommand<T, C>(jedisPool, serialize) {
-            @Override
-            public T execute(C connection) {
-                notNullAssert(key);
-                notNullAssert(field);
-                byte[] b = connection.hget(SafeEncoder.encode(key), SafeEncoder.encode(field));
-                if (b != null) {
-                    return serialize.decode(b, type);
-                } else {
-                    return null;
-                }
-            }
-        }.run();
+        notNullAssert(key);
+        notNullAssert(field);
+        byte[] value = runBytes(HGET, keyEncoder.encode(key), keyEncoder.encodeField(field), READ);
+        return value == null ? null : serialize.decode(value, type);
     }
 
     @Override
     public String hGetString(final String key, final String field) {
-        return new MyJedisCommand<String, C>(jedisPool, serialize) {
-            @Override
-            public String execute(C connection) {
-                notNullAssert(key);
-                notNullAssert(field);
-                return connection.hget(key, field);
-            }
-        }.run();
+        notNullAssert(key);
+        notNullAssert(field);
+        return decodeString(runBytes(HGET, keyEncoder.encode(key), keyEncoder.encodeField(field), READ));
     }
 
     @Override
     public <T extends Serializable> Map<String, T> hGetAllObject(final String key, final Class<T> type) {
-        return new MyJedisCommand<Map<String, T>, C>(jedisPool, serialize) {
+        return runRead(new MyJedisCommand<Map<String, T>, C>(jedisPool, serialize, breakerFor(key)) {
             @Override
             public Map<String, T> execute(C connection) {
                 notNullAssert(key);
-                Map<byte[], byte[]> temp = connection.hgetAll(SafeEncoder.encode(key));
+                Map<byte[], byte[]> temp = connection.hgetAll(traced(keyEncoder.encode(key)));
+                tracedSize(sizeOf(temp.values()));
                 Map<String, T> ret = new HashMap<String, T>(temp.size());
                 if (temp != null) {
                     for (byte[] field : temp.keySet()) {
@@ -450,28 +1680,35 @@ public class JedisPoolDB<C extends JedisCommands & BinaryJedisCommands & Closeab
                 }
                 return ret;
             }
-        }.run();
+        });
     }
 
     @Override
     public Map<String, String> hGetAllString(final String key) {
-        return new MyJedisCommand<Map<String, String>, C>(jedisPool, serialize) {
+        return runRead(new MyJedisCommand<Map<String, String>, C>(jedisPool, serialize, breakerFor(key)) {
             @Override
             public Map<String, String> execute(C connection) {
                 notNullAssert(key);
-                return connection.hgetAll(key);
+                Map<byte[], byte[]> temp = connection.hgetAll(traced(keyEncoder.encode(key)));
+                tracedSize(sizeOf(temp.values()));
+                Map<String, String> ret = new HashMap<String, String>(temp.size());
+                for (Map.Entry<byte[], byte[]> entry : temp.entrySet()) {
+                    ret.put(SafeEncoder.encode(entry.getKey()), decodeString(entry.getValue()));
+                }
+                return ret;
             }
-        }.run();
+        });
     }
 
     @Override
     public <T extends Serializable> Map<String, T> hMultiGetObject(final String key, final Class<T> type, final String... fields) {
-        return new MyJedisCommand<Map<String, T>, C>(jedisPool, serialize) {
+        return runRead(new MyJedisCommand<Map<String, T>, C>(jedisPool, serialize, breakerFor(key)) {
             @Override
             public Map<String, T> execute(C connection) {
                 notNullAssert(key);
                 notNullAssert(fields);
-                List<byte[]> values = connection.hmget(SafeEncoder.encode(key), getBArrArrFromStrArr(fields));
+                List<byte[]> values = connection.hmget(traced(keyEncoder.encode(key)), keyEncoder.encodeFields(fields));
+                tracedSize(sizeOf(values));
                 Map<String, T> ret = new HashMap<String, T>(values.size());
                 for (int i = fields.length - 1; i >= 0; i--) {
                     if (values.size() > i && values.get(i) != null) {
@@ -480,71 +1717,229 @@ public class JedisPoolDB<C extends JedisCommands & BinaryJedisCommands & Closeab
                 }
                 return ret;
             }
-        }.run();
+        });
     }
 
     @Override
     public Map<String, String> hMultiGetString(final String key, final String... fields) {
-        return new MyJedisCommand<Map<String, String>, C>(jedisPool, serialize) {
+        return runRead(new MyJedisCommand<Map<String, String>, C>(jedisPool, serialize, breakerFor(key)) {
             @Override
             public Map<String, String> execute(C connection) {
                 notNullAssert(key);
                 notNullAssert(fields);
-                List<String> values = connection.hmget(key, fields);
+                List<byte[]> values = connection.hmget(traced(keyEncoder.encode(key)), keyEncoder.encodeFields(fields));
+                tracedSize(sizeOf(values));
                 Map<String, String> ret = new HashMap<String, String>(values.size());
                 for (int i = fields.length - 1; i >= 0; i--) {
                     if (values.size() > i) {
-                        ret.put(fields[i], values.get(i));
+                        ret.put(fields[i], decodeString(values.get(i)));
                     }
                 }
                 return ret;
             }
-        }.run();
+        });
     }
 
     @Override
     public int hDelete(final String key, final String... fields) {
-        return new MyJedisCommand<Integer, C>(jedisPool, serialize) {
+        return runIdempotent(new MyJedisCommand<Integer, C>(jedisPool, serialize, breakerFor(key)) {
             @Override
             public Integer execute(C connection) {
                 notNullAssert(key);
                 notNullAssert(fields);
-                return connection.hdel(key, fields).intValue();
+                return connection.hdel(traced(keyEncoder.encode(key)), keyEncoder.encodeFields(fields)).intValue();
             }
-        }.run();
+        });
     }
 
     @Override
     public int hLen(final String key) {
-        return new MyJedisCommand<Integer, C>(jedisPool, serialize) {
-            @Override
-            public Integer execute(C connection) {
-                notNullAssert(key);
-                return connection.hlen(key).intValue();
-            }
-        }.run();
+        notNullAssert(key);
+        return (int) runLong(HLEN, keyEncoder.encode(key), null, null, 0, READ);
     }
 
     @Override
     public Set<String> hKeys(final String key) {
-        return new MyJedisCommand<Set<String>, C>(jedisPool, serialize) {
+        return runRead(new MyJedisCommand<Set<String>, C>(jedisPool, serialize, breakerFor(key)) {
             @Override
             public Set<String> execute(C connection) {
                 notNullAssert(key);
-                return connection.hkeys(key);
+                Set<byte[]> temp = connection.hkeys(traced(keyEncoder.encode(key)));
+                Set<String> ret = new HashSet<String>(temp.size() * 4 / 3 + 1);
+                for (byte[] field : temp) {
+                    ret.add(SafeEncoder.encode(field));
+                }
+                return ret;
             }
-        }.run();
+        });
     }
 
     @Override
     public boolean hExists(final String key, final String field) {
-        return new MyJedisCommand<Boolean, C>(jedisPool, serialize) {
+        notNullAssert(key);
+        notNullAssert(field);
+        return runLong(HEXISTS, keyEncoder.encode(key), keyEncoder.encodeField(field), null, 0, READ) == 1;
+    }
+
+    @Override
+    public <T extends Serializable> Map<String, T> multiGetObject(Class<T> type, String... keys) {
+        List<Object> values = runPerKey(encodeKeys(keys), MULTI_GET);
+        Map<String, T> ret = new HashMap<String, T>(keys.length * 4 / 3 + 1);
+        for (int i = 0; i < keys.length; i++) {
+            Object value = reply(values.get(i));
+            if (value != null) {
+                ret.put(keys[i], serialize.decode((byte[]) value, type));
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public Map<String, String> multiGetString(String... keys) {
+        List<Object> values = runPerKey(encodeKeys(keys), MULTI_GET);
+        Map<String, String> ret = new HashMap<String, String>(keys.length * 4 / 3 + 1);
+        for (int i = 0; i < keys.length; i++) {
+            Object value = reply(values.get(i));
+            if (value != null) {
+                ret.put(keys[i], SafeEncoder.encode((byte[]) value));
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public <T extends Serializable> boolean multiSetObject(Map<String, T> keyValues, int expirePeriodInSecond) {
+        notNullAssert(keyValues);
+        List<byte[]> values = new ArrayList<byte[]>(keyValues.size());
+        for (T value : keyValues.values()) {
+            notNullAssert(value);
+            values.add(serialize.encode(value));
+        }
+        return multiSet(keyValues.keySet(), values, expirePeriodInSecond);
+    }
+
+    @Override
+    public boolean multiSetString(Map<String, String> keyValues, int expirePeriodInSecond) {
+        notNullAssert(keyValues);
+        List<byte[]> values = new ArrayList<byte[]>(keyValues.size());
+        for (String value : keyValues.values()) {
+            notNullAssert(value);
+            values.add(SafeEncoder.encode(value));
+        }
+        return multiSet(keyValues.keySet(), values, expirePeriodInSecond);
+    }
+
+    private boolean multiSet(Set<String> keys, final List<byte[]> values, int expirePeriodInSecond) {
+        final int[] expires = expiresOf(values.size(), expirePeriodInSecond);
+        List<Object> replies = runPerKey(encodeKeys(keys.toArray(new String[keys.size()])), new KeyCallback() {
             @Override
-            public Boolean execute(C connection) {
-                notNullAssert(key);
-                notNullAssert(field);
-                return connection.hexists(key, field);
+            public void execute(PipelineBase pipeline, byte[] key, int index) {
+                if (expires[index] > 0) {
+                    pipeline.setex(key, expires[index], values.get(index));
+                } else {
+                    pipeline.set(key, values.get(index));
+                }
             }
-        }.run();
+        });
+        for (Object reply : replies) {
+            reply(reply);
+        }
+        return true;
+    }
+
+    @Override
+    public int multiDelete(String... keys) {
+        int deleted = 0;
+        for (Object reply : runPerKey(encodeKeys(keys), MULTI_DEL)) {
+            deleted += ((Long) reply(reply)).intValue();
+        }
+        return deleted;
+    }
+
+    @Override
+    public Set<String> multiExists(String... keys) {
+        List<Object> replies = runPerKey(encodeKeys(keys), MULTI_EXISTS);
+        Set<String> ret = new HashSet<String>();
+        for (int i = 0; i < keys.length; i++) {
+            if (Boolean.TRUE.equals(reply(replies.get(i)))) {
+                ret.add(keys[i]);
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public int multiExpire(final int expirePeriodInSecond, String... keys) {
+        int updated = 0;
+        for (Object reply : runPerKey(encodeKeys(keys), new KeyCallback() {
+            @Override
+            public void execute(PipelineBase pipeline, byte[] key, int index) {
+                pipeline.expire(key, expirePeriodInSecond);
+            }
+        })) {
+            updated += ((Long) reply(reply)).intValue();
+        }
+        return updated;
+    }
+
+    @Override
+    public boolean tryAcquire(String key, int permits, int capacity, double permitsPerSecond) {
+        return acquireTokens(key, permits, capacity, permitsPerSecond, false) == permits;
+    }
+
+    @Override
+    public int acquireUpTo(String key, int maxPermits, int capacity, double permitsPerSecond) {
+        return acquireTokens(key, maxPermits, capacity, permitsPerSecond, true);
+    }
+
+    private int acquireTokens(String key, int permits, int capacity, double permitsPerSecond, boolean partial) {
+        if (permits <= 0 || capacity <= 0 || permitsPerSecond <= 0) {
+            throw new IllegalArgumentException("permits, capacity and permitsPerSecond must be positive");
+        }
+        if (permits > capacity) {
+            throw new IllegalArgumentException("permits can't be greater than capacity");
+        }
+        Object ret = evalScript(TOKEN_BUCKET, key, SafeEncoder.encode(String.valueOf(capacity)),
+                SafeEncoder.encode(String.valueOf(permitsPerSecond)), SafeEncoder.encode(String.valueOf(permits)),
+                partial ? ONE : ZERO);
+        return ((Long) ret).intValue();
+    }
+
+    /**
+     * 每个key各自抖动，在执行前确定，重试时不变
+     */
+    private int[] expiresOf(int count, int expirePeriodInSecond) {
+        int[] ret = new int[count];
+        for (int i = 0; i < count; i++) {
+            ret[i] = expireOf(expirePeriodInSecond);
+        }
+        return ret;
+    }
+
+    static String decodeString(byte[] value) {
+        return value == null ? null : SafeEncoder.encode(value);
+    }
+
+    private static void notNullAssert(Object value) {
+        if (value == null) {
+            throw new IllegalArgumentException("not support the Object-type of Null");
+        }
+    }
+
+    /**
+     * 单项读取命令，熔断中时按fallbackOnCircuitOpen的设置降级为未命中
+     */
+    private abstract class ReadCommand<T> extends MyJedisCommand<T, C> {
+        ReadCommand(CircuitBreaker circuitBreaker) {
+            super(jedisPool, serialize, circuitBreaker);
+        }
+
+        @Override
+        protected T onCircuitOpen(CircuitBreakerOpenException e) {
+            if (fallbackOnCircuitOpen) {
+                return null;
+            }
+            throw e;
+        }
     }
-}
+}
\ No newline at end of file
@@ -0,0 +1,106 @@
+import java.util.Arrays;
+
+/**
+ * key与hashmap field的UTF-8编码器。
+ * key前缀（命名空间）只编码一次；编码时前缀与key直接写入线程内复用的缓冲区，再复制为结果数组，
+ * 不产生拼接后的临时String，也不经过String.getBytes的中间数组。编码结果与SafeEncoder.encode(prefix + key)一致。
+ * <p>
+ * 线程安全。
+ */
+public class KeyEncoder {
+    public static final KeyEncoder NONE = new KeyEncoder("");
+
+    private static final int MAX_CACHED_BUFFER = 4096;
+    private static final ThreadLocal<byte[]> BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[256];
+        }
+    };
+    private static final byte[] EMPTY = new byte[0];
+
+    private final String prefix;
+    private final byte[] prefixBytes;
+
+    public KeyEncoder(String prefix) {
+        if (prefix == null) {
+            throw new IllegalArgumentException("prefix can't be NULL");
+        }
+        this.prefix = prefix;
+        this.prefixBytes = encode(EMPTY, prefix);
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * @return 在本前缀下再追加一级前缀的编码器
+     */
+    public KeyEncoder append(String subPrefix) {
+        return new KeyEncoder(prefix + subPrefix);
+    }
+
+    /**
+     * @return 前缀 + key 的UTF-8编码
+     */
+    public byte[] encode(String key) {
+        return encode(prefixBytes, key);
+    }
+
+    /**
+     * @return hashmap field的UTF-8编码（field不加前缀）
+     */
+    public byte[] encodeField(String field) {
+        return encode(EMPTY, field);
+    }
+
+    public byte[][] encodeFields(String... fields) {
+        byte[][] ret = new byte[fields.length][];
+        for (int i = fields.length - 1; i >= 0; i--) {
+            ret[i] = encode(EMPTY, fields[i]);
+        }
+        return ret;
+    }
+
+    private static byte[] encode(byte[] prefix, String s) {
+        int len = s.length();
+        int max = prefix.length + len * 3;
+        byte[] buf = BUFFER.get();
+        if (buf.length < max) {
+            buf = new byte[max];
+            if (max <= MAX_CACHED_BUFFER) {
+                BUFFER.set(buf);
+            }
+        }
+        System.arraycopy(prefix, 0, buf, 0, prefix.length);
+        int pos = prefix.length;
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                buf[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[pos++] = (byte) (0xc0 | (c >> 6));
+                buf[pos++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buf[pos++] = (byte) (0xf0 | (cp >> 18));
+                buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                buf[pos++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                buf[pos++] = '?';//与String.getBytes(UTF-8)对不成对代理字符的处理一致
+            } else {
+                buf[pos++] = (byte) (0xe0 | (c >> 12));
+                buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buf[pos++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return Arrays.copyOf(buf, pos);
+    }
+
+    @Override
+    public String toString() {
+        return "KeyEncoder[" + prefix + "]";
+    }
+}
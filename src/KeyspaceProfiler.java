@@ -0,0 +1,375 @@
+import com.qlc.common.util.log.LogUtil;
+import com.qlc.common.util.log.MyLoggerFactory;
+import org.slf4j.Logger;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.util.SafeEncoder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+/**
+ * 后台的keyspace内存与过期时间分析：逐个节点SCAN全部key（限速），对抽样的key以pipeline读取MEMORY USAGE与TTL，
+ * 按归一化的key模式（数字、十六进制id、uuid替换为占位符）汇总数量、内存、大小分布与TTL分布，
+ * 用于找出占用内存最多、需要压缩或缺少过期时间的key族。需要redis 4.0以上。
+ * 内存与TTL按抽样统计，key数量为全量；每批key借用一次连接，不长期占用连接池。
+ * <p>
+ * e.g: KeyspaceProfiler profiler = RedisDBFactory.startKeyspaceProfiler(redisDB, TimeUnit.HOURS.toMillis(6)); profiler.getLastReport();
+ */
+public class KeyspaceProfiler {
+    private static Logger logger = MyLoggerFactory.getLogger(KeyspaceProfiler.class);
+
+    private static final Pattern UUID = Pattern.compile("[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}");
+    private static final Pattern HEX = Pattern.compile("(?<![0-9a-zA-Z])(?=[0-9a-fA-F]*[0-9])[0-9a-fA-F]{16,}(?![0-9a-zA-Z])");
+    private static final Pattern NUMBER = Pattern.compile("[0-9]+");
+    //TTL分布的上界（秒），最后一档为更长；另有"无过期"一档
+    private static final long[] TTL_BOUNDS = {60, 600, 3600, 86400, 7 * 86400};
+
+    private final JedisPoolDB<?> jedisPoolDB;
+    private int scanCount = 500;//每次SCAN的COUNT
+    private int maxKeysPerSecond = 5000;//每秒最多扫描的key数
+    private double sampleRate = 0.05;//读取MEMORY USAGE与TTL的key比例
+    private int maxPatterns = 10000;//超过后新模式归入"*"
+
+    private volatile Report lastReport;
+    private volatile boolean running;
+    private Thread thread;
+
+    public KeyspaceProfiler(JedisPoolDB<?> jedisPoolDB) {
+        if (jedisPoolDB == null) {
+            throw new IllegalArgumentException("jedisPoolDB can't be NULL");
+        }
+        this.jedisPoolDB = jedisPoolDB;
+        jedisPoolDB.getScriptRegistry().register(JedisPoolDB.MEMORY_USAGE);
+    }
+
+    public KeyspaceProfiler setScanCount(int scanCount) {
+        this.scanCount = scanCount;
+        return this;
+    }
+
+    public KeyspaceProfiler setMaxKeysPerSecond(int maxKeysPerSecond) {
+        if (maxKeysPerSecond <= 0) {
+            throw new IllegalArgumentException("maxKeysPerSecond must be positive");
+        }
+        this.maxKeysPerSecond = maxKeysPerSecond;
+        return this;
+    }
+
+    public KeyspaceProfiler setSampleRate(double sampleRate) {
+        if (sampleRate <= 0 || sampleRate > 1) {
+            throw new IllegalArgumentException("sampleRate must be in (0, 1]");
+        }
+        this.sampleRate = sampleRate;
+        return this;
+    }
+
+    public KeyspaceProfiler setMaxPatterns(int maxPatterns) {
+        this.maxPatterns = maxPatterns;
+        return this;
+    }
+
+    /**
+     * 启动后台线程，每intervalMillis完整分析一次
+     */
+    public synchronized void start(final long intervalMillis) {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running) {
+                    try {
+                        Report report = profile();
+                        logger.info("redis keyspace profile:\n" + report);
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (Exception e) {
+                        LogUtil.error(e);
+                    }
+                    try {
+                        Thread.sleep(intervalMillis);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }, "redis-keyspace-profiler");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void shutdown() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    /**
+     * @return 最近一次完成的分析结果，尚未完成时为null
+     */
+    public Report getLastReport() {
+        return lastReport;
+    }
+
+    /**
+     * 在当前线程完整分析一次所有节点
+     */
+    public Report profile() throws InterruptedException {
+        final Report report = new Report();
+        final Random random = new Random();
+        final ScanParams params = new ScanParams().count(scanCount);
+        long start = System.currentTimeMillis();
+        long scanned = 0;
+        int nodes = jedisPoolDB.nodeCount();
+        for (int node = 0; node < nodes; node++) {
+            byte[] cursor = ScanParams.SCAN_POINTER_START_BINARY;
+            do {
+                final byte[] current = cursor;
+                Batch batch = jedisPoolDB.runOnNodeIndex(node, new JedisPoolDB.NodeCallback<Batch>() {
+                    @Override
+                    public Batch execute(Jedis jedis) {
+                        return scan(jedis, current, params, random);
+                    }
+                });
+                cursor = batch.cursor;
+                scanned += batch.keys.size();
+                for (int i = 0; i < batch.keys.size(); i++) {
+                    report.add(normalize(SafeEncoder.encode(batch.keys.get(i))), batch.memory.get(i), batch.ttl.get(i), maxPatterns);
+                }
+                //限速：按已扫描的key数计算应当经过的时间
+                long ahead = scanned * 1000 / maxKeysPerSecond - (System.currentTimeMillis() - start);
+                if (ahead > 0) {
+                    Thread.sleep(ahead);
+                }
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            } while (!isStart(cursor));
+        }
+        report.elapsedMillis = System.currentTimeMillis() - start;
+        lastReport = report;
+        return report;
+    }
+
+    private static boolean isStart(byte[] cursor) {
+        return cursor.length == 1 && cursor[0] == '0';
+    }
+
+    private Batch scan(Jedis jedis, byte[] cursor, ScanParams params, Random random) {
+        ScanResult<byte[]> result = jedis.scan(cursor, params);
+        Batch batch = new Batch(result.getCursorAsBytes(), result.getResult());
+        List<byte[]> sampled = new ArrayList<byte[]>();
+        for (byte[] key : batch.keys) {
+            boolean sample = random.nextDouble() < sampleRate;
+            batch.memory.add(sample ? 0L : null);
+            batch.ttl.add(null);
+            if (sample) {
+                sampled.add(key);
+            }
+        }
+        if (sampled.isEmpty()) {
+            return batch;
+        }
+        jedisPoolDB.getScriptRegistry().loadAll(jedis);
+        Pipeline pipeline = jedis.pipelined();
+        for (byte[] key : sampled) {
+            pipeline.evalsha(JedisPoolDB.MEMORY_USAGE.getSha1Bytes(), 1, key);
+            pipeline.ttl(key);
+        }
+        List<Object> replies = pipeline.syncAndReturnAll();
+        int reply = 0;
+        for (int i = 0; i < batch.keys.size(); i++) {
+            if (batch.memory.get(i) == null) {
+                continue;
+            }
+            Object memory = replies.get(reply++);
+            Object ttl = replies.get(reply++);
+            //扫描后已过期或删除的key不计入抽样
+            if (memory instanceof Long && ttl instanceof Long && (Long) ttl != -2) {
+                batch.memory.set(i, (Long) memory);
+                batch.ttl.set(i, (Long) ttl);
+            } else {
+                batch.memory.set(i, null);
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * 将key归一化为模式，子类可覆盖以适应自己的key命名
+     */
+    protected String normalize(String key) {
+        String ret = UUID.matcher(key).replaceAll("{uuid}");
+        ret = HEX.matcher(ret).replaceAll("{hex}");
+        return NUMBER.matcher(ret).replaceAll("{n}");
+    }
+
+    private static class Batch {
+        final byte[] cursor;
+        final List<byte[]> keys;
+        final List<Long> memory;//未抽样为null
+        final List<Long> ttl;
+
+        Batch(byte[] cursor, List<byte[]> keys) {
+            this.cursor = cursor;
+            this.keys = keys;
+            this.memory = new ArrayList<Long>(keys.size());
+            this.ttl = new ArrayList<Long>(keys.size());
+        }
+    }
+
+    /**
+     * 一次分析的结果
+     */
+    public static class Report {
+        private final Map<String, PatternStats> patterns = new HashMap<String, PatternStats>();
+        private long elapsedMillis;
+
+        void add(String pattern, Long memory, Long ttl, int maxPatterns) {
+            PatternStats stats = patterns.get(pattern);
+            if (stats == null) {
+                if (patterns.size() >= maxPatterns) {
+                    pattern = "*";
+                    stats = patterns.get(pattern);
+                }
+                if (stats == null) {
+                    stats = new PatternStats(pattern);
+                    patterns.put(pattern, stats);
+                }
+            }
+            stats.count++;
+            if (memory != null) {
+                stats.sampled++;
+                stats.sampledBytes += memory;
+                stats.sizeHistogram[63 - Long.numberOfLeadingZeros(Math.max(1, memory))]++;
+                stats.ttlHistogram[ttlBucket(ttl)]++;
+            }
+        }
+
+        private static int ttlBucket(long ttl) {
+            if (ttl < 0) {
+                return 0;
+            }
+            for (int i = 0; i < TTL_BOUNDS.length; i++) {
+                if (ttl < TTL_BOUNDS[i]) {
+                    return i + 1;
+                }
+            }
+            return TTL_BOUNDS.length + 1;
+        }
+
+        /**
+         * @return 按推算内存从大到小排列的各模式统计
+         */
+        public List<PatternStats> getPatterns() {
+            List<PatternStats> ret = new ArrayList<PatternStats>(patterns.values());
+            Collections.sort(ret, new Comparator<PatternStats>() {
+                @Override
+                public int compare(PatternStats o1, PatternStats o2) {
+                    long b1 = o1.getEstimatedBytes();
+                    long b2 = o2.getEstimatedBytes();
+                    return b1 < b2 ? 1 : (b1 == b2 ? 0 : -1);
+                }
+            });
+            return ret;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("%-48s %10s %14s %10s %8s  %s%n", "pattern", "keys", "estBytes", "avgBytes", "noTtl%", "ttl(<1m,<10m,<1h,<1d,<7d,>=7d)"));
+            for (PatternStats stats : getPatterns()) {
+                sb.append(stats).append('\n');
+            }
+            sb.append("elapsed=").append(elapsedMillis).append("ms");
+            return sb.toString();
+        }
+    }
+
+    /**
+     * 一个key模式的统计
+     */
+    public static class PatternStats {
+        private final String pattern;
+        private long count;
+        private long sampled;
+        private long sampledBytes;
+        private final long[] sizeHistogram = new long[64];//按字节数的log2分桶
+        private final long[] ttlHistogram = new long[TTL_BOUNDS.length + 2];//第0档为无过期
+
+        PatternStats(String pattern) {
+            this.pattern = pattern;
+        }
+
+        public String getPattern() {
+            return pattern;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getSampled() {
+            return sampled;
+        }
+
+        public long getAverageBytes() {
+            return sampled == 0 ? 0 : sampledBytes / sampled;
+        }
+
+        /**
+         * @return 按抽样均值推算的总内存
+         */
+        public long getEstimatedBytes() {
+            return getAverageBytes() * count;
+        }
+
+        /**
+         * @return 抽样中未设置过期时间的比例
+         */
+        public double getNoTtlRatio() {
+            return sampled == 0 ? 0 : (double) ttlHistogram[0] / sampled;
+        }
+
+        /**
+         * @return 下标i为大小在[2^i, 2^(i+1))字节的抽样key数
+         */
+        public long[] getSizeHistogram() {
+            return sizeHistogram.clone();
+        }
+
+        /**
+         * @return 下标0为无过期，之后依次为<1分钟、<10分钟、<1小时、<1天、<7天、>=7天的抽样key数
+         */
+        public long[] getTtlHistogram() {
+            return ttlHistogram.clone();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder ttl = new StringBuilder();
+            for (int i = 1; i < ttlHistogram.length; i++) {
+                ttl.append(i == 1 ? "" : ",").append(ttlHistogram[i]);
+            }
+            return String.format("%-48s %10d %14d %10d %7.1f%%  %s", pattern, count, getEstimatedBytes(), getAverageBytes(),
+                    getNoTtlRatio() * 100, ttl);
+        }
+    }
+}
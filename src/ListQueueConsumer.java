@@ -0,0 +1,485 @@
+import com.qlc.common.util.log.LogUtil;
+import com.qlc.common.util.log.MyLoggerFactory;
+import org.slf4j.Logger;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.util.SafeEncoder;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 基于list的批量队列消费者，与lpushObject/lpushString配合使用（左进右出）。
+ * 消费线程独占一个连接：队列为空时以BRPOP阻塞等待，避免空轮询；有数据时以脚本一次弹出最多batchSize个元素，
+ * 批次交给handler线程池处理，处理中的批次数超过maxInFlightBatches时消费线程暂停弹出（反压）。
+ * <p>
+ * 可靠模式（reliable=true）下元素以BRPOPLPUSH/RPOPLPUSH原子地移入处理中列表（queueKey + ":processing"），
+ * handler成功后批量LREM确认，失败则移回队列重新消费；进程异常退出后可调用recoverProcessing()将处理中列表移回队列。
+ * 同一元素失败达到maxAttempts次后不再移回队列，而是放入死信列表（默认queueKey + ":dead"），可用recoverDeadLetters()移回队列；
+ * 失败次数按元素内容记录在queueKey + ":attempts"中，内容相同的元素共用计数。
+ * 分片连接时处理中列表、失败次数与死信列表都与队列位于同一分片节点，只能通过本类访问。
+ * <p>
+ * e.g: new ListQueueConsumer<Order>(redisDB, "queue:order", Order.class, handler).setBatchSize(200).start();
+ */
+public class ListQueueConsumer<T extends Serializable> {
+    private static Logger logger = MyLoggerFactory.getLogger(ListQueueConsumer.class);
+
+    //KEYS: 队列; ARGV: 最多弹出数
+    static final LuaScript POP_BATCH = new LuaScript("popBatch",
+            "local ret = {}\n" +
+            "for i = 1, tonumber(ARGV[1]) do\n" +
+            "  local v = redis.call('RPOP', KEYS[1])\n" +
+            "  if not v then break end\n" +
+            "  ret[i] = v\n" +
+            "end\n" +
+            "return ret");
+    //KEYS: 队列, 处理中列表; ARGV: 最多移动数
+    static final LuaScript MOVE_BATCH = new LuaScript("moveBatch",
+            "local ret = {}\n" +
+            "for i = 1, tonumber(ARGV[1]) do\n" +
+            "  local v = redis.call('RPOPLPUSH', KEYS[1], KEYS[2])\n" +
+            "  if not v then break end\n" +
+            "  ret[i] = v\n" +
+            "end\n" +
+            "return ret");
+
+    //KEYS: 队列, 失败次数, 死信列表; ARGV: 最多尝试次数, 失败的元素...
+    static final LuaScript RETRY_OR_DEAD = new LuaScript("retryOrDead",
+            "local dead = 0\n" +
+            "for i = 2, #ARGV do\n" +
+            "  if redis.call('HINCRBY', KEYS[2], ARGV[i], 1) >= tonumber(ARGV[1]) then\n" +
+            "    redis.call('HDEL', KEYS[2], ARGV[i])\n" +
+            "    redis.call('LPUSH', KEYS[3], ARGV[i])\n" +
+            "    dead = dead + 1\n" +
+            "  else\n" +
+            "    redis.call('RPUSH', KEYS[1], ARGV[i])\n" +
+            "  end\n" +
+            "end\n" +
+            "return dead");
+
+    /**
+     * 批次处理器
+     */
+    public interface BatchHandler<T> {
+        /**
+         * @param batch 按出队顺序排列
+         * @throws Exception 可靠模式下抛出异常时该批次移回队列
+         */
+        void handle(List<T> batch) throws Exception;
+    }
+
+    private final JedisPoolDB<?> jedisPoolDB;
+    private final String queueKey;
+    private final byte[] queueKeyB;
+    private final byte[] processingKeyB;
+    private final byte[] attemptsKeyB;
+    private final Class<T> type;
+    private final BatchHandler<T> handler;
+
+    private int batchSize = 100;//单批最多弹出的元素数
+    private int handlerThreads = 4;//handler线程数
+    private int maxInFlightBatches = 8;//处理中批次数上限
+    private int blockTimeoutSeconds = 1;//队列为空时单次阻塞等待的秒数
+    private boolean reliable;
+    private int maxAttempts = 5;//可靠模式下同一元素最多处理的次数，0表示不限
+    private String deadLetterKey;
+    private byte[] deadLetterKeyB;
+
+    private volatile boolean running;
+    private Thread consumerThread;
+    private ExecutorService handlerExecutor;
+    private Semaphore inFlight;
+    //消费线程正阻塞在BRPOP/BRPOPLPUSH上时的连接，stop时断开以立即结束阻塞；由blockingLock保护
+    private final Object blockingLock = new Object();
+    private Jedis blockingOn;
+    //handler完成的批次，由消费线程在其独占连接上批量确认
+    private final ConcurrentLinkedQueue<Ack> acks = new ConcurrentLinkedQueue<Ack>();
+
+    private final AtomicLong consumed = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong failedBatches = new AtomicLong();
+    private final AtomicLong deadLettered = new AtomicLong();
+
+    public ListQueueConsumer(JedisPoolDB<?> jedisPoolDB, String queueKey, Class<T> type, BatchHandler<T> handler) {
+        if (jedisPoolDB == null || queueKey == null || type == null || handler == null) {
+            throw new IllegalArgumentException("jedisPoolDB, queueKey, type and handler can't be NULL");
+        }
+        this.jedisPoolDB = jedisPoolDB;
+        this.queueKey = queueKey;
+        this.queueKeyB = jedisPoolDB.encodeKey(queueKey);
+        this.processingKeyB = jedisPoolDB.encodeKey(queueKey + ":processing");
+        this.attemptsKeyB = jedisPoolDB.encodeKey(queueKey + ":attempts");
+        this.deadLetterKey = queueKey + ":dead";
+        this.deadLetterKeyB = jedisPoolDB.encodeKey(deadLetterKey);
+        this.type = type;
+        this.handler = handler;
+        jedisPoolDB.getScriptRegistry().register(POP_BATCH);
+        jedisPoolDB.getScriptRegistry().register(MOVE_BATCH);
+        jedisPoolDB.getScriptRegistry().register(RETRY_OR_DEAD);
+    }
+
+    public ListQueueConsumer<T> setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    public ListQueueConsumer<T> setHandlerThreads(int handlerThreads) {
+        this.handlerThreads = handlerThreads;
+        return this;
+    }
+
+    public ListQueueConsumer<T> setMaxInFlightBatches(int maxInFlightBatches) {
+        this.maxInFlightBatches = maxInFlightBatches;
+        return this;
+    }
+
+    public ListQueueConsumer<T> setBlockTimeoutSeconds(int blockTimeoutSeconds) {
+        this.blockTimeoutSeconds = blockTimeoutSeconds;
+        return this;
+    }
+
+    public ListQueueConsumer<T> setReliable(boolean reliable) {
+        this.reliable = reliable;
+        return this;
+    }
+
+    /**
+     * @param maxAttempts 可靠模式下同一元素最多处理的次数，达到后放入死信列表；0表示失败后一直移回队列
+     */
+    public ListQueueConsumer<T> setMaxAttempts(int maxAttempts) {
+        if (maxAttempts < 0) {
+            throw new IllegalArgumentException("maxAttempts can't be negative");
+        }
+        this.maxAttempts = maxAttempts;
+        return this;
+    }
+
+    /**
+     * @param deadLetterKey 死信列表的key，默认queueKey + ":dead"
+     */
+    public ListQueueConsumer<T> setDeadLetterKey(String deadLetterKey) {
+        if (deadLetterKey == null) {
+            throw new IllegalArgumentException("deadLetterKey can't be NULL");
+        }
+        this.deadLetterKey = deadLetterKey;
+        this.deadLetterKeyB = jedisPoolDB.encodeKey(deadLetterKey);
+        return this;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        if (batchSize <= 0 || handlerThreads <= 0 || maxInFlightBatches <= 0 || blockTimeoutSeconds <= 0) {
+            throw new IllegalArgumentException("batchSize, handlerThreads, maxInFlightBatches and blockTimeoutSeconds must be positive");
+        }
+        running = true;
+        inFlight = new Semaphore(maxInFlightBatches);
+        handlerExecutor = Executors.newFixedThreadPool(handlerThreads);
+        consumerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running) {
+                    try {
+                        jedisPoolDB.runOnNode(queueKey, false, new JedisPoolDB.NodeCallback<Void>() {
+                            @Override
+                            public Void execute(Jedis jedis) {
+                                consumeLoop(jedis);
+                                return null;
+                            }
+                        });
+                    } catch (Exception e) {
+                        if (!running) {
+                            //stop断开了阻塞中的连接
+                            break;
+                        }
+                        //连接异常时换一个连接继续消费
+                        LogUtil.error(e);
+                        sleepQuietly(1000);
+                    }
+                }
+            }
+        }, "redis-queue-" + queueKey);
+        consumerThread.setDaemon(true);
+        consumerThread.start();
+    }
+
+    /**
+     * 停止弹出新元素，等待处理中的批次完成并确认。
+     * 消费线程正阻塞在BRPOP上时断开其连接以立即结束等待；非可靠模式下恰在此时弹出的元素会丢失，
+     * 可靠模式下该元素留在处理中列表，可由recoverProcessing()移回队列
+     *
+     * @param timeoutMillis 最长等待时间，包括等待消费线程退出与处理中的批次完成
+     */
+    public void stop(long timeoutMillis) {
+        Thread thread;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            thread = consumerThread;
+        }
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        //结束反压等待与阻塞读取，不必等到blockTimeoutSeconds
+        thread.interrupt();
+        synchronized (blockingLock) {
+            if (blockingOn != null) {
+                MyJedisCommand.disconnect(blockingOn);
+            }
+        }
+        try {
+            //消费线程可能正在分发最后一批，须等它退出后才能关闭handler线程池，否则批次被拒绝而丢失
+            thread.join(Math.max(deadline - System.currentTimeMillis(), 1));
+            if (thread.isAlive()) {
+                logger.warn("consumer of " + queueKey + " did not exit in " + timeoutMillis + "ms");
+            }
+            handlerExecutor.shutdown();
+            handlerExecutor.awaitTermination(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!acks.isEmpty()) {
+            jedisPoolDB.runOnNode(queueKey, true, new JedisPoolDB.NodeCallback<Void>() {
+                @Override
+                public Void execute(Jedis jedis) {
+                    flushAcks(jedis);
+                    return null;
+                }
+            });
+        }
+    }
+
+    /**
+     * 可靠模式下，将处理中列表的元素全部移回队列，用于进程异常退出后的恢复；须在没有消费者运行时调用
+     *
+     * @return 移回的元素数
+     */
+    public long recoverProcessing() {
+        return jedisPoolDB.runOnNode(queueKey, true, new JedisPoolDB.NodeCallback<Long>() {
+            @Override
+            public Long execute(Jedis jedis) {
+                long moved = 0;
+                List<byte[]> items;
+                do {
+                    items = moveBatch(jedis, processingKeyB, queueKeyB, 1000);
+                    moved += items.size();
+                } while (!items.isEmpty());
+                return moved;
+            }
+        });
+    }
+
+    /**
+     * 将死信列表的元素全部移回队列重新消费；须在没有消费者运行时调用
+     *
+     * @return 移回的元素数
+     */
+    public long recoverDeadLetters() {
+        return jedisPoolDB.runOnNode(queueKey, true, new JedisPoolDB.NodeCallback<Long>() {
+            @Override
+            public Long execute(Jedis jedis) {
+                long moved = 0;
+                List<byte[]> items;
+                do {
+                    items = moveBatch(jedis, deadLetterKeyB, queueKeyB, 1000);
+                    moved += items.size();
+                } while (!items.isEmpty());
+                return moved;
+            }
+        });
+    }
+
+    public String getDeadLetterKey() {
+        return deadLetterKey;
+    }
+
+    public long getConsumed() {
+        return consumed.get();
+    }
+
+    public long getBatches() {
+        return batches.get();
+    }
+
+    public long getFailedBatches() {
+        return failedBatches.get();
+    }
+
+    /**
+     * @return 达到最多处理次数而放入死信列表的元素数
+     */
+    public long getDeadLettered() {
+        return deadLettered.get();
+    }
+
+    private void consumeLoop(Jedis jedis) {
+        while (running) {
+            flushAcks(jedis);
+            try {
+                if (!inFlight.tryAcquire(blockTimeoutSeconds, TimeUnit.SECONDS)) {
+                    continue;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            boolean dispatched = false;
+            try {
+                List<byte[]> items = pop(jedis);
+                if (!items.isEmpty()) {
+                    dispatch(items);
+                    dispatched = true;
+                }
+            } finally {
+                if (!dispatched) {
+                    inFlight.release();
+                }
+            }
+        }
+        flushAcks(jedis);
+    }
+
+    private List<byte[]> pop(Jedis jedis) {
+        List<byte[]> items = reliable ? moveBatch(jedis, queueKeyB, processingKeyB, batchSize) : popBatch(jedis, batchSize);
+        if (!items.isEmpty()) {
+            return items;
+        }
+        //队列为空，阻塞等待第一个元素，再补齐一批
+        synchronized (blockingLock) {
+            if (!running) {
+                return Collections.emptyList();
+            }
+            blockingOn = jedis;
+        }
+        byte[] first;
+        try {
+            if (reliable) {
+                first = jedis.brpoplpush(queueKeyB, processingKeyB, blockTimeoutSeconds);
+            } else {
+                List<byte[]> ret = jedis.brpop(blockTimeoutSeconds, queueKeyB);
+                first = ret == null || ret.size() < 2 ? null : ret.get(1);
+            }
+        } finally {
+            synchronized (blockingLock) {
+                blockingOn = null;
+            }
+        }
+        if (first == null) {
+            return Collections.emptyList();
+        }
+        items = new ArrayList<byte[]>(batchSize);
+        items.add(first);
+        if (batchSize > 1) {
+            items.addAll(reliable ? moveBatch(jedis, queueKeyB, processingKeyB, batchSize - 1) : popBatch(jedis, batchSize - 1));
+        }
+        return items;
+    }
+
+    private List<byte[]> popBatch(Jedis jedis, int count) {
+        return toList(jedisPoolDB.getScriptRegistry().evalsha(jedis, POP_BATCH, Collections.singletonList(queueKeyB),
+                Collections.singletonList(SafeEncoder.encode(String.valueOf(count)))));
+    }
+
+    private List<byte[]> moveBatch(Jedis jedis, byte[] from, byte[] to, int count) {
+        return toList(jedisPoolDB.getScriptRegistry().evalsha(jedis, MOVE_BATCH, Arrays.asList(from, to),
+                Collections.singletonList(SafeEncoder.encode(String.valueOf(count)))));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<byte[]> toList(Object ret) {
+        return ret == null ? Collections.<byte[]>emptyList() : (List<byte[]>) ret;
+    }
+
+    private void dispatch(final List<byte[]> items) {
+        handlerExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean success = false;
+                try {
+                    List<T> batch = new ArrayList<T>(items.size());
+                    for (byte[] item : items) {
+                        batch.add(jedisPoolDB.getSerialize().decode(item, type));
+                    }
+                    handler.handle(batch);
+                    success = true;
+                    consumed.addAndGet(items.size());
+                    batches.incrementAndGet();
+                } catch (Exception e) {
+                    failedBatches.incrementAndGet();
+                    logger.error("handle batch of " + queueKey + " failed", e);
+                } finally {
+                    if (reliable) {
+                        acks.add(new Ack(items, success));
+                    }
+                    inFlight.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * 以pipeline批量确认：成功的元素从处理中列表删除，失败的元素移回队列，或在达到最多处理次数时放入死信列表
+     */
+    private void flushAcks(Jedis jedis) {
+        if (acks.isEmpty()) {
+            return;
+        }
+        int limit = maxAttempts;
+        List<byte[]> failed = new ArrayList<byte[]>();
+        Pipeline pipeline = jedis.pipelined();
+        Ack ack;
+        while ((ack = acks.poll()) != null) {
+            for (byte[] item : ack.items) {
+                pipeline.lrem(processingKeyB, 1, item);
+                if (ack.success) {
+                    if (limit > 0) {
+                        pipeline.hdel(attemptsKeyB, item);
+                    }
+                } else if (limit > 0) {
+                    failed.add(item);
+                } else {
+                    pipeline.rpush(queueKeyB, item);
+                }
+            }
+        }
+        pipeline.sync();
+        if (!failed.isEmpty()) {
+            List<byte[]> args = new ArrayList<byte[]>(failed.size() + 1);
+            args.add(SafeEncoder.encode(String.valueOf(limit)));
+            args.addAll(failed);
+            Object dead = jedisPoolDB.getScriptRegistry().evalsha(jedis, RETRY_OR_DEAD, Arrays.asList(queueKeyB, attemptsKeyB, deadLetterKeyB), args);
+            if (dead instanceof Long && (Long) dead > 0) {
+                deadLettered.addAndGet((Long) dead);
+                logger.warn((Long) dead + " items of " + queueKey + " moved to " + deadLetterKey + " after " + limit + " attempts");
+            }
+        }
+    }
+
+    private static void sleepQuietly(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class Ack {
+        private final List<byte[]> items;
+        private final boolean success;
+
+        Ack(List<byte[]> items, boolean success) {
+            this.items = items;
+            this.success = success;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+import redis.clients.util.SafeEncoder;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * 一段Lua脚本及其SHA1摘要，摘要在本地计算，与SCRIPT LOAD返回值一致，用于EVALSHA调用
+ */
+public class LuaScript {
+    private final String name;
+    private final String body;
+    private final String sha1;
+    private final byte[] sha1Bytes;
+
+    public LuaScript(String name, String body) {
+        if (name == null || body == null) {
+            throw new IllegalArgumentException("name and body can't be NULL");
+        }
+        this.name = name;
+        this.body = body;
+        this.sha1 = sha1Hex(body);
+        this.sha1Bytes = SafeEncoder.encode(sha1);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getBody() {
+        return body;
+    }
+
+    public String getSha1() {
+        return sha1;
+    }
+
+    byte[] getSha1Bytes() {
+        return sha1Bytes;
+    }
+
+    private static String sha1Hex(String body) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(SafeEncoder.encode(body));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "LuaScript[" + name + "," + sha1 + "]";
+    }
+}
@@ -0,0 +1,281 @@
+import redis.clients.util.SafeEncoder;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * 存放在内存映射文件中的key -> byte[]存储，索引与数据都在堆外，进程重启后重新打开文件即可继续使用。
+ * 文件布局：头部 | 索引（slotCount个槽，开放寻址）| 数据区（顺序追加的记录：key长度、key、value）。
+ * 每个槽记录key的hash、value的版本（CRC32与长度）、记录位置；读取时校验key与CRC32，损坏或不一致的记录视为不存在。
+ * 数据区写满或槽占用超过3/4时清空全部内容重新开始（作为缓存可以接受）；覆盖写入的旧记录在清空前不回收。
+ * 文件总大小不超过2GB。线程安全，但锁只在本JVM内有效：同一文件只能由一个进程打开，不支持多进程共享。
+ */
+public class MappedByteStore implements Closeable {
+    private static final int MAGIC = 0x4d425331;
+    private static final int HEADER_SIZE = 32;
+    private static final int SLOT_SIZE = 32;
+
+    //头部字段的位置
+    private static final int H_MAGIC = 0;
+    private static final int H_SLOT_COUNT = 4;
+    private static final int H_USED_SLOTS = 8;
+    private static final int H_DATA_CAPACITY = 12;
+    private static final int H_WRITE_POS = 16;
+    //槽内字段的位置，offset为0表示空槽
+    private static final int S_KEY_HASH = 0;
+    private static final int S_VERSION = 8;
+    private static final int S_OFFSET = 16;
+    private static final int S_LENGTH = 24;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final int slotCount;
+    private final int dataStart;
+    private final int dataCapacity;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private long resets;
+
+    /**
+     * 打开或创建存储文件，已有文件的槽数、容量与参数一致时沿用其内容，否则清空
+     *
+     * @param path         文件路径
+     * @param slotCount    最多存放的key数的4/3
+     * @param dataCapacity 数据区字节数
+     */
+    public MappedByteStore(File path, int slotCount, int dataCapacity) throws IOException {
+        if (path == null || slotCount <= 0 || dataCapacity <= 0) {
+            throw new IllegalArgumentException("path can't be NULL and slotCount, dataCapacity must be positive");
+        }
+        long size = (long) HEADER_SIZE + (long) slotCount * SLOT_SIZE + dataCapacity;
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("store file can't exceed 2GB");
+        }
+        this.slotCount = slotCount;
+        this.dataStart = HEADER_SIZE + slotCount * SLOT_SIZE;
+        this.dataCapacity = dataCapacity;
+        this.file = new RandomAccessFile(path, "rw");
+        boolean reuse = file.length() == size;
+        this.buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        if (!reuse || buffer.getInt(H_MAGIC) != MAGIC || buffer.getInt(H_SLOT_COUNT) != slotCount
+                || buffer.getInt(H_DATA_CAPACITY) != dataCapacity) {
+            clear();
+        }
+    }
+
+    /**
+     * @return key对应的value及版本，不存在或记录校验失败时返回null
+     */
+    public Entry get(String key) {
+        byte[] bkey = SafeEncoder.encode(key);
+        long hash = hash(bkey);
+        lock.readLock().lock();
+        try {
+            ByteBuffer view = buffer.duplicate();
+            int slot = find(view, bkey, hash);
+            if (slot < 0 || view.getLong(slot + S_VERSION) == 0) {
+                return null;
+            }
+            int offset = (int) view.getLong(slot + S_OFFSET);
+            int length = view.getInt(slot + S_LENGTH);
+            if (length < 4 + bkey.length || offset + length > dataStart + dataCapacity) {
+                return null;
+            }
+            byte[] value = new byte[length - 4 - bkey.length];
+            view.position(offset + 4 + bkey.length);
+            view.get(value);
+            long version = view.getLong(slot + S_VERSION);
+            return version == versionOf(value) ? new Entry(value, version) : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 写入key，value超过数据区容量的一半时不存放
+     *
+     * @return value的版本
+     */
+    public long put(String key, byte[] value) {
+        byte[] bkey = SafeEncoder.encode(key);
+        long hash = hash(bkey);
+        long version = versionOf(value);
+        int length = 4 + bkey.length + value.length;
+        if (length > dataCapacity / 2) {
+            remove(key);
+            return version;
+        }
+        lock.writeLock().lock();
+        try {
+            int slot = find(buffer, bkey, hash);
+            if (buffer.getInt(H_WRITE_POS) + length > dataStart + dataCapacity
+                    || (slot < 0 && buffer.getInt(H_USED_SLOTS) * 4L >= slotCount * 3L)) {
+                clear();
+                slot = -1;
+            }
+            if (slot < 0) {
+                slot = emptySlot(hash);
+                buffer.putInt(H_USED_SLOTS, buffer.getInt(H_USED_SLOTS) + 1);
+            }
+            int offset = buffer.getInt(H_WRITE_POS);
+            ByteBuffer view = buffer.duplicate();
+            view.position(offset);
+            view.putInt(bkey.length);
+            view.put(bkey);
+            view.put(value);
+            buffer.putInt(H_WRITE_POS, offset + length);
+            //先使槽失效再改写位置，重启时看到的不会是半新半旧的槽
+            buffer.putLong(slot + S_VERSION, 0);
+            buffer.putLong(slot + S_KEY_HASH, hash);
+            buffer.putLong(slot + S_OFFSET, offset);
+            buffer.putInt(slot + S_LENGTH, length);
+            buffer.putLong(slot + S_VERSION, version);
+            return version;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 使key失效，槽保留给同一key再次写入
+     */
+    public void remove(String key) {
+        byte[] bkey = SafeEncoder.encode(key);
+        lock.writeLock().lock();
+        try {
+            int slot = find(buffer, bkey, hash(bkey));
+            if (slot >= 0) {
+                buffer.putLong(slot + S_VERSION, 0);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 清空全部内容
+     */
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            for (int pos = HEADER_SIZE; pos < dataStart; pos += 8) {
+                buffer.putLong(pos, 0);
+            }
+            buffer.putInt(H_SLOT_COUNT, slotCount);
+            buffer.putInt(H_USED_SLOTS, 0);
+            buffer.putInt(H_DATA_CAPACITY, dataCapacity);
+            buffer.putInt(H_WRITE_POS, dataStart);
+            buffer.putInt(H_MAGIC, MAGIC);
+            resets++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return 线性探测找到key所在的槽的位置，不存在时返回-1
+     */
+    private int find(ByteBuffer view, byte[] bkey, long hash) {
+        int index = (int) ((hash & Long.MAX_VALUE) % slotCount);
+        for (int i = 0; i < slotCount; i++) {
+            int slot = HEADER_SIZE + index * SLOT_SIZE;
+            long offset = view.getLong(slot + S_OFFSET);
+            if (offset == 0) {
+                return -1;
+            }
+            if (view.getLong(slot + S_KEY_HASH) == hash && keyEquals(view, (int) offset, bkey)) {
+                return slot;
+            }
+            index = index + 1 == slotCount ? 0 : index + 1;
+        }
+        return -1;
+    }
+
+    private int emptySlot(long hash) {
+        int index = (int) ((hash & Long.MAX_VALUE) % slotCount);
+        while (buffer.getLong(HEADER_SIZE + index * SLOT_SIZE + S_OFFSET) != 0) {
+            index = index + 1 == slotCount ? 0 : index + 1;
+        }
+        return HEADER_SIZE + index * SLOT_SIZE;
+    }
+
+    private boolean keyEquals(ByteBuffer view, int offset, byte[] bkey) {
+        if (offset < dataStart || offset + 4 + bkey.length > dataStart + dataCapacity || view.getInt(offset) != bkey.length) {
+            return false;
+        }
+        byte[] stored = new byte[bkey.length];
+        ByteBuffer record = view.duplicate();
+        record.position(offset + 4);
+        record.get(stored);
+        return Arrays.equals(stored, bkey);
+    }
+
+    private static long hash(byte[] bytes) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : bytes) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /**
+     * value的版本：高32位为长度，低32位为CRC32，不为0
+     */
+    public static long versionOf(byte[] value) {
+        CRC32 crc = new CRC32();
+        crc.update(value, 0, value.length);
+        return ((long) (value.length + 1) << 32) | crc.getValue();
+    }
+
+    /**
+     * @return 因写满或数据不兼容清空的次数
+     */
+    public long getResets() {
+        return resets;
+    }
+
+    /**
+     * 将内容刷到磁盘并关闭文件
+     */
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            buffer.force();
+            file.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 存储中的一项
+     */
+    public static class Entry {
+        private final byte[] value;
+        private final long version;
+
+        Entry(byte[] value, long version) {
+            this.value = value;
+            this.version = version;
+        }
+
+        public byte[] getValue() {
+            return value;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+    }
+}
@@ -0,0 +1,372 @@
+import redis.clients.jedis.PipelineBase;
+import redis.clients.util.SafeEncoder;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
+
+/**
+ * 为大而少变的value增加本机二级缓存的ICacheDB：value的编码结果存放在内存映射文件中（见MappedByteStore），不占用java堆，
+ * 进程重启后仍然有效。
+ * 写入时除value外另存一个版本key（key + versionSuffix，值为value的长度与CRC32），读取时先读取版本key，
+ * 与本机存放的版本一致时直接使用本机数据，否则读取redis中的value并更新本机数据。
+ * 版本key不存在（value不是经本类写入）时直接读取redis，不使用本机数据；小于minValueBytes的value不放入本机，也不写版本key。
+ * getObject/getString/setObject/setString/set*IfNotExist/get*AndExpire/delete/expire及对应的multi*操作经过二级缓存；
+ * compareAndSet*、getAndUpdate*先删除版本key与本机数据再转发，之后的读取直接读取redis，直到下次经本类写入；其余操作直接转发。
+ * <p>
+ * 数据文件只能由一个进程使用：MappedByteStore的锁只在本JVM内有效，多个进程打开同一文件会互相破坏数据。
+ * <p>
+ * e.g: MappedL2CacheDB db = new MappedL2CacheDB(redisDB, new File("/data/cache/l2.dat"), 100000, 1024 * 1024 * 1024);
+ */
+public class MappedL2CacheDB extends DelegatingCacheDB implements Closeable {
+    private final JedisPoolDB<?> jedisPoolDB;
+    private final MappedByteStore store;
+    private String versionSuffix = ":l2ver";
+    private int minValueBytes = 16 * 1024;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param jedisPoolDB
+     * @param path         本机数据文件，已存在时沿用其内容
+     * @param maxEntries   本机最多存放的value数
+     * @param dataCapacity 本机数据区字节数
+     */
+    public MappedL2CacheDB(JedisPoolDB<?> jedisPoolDB, File path, int maxEntries, int dataCapacity) throws IOException {
+        super(jedisPoolDB);
+        this.jedisPoolDB = jedisPoolDB;
+        this.store = new MappedByteStore(path, (int) Math.min(Integer.MAX_VALUE, maxEntries * 4L / 3 + 1), dataCapacity);
+    }
+
+    public MappedL2CacheDB setVersionSuffix(String versionSuffix) {
+        if (versionSuffix == null || versionSuffix.isEmpty()) {
+            throw new IllegalArgumentException("versionSuffix can't be NULL");
+        }
+        this.versionSuffix = versionSuffix;
+        return this;
+    }
+
+    /**
+     * @param minValueBytes 编码后小于此字节数的value不使用本机缓存
+     */
+    public MappedL2CacheDB setMinValueBytes(int minValueBytes) {
+        this.minValueBytes = minValueBytes;
+        return this;
+    }
+
+    @Override
+    public <T extends Serializable> T getObject(String key, Class<T> type) {
+        byte[] value = getBytes(key);
+        return value == null ? null : jedisPoolDB.getSerialize().decode(value, type);
+    }
+
+    @Override
+    public String getString(String key) {
+        byte[] value = getBytes(key);
+        return value == null ? null : SafeEncoder.encode(value);
+    }
+
+    private byte[] getBytes(String key) {
+        notNullAssert(key);
+        long version = parseVersion(cacheDB.getString(key + versionSuffix));
+        if (version == 0) {
+            return jedisPoolDB.getBytes(key);
+        }
+        MappedByteStore.Entry entry = store.get(key);
+        if (entry != null && entry.getVersion() == version) {
+            hits.incrementAndGet();
+            return entry.getValue();
+        }
+        misses.incrementAndGet();
+        byte[] value = jedisPoolDB.getBytes(key);
+        //读取期间value可能已被改写，只存放与版本key一致的数据
+        if (value != null && MappedByteStore.versionOf(value) == version) {
+            store.put(key, value);
+        }
+        return value;
+    }
+
+    private static long parseVersion(String version) {
+        if (version == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(version);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public <T extends Serializable> boolean setObject(String key, int expirePeriodInSecond, T value) {
+        notNullAssert(key);
+        notNullAssert(value);
+        set(key, expirePeriodInSecond, jedisPoolDB.getSerialize().encode(value));
+        return true;
+    }
+
+    @Override
+    public boolean setString(String key, int expirePeriodInSecond, String value) {
+        notNullAssert(key);
+        notNullAssert(value);
+        set(key, expirePeriodInSecond, SafeEncoder.encode(value));
+        return true;
+    }
+
+    /**
+     * value与版本key在一次pipeline中写入；先写value后写版本，读到新版本而value尚未更新时不会存入本机
+     */
+    private void set(String key, int expirePeriodInSecond, final byte[] value) {
+        //value与版本key使用同一个抖动后的过期时间
+        final int expire = jedisPoolDB.expireOf(expirePeriodInSecond);
+        final byte[] bkey = jedisPoolDB.encodeKey(key);
+        final byte[] versionKey = jedisPoolDB.encodeKey(key + versionSuffix);
+        final byte[] version;
+        if (value.length >= minValueBytes) {
+            version = SafeEncoder.encode(String.valueOf(store.put(key, value)));
+        } else {
+            store.remove(key);
+            version = null;
+        }
+        jedisPoolDB.runPipelined(new JedisPoolDB.PipelineCallback() {
+            @Override
+            public void execute(PipelineBase pipeline) {
+                if (expire > 0) {
+                    pipeline.setex(bkey, expire, value);
+                } else {
+                    pipeline.set(bkey, value);
+                }
+                if (version == null) {
+                    pipeline.del(versionKey);
+                } else if (expire > 0) {
+                    pipeline.setex(versionKey, expire, version);
+                } else {
+                    pipeline.set(versionKey, version);
+                }
+            }
+        });
+    }
+
+    @Override
+    public boolean setStringIfNotExist(String key, int expirePeriodInSecond, String value) {
+        notNullAssert(key);
+        notNullAssert(value);
+        return cacheDB.setStringIfNotExist(key, expirePeriodInSecond, value) && setVersion(key, expirePeriodInSecond, SafeEncoder.encode(value));
+    }
+
+    @Override
+    public <T extends Serializable> boolean setObjectIfNotExist(String key, int expirePeriodInSecond, T value) {
+        notNullAssert(key);
+        notNullAssert(value);
+        return cacheDB.setObjectIfNotExist(key, expirePeriodInSecond, value)
+                && setVersion(key, expirePeriodInSecond, jedisPoolDB.getSerialize().encode(value));
+    }
+
+    /**
+     * value已写入redis后写入版本key；写入版本之前的读取没有版本key，直接读取redis
+     */
+    private boolean setVersion(String key, int expirePeriodInSecond, byte[] value) {
+        if (value.length < minValueBytes) {
+            invalidate(key);
+            return true;
+        }
+        String version = String.valueOf(store.put(key, value));
+        cacheDB.setString(key + versionSuffix, expirePeriodInSecond, version);
+        return true;
+    }
+
+    @Override
+    public boolean compareAndSetString(String key, String expect, String update, int expirePeriodInSecond) {
+        invalidate(key);
+        return cacheDB.compareAndSetString(key, expect, update, expirePeriodInSecond);
+    }
+
+    @Override
+    public <T extends Serializable> boolean compareAndSetObject(String key, T expect, T update, int expirePeriodInSecond) {
+        invalidate(key);
+        return cacheDB.compareAndSetObject(key, expect, update, expirePeriodInSecond);
+    }
+
+    @Override
+    public <T extends Serializable> T getAndUpdateObject(String key, int expirePeriodInSecond, Class<T> type, UnaryOperator<T> updater) {
+        invalidate(key);
+        return cacheDB.getAndUpdateObject(key, expirePeriodInSecond, type, updater);
+    }
+
+    @Override
+    public String getAndUpdateString(String key, int expirePeriodInSecond, UnaryOperator<String> updater) {
+        invalidate(key);
+        return cacheDB.getAndUpdateString(key, expirePeriodInSecond, updater);
+    }
+
+    /**
+     * 删除版本key与本机数据，value改由redis直接读取；须在修改value之前调用，修改期间的读取不会用到本机的旧数据
+     */
+    private void invalidate(String key) {
+        notNullAssert(key);
+        cacheDB.delete(key + versionSuffix);
+        store.remove(key);
+    }
+
+    /**
+     * 经二级缓存读取，存在时一并刷新value与版本key的过期时间
+     */
+    @Override
+    public <T extends Serializable> T getObjectAndExpire(String key, int expirePeriodInSecond, Class<T> type) {
+        byte[] value = getAndExpire(key, expirePeriodInSecond);
+        return value == null ? null : jedisPoolDB.getSerialize().decode(value, type);
+    }
+
+    @Override
+    public String getStringAndExpire(String key, int expirePeriodInSecond) {
+        byte[] value = getAndExpire(key, expirePeriodInSecond);
+        return value == null ? null : SafeEncoder.encode(value);
+    }
+
+    private byte[] getAndExpire(String key, int expirePeriodInSecond) {
+        byte[] value = getBytes(key);
+        if (value != null && expirePeriodInSecond > 0) {
+            expire(key, expirePeriodInSecond);
+        }
+        return value;
+    }
+
+    @Override
+    public boolean delete(String key) {
+        notNullAssert(key);
+        store.remove(key);
+        final byte[] bkey = jedisPoolDB.encodeKey(key);
+        final byte[] versionKey = jedisPoolDB.encodeKey(key + versionSuffix);
+        return Long.valueOf(1).equals(jedisPoolDB.runPipelined(new JedisPoolDB.PipelineCallback() {
+            @Override
+            public void execute(PipelineBase pipeline) {
+                pipeline.del(bkey);
+                pipeline.del(versionKey);
+            }
+        }).get(0));
+    }
+
+    @Override
+    public boolean expire(String key, final int expirePeriodInSecond) {
+        notNullAssert(key);
+        final byte[] bkey = jedisPoolDB.encodeKey(key);
+        final byte[] versionKey = jedisPoolDB.encodeKey(key + versionSuffix);
+        return Long.valueOf(1).equals(jedisPoolDB.runPipelined(new JedisPoolDB.PipelineCallback() {
+            @Override
+            public void execute(PipelineBase pipeline) {
+                pipeline.expire(bkey, expirePeriodInSecond);
+                pipeline.expire(versionKey, expirePeriodInSecond);
+            }
+        }).get(0));
+    }
+
+    /**
+     * 逐个经二级缓存读取
+     */
+    @Override
+    public <T extends Serializable> Map<String, T> multiGetObject(Class<T> type, String... keys) {
+        Map<String, T> ret = new HashMap<String, T>();
+        for (String key : keys) {
+            T value = getObject(key, type);
+            if (value != null) {
+                ret.put(key, value);
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public Map<String, String> multiGetString(String... keys) {
+        Map<String, String> ret = new HashMap<String, String>();
+        for (String key : keys) {
+            String value = getString(key);
+            if (value != null) {
+                ret.put(key, value);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * 逐个写入，同时更新版本key
+     */
+    @Override
+    public <T extends Serializable> boolean multiSetObject(Map<String, T> keyValues, int expirePeriodInSecond) {
+        for (Map.Entry<String, T> entry : keyValues.entrySet()) {
+            setObject(entry.getKey(), expirePeriodInSecond, entry.getValue());
+        }
+        return true;
+    }
+
+    @Override
+    public boolean multiSetString(Map<String, String> keyValues, int expirePeriodInSecond) {
+        for (Map.Entry<String, String> entry : keyValues.entrySet()) {
+            setString(entry.getKey(), expirePeriodInSecond, entry.getValue());
+        }
+        return true;
+    }
+
+    /**
+     * 一并删除版本key与本机数据
+     */
+    @Override
+    public int multiDelete(String... keys) {
+        for (String key : keys) {
+            store.remove(key);
+        }
+        cacheDB.multiDelete(versionKeys(keys));
+        return cacheDB.multiDelete(keys);
+    }
+
+    @Override
+    public int multiExpire(int expirePeriodInSecond, String... keys) {
+        cacheDB.multiExpire(expirePeriodInSecond, versionKeys(keys));
+        return cacheDB.multiExpire(expirePeriodInSecond, keys);
+    }
+
+    private String[] versionKeys(String... keys) {
+        String[] ret = new String[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            notNullAssert(keys[i]);
+            ret[i] = keys[i] + versionSuffix;
+        }
+        return ret;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public MappedByteStore getStore() {
+        return store;
+    }
+
+    /**
+     * 将本机数据刷到磁盘并关闭文件，不关闭redis连接池
+     */
+    @Override
+    public void close() throws IOException {
+        store.close();
+    }
+
+    @Override
+    public String toString() {
+        return "MappedL2CacheDB[hits=" + hits.get() + ", misses=" + misses.get() + ", resets=" + store.getResets() + "]";
+    }
+
+    private static void notNullAssert(Object value) {
+        if (value == null) {
+            throw new IllegalArgumentException("not support the Object-type of Null");
+        }
+    }
+}
@@ -0,0 +1,570 @@
+import com.qlc.common.util.log.LogUtil;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.PipelineBase;
+import redis.clients.util.SafeEncoder;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.UnaryOperator;
+
+/**
+ * 未命中防护层：对不存在的key，在本地直接返回null，不产生网络请求。
+ * <p>
+ * 1. 负缓存：getObject/getString/hGetObject/hGetString未命中后，在negativeTtlMillis内同一key（或同一field）的读取直接返回null；
+ * 经本实例写入时立即失效，与写入并发、读到写入前状态的未命中也不会留下负缓存。其他进程写入的数据最多在negativeTtlMillis后可见。
+ * <p>
+ * 2. 布隆过滤器（可选）：记录已知存在的key，过滤器判定一定不存在的key直接返回null。只有过滤器完整时才可用于判定，
+ * 因此须通过以下方式之一开启：调用loadBloomFromRedis()从redis bitmap镜像加载（其他进程写入时同步设置该bitmap），
+ * 或自行调用addKnownKey()登记全部已存在的key后调用setBloomAuthoritative(true)。
+ * 开启redis镜像时，经本实例写入的新key由后台线程批量设置bitmap（不阻塞写入），并每隔refreshIntervalMillis重新合并一次，
+ * 其他进程新写入的key最多在此间隔（加上本进程的一次批量设置）后可见。
+ * 布隆过滤器不支持删除，删除后的key仍由负缓存兜底。
+ */
+public class MissGuardCacheDB extends DelegatingCacheDB {
+    private static final byte[] BIT_ONE = SafeEncoder.encode("1");
+    private static final int WRITE_STAMP_STRIPES = 64;
+
+    private final JedisPoolDB<?> jedisPoolDB;
+    private final long negativeTtlMillis;
+    private final int maxNegativeEntries;
+    private final ConcurrentHashMap<String, Long> negatives = new ConcurrentHashMap<String, Long>();
+    //按key分段的写入计数，经本实例写入时递增，用于撤销读取期间被写入的key的负缓存
+    private final AtomicLongArray writeStamps = new AtomicLongArray(WRITE_STAMP_STRIPES);
+
+    private volatile BloomFilter bloomFilter;
+    private volatile boolean bloomAuthoritative;
+    private volatile String bloomRedisKey;//redis bitmap镜像的key，为null时不镜像
+    private ScheduledExecutorService refresher;
+    //新登记、尚未写入redis bitmap的key，由后台线程批量写入
+    private final ConcurrentLinkedQueue<String> bloomPending = new ConcurrentLinkedQueue<String>();
+    private final AtomicBoolean bloomSyncScheduled = new AtomicBoolean();
+    private ExecutorService bloomSyncer;
+
+    /**
+     * @param jedisPoolDB
+     * @param negativeTtlMillis  负缓存有效期，0表示不使用负缓存
+     * @param maxNegativeEntries 负缓存最大条数，超过时清空
+     */
+    public MissGuardCacheDB(JedisPoolDB<?> jedisPoolDB, long negativeTtlMillis, int maxNegativeEntries) {
+        super(jedisPoolDB);
+        this.jedisPoolDB = jedisPoolDB;
+        this.negativeTtlMillis = negativeTtlMillis;
+        this.maxNegativeEntries = maxNegativeEntries;
+    }
+
+    /**
+     * 启用布隆过滤器
+     *
+     * @param bloomFilter
+     * @param bloomRedisKey 在redis中镜像过滤器的bitmap key，为null时只在本地使用
+     */
+    public void setBloomFilter(BloomFilter bloomFilter, String bloomRedisKey) {
+        this.bloomFilter = bloomFilter;
+        this.bloomRedisKey = bloomRedisKey;
+        this.bloomAuthoritative = false;
+    }
+
+    /**
+     * @param bloomAuthoritative true 表示过滤器已包含所有已存在的key，可据此判定不存在
+     */
+    public void setBloomAuthoritative(boolean bloomAuthoritative) {
+        if (bloomAuthoritative && bloomFilter == null) {
+            throw new IllegalStateException("bloomFilter not set");
+        }
+        this.bloomAuthoritative = bloomAuthoritative;
+    }
+
+    /**
+     * 登记已存在的key（仅本地，不同步redis bitmap）
+     */
+    public void addKnownKey(String key) {
+        BloomFilter filter = bloomFilter;
+        if (filter != null) {
+            filter.add(key);
+        }
+    }
+
+    /**
+     * 从redis bitmap合并过滤器，并开启判定；refreshIntervalMillis大于0时定期重新合并
+     *
+     * @param refreshIntervalMillis
+     */
+    public synchronized void loadBloomFromRedis(long refreshIntervalMillis) {
+        if (bloomFilter == null || bloomRedisKey == null) {
+            throw new IllegalStateException("bloomFilter or bloomRedisKey not set");
+        }
+        mergeFromRedis();
+        bloomAuthoritative = true;
+        if (refreshIntervalMillis > 0 && refresher == null) {
+            refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "redis-bloom-refresh");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            refresher.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        mergeFromRedis();
+                    } catch (Exception e) {
+                        LogUtil.error(e);
+                    }
+                }
+            }, refreshIntervalMillis, refreshIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 停止定期合并，并同步写入尚未写入redis bitmap的key
+     */
+    public synchronized void shutdown() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+            refresher = null;
+        }
+        if (bloomSyncer != null) {
+            bloomSyncer.shutdown();
+            try {
+                bloomSyncer.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            bloomSyncer = null;
+        }
+        syncBloom();
+    }
+
+    @Override
+    public <T extends Serializable> T getObject(String key, Class<T> type) {
+        if (definitelyMissing(key, null)) {
+            return null;
+        }
+        long stamp = writeStamp(key);
+        T ret = cacheDB.getObject(key, type);
+        if (ret == null) {
+            putNegative(key, null, stamp);
+        }
+        return ret;
+    }
+
+    @Override
+    public String getString(String key) {
+        if (definitelyMissing(key, null)) {
+            return null;
+        }
+        long stamp = writeStamp(key);
+        String ret = cacheDB.getString(key);
+        if (ret == null) {
+            putNegative(key, null, stamp);
+        }
+        return ret;
+    }
+
+    @Override
+    public <T extends Serializable> T hGetObject(String key, String field, Class<T> type) {
+        if (definitelyMissing(key, field)) {
+            return null;
+        }
+        long stamp = writeStamp(key);
+        T ret = cacheDB.hGetObject(key, field, type);
+        if (ret == null) {
+            putNegative(key, field, stamp);
+        }
+        return ret;
+    }
+
+    @Override
+    public String hGetString(String key, String field) {
+        if (definitelyMissing(key, field)) {
+            return null;
+        }
+        long stamp = writeStamp(key);
+        String ret = cacheDB.hGetString(key, field);
+        if (ret == null) {
+            putNegative(key, field, stamp);
+        }
+        return ret;
+    }
+
+    @Override
+    public <T extends Serializable> boolean setObject(String key, int expirePeriodInSecond, T value) {
+        markExists(key, null);
+        return written(key, null, cacheDB.setObject(key, expirePeriodInSecond, value));
+    }
+
+    @Override
+    public boolean setString(String key, int expirePeriodInSecond, String value) {
+        markExists(key, null);
+        return written(key, null, cacheDB.setString(key, expirePeriodInSecond, value));
+    }
+
+    /**
+     * 本地判定为不存在的key不发往redis，未读到的key记为不存在
+     */
+    @Override
+    public <T extends Serializable> Map<String, T> multiGetObject(Class<T> type, String... keys) {
+        String[] candidates = candidates(keys);
+        long[] stamps = writeStamps(candidates);
+        Map<String, T> ret = candidates.length == 0 ? new HashMap<String, T>() : cacheDB.multiGetObject(type, candidates);
+        for (int i = 0; i < candidates.length; i++) {
+            if (!ret.containsKey(candidates[i])) {
+                putNegative(candidates[i], null, stamps[i]);
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public Map<String, String> multiGetString(String... keys) {
+        String[] candidates = candidates(keys);
+        long[] stamps = writeStamps(candidates);
+        Map<String, String> ret = candidates.length == 0 ? new HashMap<String, String>() : cacheDB.multiGetString(candidates);
+        for (int i = 0; i < candidates.length; i++) {
+            if (!ret.containsKey(candidates[i])) {
+                putNegative(candidates[i], null, stamps[i]);
+            }
+        }
+        return ret;
+    }
+
+    private String[] candidates(String... keys) {
+        List<String> ret = new ArrayList<String>(keys.length);
+        for (String key : keys) {
+            if (!definitelyMissing(key, null)) {
+                ret.add(key);
+            }
+        }
+        return ret.toArray(new String[ret.size()]);
+    }
+
+    @Override
+    public <T extends Serializable> boolean multiSetObject(Map<String, T> keyValues, int expirePeriodInSecond) {
+        for (String key : keyValues.keySet()) {
+            markExists(key, null);
+        }
+        boolean ret = cacheDB.multiSetObject(keyValues, expirePeriodInSecond);
+        for (String key : keyValues.keySet()) {
+            invalidate(key, null);
+        }
+        return ret;
+    }
+
+    @Override
+    public boolean multiSetString(Map<String, String> keyValues, int expirePeriodInSecond) {
+        for (String key : keyValues.keySet()) {
+            markExists(key, null);
+        }
+        boolean ret = cacheDB.multiSetString(keyValues, expirePeriodInSecond);
+        for (String key : keyValues.keySet()) {
+            invalidate(key, null);
+        }
+        return ret;
+    }
+
+    @Override
+    public boolean setStringIfNotExist(String key, int expirePeriodInSecond, String value) {
+        markExists(key, null);
+        return written(key, null, cacheDB.setStringIfNotExist(key, expirePeriodInSecond, value));
+    }
+
+    @Override
+    public <T extends Serializable> boolean setObjectIfNotExist(String key, int expirePeriodInSecond, T value) {
+        markExists(key, null);
+        return written(key, null, cacheDB.setObjectIfNotExist(key, expirePeriodInSecond, value));
+    }
+
+    @Override
+    public boolean compareAndSetString(String key, String expect, String update, int expirePeriodInSecond) {
+        markExists(key, null);
+        return written(key, null, cacheDB.compareAndSetString(key, expect, update, expirePeriodInSecond));
+    }
+
+    @Override
+    public <T extends Serializable> boolean compareAndSetObject(String key, T expect, T update, int expirePeriodInSecond) {
+        markExists(key, null);
+        return written(key, null, cacheDB.compareAndSetObject(key, expect, update, expirePeriodInSecond));
+    }
+
+    @Override
+    public <T extends Serializable> T getAndUpdateObject(String key, int expirePeriodInSecond, Class<T> type, UnaryOperator<T> updater) {
+        markExists(key, null);
+        return written(key, null, cacheDB.getAndUpdateObject(key, expirePeriodInSecond, type, updater));
+    }
+
+    @Override
+    public String getAndUpdateString(String key, int expirePeriodInSecond, UnaryOperator<String> updater) {
+        markExists(key, null);
+        return written(key, null, cacheDB.getAndUpdateString(key, expirePeriodInSecond, updater));
+    }
+
+    @Override
+    public <T extends Serializable> T hGetAndUpdateObject(String key, String field, Class<T> type, UnaryOperator<T> updater) {
+        markExists(key, field);
+        return written(key, field, cacheDB.hGetAndUpdateObject(key, field, type, updater));
+    }
+
+    @Override
+    public String hGetAndUpdateString(String key, String field, UnaryOperator<String> updater) {
+        markExists(key, field);
+        return written(key, field, cacheDB.hGetAndUpdateString(key, field, updater));
+    }
+
+    @Override
+    public boolean incrDecrInit(String key, int expirePeriodInSecond, long value) {
+        markExists(key, null);
+        return written(key, null, cacheDB.incrDecrInit(key, expirePeriodInSecond, value));
+    }
+
+    @Override
+    public long incrBy(String key, int step) {
+        markExists(key, null);
+        return written(key, null, cacheDB.incrBy(key, step));
+    }
+
+    @Override
+    public long decrBy(String key, int step) {
+        markExists(key, null);
+        return written(key, null, cacheDB.decrBy(key, step));
+    }
+
+    @Override
+    public <T extends Serializable> boolean hSetObject(String key, String field, T value) {
+        markExists(key, field);
+        return written(key, field, cacheDB.hSetObject(key, field, value));
+    }
+
+    @Override
+    public boolean hSetString(String key, String field, String value) {
+        markExists(key, field);
+        return written(key, field, cacheDB.hSetString(key, field, value));
+    }
+
+    @Override
+    public <T extends Serializable> boolean hMultiSetObject(String key, Map<String, T> fieldValues) {
+        markFieldsExist(key, fieldValues);
+        return writtenFields(key, fieldValues, cacheDB.hMultiSetObject(key, fieldValues));
+    }
+
+    @Override
+    public boolean hMultiSetString(String key, Map<String, String> fieldValues) {
+        markFieldsExist(key, fieldValues);
+        return writtenFields(key, fieldValues, cacheDB.hMultiSetString(key, fieldValues));
+    }
+
+    @Override
+    public <T extends Serializable> boolean hMultiSetObject(String key, Map<String, T> fieldValues, int expirePeriodInSecond) {
+        markFieldsExist(key, fieldValues);
+        return writtenFields(key, fieldValues, cacheDB.hMultiSetObject(key, fieldValues, expirePeriodInSecond));
+    }
+
+    @Override
+    public boolean hMultiSetString(String key, Map<String, String> fieldValues, int expirePeriodInSecond) {
+        markFieldsExist(key, fieldValues);
+        return writtenFields(key, fieldValues, cacheDB.hMultiSetString(key, fieldValues, expirePeriodInSecond));
+    }
+
+    private boolean definitelyMissing(String key, String field) {
+        if (key == null) {
+            return false;
+        }
+        BloomFilter filter = bloomFilter;
+        if (bloomAuthoritative && filter != null && !filter.mightContain(key)) {
+            return true;
+        }
+        if (negativeTtlMillis <= 0 || negatives.isEmpty()) {
+            return false;
+        }
+        String negativeKey = negativeKey(key, field);
+        Long expireAt = negatives.get(negativeKey);
+        if (expireAt == null) {
+            return false;
+        }
+        if (expireAt > System.currentTimeMillis()) {
+            return true;
+        }
+        negatives.remove(negativeKey, expireAt);
+        return false;
+    }
+
+    /**
+     * 读取未命中后记为不存在。stamp为读取前的写入计数：写入后计数会变化，插入后重新检查，
+     * 读取期间经本实例写入过该key时撤销本次插入，不会在写入之后留下负缓存
+     */
+    private void putNegative(String key, String field, long stamp) {
+        if (negativeTtlMillis <= 0) {
+            return;
+        }
+        if (negatives.size() >= maxNegativeEntries) {
+            negatives.clear();
+        }
+        String negativeKey = negativeKey(key, field);
+        Long expireAt = System.currentTimeMillis() + negativeTtlMillis;
+        negatives.put(negativeKey, expireAt);
+        if (writeStamp(key) != stamp) {
+            negatives.remove(negativeKey, expireAt);
+        }
+    }
+
+    private long writeStamp(String key) {
+        return writeStamps.get(stripe(key));
+    }
+
+    private long[] writeStamps(String[] keys) {
+        long[] ret = new long[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            ret[i] = writeStamp(keys[i]);
+        }
+        return ret;
+    }
+
+    private static int stripe(String key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & (WRITE_STAMP_STRIPES - 1);
+    }
+
+    /**
+     * 写入前调用：登记到布隆过滤器并使负缓存失效
+     */
+    private void markFieldsExist(String key, Map<String, ?> fieldValues) {
+        if (key != null && fieldValues != null) {
+            for (String field : fieldValues.keySet()) {
+                invalidate(key, field);
+            }
+        }
+        markExists(key, null);
+    }
+
+    /**
+     * 写入前调用：登记到布隆过滤器并使负缓存失效；写入完成后须再调用written/invalidate，
+     * 覆盖写入前开始、写入落地前读到未命中的读取
+     */
+    private void markExists(String key, String field) {
+        if (key == null) {
+            return;
+        }
+        invalidate(key, field);
+        BloomFilter filter = bloomFilter;
+        if (filter == null || filter.mightContain(key)) {
+            return;
+        }
+        filter.add(key);
+        if (bloomRedisKey != null) {
+            bloomPending.add(key);
+            scheduleBloomSync();
+        }
+    }
+
+    private <R> R written(String key, String field, R result) {
+        invalidate(key, field);
+        return result;
+    }
+
+    private <R> R writtenFields(String key, Map<String, ?> fieldValues, R result) {
+        if (key != null && fieldValues != null) {
+            for (String field : fieldValues.keySet()) {
+                invalidate(key, field);
+            }
+        }
+        invalidate(key, null);
+        return result;
+    }
+
+    private void invalidate(String key, String field) {
+        if (key == null) {
+            return;
+        }
+        //先改写入计数再删除：与putNegative的先插入后检查配合，任何交错都不会留下负缓存
+        writeStamps.incrementAndGet(stripe(key));
+        if (!negatives.isEmpty()) {
+            negatives.remove(negativeKey(key, field));
+        }
+    }
+
+    private void scheduleBloomSync() {
+        if (bloomSyncScheduled.compareAndSet(false, true)) {
+            bloomSyncer().execute(new Runnable() {
+                @Override
+                public void run() {
+                    bloomSyncScheduled.set(false);
+                    syncBloom();
+                }
+            });
+        }
+    }
+
+    private synchronized ExecutorService bloomSyncer() {
+        if (bloomSyncer == null) {
+            bloomSyncer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "redis-bloom-sync");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return bloomSyncer;
+    }
+
+    /**
+     * 以一次pipeline把新登记的key写入redis bitmap；失败时key放回队列，在下次写入新key或shutdown时重试
+     */
+    private void syncBloom() {
+        final List<String> keys = new ArrayList<String>();
+        String key;
+        while ((key = bloomPending.poll()) != null) {
+            keys.add(key);
+        }
+        final BloomFilter filter = bloomFilter;
+        final String redisKey = bloomRedisKey;
+        if (keys.isEmpty() || filter == null || redisKey == null) {
+            return;
+        }
+        try {
+            jedisPoolDB.runPipelined(new JedisPoolDB.PipelineCallback() {
+                @Override
+                public void execute(PipelineBase pipeline) {
+                    byte[] bitmapKey = jedisPoolDB.encodeKey(redisKey);
+                    for (String key : keys) {
+                        for (long offset : filter.offsets(key)) {
+                            pipeline.setbit(bitmapKey, offset, BIT_ONE);
+                        }
+                    }
+                }
+            });
+        } catch (Exception e) {
+            LogUtil.error(e);
+            bloomPending.addAll(keys);
+        }
+    }
+
+    private void mergeFromRedis() {
+        final String redisKey = bloomRedisKey;
+        byte[] bitmap = jedisPoolDB.runOnNode(redisKey, true, new JedisPoolDB.NodeCallback<byte[]>() {
+            @Override
+            public byte[] execute(Jedis jedis) {
+                return jedis.get(jedisPoolDB.encodeKey(redisKey));
+            }
+        });
+        bloomFilter.merge(bitmap);
+    }
+
+    private static String negativeKey(String key, String field) {
+        return field == null ? key : key + '\u0000' + field;
+    }
+}
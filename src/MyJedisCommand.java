@@ -1,7 +1,15 @@
 import com.qlc.common.util.log.LogUtil;
 import com.qlc.common.util.transcoder.ISerialize;
+import org.apache.commons.pool2.impl.GenericObjectPool;
 import redis.clients.jedis.BinaryJedisCommands;
+import redis.clients.jedis.Client;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisCommands;
+import redis.clients.jedis.JedisSentinelPool;
+import redis.clients.jedis.ShardedJedis;
+import redis.clients.jedis.ShardedJedisPool;
+import redis.clients.jedis.exceptions.JedisConnectionException;
 import redis.clients.jedis.exceptions.JedisException;
 import redis.clients.util.Pool;
 import redis.clients.util.SafeEncoder;
@@ -10,47 +18,351 @@ import transcoder.ISerialize;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
 
 public abstract class MyJedisCommand<T, C extends JedisCommands & BinaryJedisCommands & Closeable> {
 
     private Pool<C> jedisPool;
     private ISerialize serialize;
+    private CircuitBreaker circuitBreaker;
+    private HedgePolicy.PrimaryConnection primaryConnection;//对冲读取中主节点的连接，对冲请求先返回时被断开
+    //execute中登记的key（已编码）与value字节数，用于命令轨迹
+    private byte[] traceKey;
+    private int traceSize;
 
     public MyJedisCommand(Pool<C> jedisPool, ISerialize serialize) {
+        this(jedisPool, serialize, null);
+    }
+
+    /**
+     * @param circuitBreaker 为null时不熔断
+     */
+    public MyJedisCommand(Pool<C> jedisPool, ISerialize serialize, CircuitBreaker circuitBreaker) {
         this.jedisPool = jedisPool;
         this.serialize = serialize;
+        this.circuitBreaker = circuitBreaker;
     }
 
     public abstract T execute(C connection);
 
+    void setPrimaryConnection(HedgePolicy.PrimaryConnection primaryConnection) {
+        this.primaryConnection = primaryConnection;
+    }
+
+    /**
+     * 在execute中登记本次操作的key，开启命令轨迹记录时写入轨迹
+     *
+     * @param key 已编码的key
+     * @return key本身
+     */
+    protected byte[] traced(byte[] key) {
+        traceKey = key;
+        return key;
+    }
+
+    /**
+     * 在execute中登记本次操作写入或读到的value字节数
+     */
+    protected void tracedSize(int valueSize) {
+        traceSize = valueSize;
+    }
+
+    /**
+     * 沿用另一个命令在execute中登记的key与value字节数，用于代为执行其他命令的包装命令
+     */
+    void traceAs(MyJedisCommand<?, ?> command) {
+        traceKey = command.traceKey;
+        traceSize = command.traceSize;
+    }
+
+    static int sizeOf(byte[][] values) {
+        int size = 0;
+        for (byte[] value : values) {
+            size += value == null ? 0 : value.length;
+        }
+        return size;
+    }
+
+    static int sizeOf(Collection<byte[]> values) {
+        int size = 0;
+        for (byte[] value : values) {
+            size += value == null ? 0 : value.length;
+        }
+        return size;
+    }
+
+    /**
+     * 节点熔断中时的处理，默认抛出异常快速失败；子类可覆盖以返回降级结果
+     *
+     * @param e
+     * @return
+     */
+    protected T onCircuitOpen(CircuitBreakerOpenException e) {
+        throw e;
+    }
+
     public T run() {
+        if (!admit(circuitBreaker)) {
+            return onCircuitOpen(circuitOpen(circuitBreaker));
+        }
+        long start = System.currentTimeMillis();
+        long traceStart = CommandTraceRecorder.begin();
+        int outcome = IGNORED;
         C connection = null;
         try {
-            connection = jedisPool.getResource();
-            return execute(connection);
-        } catch (JedisException je) {
-            releaseConnection(connection, true);
-            connection = null;
+            connection = borrow(jedisPool);
+            if (primaryConnection != null && !primaryConnection.attach(connection)) {
+                throw new JedisConnectionException("primary read abandoned, hedge returned first");
+            }
+            T ret = execute(connection);
+            outcome = COMPLETED;
+            return ret;
+        } catch (JedisConnectionException je) {
+            if (CallDeadline.isExpired()) {
+                throw new DeadlineExceededException("call deadline exceeded", je);
+            }
+            if (primaryConnection == null || !primaryConnection.isAborted()) {
+                outcome = NODE_FAILURE;
+            }
             throw je;
         } finally {
-            releaseConnection(connection, false);
+            if (primaryConnection != null && primaryConnection.detach() && connection != null) {
+                //socket已被断开，不能归还复用
+                jedisPool.returnBrokenResource(connection);
+                connection = null;
+            }
+            complete(connection, circuitBreaker, start, outcome);
+            if (traceStart != 0) {
+                //匿名命令按所在方法名记录操作，key与value字节数由execute登记
+                CommandTraceRecorder.end(this, traceKey, traceSize, traceStart, outcome);
+            }
         }
+    }
+
+    //一次调用的结果：未完成（命令错误、参数错误等，不计入统计）、完成、节点故障
+    static final int IGNORED = 0;
+    static final int COMPLETED = 1;
+    static final int NODE_FAILURE = 2;
 
+    /**
+     * 熔断器准入，run()与JedisPoolDB的无状态命令共用
+     *
+     * @return false 表示节点熔断中
+     */
+    static boolean admit(CircuitBreaker circuitBreaker) {
+        return circuitBreaker == null || circuitBreaker.tryAcquire();
     }
 
-    private void releaseConnection(C connection, boolean broken) {
+    static CircuitBreakerOpenException circuitOpen(CircuitBreaker circuitBreaker) {
+        return new CircuitBreakerOpenException(circuitBreaker.getName() + " is unavailable, fail fast");
+    }
+
+    /**
+     * 归还连接，并向熔断器报告本次调用结果。
+     * 连接失败、读写超时、连接池耗尽都是JedisConnectionException，计为节点故障；命令本身的错误不计入
+     *
+     * @param connection 为null时表示未借到连接
+     * @param circuitBreaker
+     * @param start      调用开始时间
+     * @param outcome    IGNORED/COMPLETED/NODE_FAILURE
+     */
+    static void complete(Closeable connection, CircuitBreaker circuitBreaker, long start, int outcome) {
         if (connection != null) {
-//            if (broken) {
-//                jedisPool.returnBrokenResource(connection);
-//            } else {
-//                jedisPool.returnResource(connection);
-//            }
+            if (CallDeadline.current() != null) {
+                restoreSocketTimeout(connection);
+            }
             try {
                 connection.close();
             } catch (IOException e) {
                 LogUtil.error(e);
             }
         }
+        if (circuitBreaker != null) {
+            if (outcome == NODE_FAILURE) {
+                circuitBreaker.onError(System.currentTimeMillis() - start);
+            } else if (outcome == COMPLETED) {
+                circuitBreaker.onSuccess(System.currentTimeMillis() - start);
+            } else {
+                circuitBreaker.onIgnored();
+            }
+        }
+    }
+
+    /**
+     * 从连接池借用连接。当前线程有CallDeadline时，等待时间不超过剩余预算，并将连接的socket读写超时临时缩短为剩余预算
+     */
+    static <C extends Closeable> C borrow(Pool<C> pool) {
+        CallDeadline deadline = CallDeadline.current();
+        if (deadline == null) {
+            return pool.getResource();
+        }
+        C connection = borrowWithin(pool, deadline.remainingMillis("borrowing a connection"));
+        try {
+            capSocketTimeout(connection, deadline.remainingMillis("sending the command"));
+        } catch (RuntimeException e) {
+            restoreSocketTimeout(connection);
+            closeQuietly(connection);
+            throw e;
+        }
+        return connection;
+    }
+
+    private static final Field INTERNAL_POOL = internalPoolField();
+
+    private static Field internalPoolField() {
+        try {
+            Field field = Pool.class.getDeclaredField("internalPool");
+            field.setAccessible(true);
+            return field;
+        } catch (Exception e) {
+            LogUtil.error(e);
+            return null;
+        }
+    }
+
+    /**
+     * @return 连接池最多保留的空闲连接数，无法访问内部连接池时返回-1
+     */
+    static int maxIdle(Pool<?> pool) {
+        try {
+            return INTERNAL_POOL == null ? -1 : ((GenericObjectPool<?>) INTERNAL_POOL.get(pool)).getMaxIdle();
+        } catch (IllegalAccessException e) {
+            LogUtil.error(e);
+            return -1;
+        }
+    }
+
+    /**
+     * 以不超过maxWaitMillis的等待时间借用连接。
+     * Pool.getResource()只能使用连接池配置的maxWaitMillis，这里直接调用内部连接池的borrowObject(maxWaitMillis)，
+     * 再完成getResource()中的setDataSource；无法访问内部连接池时退回getResource()
+     */
+    @SuppressWarnings("unchecked")
+    private static <C extends Closeable> C borrowWithin(Pool<C> pool, long maxWaitMillis) {
+        GenericObjectPool<C> internalPool = null;
+        try {
+            internalPool = INTERNAL_POOL == null ? null : (GenericObjectPool<C>) INTERNAL_POOL.get(pool);
+        } catch (IllegalAccessException e) {
+            LogUtil.error(e);
+        }
+        Method setDataSource = internalPool == null ? null : dataSourceSetter(pool);
+        if (setDataSource == null || (internalPool.getMaxWaitMillis() >= 0 && internalPool.getMaxWaitMillis() <= maxWaitMillis)) {
+            return pool.getResource();
+        }
+        while (true) {
+            C connection;
+            try {
+                connection = internalPool.borrowObject(maxWaitMillis);
+            } catch (NoSuchElementException e) {
+                throw new DeadlineExceededException("call deadline exceeded while borrowing a connection", e);
+            } catch (Exception e) {
+                throw new JedisConnectionException("Could not get a resource from the pool", e);
+            }
+            try {
+                setDataSource.invoke(connection, pool);
+            } catch (Exception e) {
+                internalPool.returnObject(connection);
+                throw new JedisConnectionException("Could not set data source", e);
+            }
+            if (!(pool instanceof JedisSentinelPool) || isCurrentMaster((JedisSentinelPool) pool, (Jedis) connection)) {
+                return connection;
+            }
+            //与JedisSentinelPool.getResource()一致：主节点已切换时丢弃旧连接
+            ((JedisSentinelPool) pool).returnBrokenResource((Jedis) connection);
+            maxWaitMillis = CallDeadline.current().remainingMillis("borrowing a connection");
+        }
+    }
+
+    private static final ConcurrentHashMap<Class<?>, Method> DATA_SOURCE_SETTERS = new ConcurrentHashMap<Class<?>, Method>();
+
+    private static Method dataSourceSetter(Pool<?> pool) {
+        Method setter = DATA_SOURCE_SETTERS.get(pool.getClass());
+        if (setter == null) {
+            Class<?> connectionClass = pool instanceof ShardedJedisPool ? ShardedJedis.class : Jedis.class;
+            for (Method method : connectionClass.getMethods()) {
+                if ("setDataSource".equals(method.getName()) && method.getParameterTypes().length == 1
+                        && method.getParameterTypes()[0].isInstance(pool)) {
+                    setter = method;
+                    DATA_SOURCE_SETTERS.put(pool.getClass(), setter);
+                    break;
+                }
+            }
+        }
+        return setter;
+    }
+
+    private static boolean isCurrentMaster(JedisSentinelPool pool, Jedis connection) {
+        HostAndPort master = pool.getCurrentHostMaster();
+        return master.getHost().equals(connection.getClient().getHost()) && master.getPort() == connection.getClient().getPort();
+    }
+
+    private static void capSocketTimeout(Closeable connection, long timeoutMillis) {
+        for (Jedis node : nodesOf(connection)) {
+            Client client = node.getClient();
+            if (client.isConnected() && (client.getSoTimeout() == 0 || timeoutMillis < client.getSoTimeout())) {
+                try {
+                    client.getSocket().setSoTimeout((int) Math.min(Integer.MAX_VALUE, timeoutMillis));
+                } catch (SocketException e) {
+                    throw new JedisConnectionException(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * 恢复连接原本的socket读写超时
+     */
+    private static void restoreSocketTimeout(Closeable connection) {
+        for (Jedis node : nodesOf(connection)) {
+            Client client = node.getClient();
+            if (client.isConnected()) {
+                try {
+                    client.rollbackTimeout();
+                } catch (JedisException e) {
+                    //连接已标记为broken，归还时会被连接池丢弃
+                }
+            }
+        }
+    }
+
+    /**
+     * 从其他线程断开连接的socket，阻塞在读取上的线程随即以JedisConnectionException返回
+     */
+    static void disconnect(Closeable connection) {
+        for (Jedis node : nodesOf(connection)) {
+            Socket socket = node.getClient().getSocket();
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    LogUtil.error(e);
+                }
+            }
+        }
+    }
+
+    private static Collection<Jedis> nodesOf(Closeable connection) {
+        if (connection instanceof Jedis) {
+            return Collections.singletonList((Jedis) connection);
+        } else if (connection instanceof ShardedJedis) {
+            return ((ShardedJedis) connection).getAllShards();
+        }
+        return Collections.emptyList();
+    }
+
+    private static void closeQuietly(Closeable connection) {
+        try {
+            connection.close();
+        } catch (IOException e) {
+            LogUtil.error(e);
+        }
     }
 
     protected void notNullAssert(Object value) {
@@ -0,0 +1,408 @@
+import org.springframework.cache.Cache;
+import org.springframework.cache.support.SimpleValueWrapper;
+import redis.clients.util.SafeEncoder;
+import transcoder.ISerialize;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 以ICacheDB存储的Spring Cache，由RedisCacheManager创建，每个cache使用独立的命名空间、过期时间与序列化方式。
+ * cache key以String.valueOf(key)转为redis key，应使用toString稳定的key（基本类型、String、Spring的SimpleKey等）。
+ * <p>
+ * ICacheDB为JedisPoolDB时使用其命名空间视图，value直接以cache的序列化方式存储；
+ * 为其他ICacheDB（如MissGuardCacheDB等装饰器）时由本类给key加上命名空间前缀，value先以cache的序列化方式编码为byte[]，
+ * 再经该ICacheDB的Object接口存储，装饰器的行为（本地缓存、防穿透等）对cache同样有效。
+ * clear()经DelegatingCacheDB.getDelegate()找到底层的JedisPoolDB后以SCAN删除命名空间下的key，不经过装饰器：
+ * 装饰器在本地保留的数据（本机副本、未写入的缓冲）及未以原key存储的数据（如HashBucketCacheDB的桶）不会被清除；
+ * 找不到JedisPoolDB时抛出UnsupportedOperationException。
+ * <p>
+ * get(key, valueLoader)（@Cacheable(sync = true)）在本JVM内对同一key只加载一次，其他线程等待同一次加载的结果。
+ * 开启batchMode时，集合类型的key按元素逐个缓存：get以一次multiGet读取所有元素，全部命中才返回按顺序排列的List；
+ * put的值为同样大小的List时按元素以一次multiSet写入。部分命中时可用getAll(keys, loader)只加载未命中的元素。
+ */
+public class RedisCache implements Cache {
+    private static final byte[] NULL_BYTES = SafeEncoder.encode("\u0000cache:null");
+
+    private final String name;
+    private final ICacheDB cacheDB;
+    private final String keyPrefix;//cacheDB不是命名空间视图时由本类加的前缀
+    private final ISerialize codec;//cacheDB不是命名空间视图时由本类编解码value，否则为null
+    private final JedisPoolDB<?> namespaceDB;//clear()使用的命名空间视图，为null时不支持clear()
+    private final int expireSeconds;
+    private final Class<? extends Serializable> valueType;
+    private final boolean allowNullValues;
+    private final boolean batchMode;
+    private final ConcurrentHashMap<String, FutureTask<Object>> loading = new ConcurrentHashMap<String, FutureTask<Object>>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong loadWaits = new AtomicLong();
+    private final AtomicLong batchLookups = new AtomicLong();
+
+    /**
+     * @param name      cache名
+     * @param cacheDB
+     * @param namespace 该cache独占的key前缀
+     * @param config
+     */
+    public RedisCache(String name, ICacheDB cacheDB, String namespace, RedisCacheManager.CacheConfig config) {
+        if (name == null || cacheDB == null || namespace == null || config == null) {
+            throw new IllegalArgumentException("name, cacheDB, namespace and config can't be NULL");
+        }
+        this.name = name;
+        ISerialize serialize = new NullMarkingSerialize(config.getSerialize());
+        if (cacheDB instanceof JedisPoolDB) {
+            JedisPoolDB<?> view = ((JedisPoolDB<?>) cacheDB).withNamespace(namespace).withSerialize(serialize);
+            this.cacheDB = view;
+            this.keyPrefix = "";
+            this.codec = null;
+            this.namespaceDB = view;
+        } else {
+            this.cacheDB = cacheDB;
+            this.keyPrefix = namespace;
+            this.codec = serialize;
+            JedisPoolDB<?> underlying = unwrap(cacheDB);
+            this.namespaceDB = underlying == null ? null : underlying.withNamespace(namespace);
+        }
+        this.expireSeconds = config.getExpireSeconds();
+        this.valueType = config.getValueType();
+        this.allowNullValues = config.isAllowNullValues();
+        this.batchMode = config.isBatchMode();
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public Object getNativeCache() {
+        return cacheDB;
+    }
+
+    @Override
+    public ValueWrapper get(Object key) {
+        if (batchMode && key instanceof Collection) {
+            return getBatch((Collection<?>) key);
+        }
+        Object value = decode(cacheDB.getObject(toKey(key), storedType()));
+        if (value == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return new SimpleValueWrapper(fromStored(value));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T get(Object key, Class<T> type) {
+        ValueWrapper wrapper = get(key);
+        Object value = wrapper == null ? null : wrapper.get();
+        if (value != null && type != null && !type.isInstance(value)) {
+            throw new IllegalStateException("cached value is not of required type [" + type.getName() + "]: " + value);
+        }
+        return (T) value;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T get(final Object key, final Callable<T> valueLoader) {
+        ValueWrapper wrapper = get(key);
+        if (wrapper != null) {
+            return (T) wrapper.get();
+        }
+        String redisKey = toKey(key);
+        FutureTask<Object> task = new FutureTask<Object>(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                //等待锁期间可能已被其他线程或进程加载
+                ValueWrapper loaded = get(key);
+                if (loaded != null) {
+                    return loaded.get();
+                }
+                loads.incrementAndGet();
+                T value = valueLoader.call();
+                put(key, value);
+                return value;
+            }
+        });
+        FutureTask<Object> existing = loading.putIfAbsent(redisKey, task);
+        if (existing == null) {
+            try {
+                task.run();
+            } finally {
+                loading.remove(redisKey, task);
+            }
+            existing = task;
+        } else {
+            loadWaits.incrementAndGet();
+        }
+        try {
+            return (T) existing.get();
+        } catch (ExecutionException e) {
+            throw new ValueRetrievalException(key, valueLoader, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ValueRetrievalException(key, valueLoader, e);
+        }
+    }
+
+    @Override
+    public void put(Object key, Object value) {
+        if (batchMode && key instanceof Collection && value instanceof List && ((Collection<?>) key).size() == ((List<?>) value).size()) {
+            Map<String, Serializable> keyValues = new HashMap<String, Serializable>();
+            Iterator<?> values = ((List<?>) value).iterator();
+            for (Object element : (Collection<?>) key) {
+                Object elementValue = values.next();
+                if (elementValue != null || allowNullValues) {
+                    keyValues.put(toKey(element), encode(toStored(elementValue)));
+                }
+            }
+            cacheDB.multiSetObject(keyValues, expireSeconds);
+            return;
+        }
+        cacheDB.setObject(toKey(key), expireSeconds, encode(toStored(value)));
+    }
+
+    @Override
+    public ValueWrapper putIfAbsent(Object key, Object value) {
+        if (cacheDB.setObjectIfNotExist(toKey(key), expireSeconds, encode(toStored(value)))) {
+            return null;
+        }
+        return get(key);
+    }
+
+    @Override
+    public void evict(Object key) {
+        if (batchMode && key instanceof Collection) {
+            cacheDB.multiDelete(toKeys((Collection<?>) key));
+            return;
+        }
+        cacheDB.delete(toKey(key));
+    }
+
+    /**
+     * 以SCAN删除该cache命名空间下的所有key
+     */
+    @Override
+    public void clear() {
+        if (namespaceDB == null) {
+            throw new UnsupportedOperationException("cache '" + name + "' can't be cleared: no JedisPoolDB behind " + cacheDB.getClass().getName());
+        }
+        namespaceDB.deleteNamespace();
+    }
+
+    /**
+     * 以一次multiGet读取多个key，未命中的key以一次loader调用加载并以一次multiSet写入
+     *
+     * @param keys
+     * @param loader 为null时只读取
+     * @return key -> value，不含未命中且未加载到的key
+     */
+    @SuppressWarnings("unchecked")
+    public <K, V> Map<K, V> getAll(Collection<K> keys, BatchLoader<K, V> loader) {
+        batchLookups.incrementAndGet();
+        Map<String, ? extends Serializable> found = cacheDB.multiGetObject(storedType(), toKeys(keys));
+        Map<K, V> ret = new LinkedHashMap<K, V>();
+        List<K> missed = new ArrayList<K>();
+        for (K key : keys) {
+            Object value = decode(found.get(toKey(key)));
+            if (value == null) {
+                missed.add(key);
+            } else if (value != NullValue.INSTANCE) {
+                ret.put(key, (V) value);
+            }
+        }
+        hits.addAndGet(keys.size() - missed.size());
+        misses.addAndGet(missed.size());
+        if (missed.isEmpty() || loader == null) {
+            return ret;
+        }
+        loads.incrementAndGet();
+        Map<K, V> loaded;
+        try {
+            loaded = loader.load(Collections.unmodifiableList(missed));
+        } catch (Exception e) {
+            throw new ValueRetrievalException(missed, null, e);
+        }
+        Map<String, Serializable> keyValues = new HashMap<String, Serializable>();
+        for (K key : missed) {
+            V value = loaded == null ? null : loaded.get(key);
+            if (value != null) {
+                ret.put(key, value);
+                keyValues.put(toKey(key), encode(toStored(value)));
+            } else if (allowNullValues) {
+                keyValues.put(toKey(key), encode(NullValue.INSTANCE));
+            }
+        }
+        if (!keyValues.isEmpty()) {
+            cacheDB.multiSetObject(keyValues, expireSeconds);
+        }
+        return ret;
+    }
+
+    private ValueWrapper getBatch(Collection<?> keys) {
+        batchLookups.incrementAndGet();
+        String[] redisKeys = toKeys(keys);
+        Map<String, ? extends Serializable> found = cacheDB.multiGetObject(storedType(), redisKeys);
+        List<Object> values = new ArrayList<Object>(redisKeys.length);
+        for (String redisKey : redisKeys) {
+            Object value = decode(found.get(redisKey));
+            if (value == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+            values.add(fromStored(value));
+        }
+        hits.incrementAndGet();
+        return new SimpleValueWrapper(values);
+    }
+
+    private String toKey(Object key) {
+        if (key == null) {
+            throw new IllegalArgumentException("cache key can't be NULL");
+        }
+        return keyPrefix + key;
+    }
+
+    private String[] toKeys(Collection<?> keys) {
+        String[] ret = new String[keys.size()];
+        int i = 0;
+        for (Object key : keys) {
+            ret[i++] = toKey(key);
+        }
+        return ret;
+    }
+
+    private Serializable toStored(Object value) {
+        if (value == null) {
+            if (!allowNullValues) {
+                throw new IllegalArgumentException("cache '" + name + "' is configured to not allow null values");
+            }
+            return NullValue.INSTANCE;
+        }
+        if (!(value instanceof Serializable)) {
+            throw new IllegalArgumentException("cache '" + name + "' only supports Serializable values: " + value.getClass().getName());
+        }
+        return (Serializable) value;
+    }
+
+    private static Object fromStored(Object value) {
+        return value == NullValue.INSTANCE ? null : value;
+    }
+
+    private Class<? extends Serializable> storedType() {
+        return codec == null ? valueType : byte[].class;
+    }
+
+    /**
+     * @return 由本类编解码时为cache序列化方式编码的byte[]，否则原样返回
+     */
+    private Serializable encode(Serializable stored) {
+        return codec == null ? stored : codec.encode(stored);
+    }
+
+    private Object decode(Serializable value) {
+        return codec == null || value == null ? value : codec.decode((byte[]) value, valueType);
+    }
+
+    private static JedisPoolDB<?> unwrap(ICacheDB cacheDB) {
+        while (cacheDB instanceof DelegatingCacheDB) {
+            cacheDB = ((DelegatingCacheDB) cacheDB).getDelegate();
+        }
+        return cacheDB instanceof JedisPoolDB ? (JedisPoolDB<?>) cacheDB : null;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return 调用valueLoader或BatchLoader的次数
+     */
+    public long getLoads() {
+        return loads.get();
+    }
+
+    /**
+     * @return 等待同一key正在进行的加载、未重复加载的次数
+     */
+    public long getLoadWaits() {
+        return loadWaits.get();
+    }
+
+    public long getBatchLookups() {
+        return batchLookups.get();
+    }
+
+    @Override
+    public String toString() {
+        return "RedisCache[" + name + ", hits=" + hits.get() + ", misses=" + misses.get() + ", loads=" + loads.get()
+                + ", loadWaits=" + loadWaits.get() + ", batchLookups=" + batchLookups.get() + "]";
+    }
+
+    /**
+     * 批量加载未命中的key
+     */
+    public interface BatchLoader<K, V> {
+        /**
+         * @param keys 未命中的key
+         * @return key -> value，不含的key视为不存在
+         */
+        Map<K, V> load(Collection<K> keys) throws Exception;
+    }
+
+    /**
+     * 缓存的null值
+     */
+    private enum NullValue {
+        INSTANCE
+    }
+
+    /**
+     * null值编码为固定的标记，其余按cache的序列化方式编解码
+     */
+    private static class NullMarkingSerialize implements ISerialize {
+        private final ISerialize serialize;
+
+        NullMarkingSerialize(ISerialize serialize) {
+            this.serialize = serialize;
+        }
+
+        @Override
+        public byte[] encode(Object o) {
+            return o == NullValue.INSTANCE ? NULL_BYTES : serialize.encode(o);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> T decode(byte[] bytes, Class<T> type) {
+            return Arrays.equals(bytes, NULL_BYTES) ? (T) NullValue.INSTANCE : serialize.decode(bytes, type);
+        }
+
+        @Override
+        public String toString() {
+            return serialize.toString();
+        }
+    }
+}
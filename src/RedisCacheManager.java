@@ -0,0 +1,160 @@
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import transcoder.Hessian2Serialize;
+import transcoder.ISerialize;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 以ICacheDB存储的Spring CacheManager，每个cache的key为 keyPrefix + cache名 + ":" + key，可分别设置过期时间与序列化方式。
+ * ICacheDB可以是JedisPoolDB或其装饰器，两者的存储格式不同，见RedisCache。
+ * <p>
+ * e.g: spring xml:
+ * <bean id="cacheManager" class="RedisCacheManager">
+ * <constructor-arg ref="redisDB"/>  （RedisDBFactory生成的bean或其装饰器）
+ * <property name="keyPrefix" value="app:cache:"/>
+ * <property name="defaultConfig"><bean class="RedisCacheManager$CacheConfig"><property name="expireSeconds" value="600"/></bean></property>
+ * <property name="cacheConfigs"><map><entry key="user"><bean class="RedisCacheManager$CacheConfig">
+ * <property name="expireSeconds" value="3600"/><property name="batchMode" value="true"/></bean></entry></map></property>
+ * </bean>
+ */
+public class RedisCacheManager implements CacheManager {
+    private final ICacheDB cacheDB;
+    private String keyPrefix = "cache:";
+    private CacheConfig defaultConfig = new CacheConfig();
+    private Map<String, CacheConfig> cacheConfigs = new HashMap<String, CacheConfig>();
+    private boolean dynamic = true;
+    private final ConcurrentHashMap<String, RedisCache> caches = new ConcurrentHashMap<String, RedisCache>();
+
+    public RedisCacheManager(ICacheDB cacheDB) {
+        if (cacheDB == null) {
+            throw new IllegalArgumentException("cacheDB can't be NULL");
+        }
+        this.cacheDB = cacheDB;
+    }
+
+    @Override
+    public Cache getCache(String name) {
+        RedisCache cache = caches.get(name);
+        if (cache != null) {
+            return cache;
+        }
+        CacheConfig config = cacheConfigs.get(name);
+        if (config == null) {
+            if (!dynamic) {
+                return null;
+            }
+            config = defaultConfig;
+        }
+        cache = new RedisCache(name, cacheDB, keyPrefix + name + ":", config);
+        RedisCache existing = caches.putIfAbsent(name, cache);
+        return existing != null ? existing : cache;
+    }
+
+    @Override
+    public Collection<String> getCacheNames() {
+        Set<String> names = new LinkedHashSet<String>(cacheConfigs.keySet());
+        names.addAll(caches.keySet());
+        return Collections.unmodifiableSet(names);
+    }
+
+    public void setKeyPrefix(String keyPrefix) {
+        if (keyPrefix == null) {
+            throw new IllegalArgumentException("keyPrefix can't be NULL");
+        }
+        this.keyPrefix = keyPrefix;
+    }
+
+    /**
+     * @param defaultConfig 未单独配置的cache使用的设置
+     */
+    public void setDefaultConfig(CacheConfig defaultConfig) {
+        if (defaultConfig == null) {
+            throw new IllegalArgumentException("defaultConfig can't be NULL");
+        }
+        this.defaultConfig = defaultConfig;
+    }
+
+    /**
+     * @param cacheConfigs cache名 -> 设置
+     */
+    public void setCacheConfigs(Map<String, CacheConfig> cacheConfigs) {
+        this.cacheConfigs = new HashMap<String, CacheConfig>(cacheConfigs);
+    }
+
+    /**
+     * @param dynamic 是否按defaultConfig创建未配置的cache，默认true
+     */
+    public void setDynamic(boolean dynamic) {
+        this.dynamic = dynamic;
+    }
+
+    @Override
+    public String toString() {
+        return "RedisCacheManager[" + caches.values() + "]";
+    }
+
+    /**
+     * 单个cache的设置
+     */
+    public static class CacheConfig {
+        private int expireSeconds;//0和负数表示不过期
+        private ISerialize serialize = new Hessian2Serialize();//保留值的类型信息，不需要valueType
+        private Class<? extends Serializable> valueType;//按类型反序列化的方式（如JSON）须设置
+        private boolean allowNullValues = true;
+        private boolean batchMode;
+
+        public int getExpireSeconds() {
+            return expireSeconds;
+        }
+
+        public void setExpireSeconds(int expireSeconds) {
+            this.expireSeconds = expireSeconds;
+        }
+
+        public ISerialize getSerialize() {
+            return serialize;
+        }
+
+        public void setSerialize(ISerialize serialize) {
+            if (serialize == null) {
+                throw new IllegalArgumentException("serialize can't be NULL");
+            }
+            this.serialize = serialize;
+        }
+
+        public Class<? extends Serializable> getValueType() {
+            return valueType;
+        }
+
+        public void setValueType(Class<? extends Serializable> valueType) {
+            this.valueType = valueType;
+        }
+
+        public boolean isAllowNullValues() {
+            return allowNullValues;
+        }
+
+        public void setAllowNullValues(boolean allowNullValues) {
+            this.allowNullValues = allowNullValues;
+        }
+
+        public boolean isBatchMode() {
+            return batchMode;
+        }
+
+        /**
+         * @param batchMode 集合类型的key是否按元素以multiGet/multiSet读写
+         */
+        public void setBatchMode(boolean batchMode) {
+            this.batchMode = batchMode;
+        }
+    }
+}
@@ -3,18 +3,27 @@ import com.qlc.common.util.transcoder.DefaultSerialize;
 import com.qlc.common.util.transcoder.ISerialize;
 import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
 import org.slf4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.FactoryBean;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.util.StringUtils;
+import redis.clients.jedis.HostAndPort;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisSentinelPool;
 import redis.clients.jedis.JedisShardInfo;
 import redis.clients.jedis.ShardedJedisPool;
+import redis.clients.jedis.exceptions.JedisConnectionException;
 import transcoder.DefaultSerialize;
 import transcoder.ISerialize;
+import transcoder.VersionedSerialize;
 
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * 生成Redis操作的客户端实例（线程安全，且使用了连接池）。
@@ -28,19 +37,32 @@ import java.util.concurrent.ConcurrentHashMap;
  * <bean class="RedisDBFactory">
  * <property name="redisIpPorts" value="${redisIpPorts}"/>
  * <property name="passwd" value="${passwd}"/>
+ * <property name="serialize" ref="versionedSerialize"/>  （可选，更换编码时使用transcoder.VersionedSerialize）
+ * <property name="warmUpConnections" value="8"/>  （可选，bean发布前预热连接）
+ * <property name="keyspaceProfileIntervalMillis" value="21600000"/>  （可选，后台keyspace内存与TTL分析）
+ * <property name="ttlJitter"><bean class="TtlJitter"><constructor-arg value="0.1"/></bean></property>  （可选，过期时间抖动）
  * </bean>
  * <p>
  * Created by yangxuehua on 2014/7/30.
  */
-public class RedisDBFactory implements FactoryBean<ICacheDB>, InitializingBean {
+public class RedisDBFactory implements FactoryBean<ICacheDB>, InitializingBean, DisposableBean {
     private static Logger logger = MyLoggerFactory.getLogger(RedisDBFactory.class);
 
     private static Map<String, JedisPoolDB> name2redisCache = new ConcurrentHashMap<String, JedisPoolDB>();
+    //每个sentinel连接池一个主从切换监听
+    private static Map<Object, SentinelFailoverWatcher> pool2watcher = new ConcurrentHashMap<Object, SentinelFailoverWatcher>();
 
     private String redisIpPorts;//spring-iframe ioc注入的连接参数--redis地址
     private String passwd;//spring-iframe ioc注入的连接参数--redis密码
     private ISerialize serialize;//spring-iframe ioc注入的连接参数--自定义序列化（可不注入）
+    private CircuitBreaker circuitBreaker;//spring-iframe ioc注入的连接参数--节点熔断器（可不注入）
+    private TtlJitter ttlJitter;//spring-iframe ioc注入的连接参数--过期时间抖动策略（可不注入）
+    private boolean fallbackOnCircuitOpen;//spring-iframe ioc注入的连接参数--熔断中单项读取是否按未命中降级（可不注入）
+    private int warmUpConnections;//spring-iframe ioc注入的连接参数--bean发布前预热的连接数，0表示不预热，超过连接池maxIdle(10)时按maxIdle预热（可不注入）
+    private long warmUpTimeoutMillis = 5000;//spring-iframe ioc注入的连接参数--预热的时间预算（可不注入）
+    private long keyspaceProfileIntervalMillis;//spring-iframe ioc注入的连接参数--后台keyspace分析的间隔，0表示不分析（可不注入）
     private ICacheDB cacheDB;//spring-iframe bean返回对象
+    private KeyspaceProfiler keyspaceProfiler;//后台keyspace分析，bean销毁时停止
 
     /**
      * redis客户端分片方式连接redis server
@@ -69,6 +91,79 @@ public class RedisDBFactory implements FactoryBean<ICacheDB>, InitializingBean {
         return getRedisClusterDB(sentinelIpPorts, masterName, passwd, new DefaultSerialize());
     }
 
+    /**
+     * 获取客户端并预热：在时间预算内并行建立连接、完成认证、加载脚本，并确认所有节点可达
+     *
+     * @param ipPorts             ip:port,ip:port,ip:port
+     * @param passwd
+     * @param warmUpConnections   预热的连接数
+     * @param warmUpTimeoutMillis 时间预算，超时或节点不可达时抛出JedisConnectionException
+     * @return
+     */
+    public static JedisPoolDB getRedisDB(String ipPorts, String passwd, int warmUpConnections, long warmUpTimeoutMillis) {
+        JedisPoolDB jedislDB = getRedisDB(ipPorts, passwd);
+        warmUp(jedislDB, ipPorts, warmUpConnections, warmUpTimeoutMillis);
+        return jedislDB;
+    }
+
+    /**
+     * 预热，预热数超过连接池的maxIdle时按maxIdle预热（多出的连接归还时即被关闭）
+     *
+     * @return 实际预热的连接数
+     */
+    private static int warmUp(JedisPoolDB jedisPoolDB, String name, int warmUpConnections, long warmUpTimeoutMillis) {
+        int warmed = jedisPoolDB.warmUp(warmUpConnections, warmUpTimeoutMillis);
+        if (warmed < warmUpConnections) {
+            logger.warn("redis " + name + " warmUpConnections " + warmUpConnections + " exceeds maxIdle of the pool, warmed up " + warmed);
+        }
+        return warmed;
+    }
+
+    /**
+     * redise服务端集群，并预热。向sentinel查询master在后台线程进行，与连接预热共用时间预算
+     *
+     * @param sentinelIpPorts
+     * @param masterName
+     * @param passwd
+     * @param warmUpConnections   预热的连接数
+     * @param warmUpTimeoutMillis 时间预算，超时或节点不可达时抛出JedisConnectionException
+     * @return
+     */
+    public static JedisPoolDB getRedisClusterDB(final String sentinelIpPorts, final String masterName, final String passwd,
+                                                int warmUpConnections, long warmUpTimeoutMillis) {
+        long deadline = System.currentTimeMillis() + warmUpTimeoutMillis;
+        FutureTask<JedisPoolDB> task = new FutureTask<JedisPoolDB>(new Callable<JedisPoolDB>() {
+            @Override
+            public JedisPoolDB call() {
+                return getRedisClusterDB(sentinelIpPorts, masterName, passwd, new DefaultSerialize());
+            }
+        });
+        Thread thread = new Thread(task, "redis-sentinel-init");
+        thread.setDaemon(true);
+        thread.start();
+        JedisPoolDB jedislDB;
+        try {
+            jedislDB = task.get(warmUpTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new JedisConnectionException("resolve master " + masterName + " timed out after " + warmUpTimeoutMillis + "ms");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new JedisConnectionException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JedisConnectionException("resolve master " + masterName + " interrupted", e);
+        }
+        warmUp(jedislDB, masterName, warmUpConnections, Math.max(1, deadline - System.currentTimeMillis()));
+        return jedislDB;
+    }
+
+    /**
+     * 连接池缓存key中的序列化部分。VersionedSerialize按创建时的legacy、注册的编码及preferred区分（创建后不变），配置不同的实例各自使用连接池
+     */
+    private static String serializeName(ISerialize serialize) {
+        return serialize instanceof VersionedSerialize ? serialize.toString() : serialize.getClass().getName();
+    }
+
     private static JedisPoolDB getRedisAloneDB(String ipPort, String passwd, int database, ISerialize serialize) {
         if (StringUtils.isEmpty(ipPort)) {
             return null;
@@ -76,7 +171,7 @@ public class RedisDBFactory implements FactoryBean<ICacheDB>, InitializingBean {
         if (serialize == null) {
             serialize = new DefaultSerialize();
         }
-        String name = ipPort + passwd + database + serialize.getClass().getName();
+        String name = ipPort + passwd + database + serializeName(serialize);
         JedisPoolDB jedislDB = name2redisCache.get(name);
         if (jedislDB == null) {
             synchronized (RedisDBFactory.class) {
@@ -85,10 +180,7 @@ public class RedisDBFactory implements FactoryBean<ICacheDB>, InitializingBean {
                     if (passwd != null && passwd.length() == 0) {
                         passwd = null;
                     }
-                    String ip = ipPort.split(":")[0];
-                    int port = Integer.parseInt(ipPort.split(":")[1]);
-                    JedisPool jedisPool = new JedisPool(getPoolConf(), ip, port, 2000, passwd, database);//设置超时时间为2秒
-                    jedislDB = new JedisPoolDB(jedisPool, serialize);
+                    jedislDB = new JedisPoolDB(newJedisPool(ipPort, passwd, database), serialize);
                     name2redisCache.put(name, jedislDB);
                 }
             }
@@ -103,7 +195,7 @@ public class RedisDBFactory implements FactoryBean<ICacheDB>, InitializingBean {
         if (serialize == null) {
             serialize = new DefaultSerialize();
         }
-        String name = ipPorts + passwd + serialize.getClass().getName();
+        String name = ipPorts + passwd + serializeName(serialize);
         JedisPoolDB jedislDB = name2redisCache.get(name);
         if (jedislDB == null) {
             synchronized (RedisDBFactory.class) {
@@ -112,14 +204,7 @@ public class RedisDBFactory implements FactoryBean<ICacheDB>, InitializingBean {
                     if (passwd != null && passwd.length() == 0) {
                         passwd = null;
                     }
-                    List<JedisShardInfo> shards = new ArrayList<>();
-                    for (String ipPort : ipPorts.trim().split("[^0-9a-zA-Z_\\-\\.:]+")) {
-                        JedisShardInfo shardInfo = new JedisShardInfo(ipPort.split(":")[0], Integer.parseInt(ipPort.split(":")[1]), 2000);
-                        shardInfo.setPassword(passwd);
-                        shards.add(shardInfo);
-                    }
-                    ShardedJedisPool shardedJedisPool = new ShardedJedisPool(getPoolConf(), shards);
-                    jedislDB = new JedisPoolDB(shardedJedisPool, serialize);
+                    jedislDB = new JedisPoolDB(newShardedJedisPool(ipPorts, passwd), serialize);
                     name2redisCache.put(name, jedislDB);
                 }
             }
@@ -131,19 +216,13 @@ public class RedisDBFactory implements FactoryBean<ICacheDB>, InitializingBean {
         if (StringUtils.isEmpty(sentinelIpPorts) || StringUtils.isEmpty(masterName)) {
             throw new IllegalArgumentException("sentinelIpPorts is illegal(please set value like 'ip:port,ip:port'), or masterName is empty");
         }
-        String name = sentinelIpPorts + masterName + passwd + serialize.getClass().getName();
+        String name = sentinelIpPorts + masterName + passwd + serializeName(serialize);
         JedisPoolDB jedislDB = name2redisCache.get(name);
         if (jedislDB == null) {
             synchronized (RedisDBFactory.class) {
                 jedislDB = name2redisCache.get(name);
                 if (jedislDB == null) {
-                    Set<String> sentinels = new HashSet<>();
-                    for (String sentinel : sentinelIpPorts.trim().split("[^0-9a-zA-Z_\\-\\.:]+")) {
-                        if (sentinel.length() > 0) {
-                            sentinels.add(sentinel);
-                        }
-                    }
-                    JedisSentinelPool jedisSentinelPool = new JedisSentinelPool(masterName, sentinels, getPoolConf(), passwd);
+                    JedisSentinelPool jedisSentinelPool = new JedisSentinelPool(masterName, parseSentinels(sentinelIpPorts), getPoolConf(), passwd);
                     jedislDB = new JedisPoolDB(jedisSentinelPool, serialize);
                     name2redisCache.put(name, jedislDB);
                 }
@@ -152,6 +231,127 @@ public class RedisDBFactory implements FactoryBean<ICacheDB>, InitializingBean {
         return jedislDB;
     }
 
+    private static Set<String> parseSentinels(String sentinelIpPorts) {
+        Set<String> sentinels = new HashSet<>();
+        for (String sentinel : sentinelIpPorts.trim().split("[^0-9a-zA-Z_\\-\\.:]+")) {
+            if (sentinel.length() > 0) {
+                sentinels.add(sentinel);
+            }
+        }
+        return sentinels;
+    }
+
+    /**
+     * redise服务端集群，并开启主从切换感知的重试：只读操作及幂等写在失败后按retryPolicy重试，
+     * 订阅sentinel的+switch-master事件，切换时立即切换连接池、重置熔断器并唤醒等待重试的调用。
+     * 每个sentinel连接池只创建并启动一个SentinelFailoverWatcher，retryPolicy未设置时绑定到该集群的watcher；
+     * 已绑定其他集群的retryPolicy不能再用于本集群。
+     * 连接池按地址共用，返回的是本次调用独有的视图，重试设置不影响其他调用方，调用方应持有并复用返回的实例。
+     *
+     * @param sentinelIpPorts
+     * @param masterName
+     * @param passwd
+     * @param retryPolicy
+     * @return
+     */
+    public static JedisPoolDB getRedisClusterDB(String sentinelIpPorts, String masterName, String passwd, RetryPolicy retryPolicy) {
+        if (retryPolicy == null) {
+            throw new IllegalArgumentException("retryPolicy can't be NULL");
+        }
+        JedisPoolDB shared = getRedisClusterDB(sentinelIpPorts, masterName, passwd);
+        SentinelFailoverWatcher watcher = pool2watcher.get(shared.getJedisPool());
+        if (watcher == null) {
+            synchronized (RedisDBFactory.class) {
+                watcher = pool2watcher.get(shared.getJedisPool());
+                if (watcher == null) {
+                    watcher = new SentinelFailoverWatcher((JedisSentinelPool) shared.getJedisPool(), masterName, parseSentinels(sentinelIpPorts));
+                    watcher.start();
+                    pool2watcher.put(shared.getJedisPool(), watcher);
+                }
+            }
+        }
+        synchronized (retryPolicy) {
+            if (retryPolicy.getFailoverWatcher() == null) {
+                retryPolicy.setFailoverWatcher(watcher);
+            } else if (retryPolicy.getFailoverWatcher() != watcher) {
+                throw new IllegalArgumentException("retryPolicy is already bound to " + retryPolicy.getFailoverWatcher() + ", can't be used for master " + masterName);
+            }
+        }
+        final JedisPoolDB jedislDB = shared.withNamespace("");
+        watcher.addListener(new SentinelFailoverWatcher.Listener() {
+            @Override
+            public void onSwitch(HostAndPort oldMaster, HostAndPort newMaster) {
+                CircuitBreaker circuitBreaker = jedislDB.getCircuitBreaker();
+                if (circuitBreaker != null) {
+                    circuitBreaker.reset();
+                }
+            }
+        });
+        jedislDB.setRetryPolicy(retryPolicy);
+        return jedislDB;
+    }
+
+    /**
+     * 带副本节点的客户端，只读操作按hedgePolicy在主节点与副本节点间对冲。
+     * 每次调用都会新建副本节点的连接池，调用方应持有并复用返回的实例。
+     *
+     * @param ipPorts        主节点 ip:port,ip:port
+     * @param replicaIpPorts 副本节点 ip:port,ip:port，分片时数量与顺序须与主节点一一对应
+     * @param passwd
+     * @param hedgePolicy
+     * @return
+     */
+    public static JedisPoolDB getRedisDB(String ipPorts, String replicaIpPorts, String passwd, HedgePolicy hedgePolicy) {
+        if (StringUtils.isEmpty(replicaIpPorts) || hedgePolicy == null) {
+            throw new IllegalArgumentException("replicaIpPorts is illegal, or hedgePolicy is NULL");
+        }
+        JedisPoolDB primary = getRedisDB(ipPorts, passwd);
+        if (passwd != null && passwd.length() == 0) {
+            passwd = null;
+        }
+        String[] primaries = ipPorts.trim().split("[^0-9a-zA-Z_\\-\\.:]+");
+        String[] replicas = replicaIpPorts.trim().split("[^0-9a-zA-Z_\\-\\.:]+");
+        if (primaries.length != replicas.length) {
+            throw new IllegalArgumentException("replicaIpPorts must correspond to ipPorts one by one");
+        }
+        JedisPoolDB jedislDB = new JedisPoolDB(primary.getJedisPool(), primary.getSerialize());
+        if (replicas.length > 1) {
+            jedislDB.setHedging(newShardedJedisPool(replicaIpPorts, passwd), hedgePolicy);
+        } else {
+            jedislDB.setHedging(newJedisPool(replicaIpPorts, passwd, 0), hedgePolicy);
+        }
+        return jedislDB;
+    }
+
+    private static JedisPool newJedisPool(String ipPort, String passwd, int database) {
+        String ip = ipPort.trim().split(":")[0];
+        int port = Integer.parseInt(ipPort.trim().split(":")[1]);
+        return new JedisPool(getPoolConf(), ip, port, 2000, passwd, database);//设置超时时间为2秒
+    }
+
+    private static ShardedJedisPool newShardedJedisPool(String ipPorts, String passwd) {
+        List<JedisShardInfo> shards = new ArrayList<>();
+        for (String ipPort : ipPorts.trim().split("[^0-9a-zA-Z_\\-\\.:]+")) {
+            JedisShardInfo shardInfo = new JedisShardInfo(ipPort.split(":")[0], Integer.parseInt(ipPort.split(":")[1]), 2000);
+            shardInfo.setPassword(passwd);
+            shards.add(shardInfo);
+        }
+        return new ShardedJedisPool(getPoolConf(), shards);
+    }
+
+    /**
+     * 启动后台keyspace内存与TTL分析，结果写入日志并可通过返回的profiler读取
+     *
+     * @param jedisPoolDB
+     * @param intervalMillis 两次完整分析的间隔
+     * @return 已启动的profiler，不再需要时调用shutdown
+     */
+    public static KeyspaceProfiler startKeyspaceProfiler(JedisPoolDB jedisPoolDB, long intervalMillis) {
+        KeyspaceProfiler profiler = new KeyspaceProfiler(jedisPoolDB);
+        profiler.start(intervalMillis);
+        return profiler;
+    }
+
     private static GenericObjectPoolConfig getPoolConf() {
         GenericObjectPoolConfig config = new GenericObjectPoolConfig();
         config.setMaxIdle(10);
@@ -177,6 +377,37 @@ public class RedisDBFactory implements FactoryBean<ICacheDB>, InitializingBean {
         this.serialize = serialize;
     }
 
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    public void setTtlJitter(TtlJitter ttlJitter) {
+        this.ttlJitter = ttlJitter;
+    }
+
+    public void setFallbackOnCircuitOpen(boolean fallbackOnCircuitOpen) {
+        this.fallbackOnCircuitOpen = fallbackOnCircuitOpen;
+    }
+
+    public void setWarmUpConnections(int warmUpConnections) {
+        this.warmUpConnections = warmUpConnections;
+    }
+
+    public void setWarmUpTimeoutMillis(long warmUpTimeoutMillis) {
+        this.warmUpTimeoutMillis = warmUpTimeoutMillis;
+    }
+
+    public void setKeyspaceProfileIntervalMillis(long keyspaceProfileIntervalMillis) {
+        this.keyspaceProfileIntervalMillis = keyspaceProfileIntervalMillis;
+    }
+
+    /**
+     * @return 后台keyspace分析器，未设置keyspaceProfileIntervalMillis时为null
+     */
+    public KeyspaceProfiler getKeyspaceProfiler() {
+        return keyspaceProfiler;
+    }
+
     @Override
     public ICacheDB getObject() throws Exception {
         return cacheDB;
@@ -197,18 +428,48 @@ public class RedisDBFactory implements FactoryBean<ICacheDB>, InitializingBean {
         if (redisIpPorts == null || redisIpPorts.trim().length() <= 10) {
             throw new IllegalArgumentException("redisIpPorts 设置不正确：" + redisIpPorts);
         }
+        JedisPoolDB jedisPoolDB;
         if (redisIpPorts.trim().split("[^0-9a-zA-Z_\\-\\.:]+").length > 1) {
             if (serialize == null) {
-                cacheDB = getRedisShardedDB(redisIpPorts, passwd, new DefaultSerialize());
+                jedisPoolDB = getRedisShardedDB(redisIpPorts, passwd, new DefaultSerialize());
             } else {
-                cacheDB = getRedisShardedDB(redisIpPorts, passwd, serialize);
+                jedisPoolDB = getRedisShardedDB(redisIpPorts, passwd, serialize);
             }
         } else {
             if (serialize == null) {
-                cacheDB = getRedisAloneDB(redisIpPorts, passwd, 0, new DefaultSerialize());
+                jedisPoolDB = getRedisAloneDB(redisIpPorts, passwd, 0, new DefaultSerialize());
             } else {
-                cacheDB = getRedisAloneDB(redisIpPorts, passwd, 0, serialize);
+                jedisPoolDB = getRedisAloneDB(redisIpPorts, passwd, 0, serialize);
             }
         }
+        //连接池按地址在所有bean间共用，本bean的熔断等设置只作用于自己的视图
+        jedisPoolDB = jedisPoolDB.withNamespace("");
+        if (circuitBreaker != null) {
+            jedisPoolDB.setCircuitBreaker(circuitBreaker);
+            jedisPoolDB.setFallbackOnCircuitOpen(fallbackOnCircuitOpen);
+        }
+        if (ttlJitter != null) {
+            jedisPoolDB.setTtlJitter(ttlJitter);
+        }
+        if (warmUpConnections > 0) {
+            long start = System.currentTimeMillis();
+            int warmed = warmUp(jedisPoolDB, redisIpPorts, warmUpConnections, warmUpTimeoutMillis);
+            logger.info("redis " + redisIpPorts + " warmed up " + warmed + " connections in " + (System.currentTimeMillis() - start) + "ms");
+        }
+        if (keyspaceProfileIntervalMillis > 0) {
+            keyspaceProfiler = startKeyspaceProfiler(jedisPoolDB, keyspaceProfileIntervalMillis);
+        }
+        cacheDB = jedisPoolDB;
+    }
+
+    /**
+     * 停止后台keyspace分析，连接池按地址在bean间共用，不在此关闭
+     */
+    @Override
+    public void destroy() throws Exception {
+        if (keyspaceProfiler != null) {
+            keyspaceProfiler.shutdown();
+            keyspaceProfiler = null;
+        }
     }
 }
@@ -0,0 +1,203 @@
+import com.qlc.common.util.log.LogUtil;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 为同一批写入的key安排错开的提前刷新，避免它们同时过期后集中回源。
+ * 每个key在写入后 [ttl * (refreshRatio - spreadRatio), ttl * refreshRatio] 内的随机时刻重新加载并写入，
+ * 同一秒内到期的key合并为一次loader调用与一次multiSetObject；刷新后按同样方式安排下一次，直到取消。
+ * loader未返回的key视为已不存在，不再刷新。
+ * <p>
+ * 与连接池的TtlJitter同时使用时，refreshRatio应小于 1 - 抖动比例，使刷新发生在抖动后的过期时刻之前。
+ * e.g: redisDB.multiSetObject(users, 3600);
+ * RefreshScheduler.Registration registration = scheduler.schedule(users.keySet(), 3600, userLoader);
+ */
+public class RefreshScheduler {
+    private final ICacheDB cacheDB;
+    private final ScheduledThreadPoolExecutor executor;
+    private volatile double refreshRatio = 0.75;
+    private volatile double spreadRatio = 0.25;
+
+    private final AtomicLong refreshedKeys = new AtomicLong();
+    private final AtomicLong loaderCalls = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * @param cacheDB
+     * @param threads 执行刷新的线程数
+     */
+    public RefreshScheduler(ICacheDB cacheDB, int threads) {
+        if (cacheDB == null || threads <= 0) {
+            throw new IllegalArgumentException("cacheDB can't be NULL, threads must be positive");
+        }
+        this.cacheDB = cacheDB;
+        this.executor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+            private final AtomicInteger seq = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "redis-refresh-" + seq.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.executor.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * @param refreshRatio 最晚的刷新时刻占ttl的比例，(0, 1)
+     * @param spreadRatio  刷新时刻分散的范围占ttl的比例，[0, refreshRatio]
+     */
+    public RefreshScheduler setRefreshWindow(double refreshRatio, double spreadRatio) {
+        if (refreshRatio <= 0 || refreshRatio >= 1 || spreadRatio < 0 || spreadRatio > refreshRatio) {
+            throw new IllegalArgumentException("refreshRatio must be in (0, 1), spreadRatio in [0, refreshRatio]");
+        }
+        this.refreshRatio = refreshRatio;
+        this.spreadRatio = spreadRatio;
+        return this;
+    }
+
+    /**
+     * 为刚写入的一批key安排刷新
+     *
+     * @param keys       刚以ttlSeconds写入的key
+     * @param ttlSeconds 写入及刷新时的过期秒数
+     * @param loader     重新加载key的值
+     * @return 用于取消之后的刷新
+     */
+    public <T extends Serializable> Registration schedule(Collection<String> keys, int ttlSeconds, Loader<T> loader) {
+        if (keys == null || loader == null) {
+            throw new IllegalArgumentException("keys and loader can't be NULL");
+        }
+        if (ttlSeconds <= 0) {
+            throw new IllegalArgumentException("ttlSeconds must be positive");
+        }
+        Registration registration = new Registration();
+        arrange(keys, ttlSeconds, loader, registration);
+        return registration;
+    }
+
+    /**
+     * 按随机的刷新时刻将key分到各秒，每秒一个任务
+     */
+    private <T extends Serializable> void arrange(Collection<String> keys, int ttlSeconds, Loader<T> loader, Registration registration) {
+        if (registration.cancelled || executor.isShutdown()) {
+            return;
+        }
+        long latestMillis = (long) (ttlSeconds * 1000L * refreshRatio);
+        long spreadMillis = (long) (ttlSeconds * 1000L * spreadRatio);
+        Map<Long, List<String>> groups = new HashMap<Long, List<String>>();
+        for (String key : keys) {
+            long delay = latestMillis - (spreadMillis > 0 ? ThreadLocalRandom.current().nextLong(spreadMillis + 1) : 0);
+            Long second = delay / 1000;
+            List<String> group = groups.get(second);
+            if (group == null) {
+                group = new ArrayList<String>();
+                groups.put(second, group);
+            }
+            group.add(key);
+        }
+        for (Map.Entry<Long, List<String>> entry : groups.entrySet()) {
+            executor.schedule(refreshTask(entry.getValue(), ttlSeconds, loader, registration), entry.getKey(), TimeUnit.SECONDS);
+        }
+    }
+
+    private <T extends Serializable> Runnable refreshTask(final List<String> keys, final int ttlSeconds, final Loader<T> loader,
+                                                          final Registration registration) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                if (registration.cancelled) {
+                    return;
+                }
+                Collection<String> next = keys;
+                try {
+                    loaderCalls.incrementAndGet();
+                    Map<String, T> loaded = loader.load(keys);
+                    if (loaded != null && !loaded.isEmpty()) {
+                        cacheDB.multiSetObject(loaded, ttlSeconds);
+                        refreshedKeys.addAndGet(loaded.size());
+                    }
+                    next = loaded == null ? new ArrayList<String>() : loaded.keySet();
+                } catch (Exception e) {
+                    //本次未刷新的key由读请求回源，仍安排下一次刷新
+                    failures.incrementAndGet();
+                    LogUtil.error(e);
+                }
+                arrange(next, ttlSeconds, loader, registration);
+            }
+        };
+    }
+
+    /**
+     * 停止所有刷新
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return 等待执行的刷新任务数
+     */
+    public int getPendingTasks() {
+        return executor.getQueue().size();
+    }
+
+    public long getRefreshedKeys() {
+        return refreshedKeys.get();
+    }
+
+    public long getLoaderCalls() {
+        return loaderCalls.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    @Override
+    public String toString() {
+        return "RefreshScheduler[pendingTasks=" + getPendingTasks() + ", refreshedKeys=" + refreshedKeys.get()
+                + ", loaderCalls=" + loaderCalls.get() + ", failures=" + failures.get() + "]";
+    }
+
+    /**
+     * 批量重新加载key的值
+     */
+    public interface Loader<T extends Serializable> {
+        /**
+         * @param keys 本次刷新的key
+         * @return key -> value，不含的key不再刷新
+         */
+        Map<String, T> load(Collection<String> keys) throws Exception;
+    }
+
+    /**
+     * 一次schedule安排的刷新
+     */
+    public static class Registration {
+        private volatile boolean cancelled;
+
+        /**
+         * 取消之后的刷新，正在执行的刷新仍会完成
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisException;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 只读操作及幂等写（SET/SETEX、HSET/HMSET、DEL/HDEL、EXPIRE）的重试策略，用于平滑sentinel主从切换期间的失败。
+ * 连接失败、读写超时，以及旧主节点降级后写入返回的READONLY错误可重试；命令本身的错误、熔断、超出CallDeadline预算不重试。
+ * 重试只在首次失败后windowMillis内进行，每次等待backoffMillis * 2^(n-1)；设置了SentinelFailoverWatcher时，
+ * 等待期间一旦发生主节点切换（本次失败之后的切换）立即重试。重试前剩余的CallDeadline预算不足等待时间时放弃。
+ * 非幂等操作（INCR、LPUSH、POP、LTRIM、SET NX、CAS脚本等）从不重试。DEL、HDEL、EXPIRE重试后的返回值只反映最后一次执行。
+ * <p>
+ * 线程安全，一个JedisPoolDB共用一个实例。
+ */
+public class RetryPolicy {
+    private int maxAttempts = 6;//含首次执行的最多执行次数
+    private long windowMillis = 3000;//首次失败后允许重试的时长
+    private long backoffMillis = 50;//首次重试前的等待时间，之后每次翻倍
+    private volatile SentinelFailoverWatcher failoverWatcher;
+
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong exhausted = new AtomicLong();
+    private final AtomicLong deadlineSkips = new AtomicLong();
+
+    /**
+     * 一次执行失败后决定是否重试，需要重试时先完成等待再返回
+     *
+     * @param attempt           已执行的次数（从1开始）
+     * @param firstFailureNanos 首次失败时的System.nanoTime()
+     * @param e                 本次失败的异常
+     * @return true 表示应再执行一次
+     */
+    public boolean awaitRetry(int attempt, long firstFailureNanos, JedisException e) {
+        if (!isRetryable(e)) {
+            return false;
+        }
+        long failedAt = System.nanoTime();
+        long remainingWindow = windowMillis - TimeUnit.NANOSECONDS.toMillis(failedAt - firstFailureNanos);
+        if (attempt >= maxAttempts || remainingWindow <= 0) {
+            exhausted.incrementAndGet();
+            return false;
+        }
+        long wait = Math.min(remainingWindow, backoffMillis << Math.min(attempt - 1, 20));
+        if (!CallDeadline.hasTimeFor(wait)) {
+            deadlineSkips.incrementAndGet();
+            return false;
+        }
+        try {
+            SentinelFailoverWatcher watcher = failoverWatcher;
+            if (watcher != null) {
+                //只等本次失败之后的切换：以首次失败时刻为准时，一次切换之后的每次重试都会立即返回、失去退避
+                watcher.awaitSwitch(failedAt, wait);
+            } else {
+                Thread.sleep(wait);
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        retries.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * 异常是否可能在主从切换完成后消失，子类可覆盖
+     */
+    protected boolean isRetryable(JedisException e) {
+        if (e instanceof DeadlineExceededException || e instanceof CircuitBreakerOpenException) {
+            return false;
+        }
+        if (e instanceof JedisConnectionException) {
+            return true;
+        }
+        return e instanceof JedisDataException && e.getMessage() != null && e.getMessage().startsWith("READONLY");
+    }
+
+    public void setMaxAttempts(int maxAttempts) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be positive");
+        }
+        this.maxAttempts = maxAttempts;
+    }
+
+    public void setWindowMillis(long windowMillis) {
+        this.windowMillis = windowMillis;
+    }
+
+    public void setBackoffMillis(long backoffMillis) {
+        this.backoffMillis = backoffMillis;
+    }
+
+    public SentinelFailoverWatcher getFailoverWatcher() {
+        return failoverWatcher;
+    }
+
+    /**
+     * @param failoverWatcher 为null时按固定退避等待
+     */
+    public void setFailoverWatcher(SentinelFailoverWatcher failoverWatcher) {
+        this.failoverWatcher = failoverWatcher;
+    }
+
+    public long getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * @return 次数或时长用尽后仍失败的次数
+     */
+    public long getExhausted() {
+        return exhausted.get();
+    }
+
+    /**
+     * @return 因剩余时间预算不足而放弃重试的次数
+     */
+    public long getDeadlineSkips() {
+        return deadlineSkips.get();
+    }
+
+    @Override
+    public String toString() {
+        return "RetryPolicy[retries=" + retries.get() + ", exhausted=" + exhausted.get() + ", deadlineSkips=" + deadlineSkips.get() + "]";
+    }
+}
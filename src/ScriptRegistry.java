@@ -0,0 +1,96 @@
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Lua脚本注册表。
+ * 每个脚本在每个redis节点上只SCRIPT LOAD一次（预热时或首次使用时），之后通过EVALSHA调用；
+ * 节点重启或执行SCRIPT FLUSH后返回NOSCRIPT时，重新加载并重试一次。
+ * <p>
+ * 线程安全，一个JedisPoolDB共用一个实例。
+ */
+public class ScriptRegistry {
+    private final ConcurrentMap<String, LuaScript> scripts = new ConcurrentHashMap<String, LuaScript>();
+    //节点(host:port) -> 该节点上已加载的脚本sha1
+    private final ConcurrentMap<String, Set<String>> loaded = new ConcurrentHashMap<String, Set<String>>();
+
+    public LuaScript register(LuaScript script) {
+        LuaScript old = scripts.putIfAbsent(script.getName(), script);
+        return old == null ? script : old;
+    }
+
+    public LuaScript get(String name) {
+        return scripts.get(name);
+    }
+
+    public Collection<LuaScript> getScripts() {
+        return scripts.values();
+    }
+
+    /**
+     * 在节点上加载所有已注册的脚本
+     *
+     * @param jedis 指向该节点的连接
+     */
+    public void loadAll(Jedis jedis) {
+        for (LuaScript script : scripts.values()) {
+            load(jedis, script);
+        }
+    }
+
+    /**
+     * 以EVALSHA执行脚本，脚本未在该节点加载时先加载
+     *
+     * @param jedis  指向脚本所操作key所在节点的连接
+     * @param script
+     * @param keys
+     * @param args
+     * @return 脚本返回值，bulk reply为byte[]，integer reply为Long
+     */
+    public Object evalsha(Jedis jedis, LuaScript script, List<byte[]> keys, List<byte[]> args) {
+        Set<String> nodeScripts = getLoaded(jedis);
+        if (!nodeScripts.contains(script.getSha1())) {
+            load(jedis, script);
+        }
+        try {
+            return jedis.evalsha(script.getSha1Bytes(), keys, args);
+        } catch (JedisDataException e) {
+            if (e.getMessage() == null || !e.getMessage().startsWith("NOSCRIPT")) {
+                throw e;
+            }
+            nodeScripts.clear();
+            load(jedis, script);
+            return jedis.evalsha(script.getSha1Bytes(), keys, args);
+        }
+    }
+
+    private void load(Jedis jedis, LuaScript script) {
+        String sha1 = jedis.scriptLoad(script.getBody());
+        if (!script.getSha1().equals(sha1)) {
+            throw new IllegalStateException("sha1 mismatch for " + script + ": " + sha1);
+        }
+        getLoaded(jedis).add(sha1);
+    }
+
+    private Set<String> getLoaded(Jedis jedis) {
+        String node = nodeOf(jedis);
+        Set<String> nodeScripts = loaded.get(node);
+        if (nodeScripts == null) {
+            nodeScripts = ConcurrentHashMap.newKeySet();
+            Set<String> old = loaded.putIfAbsent(node, nodeScripts);
+            if (old != null) {
+                nodeScripts = old;
+            }
+        }
+        return nodeScripts;
+    }
+
+    static String nodeOf(Jedis jedis) {
+        return jedis.getClient().getHost() + ":" + jedis.getClient().getPort();
+    }
+}
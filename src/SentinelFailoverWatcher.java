@@ -0,0 +1,210 @@
+import com.qlc.common.util.log.LogUtil;
+import com.qlc.common.util.log.MyLoggerFactory;
+import org.slf4j.Logger;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.JedisSentinelPool;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 订阅各sentinel的+switch-master事件，主节点切换时立即将JedisSentinelPool切换到新主节点，
+ * 并唤醒等待重试的调用（见RetryPolicy）。
+ * JedisSentinelPool自身的监听线程在与sentinel断开后会间隔数秒才重连，期间的切换事件只能靠本类及时感知。
+ * <p>
+ * e.g: SentinelFailoverWatcher watcher = new SentinelFailoverWatcher(sentinelPool, "mymaster", sentinels); watcher.start();
+ */
+public class SentinelFailoverWatcher {
+    private static Logger logger = MyLoggerFactory.getLogger(SentinelFailoverWatcher.class);
+
+    /**
+     * 主节点切换的监听器
+     */
+    public interface Listener {
+        void onSwitch(HostAndPort oldMaster, HostAndPort newMaster);
+    }
+
+    private final JedisSentinelPool pool;
+    private final String masterName;
+    private final Set<String> sentinels;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private final List<Thread> threads = new ArrayList<Thread>();
+    private final List<Jedis> subscribers = new CopyOnWriteArrayList<Jedis>();
+    private long reconnectIntervalMillis = 500;//与sentinel的连接断开后重连的间隔
+
+    private volatile boolean running;
+    private final Object switchLock = new Object();
+    private HostAndPort lastAnnouncedMaster;
+    private volatile long lastSwitchNanos;
+    private volatile long switches;
+
+    /**
+     * @param pool       被切换的连接池
+     * @param masterName sentinel中的master名
+     * @param sentinels  ip:port
+     */
+    public SentinelFailoverWatcher(JedisSentinelPool pool, String masterName, Set<String> sentinels) {
+        if (pool == null || masterName == null || sentinels == null || sentinels.isEmpty()) {
+            throw new IllegalArgumentException("pool, masterName and sentinels can't be NULL");
+        }
+        this.pool = pool;
+        this.masterName = masterName;
+        this.sentinels = sentinels;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void setReconnectIntervalMillis(long reconnectIntervalMillis) {
+        this.reconnectIntervalMillis = reconnectIntervalMillis;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        for (final String sentinel : sentinels) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    watch(sentinel);
+                }
+            }, "redis-sentinel-watch-" + sentinel);
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+    }
+
+    public synchronized void shutdown() {
+        running = false;
+        for (Jedis subscriber : subscribers) {
+            try {
+                subscriber.disconnect();
+            } catch (Exception e) {
+                //忽略
+            }
+        }
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+        threads.clear();
+    }
+
+    private void watch(String sentinel) {
+        String host = sentinel.split(":")[0];
+        int port = Integer.parseInt(sentinel.split(":")[1]);
+        while (running) {
+            Jedis jedis = new Jedis(host, port);
+            subscribers.add(jedis);
+            try {
+                jedis.subscribe(new JedisPubSub() {
+                    @Override
+                    public void onMessage(String channel, String message) {
+                        //<master name> <old ip> <old port> <new ip> <new port>
+                        String[] parts = message.split(" ");
+                        if (parts.length == 5 && masterName.equals(parts[0])) {
+                            onSwitch(new HostAndPort(parts[1], Integer.parseInt(parts[2])),
+                                    new HostAndPort(parts[3], Integer.parseInt(parts[4])));
+                        }
+                    }
+                }, "+switch-master");
+            } catch (Exception e) {
+                if (running) {
+                    logger.warn("lost sentinel " + sentinel + ", reconnect in " + reconnectIntervalMillis + "ms: " + e.getMessage());
+                }
+            } finally {
+                subscribers.remove(jedis);
+                jedis.close();
+            }
+            if (running) {
+                try {
+                    Thread.sleep(reconnectIntervalMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void onSwitch(HostAndPort oldMaster, HostAndPort newMaster) {
+        synchronized (switchLock) {
+            //多个sentinel会各自发布同一次切换，只处理一次
+            if (newMaster.equals(lastAnnouncedMaster)) {
+                return;
+            }
+            lastAnnouncedMaster = newMaster;
+            logger.info("redis master " + masterName + " switched from " + oldMaster + " to " + newMaster);
+            switchPool(newMaster);
+            lastSwitchNanos = System.nanoTime();
+            switches++;
+            switchLock.notifyAll();
+        }
+        for (Listener listener : listeners) {
+            try {
+                listener.onSwitch(oldMaster, newMaster);
+            } catch (Exception e) {
+                LogUtil.error(e);
+            }
+        }
+    }
+
+    /**
+     * 调用JedisSentinelPool.initPool(HostAndPort)，与其自身监听线程收到事件时的处理相同：切换地址并清空旧主节点的空闲连接。
+     * 该方法未公开，无法调用时只能等待连接池自身的监听线程切换
+     */
+    private void switchPool(HostAndPort newMaster) {
+        if (newMaster.equals(pool.getCurrentHostMaster())) {
+            return;
+        }
+        try {
+            Method initPool = JedisSentinelPool.class.getDeclaredMethod("initPool", HostAndPort.class);
+            initPool.setAccessible(true);
+            initPool.invoke(pool, newMaster);
+        } catch (Exception e) {
+            LogUtil.error(e);
+        }
+    }
+
+    /**
+     * 等待sinceNanos之后发生的主节点切换
+     *
+     * @param sinceNanos    System.nanoTime()
+     * @param timeoutMillis 最长等待时间
+     * @return true 表示sinceNanos之后已经发生过切换
+     */
+    public boolean awaitSwitch(long sinceNanos, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        synchronized (switchLock) {
+            while (!switchedSince(sinceNanos)) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) {
+                    return false;
+                }
+                switchLock.wait(remaining);
+            }
+            return true;
+        }
+    }
+
+    private boolean switchedSince(long sinceNanos) {
+        return switches > 0 && lastSwitchNanos - sinceNanos >= 0;
+    }
+
+    public long getSwitches() {
+        return switches;
+    }
+
+    @Override
+    public String toString() {
+        return "SentinelFailoverWatcher[" + masterName + ", master=" + pool.getCurrentHostMaster() + ", switches=" + switches + "]";
+    }
+}
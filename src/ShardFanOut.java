@@ -0,0 +1,148 @@
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 分片部署下多key操作的并行执行器：各分片的pipeline同时执行，耗时取决于最慢的分片而不是各分片之和。
+ * 第一个分片在调用线程执行，其余分片提交到线程池；所有分片完成后才返回，分片连接不会在返回连接池后仍被使用。
+ * 各分片任务沿用调用线程的CallDeadline。默认线程池有线程数上限，线程用尽时任务在调用线程执行（退化为逐个分片执行），
+ * 分片节点变慢时不会无限制地创建线程。
+ * <p>
+ * 线程安全，可在多个JedisPoolDB间共用。
+ */
+public class ShardFanOut {
+    private final ExecutorService executor;
+
+    private final AtomicLong fanOuts = new AtomicLong();
+    private final AtomicLong shardTasks = new AtomicLong();
+
+    public ShardFanOut() {
+        this(Math.max(16, Runtime.getRuntime().availableProcessors() * 4));
+    }
+
+    /**
+     * @param maxThreads 线程数上限，空闲60秒的线程回收
+     */
+    public ShardFanOut(int maxThreads) {
+        this(newExecutor(maxThreads));
+    }
+
+    public ShardFanOut(ExecutorService executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("executor can't be NULL");
+        }
+        this.executor = executor;
+    }
+
+    private static ExecutorService newExecutor(int maxThreads) {
+        if (maxThreads <= 0) {
+            throw new IllegalArgumentException("maxThreads must be positive");
+        }
+        return new ThreadPoolExecutor(0, maxThreads, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger seq = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "redis-fanout-" + seq.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * @return 所有JedisPoolDB默认共用的实例，线程按需创建，不超过默认上限
+     */
+    public static ShardFanOut shared() {
+        return Holder.SHARED;
+    }
+
+    private static class Holder {
+        static final ShardFanOut SHARED = new ShardFanOut();
+    }
+
+    /**
+     * 并行执行tasks，全部完成后返回
+     *
+     * @throws JedisException 任一任务失败时抛出第一个失败的异常
+     */
+    public void runAll(List<? extends Callable<?>> tasks) {
+        if (tasks.isEmpty()) {
+            return;
+        }
+        fanOuts.incrementAndGet();
+        shardTasks.addAndGet(tasks.size());
+        List<Future<?>> futures = new ArrayList<Future<?>>(tasks.size() - 1);
+        RuntimeException failure = null;
+        try {
+            for (int i = 1; i < tasks.size(); i++) {
+                futures.add(executor.submit(CallDeadline.propagate(tasks.get(i))));
+            }
+            try {
+                tasks.get(0).call();
+            } catch (RuntimeException e) {
+                failure = e;
+            } catch (Exception e) {
+                failure = new JedisException(e);
+            }
+        } catch (RuntimeException e) {
+            //线程池拒绝
+            failure = e;
+        }
+        boolean interrupted = false;
+        for (Future<?> future : futures) {
+            //须等待全部任务结束，不响应中断
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause()
+                                : new JedisConnectionException(e.getCause());
+                    }
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * @return 并行执行的次数
+     */
+    public long getFanOuts() {
+        return fanOuts.get();
+    }
+
+    /**
+     * @return 并行执行的分片任务总数
+     */
+    public long getShardTasks() {
+        return shardTasks.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ShardFanOut[fanOuts=" + fanOuts.get() + ", shardTasks=" + shardTasks.get() + "]";
+    }
+}
@@ -0,0 +1,136 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 基于ICacheDB令牌桶的分布式限流器。
+ * leaseSize为1时每次检查都是一次服务端原子调用；大于1时每个JVM一次向服务端取一批令牌在本地分配，
+ * 本地令牌用完或超过leaseMillis未用完（作废，避免长期囤积的令牌造成突发）时再去取，多数检查不需要网络。
+ * 租借模式下全局速率仍不超过设定值，但令牌可能在JVM间分配不均，leaseSize应远小于capacity。
+ * <p>
+ * e.g: TokenBucketLimiter limiter = new TokenBucketLimiter(cacheDB, "limit:sms", 2000, 1000).setLeaseSize(50);
+ * if (limiter.tryAcquire()) {...}
+ */
+public class TokenBucketLimiter {
+    private final ICacheDB cacheDB;
+    private final String key;
+    private final int capacity;
+    private final double permitsPerSecond;
+    private volatile int leaseSize = 1;
+    private volatile long leaseMillis = 1000;
+
+    //本地租借的令牌，只在持有this锁时访问
+    private int leased;
+    private long leaseExpireAt;
+
+    private final AtomicLong localGrants = new AtomicLong();
+    private final AtomicLong remoteCalls = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param cacheDB
+     * @param key              令牌桶的key，共用同一key的限流器共享速率
+     * @param capacity         桶容量，即允许的突发量
+     * @param permitsPerSecond 每秒补充的令牌数
+     */
+    public TokenBucketLimiter(ICacheDB cacheDB, String key, int capacity, double permitsPerSecond) {
+        if (cacheDB == null || key == null) {
+            throw new IllegalArgumentException("cacheDB and key can't be NULL");
+        }
+        if (capacity <= 0 || permitsPerSecond <= 0) {
+            throw new IllegalArgumentException("capacity and permitsPerSecond must be positive");
+        }
+        this.cacheDB = cacheDB;
+        this.key = key;
+        this.capacity = capacity;
+        this.permitsPerSecond = permitsPerSecond;
+    }
+
+    /**
+     * @param leaseSize 每次向服务端取的令牌数，1表示不租借
+     */
+    public TokenBucketLimiter setLeaseSize(int leaseSize) {
+        if (leaseSize <= 0 || leaseSize > capacity) {
+            throw new IllegalArgumentException("leaseSize must be in [1, capacity]");
+        }
+        this.leaseSize = leaseSize;
+        return this;
+    }
+
+    /**
+     * @param leaseMillis 租借的令牌在本地的有效期
+     */
+    public TokenBucketLimiter setLeaseMillis(long leaseMillis) {
+        if (leaseMillis <= 0) {
+            throw new IllegalArgumentException("leaseMillis must be positive");
+        }
+        this.leaseMillis = leaseMillis;
+        return this;
+    }
+
+    public boolean tryAcquire() {
+        return tryAcquire(1);
+    }
+
+    /**
+     * @param permits 需要的令牌数
+     * @return 取得令牌返回true，否则返回false
+     */
+    public boolean tryAcquire(int permits) {
+        if (permits <= 0 || permits > capacity) {
+            throw new IllegalArgumentException("permits must be in [1, capacity]");
+        }
+        int lease = leaseSize;
+        if (lease <= 1 || permits >= lease) {
+            remoteCalls.incrementAndGet();
+            return count(cacheDB.tryAcquire(key, permits, capacity, permitsPerSecond));
+        }
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (now >= leaseExpireAt) {
+                leased = 0;
+            }
+            if (leased >= permits) {
+                leased -= permits;
+                localGrants.incrementAndGet();
+                return true;
+            }
+            //本地令牌不足时再租借一批，与剩余的令牌合并
+            remoteCalls.incrementAndGet();
+            int available = leased + cacheDB.acquireUpTo(key, lease, capacity, permitsPerSecond);
+            leaseExpireAt = now + leaseMillis;
+            if (available >= permits) {
+                leased = available - permits;
+                return true;
+            }
+            leased = available;
+            return count(false);
+        }
+    }
+
+    private boolean count(boolean acquired) {
+        if (!acquired) {
+            rejected.incrementAndGet();
+        }
+        return acquired;
+    }
+
+    /**
+     * @return 在本地分配、未访问服务端的次数
+     */
+    public long getLocalGrants() {
+        return localGrants.get();
+    }
+
+    public long getRemoteCalls() {
+        return remoteCalls.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    @Override
+    public String toString() {
+        return "TokenBucketLimiter[" + key + ", localGrants=" + localGrants.get() + ", remoteCalls=" + remoteCalls.get()
+                + ", rejected=" + rejected.get() + "]";
+    }
+}
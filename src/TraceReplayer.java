@@ -0,0 +1,274 @@
+import redis.clients.util.Pool;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 按CommandTraceRecorder记录的时序（或N倍速）对JedisPoolDB回放命令，报告吞吐、延迟分布与连接池饱和情况。
+ * 回放不还原原始数据：读操作以GET、写操作以SET（原value大小）、计数操作以INCRBY、删除以DEL执行在 keyPrefix + key hash 上，
+ * key hash未知的操作分散在1024个key上。延迟从计划发出时间算起，包含排队等待，回放跟不上时不会被低估。
+ * 应在本地redis或替身服务上回放，不要指向生产环境。
+ * <p>
+ * e.g: java TraceReplayer 127.0.0.1:6379 - 2 64 /data/trace/redis.0.trace /data/trace/redis.1.trace
+ */
+public class TraceReplayer {
+    private static final int READ = 0;
+    private static final int WRITE = 1;
+    private static final int INCR = 2;
+    private static final int DELETE = 3;
+
+    private final JedisPoolDB<?> jedisPoolDB;
+    private final double speed;
+    private final int threads;
+    private String keyPrefix = "trace:";
+
+    private final AtomicLongArray histogram = new AtomicLongArray(64);//按耗时微秒数的log2分桶
+    private final AtomicLong executed = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong maxActive = new AtomicLong();
+    private final AtomicLong maxWaiters = new AtomicLong();
+    private final Map<Integer, String> values = new ConcurrentHashMap<Integer, String>();
+
+    /**
+     * @param jedisPoolDB 回放的目标
+     * @param speed       回放速度倍数，1为原始时序
+     * @param threads     执行命令的线程数
+     */
+    public TraceReplayer(JedisPoolDB<?> jedisPoolDB, double speed, int threads) {
+        if (jedisPoolDB == null || speed <= 0 || threads <= 0) {
+            throw new IllegalArgumentException("jedisPoolDB can't be NULL, speed and threads must be positive");
+        }
+        this.jedisPoolDB = jedisPoolDB;
+        this.speed = speed;
+        this.threads = threads;
+    }
+
+    public TraceReplayer setKeyPrefix(String keyPrefix) {
+        this.keyPrefix = keyPrefix;
+        return this;
+    }
+
+    /**
+     * 依次回放各文件，文件之间按各自记录的开始时间衔接
+     *
+     * @return 回放结果
+     */
+    public String replay(File... traceFiles) throws IOException, InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        Thread sampler = startPoolSampler();
+        long replayStart = System.nanoTime();
+        long firstMicros = Long.MIN_VALUE;
+        long scheduled = 0;
+        try {
+            for (File file : traceFiles) {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+                try {
+                    if (in.readInt() != CommandTraceRecorder.MAGIC) {
+                        throw new IOException(file + " is not a command trace");
+                    }
+                    long fileStartMicros = in.readLong() * 1000;
+                    Map<Short, Integer> kinds = new HashMap<Short, Integer>();
+                    while (true) {
+                        byte type;
+                        try {
+                            type = in.readByte();
+                        } catch (EOFException e) {
+                            break;
+                        }
+                        if (type == CommandTraceRecorder.OP_DEF) {
+                            short opId = in.readShort();
+                            kinds.put(opId, kindOf(in.readUTF()));
+                            continue;
+                        }
+                        short opId;
+                        int keyHash;
+                        int valueSize;
+                        long micros;
+                        try {
+                            opId = in.readShort();
+                            keyHash = in.readInt();
+                            valueSize = in.readInt();
+                            micros = fileStartMicros + in.readLong();
+                            in.readInt();
+                            in.readByte();
+                        } catch (EOFException e) {
+                            //写入中断的最后一条记录
+                            break;
+                        }
+                        if (firstMicros == Long.MIN_VALUE) {
+                            firstMicros = micros;
+                        }
+                        long dueNanos = replayStart + (long) ((micros - firstMicros) * 1000 / speed);
+                        long wait = dueNanos - System.nanoTime();
+                        if (wait > 1000000) {
+                            TimeUnit.NANOSECONDS.sleep(wait);
+                        }
+                        Integer kind = kinds.get(opId);
+                        submit(executor, kind == null ? READ : kind, keyHash == 0 ? keyPrefix + "unknown:" + (scheduled & 1023)
+                                : keyPrefix + Integer.toHexString(keyHash), valueSize, dueNanos);
+                        scheduled++;
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.HOURS);
+            sampler.interrupt();
+        }
+        return report(System.nanoTime() - replayStart);
+    }
+
+    private void submit(ExecutorService executor, final int kind, final String key, final int valueSize, final long dueNanos) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    switch (kind) {
+                        case WRITE:
+                            jedisPoolDB.setString(key, 3600, valueOf(valueSize));
+                            break;
+                        case INCR:
+                            jedisPoolDB.incrBy(key, 1);
+                            break;
+                        case DELETE:
+                            jedisPoolDB.delete(key);
+                            break;
+                        default:
+                            jedisPoolDB.getString(key);
+                    }
+                    executed.incrementAndGet();
+                } catch (Exception e) {
+                    errors.incrementAndGet();
+                }
+                long micros = Math.max(1, (System.nanoTime() - dueNanos) / 1000);
+                histogram.incrementAndGet(63 - Long.numberOfLeadingZeros(micros));
+            }
+        });
+    }
+
+    private String valueOf(int size) {
+        size = Math.min(size, 1024 * 1024);
+        String value = values.get(size);
+        if (value == null) {
+            char[] chars = new char[size];
+            Arrays.fill(chars, 'x');
+            value = new String(chars);
+            values.put(size, value);
+        }
+        return value;
+    }
+
+    /**
+     * 按操作名（无状态命令名或JedisPoolDB方法名）归类
+     */
+    static int kindOf(String op) {
+        String name = op.toLowerCase();
+        if (name.contains("del") || name.contains("rem")) {
+            return DELETE;
+        }
+        if (name.contains("incr") || name.contains("decr")) {
+            return INCR;
+        }
+        if (name.startsWith("get") || name.startsWith("hget") || name.startsWith("mget") || name.startsWith("multiget")
+                || name.contains("exist") || name.contains("ttl") || name.contains("len") || name.contains("range")
+                || name.contains("members") || name.contains("score") || name.contains("card")) {
+            return READ;
+        }
+        if (name.contains("set") || name.contains("push") || name.contains("add") || name.contains("expire")
+                || name.contains("pop") || name.contains("eval")) {
+            return WRITE;
+        }
+        return READ;
+    }
+
+    private Thread startPoolSampler() {
+        final Pool<?> pool = jedisPoolDB.getJedisPool();
+        Thread sampler = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!Thread.currentThread().isInterrupted()) {
+                    updateMax(maxActive, pool.getNumActive());
+                    updateMax(maxWaiters, pool.getNumWaiters());
+                    try {
+                        Thread.sleep(100);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }, "redis-trace-pool-sampler");
+        sampler.setDaemon(true);
+        sampler.start();
+        return sampler;
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            //重试
+        }
+    }
+
+    private String report(long elapsedNanos) {
+        Pool<?> pool = jedisPoolDB.getJedisPool();
+        long total = executed.get() + errors.get();
+        StringBuilder sb = new StringBuilder();
+        sb.append("commands=").append(total).append(", errors=").append(errors.get())
+                .append(", elapsed=").append(TimeUnit.NANOSECONDS.toMillis(elapsedNanos)).append("ms")
+                .append(", throughput=").append(String.format("%.0f", total * 1e9 / Math.max(1, elapsedNanos))).append("/s\n");
+        sb.append("latency(us) p50<").append(percentile(total, 0.5)).append(" p90<").append(percentile(total, 0.9))
+                .append(" p99<").append(percentile(total, 0.99)).append(" p999<").append(percentile(total, 0.999)).append('\n');
+        for (int i = 0; i < 64; i++) {
+            if (histogram.get(i) > 0) {
+                sb.append("  <").append(1L << (i + 1)).append("us: ").append(histogram.get(i)).append('\n');
+            }
+        }
+        sb.append("pool maxActive=").append(maxActive.get()).append(", maxWaiters=").append(maxWaiters.get())
+                .append(", meanBorrowWait=").append(pool.getMeanBorrowWaitTimeMillis()).append("ms")
+                .append(", maxBorrowWait=").append(pool.getMaxBorrowWaitTimeMillis()).append("ms");
+        return sb.toString();
+    }
+
+    private long percentile(long total, double p) {
+        long target = (long) Math.ceil(total * p);
+        long count = 0;
+        for (int i = 0; i < 64; i++) {
+            count += histogram.get(i);
+            if (count >= target && count > 0) {
+                return 1L << (i + 1);
+            }
+        }
+        return 0;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 5) {
+            System.err.println("usage: TraceReplayer ip:port[,ip:port] passwd|- speed threads traceFile...");
+            System.exit(1);
+        }
+        String passwd = "-".equals(args[1]) ? null : args[1];
+        TraceReplayer replayer = new TraceReplayer(RedisDBFactory.getRedisDB(args[0], passwd),
+                Double.parseDouble(args[2]), Integer.parseInt(args[3]));
+        File[] files = new File[args.length - 4];
+        for (int i = 4; i < args.length; i++) {
+            files[i - 4] = new File(args[i]);
+        }
+        System.out.println(replayer.replay(files));
+        System.exit(0);
+    }
+}
@@ -0,0 +1,114 @@
+import java.io.Closeable;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 过期时间的随机抖动策略，使同一批写入的key不在同一时刻过期，避免过期后集中回源以及redis集中删除过期key。
+ * 抖动只缩短过期时间，不延长数据的有效期：实际过期时间在 [ttl - jitter, ttl] 内均匀分布，
+ * jitter = min(ttl * ratio, maxJitterSeconds)；ttl小于minTtlSeconds时不抖动。
+ * 只作用于写入值的操作，setIfNotExist、compareAndSet、getAndExpire、expire等常用于锁与租约的操作不抖动。
+ * <p>
+ * 可对连接池设置（JedisPoolDB.setTtlJitter），也可以线程内作用域对单次调用设置，作用域内覆盖连接池的设置，TtlJitter.NONE表示不抖动。
+ * e.g: try (TtlJitter.Scope ignored = TtlJitter.use(new TtlJitter(0.2))) { redisDB.multiSetObject(users, 3600); }
+ * <p>
+ * 线程安全。
+ */
+public class TtlJitter {
+    public static final TtlJitter NONE = new TtlJitter(0);
+
+    private static final ThreadLocal<TtlJitter> CURRENT = new ThreadLocal<TtlJitter>();
+
+    private final double ratio;
+    private volatile int maxJitterSeconds = Integer.MAX_VALUE;
+    private volatile int minTtlSeconds = 10;
+
+    /**
+     * @param ratio 最大抖动占ttl的比例，[0, 1)
+     */
+    public TtlJitter(double ratio) {
+        if (ratio < 0 || ratio >= 1) {
+            throw new IllegalArgumentException("ratio must be in [0, 1)");
+        }
+        this.ratio = ratio;
+    }
+
+    /**
+     * @param maxJitterSeconds 最大抖动秒数
+     */
+    public TtlJitter setMaxJitterSeconds(int maxJitterSeconds) {
+        if (maxJitterSeconds < 0) {
+            throw new IllegalArgumentException("maxJitterSeconds can't be negative");
+        }
+        this.maxJitterSeconds = maxJitterSeconds;
+        return this;
+    }
+
+    /**
+     * @param minTtlSeconds 小于此值的ttl不抖动
+     */
+    public TtlJitter setMinTtlSeconds(int minTtlSeconds) {
+        this.minTtlSeconds = minTtlSeconds;
+        return this;
+    }
+
+    /**
+     * @param ttlSeconds 过期秒数，0和负数表示不过期，原样返回
+     * @return 抖动后的过期秒数，不小于1
+     */
+    public int apply(int ttlSeconds) {
+        if (ttlSeconds <= 0 || ttlSeconds < minTtlSeconds || ratio == 0) {
+            return ttlSeconds;
+        }
+        int jitter = (int) Math.min(ttlSeconds * ratio, maxJitterSeconds);
+        if (jitter <= 0) {
+            return ttlSeconds;
+        }
+        return Math.max(1, ttlSeconds - ThreadLocalRandom.current().nextInt(jitter + 1));
+    }
+
+    /**
+     * 在当前线程开始一个抖动策略作用域，须在finally中（或以try-with-resources）调用close()结束
+     *
+     * @param jitter 作用域内使用的策略，TtlJitter.NONE表示不抖动
+     * @return 作用域
+     */
+    public static Scope use(TtlJitter jitter) {
+        if (jitter == null) {
+            throw new IllegalArgumentException("jitter can't be NULL");
+        }
+        Scope scope = new Scope(CURRENT.get());
+        CURRENT.set(jitter);
+        return scope;
+    }
+
+    /**
+     * @return 当前线程作用域内的策略，没有作用域时为null
+     */
+    static TtlJitter current() {
+        return CURRENT.get();
+    }
+
+    @Override
+    public String toString() {
+        return "TtlJitter[ratio=" + ratio + ", maxJitterSeconds=" + maxJitterSeconds + ", minTtlSeconds=" + minTtlSeconds + "]";
+    }
+
+    /**
+     * 线程内作用域，结束时恢复外层的策略
+     */
+    public static final class Scope implements Closeable {
+        private final TtlJitter outer;
+
+        private Scope(TtlJitter outer) {
+            this.outer = outer;
+        }
+
+        @Override
+        public void close() {
+            if (outer == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(outer);
+            }
+        }
+    }
+}
@@ -0,0 +1,10 @@
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * getAndUpdate在ContentionPolicy允许的次数内始终与其他客户端的写入冲突，未能完成更新
+ */
+public class UpdateConflictException extends JedisException {
+    public UpdateConflictException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,848 @@
+import com.qlc.common.util.log.LogUtil;
+import com.qlc.common.util.log.MyLoggerFactory;
+import org.slf4j.Logger;
+import redis.clients.jedis.PipelineBase;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.util.SafeEncoder;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.UnaryOperator;
+
+/**
+ * 异步回写（write-behind）模式的ICacheDB。
+ * setObject/setString/hSetObject/hSetString写入本地有界缓冲区后立即返回，同一key（或同一hashmap的同一field）
+ * 的多次写入合并为最后一次；后台线程在缓冲数达到batchSize或距上次刷新超过flushIntervalMillis时，以pipeline批量写入redis。
+ * 同一进程内的getObject/getString/hGetObject/hGetString/multiGet*优先读取缓冲区中尚未写入的值；其他进程在刷新前读到的仍是旧值。
+ * <p>
+ * 适用于后写覆盖先写、不要求同步落地的状态类数据。
+ * compareAndSet、setIfNotExist、getAndExpire、getAndUpdate、incrBy/decrBy/incrDecrGet/incrDecrInit、hGetAll/hMultiGet/hExists/hKeys/hLen、
+ * expire、ttl等读取或依赖redis中当前值的操作先同步写入该key缓冲的数据再转发；hMultiSet丢弃该key同名field缓冲的数据后再写入，
+ * 删除操作等待该key正在写入的数据写完后再删除；其余操作直接转发给底层JedisPoolDB。
+ * 关闭时（shutdown或JVM退出）将缓冲区剩余数据写完。
+ */
+public class WriteBehindCacheDB extends DelegatingCacheDB {
+    private static Logger logger = MyLoggerFactory.getLogger(WriteBehindCacheDB.class);
+
+    /**
+     * 缓冲区满时新写入的处理方式
+     */
+    public enum OverflowPolicy {
+        BLOCK,//阻塞直到缓冲区有空位
+        WRITE_THROUGH,//同步写入redis
+        REJECT//放弃本次写入，写操作返回false
+    }
+
+    private final JedisPoolDB<?> jedisPoolDB;
+    private final int maxPending;
+    private final int batchSize;
+    private final long flushIntervalMillis;
+    private final OverflowPolicy overflowPolicy;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final Condition flushNeeded = lock.newCondition();
+    private final Condition flushDone = lock.newCondition();
+    //尚未确认写入的数据，正在写入的项在收到redis的回复前仍保留在此，以便读取
+    private final LinkedHashMap<PendingKey, PendingWrite> pending = new LinkedHashMap<PendingKey, PendingWrite>();
+    //正在以pipeline写入的项，写完前同一项的新写入不会被取出，以保证写入顺序
+    private final Set<PendingKey> flushing = new HashSet<PendingKey>();
+    private final Thread flusher;
+    private final Thread shutdownHook;
+    private volatile boolean running = true;
+
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong flushed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * @param jedisPoolDB
+     * @param maxPending          缓冲区最多容纳的待写入项数
+     * @param batchSize           单次pipeline最多写入的项数，缓冲数达到此值时立即触发刷新
+     * @param flushIntervalMillis 最长刷新间隔
+     * @param overflowPolicy      缓冲区满时的处理方式
+     */
+    public WriteBehindCacheDB(JedisPoolDB<?> jedisPoolDB, int maxPending, int batchSize, long flushIntervalMillis, OverflowPolicy overflowPolicy) {
+        super(jedisPoolDB);
+        if (maxPending <= 0 || batchSize <= 0 || flushIntervalMillis <= 0 || overflowPolicy == null) {
+            throw new IllegalArgumentException("maxPending, batchSize and flushIntervalMillis must be positive, overflowPolicy can't be NULL");
+        }
+        this.jedisPoolDB = jedisPoolDB;
+        this.maxPending = maxPending;
+        this.batchSize = batchSize;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.overflowPolicy = overflowPolicy;
+        this.flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flushLoop();
+            }
+        }, "redis-write-behind");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+        this.shutdownHook = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                shutdown();
+            }
+        }, "redis-write-behind-shutdown");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    public WriteBehindCacheDB(JedisPoolDB<?> jedisPoolDB) {
+        this(jedisPoolDB, 100000, 500, 100, OverflowPolicy.WRITE_THROUGH);
+    }
+
+    @Override
+    public <T extends Serializable> boolean setObject(String key, int expirePeriodInSecond, T value) {
+        notNullAssert(key, value);
+        PendingWrite write = new PendingWrite(key, null, jedisPoolDB.getSerialize().encode(value), jedisPoolDB.expireOf(expirePeriodInSecond));
+        Boolean ret = enqueue(write);
+        return ret != null ? ret : cacheDB.setObject(key, expirePeriodInSecond, value);
+    }
+
+    @Override
+    public boolean setString(String key, int expirePeriodInSecond, String value) {
+        notNullAssert(key, value);
+        PendingWrite write = new PendingWrite(key, null, SafeEncoder.encode(value), jedisPoolDB.expireOf(expirePeriodInSecond));
+        Boolean ret = enqueue(write);
+        return ret != null ? ret : cacheDB.setString(key, expirePeriodInSecond, value);
+    }
+
+    @Override
+    public <T extends Serializable> boolean hSetObject(String key, String field, T value) {
+        notNullAssert(key, value);
+        notNullAssert(field, value);
+        PendingWrite write = new PendingWrite(key, field, jedisPoolDB.getSerialize().encode(value), 0);
+        Boolean ret = enqueue(write);
+        return ret != null ? ret : cacheDB.hSetObject(key, field, value);
+    }
+
+    @Override
+    public boolean hSetString(String key, String field, String value) {
+        notNullAssert(key, value);
+        notNullAssert(field, value);
+        PendingWrite write = new PendingWrite(key, field, SafeEncoder.encode(value), 0);
+        Boolean ret = enqueue(write);
+        return ret != null ? ret : cacheDB.hSetString(key, field, value);
+    }
+
+    @Override
+    public <T extends Serializable> T getObject(String key, Class<T> type) {
+        PendingWrite write = getPending(key, null);
+        if (write != null) {
+            return jedisPoolDB.getSerialize().decode(write.value, type);
+        }
+        return cacheDB.getObject(key, type);
+    }
+
+    @Override
+    public String getString(String key) {
+        PendingWrite write = getPending(key, null);
+        if (write != null) {
+            return SafeEncoder.encode(write.value);
+        }
+        return cacheDB.getString(key);
+    }
+
+    @Override
+    public <T extends Serializable> T hGetObject(String key, String field, Class<T> type) {
+        PendingWrite write = getPending(key, field);
+        if (write != null) {
+            return jedisPoolDB.getSerialize().decode(write.value, type);
+        }
+        return cacheDB.hGetObject(key, field, type);
+    }
+
+    @Override
+    public String hGetString(String key, String field) {
+        PendingWrite write = getPending(key, field);
+        if (write != null) {
+            return SafeEncoder.encode(write.value);
+        }
+        return cacheDB.hGetString(key, field);
+    }
+
+    /**
+     * 删除key时一并丢弃该key尚未写入的数据（包括其hashmap的各field）；该key正在写入时等待写完，以免删除后又被写入
+     */
+    @Override
+    public boolean delete(String key) {
+        discard(Collections.singleton(key));
+        return cacheDB.delete(key);
+    }
+
+    @Override
+    public int hDelete(String key, String... fields) {
+        lock.lock();
+        try {
+            awaitFlushing(Collections.singleton(key));
+            if (fields != null) {
+                for (String field : fields) {
+                    pending.remove(new PendingKey(key, field));
+                }
+            }
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        return cacheDB.hDelete(key, fields);
+    }
+
+    /**
+     * 缓冲区中尚未写入的值优先，其余key批量读取
+     */
+    @Override
+    public <T extends Serializable> Map<String, T> multiGetObject(Class<T> type, String... keys) {
+        Map<String, T> ret = new HashMap<String, T>();
+        List<String> rest = new ArrayList<String>(keys.length);
+        for (String key : keys) {
+            PendingWrite write = getPending(key, null);
+            if (write != null) {
+                ret.put(key, jedisPoolDB.getSerialize().decode(write.value, type));
+            } else {
+                rest.add(key);
+            }
+        }
+        if (!rest.isEmpty()) {
+            ret.putAll(cacheDB.multiGetObject(type, rest.toArray(new String[rest.size()])));
+        }
+        return ret;
+    }
+
+    @Override
+    public Map<String, String> multiGetString(String... keys) {
+        Map<String, String> ret = new HashMap<String, String>();
+        List<String> rest = new ArrayList<String>(keys.length);
+        for (String key : keys) {
+            PendingWrite write = getPending(key, null);
+            if (write != null) {
+                ret.put(key, SafeEncoder.encode(write.value));
+            } else {
+                rest.add(key);
+            }
+        }
+        if (!rest.isEmpty()) {
+            ret.putAll(cacheDB.multiGetString(rest.toArray(new String[rest.size()])));
+        }
+        return ret;
+    }
+
+    /**
+     * 逐个写入缓冲区
+     */
+    @Override
+    public <T extends Serializable> boolean multiSetObject(Map<String, T> keyValues, int expirePeriodInSecond) {
+        boolean ret = true;
+        for (Map.Entry<String, T> entry : keyValues.entrySet()) {
+            ret &= setObject(entry.getKey(), expirePeriodInSecond, entry.getValue());
+        }
+        return ret;
+    }
+
+    @Override
+    public boolean multiSetString(Map<String, String> keyValues, int expirePeriodInSecond) {
+        boolean ret = true;
+        for (Map.Entry<String, String> entry : keyValues.entrySet()) {
+            ret &= setString(entry.getKey(), expirePeriodInSecond, entry.getValue());
+        }
+        return ret;
+    }
+
+    /**
+     * 删除keys时一并丢弃这些key尚未写入的数据
+     */
+    @Override
+    public int multiDelete(String... keys) {
+        discard(new HashSet<String>(Arrays.asList(keys)));
+        return cacheDB.multiDelete(keys);
+    }
+
+    @Override
+    public boolean setStringIfNotExist(String key, int expirePeriodInSecond, String value) {
+        flushKey(key);
+        return cacheDB.setStringIfNotExist(key, expirePeriodInSecond, value);
+    }
+
+    @Override
+    public <T extends Serializable> boolean setObjectIfNotExist(String key, int expirePeriodInSecond, T value) {
+        flushKey(key);
+        return cacheDB.setObjectIfNotExist(key, expirePeriodInSecond, value);
+    }
+
+    @Override
+    public boolean compareAndSetString(String key, String expect, String update, int expirePeriodInSecond) {
+        flushKey(key);
+        return cacheDB.compareAndSetString(key, expect, update, expirePeriodInSecond);
+    }
+
+    @Override
+    public <T extends Serializable> boolean compareAndSetObject(String key, T expect, T update, int expirePeriodInSecond) {
+        flushKey(key);
+        return cacheDB.compareAndSetObject(key, expect, update, expirePeriodInSecond);
+    }
+
+    @Override
+    public <T extends Serializable> T getObjectAndExpire(String key, int expirePeriodInSecond, Class<T> type) {
+        flushKey(key);
+        return cacheDB.getObjectAndExpire(key, expirePeriodInSecond, type);
+    }
+
+    @Override
+    public String getStringAndExpire(String key, int expirePeriodInSecond) {
+        flushKey(key);
+        return cacheDB.getStringAndExpire(key, expirePeriodInSecond);
+    }
+
+    @Override
+    public <T extends Serializable> T getAndUpdateObject(String key, int expirePeriodInSecond, Class<T> type, UnaryOperator<T> updater) {
+        flushKey(key);
+        return cacheDB.getAndUpdateObject(key, expirePeriodInSecond, type, updater);
+    }
+
+    @Override
+    public String getAndUpdateString(String key, int expirePeriodInSecond, UnaryOperator<String> updater) {
+        flushKey(key);
+        return cacheDB.getAndUpdateString(key, expirePeriodInSecond, updater);
+    }
+
+    @Override
+    public <T extends Serializable> T hGetAndUpdateObject(String key, String field, Class<T> type, UnaryOperator<T> updater) {
+        flushKey(key);
+        return cacheDB.hGetAndUpdateObject(key, field, type, updater);
+    }
+
+    @Override
+    public String hGetAndUpdateString(String key, String field, UnaryOperator<String> updater) {
+        flushKey(key);
+        return cacheDB.hGetAndUpdateString(key, field, updater);
+    }
+
+    @Override
+    public long incrBy(String key, int step) {
+        flushKey(key);
+        return cacheDB.incrBy(key, step);
+    }
+
+    @Override
+    public long decrBy(String key, int step) {
+        flushKey(key);
+        return cacheDB.decrBy(key, step);
+    }
+
+    @Override
+    public long incrDecrGet(String key) {
+        flushKey(key);
+        return cacheDB.incrDecrGet(key);
+    }
+
+    @Override
+    public boolean incrDecrInit(String key, int expirePeriodInSecond, long value) {
+        flushKey(key);
+        return cacheDB.incrDecrInit(key, expirePeriodInSecond, value);
+    }
+
+    @Override
+    public <T extends Serializable> Map<String, T> hGetAllObject(String key, Class<T> type) {
+        flushKey(key);
+        return cacheDB.hGetAllObject(key, type);
+    }
+
+    @Override
+    public Map<String, String> hGetAllString(String key) {
+        flushKey(key);
+        return cacheDB.hGetAllString(key);
+    }
+
+    @Override
+    public <T extends Serializable> Map<String, T> hMultiGetObject(String key, Class<T> type, String... fields) {
+        flushKey(key);
+        return cacheDB.hMultiGetObject(key, type, fields);
+    }
+
+    @Override
+    public Map<String, String> hMultiGetString(String key, String... fields) {
+        flushKey(key);
+        return cacheDB.hMultiGetString(key, fields);
+    }
+
+    @Override
+    public boolean hExists(String key, String field) {
+        flushKey(key);
+        return cacheDB.hExists(key, field);
+    }
+
+    @Override
+    public Set<String> hKeys(String key) {
+        flushKey(key);
+        return cacheDB.hKeys(key);
+    }
+
+    @Override
+    public int hLen(String key) {
+        flushKey(key);
+        return cacheDB.hLen(key);
+    }
+
+    /**
+     * 同步写入的field覆盖缓冲中同名field的旧值：先丢弃这些field缓冲的数据（正在写入的等待写完），以免之后被旧值覆盖
+     */
+    @Override
+    public <T extends Serializable> boolean hMultiSetObject(String key, Map<String, T> fieldValues) {
+        if (fieldValues != null) {
+            discardFields(key, fieldValues.keySet());
+        }
+        return cacheDB.hMultiSetObject(key, fieldValues);
+    }
+
+    @Override
+    public boolean hMultiSetString(String key, Map<String, String> fieldValues) {
+        if (fieldValues != null) {
+            discardFields(key, fieldValues.keySet());
+        }
+        return cacheDB.hMultiSetString(key, fieldValues);
+    }
+
+    @Override
+    public <T extends Serializable> boolean hMultiSetObject(String key, Map<String, T> fieldValues, int expirePeriodInSecond) {
+        if (fieldValues != null) {
+            discardFields(key, fieldValues.keySet());
+        }
+        return cacheDB.hMultiSetObject(key, fieldValues, expirePeriodInSecond);
+    }
+
+    @Override
+    public boolean hMultiSetString(String key, Map<String, String> fieldValues, int expirePeriodInSecond) {
+        if (fieldValues != null) {
+            discardFields(key, fieldValues.keySet());
+        }
+        return cacheDB.hMultiSetString(key, fieldValues, expirePeriodInSecond);
+    }
+
+    @Override
+    public int ttl(String key) {
+        flushKey(key);
+        return cacheDB.ttl(key);
+    }
+
+    @Override
+    public boolean expire(String key, int expirePeriodInSecond) {
+        flushKey(key);
+        return cacheDB.expire(key, expirePeriodInSecond);
+    }
+
+    @Override
+    public int multiExpire(int expirePeriodInSecond, String... keys) {
+        for (String key : keys) {
+            flushKey(key);
+        }
+        return cacheDB.multiExpire(expirePeriodInSecond, keys);
+    }
+
+    /**
+     * 将缓冲区中的全部数据同步写入redis，其他线程正在写入的数据等待其写完；连接失败时剩余数据留在缓冲区
+     */
+    public void flush() {
+        while (true) {
+            while (flushBatch() > 0) {
+            }
+            lock.lock();
+            try {
+                if (flushing.isEmpty()) {
+                    return;
+                }
+                //其他线程写入失败的项会留在缓冲区，等其写完后再取一次
+                flushDone.awaitUninterruptibly();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 停止后台刷新线程并写完缓冲区剩余数据，之后的写入直接同步写入redis
+     */
+    public void shutdown() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        lock.lock();
+        try {
+            flushNeeded.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flusher.join(flushIntervalMillis * 10);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        if (Thread.currentThread() != shutdownHook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                //JVM正在退出
+            }
+        }
+        logger.info("write-behind shutdown: " + this);
+    }
+
+    public int getPendingCount() {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getAccepted() {
+        return accepted.get();
+    }
+
+    /**
+     * @return 被后续写入合并掉的写入数
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    public long getFlushed() {
+        return flushed.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return redis返回命令错误（如WRONGTYPE）而放弃的写入数
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    @Override
+    public String toString() {
+        return "WriteBehindCacheDB[pending=" + getPendingCount() + ", accepted=" + accepted.get() + ", coalesced=" + coalesced.get()
+                + ", flushed=" + flushed.get() + ", dropped=" + dropped.get() + ", failed=" + failed.get() + "]";
+    }
+
+    /**
+     * @return true/false 已放入缓冲区/被拒绝；null 表示应同步写入
+     */
+    private Boolean enqueue(PendingWrite write) {
+        if (!running) {
+            return null;
+        }
+        lock.lock();
+        try {
+            if (pending.containsKey(write.pendingKey)) {
+                if (!flushing.contains(write.pendingKey)) {
+                    coalesced.incrementAndGet();
+                }
+                pending.put(write.pendingKey, write);
+                accepted.incrementAndGet();
+                return true;
+            }
+            while (pending.size() >= maxPending) {
+                if (overflowPolicy == OverflowPolicy.WRITE_THROUGH) {
+                    return null;
+                } else if (overflowPolicy == OverflowPolicy.REJECT) {
+                    dropped.incrementAndGet();
+                    return false;
+                }
+                flushNeeded.signal();
+                notFull.awaitUninterruptibly();
+                if (!running) {
+                    return null;
+                }
+            }
+            pending.put(write.pendingKey, write);
+            accepted.incrementAndGet();
+            if (pending.size() >= batchSize) {
+                flushNeeded.signal();
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private PendingWrite getPending(String key, String field) {
+        lock.lock();
+        try {
+            return pending.isEmpty() ? null : pending.get(new PendingKey(key, field));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void flushLoop() {
+        while (running) {
+            lock.lock();
+            try {
+                if (pending.size() < batchSize) {
+                    flushNeeded.await(flushIntervalMillis, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                while (running && flushBatch() >= batchSize) {
+                }
+            } catch (Exception e) {
+                LogUtil.error(e);
+            }
+        }
+    }
+
+    /**
+     * 取出最多batchSize项以pipeline写入，写入失败时各项留在缓冲区等待下次刷新
+     *
+     * @return 本次写完（成功或被redis拒绝）的项数，写入失败时为0
+     */
+    private int flushBatch() {
+        List<PendingWrite> batch = new ArrayList<PendingWrite>();
+        lock.lock();
+        try {
+            Iterator<PendingWrite> it = pending.values().iterator();
+            while (it.hasNext() && batch.size() < batchSize) {
+                PendingWrite write = it.next();
+                if (flushing.add(write.pendingKey)) {
+                    batch.add(write);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        try {
+            return write(batch);
+        } catch (Exception e) {
+            LogUtil.error(e);
+            return 0;
+        }
+    }
+
+    /**
+     * 同步写入key（包括其hashmap的各field）在缓冲区中的数据，供依赖redis中当前值的操作调用
+     */
+    private void flushKey(String key) {
+        List<PendingWrite> batch = new ArrayList<PendingWrite>();
+        lock.lock();
+        try {
+            if (pending.isEmpty()) {
+                return;
+            }
+            awaitFlushing(Collections.singleton(key));
+            for (PendingWrite write : pending.values()) {
+                if (write.pendingKey.key.equals(key)) {
+                    flushing.add(write.pendingKey);
+                    batch.add(write);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (!batch.isEmpty()) {
+            write(batch);
+        }
+    }
+
+    /**
+     * 以pipeline写入batch并逐项检查回复。写入成功或被redis拒绝的项从缓冲区移除（期间已有更新的写入则保留新值），
+     * 连接失败时各项留在缓冲区；batch中的项须已标记为正在写入
+     *
+     * @return 写完的项数
+     */
+    private int write(final List<PendingWrite> batch) {
+        final List<Response<String>> replies = new ArrayList<Response<String>>(batch.size());
+        boolean written = false;
+        try {
+            jedisPoolDB.runPipelined(new JedisPoolDB.PipelineCallback() {
+                @Override
+                public void execute(PipelineBase pipeline) {
+                    Map<String, Map<byte[], byte[]>> hashes = new LinkedHashMap<String, Map<byte[], byte[]>>();
+                    for (PendingWrite write : batch) {
+                        if (write.pendingKey.field != null) {
+                            Map<byte[], byte[]> fieldValues = hashes.get(write.pendingKey.key);
+                            if (fieldValues == null) {
+                                fieldValues = new HashMap<byte[], byte[]>();
+                                hashes.put(write.pendingKey.key, fieldValues);
+                            }
+                            fieldValues.put(SafeEncoder.encode(write.pendingKey.field), write.value);
+                            replies.add(null);
+                        } else if (write.expirePeriodInSecond > 0) {
+                            replies.add(pipeline.setex(jedisPoolDB.encodeKey(write.pendingKey.key), write.expirePeriodInSecond, write.value));
+                        } else {
+                            replies.add(pipeline.set(jedisPoolDB.encodeKey(write.pendingKey.key), write.value));
+                        }
+                    }
+                    //同一hashmap的各field合并为一次HMSET，共用其回复
+                    Map<String, Response<String>> hashReplies = new HashMap<String, Response<String>>();
+                    for (Map.Entry<String, Map<byte[], byte[]>> hash : hashes.entrySet()) {
+                        hashReplies.put(hash.getKey(), pipeline.hmset(jedisPoolDB.encodeKey(hash.getKey()), hash.getValue()));
+                    }
+                    for (int i = 0; i < batch.size(); i++) {
+                        if (replies.get(i) == null) {
+                            replies.set(i, hashReplies.get(batch.get(i).pendingKey.key));
+                        }
+                    }
+                }
+            });
+            written = true;
+        } finally {
+            lock.lock();
+            try {
+                for (int i = 0; i < batch.size(); i++) {
+                    PendingWrite write = batch.get(i);
+                    flushing.remove(write.pendingKey);
+                    if (!written) {
+                        continue;
+                    }
+                    try {
+                        replies.get(i).get();
+                        flushed.incrementAndGet();
+                    } catch (JedisDataException e) {
+                        failed.incrementAndGet();
+                        logger.warn("write-behind failed, key: " + write.pendingKey.key + ", " + e.getMessage());
+                    }
+                    if (pending.get(write.pendingKey) == write) {
+                        pending.remove(write.pendingKey);
+                    }
+                }
+                notFull.signalAll();
+                flushDone.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+        return batch.size();
+    }
+
+    /**
+     * 等待keys正在写入的数据写完后，丢弃这些key（包括其hashmap的各field）缓冲的数据
+     */
+    private void discard(Set<String> keys) {
+        lock.lock();
+        try {
+            awaitFlushing(keys);
+            Iterator<PendingKey> it = pending.keySet().iterator();
+            while (it.hasNext()) {
+                if (keys.contains(it.next().key)) {
+                    it.remove();
+                }
+            }
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 等待key正在写入的数据写完后，丢弃其hashmap中fields缓冲的数据
+     */
+    private void discardFields(String key, Set<String> fields) {
+        lock.lock();
+        try {
+            if (pending.isEmpty()) {
+                return;
+            }
+            awaitFlushing(Collections.singleton(key));
+            for (String field : fields) {
+                pending.remove(new PendingKey(key, field));
+            }
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 持有lock时调用，等待keys没有正在写入的数据
+     */
+    private void awaitFlushing(Set<String> keys) {
+        while (true) {
+            boolean busy = false;
+            for (PendingKey pendingKey : flushing) {
+                if (keys.contains(pendingKey.key)) {
+                    busy = true;
+                    break;
+                }
+            }
+            if (!busy) {
+                return;
+            }
+            flushDone.awaitUninterruptibly();
+        }
+    }
+
+    private static void notNullAssert(Object key, Object value) {
+        if (key == null || value == null) {
+            throw new IllegalArgumentException("not support the Object-type of Null");
+        }
+    }
+
+    private static final class PendingKey {
+        private final String key;
+        private final String field;//为null时表示普通key
+
+        PendingKey(String key, String field) {
+            this.key = key;
+            this.field = field;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof PendingKey)) {
+                return false;
+            }
+            PendingKey that = (PendingKey) o;
+            return key.equals(that.key) && (field == null ? that.field == null : field.equals(that.field));
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * key.hashCode() + (field == null ? 0 : field.hashCode());
+        }
+    }
+
+    private static final class PendingWrite {
+        private final PendingKey pendingKey;
+        private final byte[] value;
+        private final int expirePeriodInSecond;
+
+        PendingWrite(String key, String field, byte[] value, int expirePeriodInSecond) {
+            this.pendingKey = new PendingKey(key, field);
+            this.value = value;
+            this.expirePeriodInSecond = expirePeriodInSecond;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package transcoder;
+
+/**
+ * 编码id与ISerialize的对应关系，供VersionedSerialize按数据头部的编码id选择解码器。
+ * 编码id一经使用不能再指向其他编码，否则已写入的数据将无法解码。
+ */
+public class CodecRegistry {
+    public static final int JSON = 1;//DefaultSerialize
+    public static final int HESSIAN2 = 2;//Hessian2Serialize
+
+    private final ISerialize[] codecs = new ISerialize[256];
+
+    /**
+     * @return 已注册JSON、HESSIAN2的注册表
+     */
+    public static CodecRegistry defaults() {
+        return new CodecRegistry()
+                .register(JSON, new DefaultSerialize())
+                .register(HESSIAN2, new Hessian2Serialize());
+    }
+
+    /**
+     * @param id    1-255
+     * @param codec
+     */
+    public synchronized CodecRegistry register(int id, ISerialize codec) {
+        if (id < 1 || id > 255 || codec == null) {
+            throw new IllegalArgumentException("id must be in [1, 255] and codec can't be NULL");
+        }
+        if (codecs[id] != null && codecs[id].getClass() != codec.getClass()) {
+            throw new IllegalArgumentException("codec id " + id + " already used by " + codecs[id].getClass().getName());
+        }
+        codecs[id] = codec;
+        return this;
+    }
+
+    /**
+     * @return id对应的编码，未注册时返回null
+     */
+    public ISerialize get(int id) {
+        return id < 0 || id > 255 ? null : codecs[id];
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        for (int id = 1; id < codecs.length; id++) {
+            if (codecs[id] != null) {
+                if (sb.length() > 1) {
+                    sb.append(", ");
+                }
+                sb.append(id).append('=').append(codecs[id].getClass().getName());
+            }
+        }
+        return sb.append('}').toString();
+    }
+}
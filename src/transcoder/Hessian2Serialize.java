@@ -8,7 +8,7 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
-public class Hessian2Serialize implements ISerialize {
+public class Hessian2Serialize implements ISerialize, StrictDecode {
     @Override
     public byte[] encode(Object o) {
         ByteArrayOutputStream os = new ByteArrayOutputStream();
@@ -35,4 +35,17 @@ public class Hessian2Serialize implements ISerialize {
         }
         return o;
     }
+
+    @Override
+    public <T> T decodeStrict(byte[] bytes, Class<T> type) {
+        Hessian2Input h2i = new Hessian2Input(new ByteArrayInputStream(bytes));
+        try {
+            T o = type == null ? (T) h2i.readObject() : (T) h2i.readObject(type);
+            return h2i.isEnd() ? o : null;
+        } catch (IOException e) {
+            return null;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
 }
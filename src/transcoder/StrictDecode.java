@@ -0,0 +1,11 @@
+package transcoder;
+
+/**
+ * 能判断数据是否被完整解码的序列化，供VersionedSerialize区分带头部的数据与恰好以头部字节开头的旧格式数据
+ */
+public interface StrictDecode {
+    /**
+     * @return 解码结果；无法解码或解码后还有多余字节时返回null，不抛出异常
+     */
+    public <T> T decodeStrict(byte[] bytes, Class<T> type);
+}
@@ -0,0 +1,126 @@
+package transcoder;
+
+import com.qlc.common.util.log.LogUtil;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 带编码头部的序列化：写入的数据为 0xFF、编码id（1字节）、该编码的结果；读取时按头部的编码id选择CodecRegistry中的编码解码，
+ * 没有头部的数据按legacy解码。因此可以在不清空缓存的情况下更换编码。
+ * DefaultSerialize的结果是UTF-8，不会以0xFF开头；Hessian2Serialize只有部分long值以0xFF开头，
+ * 按头部解码失败、结果为null或（编码实现StrictDecode时）有多余字节时视为没有头部，再按legacy解码。
+ * <p>
+ * 更换编码分两步上线：先在所有实例上以preferred = LEGACY部署（仍写旧格式，但已能读新格式），
+ * 全部上线后再以新编码为preferred部署。可用getLegacyDecodes观察旧格式数据的剩余情况。
+ * <p>
+ * e.g: new VersionedSerialize(CodecRegistry.defaults(), new DefaultSerialize(), CodecRegistry.HESSIAN2)
+ */
+public class VersionedSerialize implements ISerialize {
+    public static final int LEGACY = 0;//不加头部，按legacy写入
+    private static final byte MARKER = (byte) 0xFF;
+
+    private final CodecRegistry registry;
+    private final ISerialize legacy;
+    private final int preferred;
+    private final String name;
+
+    private final AtomicLong legacyDecodes = new AtomicLong();
+
+    /**
+     * @param registry
+     * @param legacy   原先使用的序列化，用于读取没有头部的数据
+     */
+    public VersionedSerialize(CodecRegistry registry, ISerialize legacy) {
+        this(registry, legacy, LEGACY);
+    }
+
+    /**
+     * @param registry
+     * @param legacy    原先使用的序列化，用于读取没有头部的数据
+     * @param preferred 写入使用的编码id，LEGACY表示按legacy写入且不加头部；创建后不能修改，RedisDBFactory以此区分连接池
+     */
+    public VersionedSerialize(CodecRegistry registry, ISerialize legacy, int preferred) {
+        if (registry == null || legacy == null) {
+            throw new IllegalArgumentException("registry and legacy can't be NULL");
+        }
+        if (preferred != LEGACY && registry.get(preferred) == null) {
+            throw new IllegalArgumentException("codec id " + preferred + " is not registered");
+        }
+        this.registry = registry;
+        this.legacy = legacy;
+        this.preferred = preferred;
+        this.name = "VersionedSerialize[legacy=" + legacy.getClass().getName() + ", codecs=" + registry + ", preferred=" + preferred + "]";
+    }
+
+    public int getPreferred() {
+        return preferred;
+    }
+
+    @Override
+    public byte[] encode(Object o) {
+        int id = preferred;
+        if (id == LEGACY) {
+            return legacy.encode(o);
+        }
+        byte[] payload = registry.get(id).encode(o);
+        if (payload == null) {
+            return null;
+        }
+        byte[] ret = new byte[payload.length + 2];
+        ret[0] = MARKER;
+        ret[1] = (byte) id;
+        System.arraycopy(payload, 0, ret, 2, payload.length);
+        return ret;
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        if (bytes == null) {
+            return null;
+        }
+        boolean headerMatched = false;
+        if (bytes.length >= 2 && bytes[0] == MARKER) {
+            ISerialize codec = registry.get(bytes[1] & 0xff);
+            if (codec != null) {
+                headerMatched = true;
+                byte[] payload = Arrays.copyOfRange(bytes, 2, bytes.length);
+                T ret = null;
+                try {
+                    ret = codec instanceof StrictDecode ? ((StrictDecode) codec).decodeStrict(payload, type) : codec.decode(payload, type);
+                } catch (RuntimeException e) {
+                    //旧格式中恰好以0xFF开头的数据
+                }
+                if (ret != null) {
+                    return ret;
+                }
+            }
+        }
+        legacyDecodes.incrementAndGet();
+        try {
+            return legacy.decode(bytes, type);
+        } catch (RuntimeException e) {
+            if (headerMatched) {
+                //按头部与按legacy都无法解码，视为以新格式写入的null
+                LogUtil.error(e);
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return 按legacy解码的次数
+     */
+    public long getLegacyDecodes() {
+        return legacyDecodes.get();
+    }
+
+    /**
+     * 含legacy、创建时注册的编码与preferred，创建后不变；RedisDBFactory以此区分连接池，配置不同的实例不会共用一个连接池
+     */
+    @Override
+    public String toString() {
+        return name;
+    }
+}